@@ -0,0 +1,126 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1UTCTime;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequenceGenerator;
+import org.bouncycastle.asn1.DERSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the parsing of the egkInfo records with {@link EgkInfoDecoder} and with the ASN.1 stream
+ * parser of BouncyCastle. The score is in entries per second; run with {@code -prof gc} for the
+ * bytes allocated per entry ({@code gc.alloc.rate.norm} divided by the number of entries).
+ *
+ * <pre>
+ * mvn -P benchmark test-compile exec:exec
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EgkInfoDecoderBenchmark {
+
+  private static final int ENTRIES = 100_000;
+  private static final String SESSION_ID = "benchmark";
+
+  /** Number of distinct notAfter values; real files share them across many cards. */
+  @Param({"1", "1000"})
+  public int notAfterValues;
+
+  private byte[] content;
+  private EgkTransferEntryParser derDecoderParser;
+  private EgkTransferEntryParser asn1StreamParser;
+
+  @Setup
+  public void setUp() throws IOException {
+    final var random = new Random(42);
+    final var out = new ByteArrayOutputStream();
+    final var eContent = new DERSequenceGenerator(out);
+    eContent.addObject(new ASN1Integer(1));
+    final var egkInfos = new DERSequenceGenerator(eContent.getRawOutputStream());
+    for (int i = 0; i < ENTRIES; i++) {
+      final byte[] cvcHash = new byte[32];
+      final byte[] autHash = new byte[32];
+      random.nextBytes(cvcHash);
+      random.nextBytes(autHash);
+      final int minutes = i % notAfterValues;
+      egkInfos.addObject(
+          new DERSet(
+              new ASN1Encodable[] {
+                new ASN1UTCTime(
+                    String.format("300101%02d%02d00Z", minutes / 60 % 24, minutes % 60)),
+                new DEROctetString(cvcHash),
+                new DERBitString(autHash)
+              }));
+    }
+    egkInfos.close();
+    eContent.close();
+    content = out.toByteArray();
+    final var cmsSignedDataParserFactory = new CMSSignedDataParserFactory();
+    final var asn1StreamParserFactory = new ASN1StreamParserFactory();
+    derDecoderParser =
+        new EgkTransferEntryParser(cmsSignedDataParserFactory, asn1StreamParserFactory, true);
+    asn1StreamParser =
+        new EgkTransferEntryParser(cmsSignedDataParserFactory, asn1StreamParserFactory, false);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ENTRIES)
+  public long derDecoder(final Blackhole blackhole)
+      throws IOException, ParseException, InterruptedException {
+    return derDecoderParser.parseContent(
+        new ByteArrayInputStream(content), SESSION_ID, blackhole::consume);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ENTRIES)
+  public long asn1StreamParser(final Blackhole blackhole)
+      throws IOException, ParseException, InterruptedException {
+    return asn1StreamParser.parseContent(
+        new ByteArrayInputStream(content), SESSION_ID, blackhole::consume);
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.configuration;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+/**
+ * Data sources of the hash DB. Writes and read-write transactions use the primary configured under
+ * {@code spring.datasource}; read-only transactions ({@code @Transactional(readOnly = true)}) are
+ * routed to the replicas listed in {@code egk-read-replicas.urls}, which use the same credentials.
+ * Without replicas everything uses the primary.
+ */
+@Configuration
+public class DataSourceConfiguration {
+
+  static final String POSTGRES_LAG_QUERY =
+      "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0"
+          + " ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) END";
+
+  static final int DEFAULT_IMPORT_POOL_SIZE = 8;
+
+  @Bean
+  @ConfigurationProperties("spring.datasource.hikari")
+  public HikariDataSource primaryDataSource(final DataSourceProperties properties) {
+    final var dataSource =
+        properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    dataSource.setPoolName("egk-validation");
+    dataSource.setRegisterMbeans(true);
+    return dataSource;
+  }
+
+  @Bean
+  @ConfigurationProperties("egk-import-pool")
+  public HikariDataSource importDataSource(final DataSourceProperties properties) {
+    final var dataSource =
+        properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    dataSource.setPoolName("egk-import");
+    dataSource.setMaximumPoolSize(DEFAULT_IMPORT_POOL_SIZE);
+    dataSource.setRegisterMbeans(true);
+    return dataSource;
+  }
+
+  @Bean
+  public ReadWriteRoutingDataSource readWriteRoutingDataSource(
+      @Qualifier("primaryDataSource") final HikariDataSource primaryDataSource,
+      @Qualifier("importDataSource") final HikariDataSource importDataSource,
+      final DataSourceProperties properties,
+      @Value("${egk-read-replicas.urls:}") final List<String> replicaUrls,
+      @Value("${egk-read-replicas.max-lag-seconds:5}") final double maxLagSeconds,
+      @Value("${egk-read-replicas.lag-check-interval-millis:1000}")
+          final long lagCheckIntervalMillis,
+      @Value("${egk-read-replicas.lag-query:" + POSTGRES_LAG_QUERY + "}") final String lagQuery) {
+    final Map<String, DataSource> replicas = new LinkedHashMap<>();
+    for (final var url : replicaUrls) {
+      if (url.isBlank()) {
+        continue;
+      }
+      final var replica =
+          properties.initializeDataSourceBuilder().type(HikariDataSource.class).url(url).build();
+      replica.setPoolName("egk-read-replica-" + replicas.size());
+      replica.setReadOnly(true);
+      replica.setRegisterMbeans(true);
+      replicas.put(url, replica);
+    }
+    final var routingDataSource =
+        new ReadWriteRoutingDataSource(
+            primaryDataSource, importDataSource, replicas, maxLagSeconds, lagQuery);
+    routingDataSource.startLagCheck(lagCheckIntervalMillis);
+    return routingDataSource;
+  }
+
+  @Bean
+  @Primary
+  public DataSource dataSource(final ReadWriteRoutingDataSource readWriteRoutingDataSource) {
+    return new LazyConnectionDataSourceProxy(readWriteRoutingDataSource);
+  }
+}
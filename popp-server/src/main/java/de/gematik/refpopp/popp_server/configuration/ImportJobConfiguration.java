@@ -0,0 +1,52 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+@Configuration
+public class ImportJobConfiguration {
+
+  /**
+   * Executor running hash imports outside the request thread. Both the number of workers and the
+   * number of waiting jobs are bounded; submissions beyond that are rejected.
+   */
+  @Bean(name = "importJobExecutor", destroyMethod = "shutdownNow")
+  public ExecutorService importJobExecutor(
+      @Value("${cert-hash-import.job-workers:1}") final int workers,
+      @Value("${cert-hash-import.job-queue-capacity:4}") final int queueCapacity) {
+    return new ThreadPoolExecutor(
+        workers,
+        workers,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        new CustomizableThreadFactory("hash-import-job-"),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+}
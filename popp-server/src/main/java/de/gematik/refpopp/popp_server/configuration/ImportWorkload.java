@@ -0,0 +1,60 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.configuration;
+
+import java.util.concurrent.ThreadFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Marks the threads doing bulk work on the hash DB, i.e. imports and purges. Their connections are
+ * taken from the size-limited import pool, so they cannot starve the pool of the handshake lookups,
+ * see {@link ReadWriteRoutingDataSource}.
+ */
+public final class ImportWorkload {
+
+  private static final ThreadLocal<Boolean> ACTIVE = new ThreadLocal<>();
+
+  private ImportWorkload() {}
+
+  /** Runs the task on the calling thread with its connections taken from the import pool. */
+  public static void run(final Runnable task) {
+    if (isActive()) {
+      task.run();
+      return;
+    }
+    ACTIVE.set(Boolean.TRUE);
+    try {
+      task.run();
+    } finally {
+      ACTIVE.remove();
+    }
+  }
+
+  public static boolean isActive() {
+    return ACTIVE.get() != null;
+  }
+
+  /** Thread factory for threads that only do import work. */
+  public static ThreadFactory threadFactory(final String threadNamePrefix) {
+    final var delegate = new CustomizableThreadFactory(threadNamePrefix);
+    return task -> delegate.newThread(() -> run(task));
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.configuration;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Routes the connections of read-only transactions to the read replicas, round robin, and all other
+ * connections to the primary. Replicas whose replication lag exceeds the allowed maximum, or which
+ * cannot be queried, are left out until a later check finds them fresh again; without fresh replica
+ * read-only transactions use the primary as well.
+ *
+ * <p>The read-only flag of a transaction is only known after the transaction has begun, so this
+ * data source has to be wrapped in a {@link
+ * org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}.
+ *
+ * <p>A transaction that has read from a replica is marked, see {@link #isReadFromReplica()}, so its
+ * results are not cached or used for writes without checking them on the primary.
+ */
+@Slf4j
+public final class ReadWriteRoutingDataSource extends AbstractRoutingDataSource
+    implements Closeable {
+
+  static final String PRIMARY = "primary";
+  static final String IMPORT = "import";
+  private static final Object REPLICA_READ = new Object();
+
+  private final Map<String, DataSource> replicas;
+  private final double maxLagSeconds;
+  private final String lagQuery;
+  private final AtomicInteger nextReplica = new AtomicInteger();
+  private volatile List<String> freshReplicas = List.of();
+  private ScheduledExecutorService lagChecker;
+
+  /**
+   * @param primary the data source of the primary
+   * @param importPool the data source of the primary used by import work
+   * @param replicas the data sources of the replicas by name, closed with this data source
+   * @param maxLagSeconds the replication lag up to which a replica is used
+   * @param lagQuery query returning the replication lag of a replica in seconds
+   */
+  public ReadWriteRoutingDataSource(
+      final DataSource primary,
+      final DataSource importPool,
+      final Map<String, DataSource> replicas,
+      final double maxLagSeconds,
+      final String lagQuery) {
+    this.replicas = replicas;
+    this.maxLagSeconds = maxLagSeconds;
+    this.lagQuery = lagQuery;
+    final Map<Object, Object> targets = new HashMap<>(replicas);
+    targets.put(PRIMARY, primary);
+    targets.put(IMPORT, importPool);
+    setTargetDataSources(targets);
+    setDefaultTargetDataSource(primary);
+    setLenientFallback(false);
+  }
+
+  /** Checks the replicas once and then every {@code intervalMillis} in the background. */
+  public void startLagCheck(final long intervalMillis) {
+    checkReplicas();
+    if (replicas.isEmpty()) {
+      return;
+    }
+    lagChecker =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "read-replica-lag-check");
+              thread.setDaemon(true);
+              return thread;
+            });
+    lagChecker.scheduleWithFixedDelay(
+        this::checkReplicas, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  protected Object determineCurrentLookupKey() {
+    if (ImportWorkload.isActive()) {
+      return IMPORT;
+    }
+    if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+      return PRIMARY;
+    }
+    final var fresh = freshReplicas;
+    if (fresh.isEmpty()) {
+      return PRIMARY;
+    }
+    markReplicaRead();
+    return fresh.get(Math.floorMod(nextReplica.getAndIncrement(), fresh.size()));
+  }
+
+  /**
+   * Returns whether the current transaction has read from a replica, whose data may lag behind the
+   * primary up to the allowed maximum.
+   */
+  public static boolean isReadFromReplica() {
+    return TransactionSynchronizationManager.hasResource(REPLICA_READ);
+  }
+
+  private static void markReplicaRead() {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()
+        || TransactionSynchronizationManager.hasResource(REPLICA_READ)) {
+      return;
+    }
+    TransactionSynchronizationManager.bindResource(REPLICA_READ, Boolean.TRUE);
+    TransactionSynchronizationManager.registerSynchronization(
+        new TransactionSynchronization() {
+          @Override
+          public void afterCompletion(final int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(REPLICA_READ);
+          }
+        });
+  }
+
+  /** Measures the lag of every replica and updates the set of replicas used for reads. */
+  void checkReplicas() {
+    final List<String> fresh = new ArrayList<>();
+    for (final var replica : replicas.entrySet()) {
+      try {
+        final Double lag =
+            new JdbcTemplate(replica.getValue()).queryForObject(lagQuery, Double.class);
+        if (lag != null && lag <= maxLagSeconds) {
+          fresh.add(replica.getKey());
+          if (!freshReplicas.contains(replica.getKey())) {
+            log.info("| Reading from replica {} with {} s lag", replica.getKey(), lag);
+          }
+        } else if (freshReplicas.contains(replica.getKey())) {
+          log.warn(
+              "| Read replica {} lags {} s behind, reading from primary", replica.getKey(), lag);
+        }
+      } catch (final RuntimeException e) {
+        if (freshReplicas.contains(replica.getKey())) {
+          log.warn("| Read replica {} unavailable: {}", replica.getKey(), e.getMessage());
+        }
+      }
+    }
+    freshReplicas = List.copyOf(fresh);
+  }
+
+  List<String> getFreshReplicas() {
+    return freshReplicas;
+  }
+
+  @Override
+  public void close() {
+    if (lagChecker != null) {
+      lagChecker.shutdownNow();
+    }
+    for (final var dataSource : replicas.values()) {
+      closeQuietly(dataSource);
+    }
+  }
+
+  private static void closeQuietly(final DataSource dataSource) {
+    if (dataSource instanceof AutoCloseable closeable) {
+      try {
+        closeable.close();
+      } catch (final Exception e) {
+        log.warn("| Could not close data source: {}", e.getMessage());
+      }
+    }
+  }
+}
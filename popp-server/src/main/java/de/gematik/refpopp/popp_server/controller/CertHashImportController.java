@@ -20,10 +20,18 @@
 
 package de.gematik.refpopp.popp_server.controller;
 
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
 import de.gematik.refpopp.popp_server.file.temp.EgkImportTempFileService;
-import de.gematik.refpopp.popp_server.hashdb.EgkHashImportService;
+import de.gematik.refpopp.popp_server.hashdb.EgkHashImportJobService;
+import jakarta.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
@@ -33,6 +41,7 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
 
 @Slf4j
@@ -40,38 +49,142 @@ import org.springframework.web.multipart.MultipartFile;
 @RequestMapping("/cert-hash")
 public class CertHashImportController {
 
-  private final EgkHashImportService egkHashImportService;
+  private final EgkHashImportJobService egkHashImportJobService;
   private final EgkImportTempFileService egkImportTempFileService;
   private final String certHashImportLocation;
+  private final long streamTimeoutMillis;
 
   public CertHashImportController(
-      final EgkHashImportService egkHashImportService,
+      final EgkHashImportJobService egkHashImportJobService,
       final EgkImportTempFileService egkImportTempFileService,
-      @Value("${cert-hash-import.location}") final String certHashImportLocation) {
-    this.egkHashImportService = egkHashImportService;
+      @Value("${cert-hash-import.location}") final String certHashImportLocation,
+      @Value("${cert-hash-import.stream-timeout-seconds:3600}") final long streamTimeoutSeconds) {
+    this.egkHashImportJobService = egkHashImportJobService;
     this.egkImportTempFileService = egkImportTempFileService;
     this.certHashImportLocation = certHashImportLocation;
+    this.streamTimeoutMillis = TimeUnit.SECONDS.toMillis(streamTimeoutSeconds);
   }
 
   @PostMapping(value = "/import", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
   public ResponseEntity<String> certHash(
       @RequestParam("file") final MultipartFile file,
-      @RequestParam(value = "sessionId", required = false) final String sessionId) {
+      @RequestParam(value = "sessionId", required = false) final String sessionId,
+      @RequestParam(value = "resumeFrom", required = false) final String resumeFrom) {
     log.info("Received request to import cert hash file: {}", file.getOriginalFilename());
     if (file.isEmpty()) {
       return ResponseEntity.badRequest().body("No file uploaded");
     }
+    return spoolAndSubmit(path -> file.transferTo(path.toFile()), sessionId, resumeFrom);
+  }
+
+  /**
+   * Imports the signed data from the raw request body. The body is handed to a queued import job
+   * that reads it while it is received, without a temporary copy, and the request is answered when
+   * the import has finished. Only a resumed import writes the body to a temporary file first,
+   * because it has to compare the digest of the whole file before it can skip entries.
+   */
+  @PostMapping(value = "/import", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+  public DeferredResult<ResponseEntity<String>> certHashStream(
+      final HttpServletRequest request,
+      @RequestParam(value = "sessionId", required = false) final String sessionId,
+      @RequestParam(value = "resumeFrom", required = false) final String resumeFrom) {
+    log.info(
+        "Received request to import cert hash stream of {} bytes", request.getContentLengthLong());
+    final var result = new DeferredResult<ResponseEntity<String>>(streamTimeoutMillis);
+    if (request.getContentLengthLong() == 0) {
+      result.setResult(ResponseEntity.badRequest().body("No content uploaded"));
+    } else if (resumeFrom != null) {
+      result.setResult(
+          spoolAndSubmit(
+              path -> {
+                try (final InputStream in = request.getInputStream()) {
+                  Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+              },
+              sessionId,
+              resumeFrom));
+    } else {
+      importStream(request, sessionId, result);
+    }
+    return result;
+  }
+
+  private void importStream(
+      final HttpServletRequest request,
+      final String sessionId,
+      final DeferredResult<ResponseEntity<String>> result) {
+    try {
+      final var job =
+          egkHashImportJobService.importStream(
+              request.getInputStream(), request.getContentLengthLong(), sessionId);
+      final URI location = URI.create("/import-reports/" + job.jobId());
+      // the job goes on after a timeout, its outcome is found in the import report
+      result.onTimeout(
+          () -> result.setResult(ResponseEntity.accepted().location(location).build()));
+      job.finished()
+          .whenComplete(
+              (ignored, failure) ->
+                  result.setResult(
+                      failure == null
+                          ? ResponseEntity.ok().location(location).body(job.jobId())
+                          : streamImportFailed(failure)));
+    } catch (final IOException e) {
+      result.setResult(
+          ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+              .body("Could not read uploaded data: " + e.getMessage()));
+    } catch (final ImportDataException e) {
+      result.setResult(importFailed(e));
+    } catch (final RejectedExecutionException e) {
+      result.setResult(
+          ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+              .body("Import job queue is full, try again later"));
+    }
+  }
+
+  private ResponseEntity<String> streamImportFailed(final Throwable failure) {
+    if (failure instanceof final ImportDataException e) {
+      return importFailed(e);
+    }
+    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(failure.getMessage());
+  }
+
+  private ResponseEntity<String> spoolAndSubmit(
+      final UploadWriter upload, final String sessionId, final String resumeFrom) {
     Path path = null;
     try {
       path = egkImportTempFileService.createFile(certHashImportLocation);
-      file.transferTo(path.toFile());
-      egkHashImportService.importData(path, sessionId);
-      return ResponseEntity.ok("Request to import cert hash file was successful");
+      upload.writeTo(path);
+      final String jobId =
+          resumeFrom == null
+              ? egkHashImportJobService.submit(path, sessionId)
+              : egkHashImportJobService.resume(path, resumeFrom, sessionId);
+      // the job owns the file from here on and deletes it when the import has finished
+      path = null;
+      return ResponseEntity.accepted().location(URI.create("/import-reports/" + jobId)).body(jobId);
     } catch (final IOException e) {
       return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
           .body("Could not save uploaded file: " + e.getMessage());
+    } catch (final ImportDataException e) {
+      return importFailed(e);
+    } catch (final RejectedExecutionException e) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .body("Import job queue is full, try again later");
     } finally {
       egkImportTempFileService.deleteFile(path);
     }
   }
+
+  private ResponseEntity<String> importFailed(final ImportDataException e) {
+    final HttpStatus status =
+        EgkHashImportJobService.JOB_EXISTS_ERROR_CODE.equals(e.getErrorCode())
+                || EgkHashImportJobService.RESUME_NOT_POSSIBLE_ERROR_CODE.equals(e.getErrorCode())
+            ? HttpStatus.CONFLICT
+            : HttpStatus.INTERNAL_SERVER_ERROR;
+    return ResponseEntity.status(status).body(e.getMessage());
+  }
+
+  @FunctionalInterface
+  private interface UploadWriter {
+    void writeTo(Path path) throws IOException;
+  }
 }
@@ -48,6 +48,9 @@ public final class EgkImportTempFileService {
   }
 
   public void deleteFile(final Path path) {
+    if (path == null) {
+      return;
+    }
     try {
       Files.deleteIfExists(path);
       log.info("Temporary file deleted: {}", path);
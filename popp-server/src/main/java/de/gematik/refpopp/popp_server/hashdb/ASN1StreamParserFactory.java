@@ -28,6 +28,6 @@ import org.springframework.stereotype.Component;
 public class ASN1StreamParserFactory {
 
   public ASN1StreamParser create(final InputStream inputStream) {
-    return new ASN1StreamParser(inputStream);
+    return new ASN1StreamParser(HashFileInput.buffered(inputStream));
   }
 }
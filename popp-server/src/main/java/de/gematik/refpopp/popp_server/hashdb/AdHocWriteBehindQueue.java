@@ -0,0 +1,487 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Opt-in write-behind for the AD_HOC entries created by contact handshakes of unknown cards. The
+ * handshake only appends the entry to a local journal segment and to an in-memory overlay; a
+ * background thread upserts the pending entries in batches. Lookups see pending entries through
+ * {@link #findPending}, so a card is known from its first handshake on.
+ *
+ * <p>Journal segments are deleted once their entries are in the database and replayed on startup
+ * otherwise, so pending entries survive a restart of the process. Appends are forced to disk every
+ * {@code commit-interval-millis} by a background thread, so a power loss loses at most the entries
+ * of the last interval; with 0 every append is forced before {@link #offer} returns. Like {@link
+ * EgkHashFilter}, the overlay only sees the entries of this instance.
+ */
+@Component
+@Slf4j
+public class AdHocWriteBehindQueue {
+
+  static final String SEGMENT_PREFIX = "ad-hoc-";
+  static final String SEGMENT_SUFFIX = ".journal";
+
+  private final EgkEntryBulkWriter egkEntryBulkWriter;
+  private final boolean enabled;
+  private final Path journalDir;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+  private final long commitIntervalMillis;
+  private final int maxPending;
+
+  private final Object lock = new Object();
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final Map<ByteBuffer, List<EgkEntry>> pendingByCvcHash = new HashMap<>();
+  private final Map<ByteBuffer, List<EgkEntry>> pendingByAutHash = new HashMap<>();
+  private final Deque<EgkEntry> unflushed = new ArrayDeque<>();
+  private final List<Path> sealedSegments = new ArrayList<>();
+  private DataOutputStream segment;
+  private FileChannel segmentChannel;
+  private Path segmentPath;
+  // whether the current segment has appends that are not forced to disk yet
+  private boolean uncommitted;
+  private long nextSegmentNumber;
+  private ScheduledExecutorService flusher;
+  private ScheduledExecutorService committer;
+
+  public AdHocWriteBehindQueue(
+      final EgkEntryBulkWriter egkEntryBulkWriter,
+      @Value("${egk-write-behind.enabled:false}") final boolean enabled,
+      @Value("${egk-write-behind.journal-dir:${java.io.tmpdir}/popp-write-behind}")
+          final Path journalDir,
+      @Value("${egk-write-behind.batch-size:500}") final int batchSize,
+      @Value("${egk-write-behind.flush-interval-millis:200}") final long flushIntervalMillis,
+      @Value("${egk-write-behind.commit-interval-millis:100}") final long commitIntervalMillis,
+      @Value("${egk-write-behind.max-pending:100000}") final int maxPending) {
+    this.egkEntryBulkWriter = egkEntryBulkWriter;
+    this.enabled = enabled;
+    this.journalDir = journalDir;
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.commitIntervalMillis = commitIntervalMillis;
+    this.maxPending = maxPending;
+  }
+
+  /** Replays the segments left by the last run and starts the background flush. */
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      Files.createDirectories(journalDir);
+      for (final var path : listSegments()) {
+        final var replayed = readSegment(path);
+        synchronized (lock) {
+          replayed.forEach(this::addPending);
+          sealedSegments.add(path);
+          nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber(path) + 1);
+        }
+        log.info("| Replayed {} pending AD_HOC entries from {}", replayed.size(), path);
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Could not replay write-behind journal " + journalDir, e);
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(daemonThreads("ad-hoc-write-behind"));
+    flusher.scheduleWithFixedDelay(
+        this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    if (commitIntervalMillis > 0) {
+      // separate thread, so a slow flush does not delay the commits
+      committer =
+          Executors.newSingleThreadScheduledExecutor(daemonThreads("ad-hoc-journal-commit"));
+      committer.scheduleWithFixedDelay(
+          this::commit, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    log.info(
+        "| AdHocWriteBehindQueue started with journal {}, batch size {}, flush interval {} ms,"
+            + " commit interval {} ms",
+        journalDir,
+        batchSize,
+        flushIntervalMillis,
+        commitIntervalMillis);
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return runnable -> {
+      final Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /** Stops the background flush and writes the remaining entries. */
+  @PreDestroy
+  public void stop() {
+    if (flusher == null) {
+      return;
+    }
+    if (committer != null) {
+      committer.shutdown();
+    }
+    flusher.shutdown();
+    try {
+      if (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.warn("| Write-behind flush did not finish");
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flushQuietly();
+    synchronized (lock) {
+      closeSegment();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Queues a new AD_HOC entry. The caller has to write the entry itself if it is not accepted,
+   * which is the case if write-behind is disabled, the queue is full or the journal cannot be
+   * written.
+   *
+   * @param entry the new entry
+   * @return whether the entry was queued
+   */
+  public boolean offer(final EgkEntry entry) {
+    if (!enabled || entry.getState() != EgkEntryState.AD_HOC) {
+      return false;
+    }
+    synchronized (lock) {
+      if (findPendingPair(entry.getCvcHash(), entry.getAutHash()) != null) {
+        return true;
+      }
+      if (unflushed.size() >= maxPending) {
+        log.warn("| Write-behind queue is full with {} entries", unflushed.size());
+        return false;
+      }
+      try {
+        appendToSegment(entry);
+      } catch (final IOException e) {
+        log.warn("| Could not append to write-behind journal: {}", e.getMessage());
+        return false;
+      }
+      addPending(entry);
+      if (unflushed.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+        flusher.execute(this::flushQuietly);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the pending entries sharing the cvc hash or the aut hash.
+   *
+   * @param cvcHash the cvc hash
+   * @param autHash the aut hash
+   * @return the pending entries, the pair itself included if pending
+   */
+  public List<EgkEntry> findPending(final byte[] cvcHash, final byte[] autHash) {
+    if (!enabled) {
+      return List.of();
+    }
+    synchronized (lock) {
+      final Set<EgkEntry> found = new LinkedHashSet<>();
+      found.addAll(pendingByCvcHash.getOrDefault(ByteBuffer.wrap(cvcHash), List.of()));
+      found.addAll(pendingByAutHash.getOrDefault(ByteBuffer.wrap(autHash), List.of()));
+      return List.copyOf(found);
+    }
+  }
+
+  /** Number of entries not yet written to the database. */
+  public int pendingCount() {
+    synchronized (lock) {
+      return unflushed.size();
+    }
+  }
+
+  /**
+   * Writes all queued entries to the database before returning. Entries stay visible through {@link
+   * #findPending} until they are written; if the write fails they are queued again.
+   *
+   * @return the number of entries written
+   */
+  public int flush() {
+    if (!enabled) {
+      return 0;
+    }
+    flushLock.lock();
+    try {
+      flushRequested.set(false);
+      final List<EgkEntry> batch;
+      final List<Path> segments;
+      synchronized (lock) {
+        if (unflushed.isEmpty()) {
+          return 0;
+        }
+        batch = new ArrayList<>(unflushed);
+        unflushed.clear();
+        closeSegment();
+        segments = new ArrayList<>(sealedSegments);
+        sealedSegments.clear();
+      }
+      try {
+        for (int from = 0; from < batch.size(); from += batchSize) {
+          egkEntryBulkWriter.upsert(batch.subList(from, Math.min(from + batchSize, batch.size())));
+        }
+      } catch (final RuntimeException e) {
+        synchronized (lock) {
+          for (int i = batch.size() - 1; i >= 0; i--) {
+            unflushed.addFirst(batch.get(i));
+          }
+          sealedSegments.addAll(0, segments);
+        }
+        throw e;
+      }
+      synchronized (lock) {
+        batch.forEach(this::removePending);
+      }
+      for (final var path : segments) {
+        try {
+          Files.deleteIfExists(path);
+        } catch (final IOException e) {
+          log.warn("| Could not delete write-behind segment {}: {}", path, e.getMessage());
+        }
+      }
+      log.debug("| Wrote {} pending AD_HOC entries", batch.size());
+      return batch.size();
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Forces the appends to the current journal segment to disk. Runs every {@code
+   * commit-interval-millis}; the lock is not held while forcing, so handshakes are not blocked.
+   */
+  void commit() {
+    final FileChannel channel;
+    synchronized (lock) {
+      if (!uncommitted) {
+        return;
+      }
+      channel = segmentChannel;
+      uncommitted = false;
+    }
+    try {
+      channel.force(false);
+    } catch (final ClosedChannelException e) {
+      // the segment was forced when it was closed
+    } catch (final IOException e) {
+      log.warn("| Could not force write-behind journal to disk: {}", e.getMessage());
+      synchronized (lock) {
+        if (segmentChannel == channel) {
+          uncommitted = true;
+        }
+      }
+    }
+  }
+
+  /** Whether all appends to the journal are forced to disk. */
+  boolean isCommitted() {
+    synchronized (lock) {
+      return !uncommitted;
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (final RuntimeException e) {
+      log.warn("| Write-behind flush failed, retrying later: {}", e.getMessage());
+    }
+  }
+
+  private EgkEntry findPendingPair(final byte[] cvcHash, final byte[] autHash) {
+    for (final var entry : pendingByCvcHash.getOrDefault(ByteBuffer.wrap(cvcHash), List.of())) {
+      if (Arrays.equals(entry.getAutHash(), autHash)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private void addPending(final EgkEntry entry) {
+    if (findPendingPair(entry.getCvcHash(), entry.getAutHash()) != null) {
+      return;
+    }
+    pendingByCvcHash
+        .computeIfAbsent(ByteBuffer.wrap(entry.getCvcHash()), k -> new ArrayList<>())
+        .add(entry);
+    pendingByAutHash
+        .computeIfAbsent(ByteBuffer.wrap(entry.getAutHash()), k -> new ArrayList<>())
+        .add(entry);
+    unflushed.addLast(entry);
+  }
+
+  private void removePending(final EgkEntry entry) {
+    removeFrom(pendingByCvcHash, ByteBuffer.wrap(entry.getCvcHash()), entry);
+    removeFrom(pendingByAutHash, ByteBuffer.wrap(entry.getAutHash()), entry);
+  }
+
+  private static void removeFrom(
+      final Map<ByteBuffer, List<EgkEntry>> index, final ByteBuffer key, final EgkEntry entry) {
+    final var entries = index.get(key);
+    if (entries != null) {
+      entries.removeIf(e -> e == entry);
+      if (entries.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  private void appendToSegment(final EgkEntry entry) throws IOException {
+    if (segment == null) {
+      segmentPath = journalDir.resolve(SEGMENT_PREFIX + nextSegmentNumber++ + SEGMENT_SUFFIX);
+      segmentChannel =
+          FileChannel.open(
+              segmentPath,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+      segment =
+          new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(segmentChannel)));
+      forceJournalDir();
+    }
+    writeRecord(segment, entry);
+    segment.flush();
+    if (commitIntervalMillis > 0) {
+      uncommitted = true;
+    } else {
+      segmentChannel.force(false);
+    }
+  }
+
+  /** Makes the entry of a new segment in the journal directory durable. */
+  private void forceJournalDir() {
+    try (final var dir = FileChannel.open(journalDir, StandardOpenOption.READ)) {
+      dir.force(true);
+    } catch (final IOException e) {
+      // directories cannot be opened on every platform, e.g. Windows
+      log.debug("| Could not force write-behind journal directory: {}", e.getMessage());
+    }
+  }
+
+  private void closeSegment() {
+    if (segment == null) {
+      return;
+    }
+    try {
+      // also if a commit is running, it fails once the channel is closed
+      if (commitIntervalMillis > 0) {
+        segmentChannel.force(false);
+      }
+      segment.close();
+    } catch (final IOException e) {
+      log.warn("| Could not close write-behind segment {}: {}", segmentPath, e.getMessage());
+    }
+    sealedSegments.add(segmentPath);
+    segment = null;
+    segmentChannel = null;
+    segmentPath = null;
+    uncommitted = false;
+  }
+
+  private List<Path> listSegments() throws IOException {
+    try (final Stream<Path> files = Files.list(journalDir)) {
+      return files
+          .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+          .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+          .sorted((a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)))
+          .toList();
+    }
+  }
+
+  private static long segmentNumber(final Path path) {
+    final var name = path.getFileName().toString();
+    return Long.parseLong(
+        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  static void writeRecord(final DataOutputStream out, final EgkEntry entry) throws IOException {
+    out.writeShort(entry.getCvcHash().length);
+    out.write(entry.getCvcHash());
+    out.writeShort(entry.getAutHash().length);
+    out.write(entry.getAutHash());
+    out.writeLong(entry.getNotAfter().toEpochSecond(ZoneOffset.UTC));
+    out.writeInt(entry.getNotAfter().getNano());
+  }
+
+  /** Reads the records of a segment; a record cut off by a crash ends the segment. */
+  static List<EgkEntry> readSegment(final Path path) throws IOException {
+    final List<EgkEntry> entries = new ArrayList<>();
+    try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      while (true) {
+        final byte[] cvcHash = new byte[in.readUnsignedShort()];
+        in.readFully(cvcHash);
+        final byte[] autHash = new byte[in.readUnsignedShort()];
+        in.readFully(autHash);
+        final var notAfter =
+            LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        entries.add(new EgkEntry(cvcHash, autHash, EgkEntryState.AD_HOC, notAfter));
+      }
+    } catch (final EOFException e) {
+      return entries;
+    }
+  }
+}
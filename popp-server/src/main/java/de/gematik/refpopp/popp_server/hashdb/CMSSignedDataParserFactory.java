@@ -39,7 +39,8 @@ public class CMSSignedDataParserFactory {
 
   public CMSSignedDataParser createParser(final InputStream dataStream, final String sessionId) {
     try {
-      return new CMSSignedDataParser(digestProviderBuilder.build(), dataStream);
+      return new CMSSignedDataParser(
+          digestProviderBuilder.build(), HashFileInput.buffered(dataStream));
     } catch (final CMSException | OperatorCreationException e) {
       throw new ImportDataException(
           sessionId, "Failed to create CMSSignedDataParser " + e, "errorCode");
@@ -26,6 +26,7 @@ import java.io.InputStream;
 import java.security.KeyStore;
 import java.security.Security;
 import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.cms.CMSSignedDataParser;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
@@ -68,17 +69,38 @@ public class CmsSignatureVerifier {
     try {
       final var parser = cmsSignedDataParserFactory.createParser(cmsStream, sessionId);
       parser.getSignedContent().drain();
-      final var signers = parser.getSignerInfos();
-      for (final var si : signers.getSigners()) {
-        final var cert = trustedCertificateFinder.findTrustedCertificate(trustStore, si.getSID());
-        if (cert == null || !si.verify(signerInfoVerifierBuilder.build(cert))) {
-          return false;
-        }
-      }
-      return true;
+      return areSignersValid(parser);
+    } catch (final Exception e) {
+      throw new ImportDataException(
+          sessionId, "CMS verification failed: " + e.getMessage(), "errorCode");
+    }
+  }
+
+  /**
+   * Verifies the signer infos of a parser whose signed content has already been read completely,
+   * e.g. by streaming the eContent through the entry parser.
+   *
+   * @param parser the parser with fully consumed signed content
+   * @param sessionId the session ID for error reporting
+   * @return true if all signatures are valid, false otherwise
+   */
+  public boolean verifySigners(final CMSSignedDataParser parser, final String sessionId) {
+    try {
+      return areSignersValid(parser);
     } catch (final Exception e) {
       throw new ImportDataException(
           sessionId, "CMS verification failed: " + e.getMessage(), "errorCode");
     }
   }
+
+  private boolean areSignersValid(final CMSSignedDataParser parser) throws Exception {
+    final var signers = parser.getSignerInfos();
+    for (final var si : signers.getSigners()) {
+      final var cert = trustedCertificateFinder.findTrustedCertificate(trustStore, si.getSID());
+      if (cert == null || !si.verify(signerInfoVerifierBuilder.build(cert))) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
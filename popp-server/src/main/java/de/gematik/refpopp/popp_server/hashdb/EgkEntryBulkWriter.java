@@ -0,0 +1,296 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bulk write path for the hash import. New rows are streamed with {@code COPY ... FROM STDIN
+ * (FORMAT binary)} into the temporary table egk_entries_copy and moved into egk_entries with {@code
+ * INSERT ... ON CONFLICT}, state changes of existing rows are sent as one JDBC batch. On databases
+ * other than PostgreSQL (e.g. H2 in tests) new rows are inserted as JDBC batch without conflict
+ * handling.
+ *
+ * <p>A pair that a handshake stored after the import looked it up is not inserted twice: an AD_HOC
+ * row takes the state of the import, any other row is only ever blocked, as in {@link
+ * de.gematik.refpopp.popp_server.repository.CertHashRepository#upsert}.
+ *
+ * <p>If egk_entries is partitioned ({@code egk-entries.partitions} &gt; 0), new rows are inserted
+ * straight into their partitions, one COPY per partition touched by the batch.
+ */
+@Component
+@Slf4j
+public class EgkEntryBulkWriter {
+
+  static final String CREATE_COPY_TABLE_SQL =
+      "CREATE TEMPORARY TABLE IF NOT EXISTS egk_entries_copy (cvc_hash BYTEA NOT NULL,"
+          + " aut_hash BYTEA NOT NULL, state SMALLINT NOT NULL, not_after TIMESTAMP NOT NULL)";
+  static final String TRUNCATE_COPY_TABLE_SQL = "TRUNCATE egk_entries_copy";
+  static final String COPY_SQL =
+      "COPY egk_entries_copy (cvc_hash, aut_hash, state, not_after) FROM STDIN (FORMAT binary)";
+  // a pair that occurs twice in one batch could not be updated twice by one statement
+  static final String INSERT_COPIED_SQL =
+      """
+      INSERT INTO %s AS e (cvc_hash, aut_hash, state, not_after)
+      SELECT DISTINCT ON (cvc_hash, aut_hash) cvc_hash, aut_hash, state, not_after
+        FROM egk_entries_copy
+       ORDER BY cvc_hash, aut_hash, state DESC
+          ON CONFLICT (cvc_hash, aut_hash)
+          DO UPDATE SET state = EXCLUDED.state WHERE EXCLUDED.state = 3 OR e.state = 2
+      """;
+  static final String INSERT_SQL =
+      "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)";
+  // the cvc hash lets PostgreSQL prune to a single partition
+  static final String UPDATE_STATE_SQL =
+      "UPDATE egk_entries SET state = ? WHERE id = ? AND cvc_hash = ?";
+  static final String UPDATE_STATE_BY_PAIR_SQL =
+      "UPDATE egk_entries SET state = ? WHERE cvc_hash = ? AND aut_hash = ?";
+  static final String UPSERT_SQL =
+      INSERT_SQL
+          + " ON CONFLICT (cvc_hash, aut_hash)"
+          + " DO UPDATE SET state = EXCLUDED.state WHERE EXCLUDED.state = 3";
+  static final String IMPORT_UPSERT_SQL =
+      "INSERT INTO egk_entries AS e (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)"
+          + " ON CONFLICT (cvc_hash, aut_hash)"
+          + " DO UPDATE SET state = EXCLUDED.state WHERE EXCLUDED.state = 3 OR e.state = 2";
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final DataSource dataSource;
+  private final JdbcTemplate jdbcTemplate;
+  private final int partitions;
+
+  public EgkEntryBulkWriter(
+      final DataSource dataSource, @Value("${egk-entries.partitions:0}") final int partitions) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.partitions = partitions;
+  }
+
+  /**
+   * Persists the given entries. Entries without id are copied in, entries with id get their state
+   * updated.
+   *
+   * @param entries the processed entries of one batch
+   * @param sessionId the session ID for error reporting
+   */
+  public void write(final List<EgkEntry> entries, final String sessionId) {
+    final var newEntries = entries.stream().filter(entry -> entry.getId() == null).toList();
+    final var changedEntries = entries.stream().filter(entry -> entry.getId() != null).toList();
+    if (!newEntries.isEmpty()) {
+      insert(newEntries, sessionId);
+    }
+    updateStates(changedEntries);
+  }
+
+  /**
+   * Persists the given entries with JDBC batches only. Entries without id are inserted, entries
+   * with id get their state updated.
+   *
+   * @param entries the processed entries of one batch
+   * @param sessionId the session ID for error reporting
+   */
+  public void writeBatched(final List<EgkEntry> entries, final String sessionId) {
+    final var newEntries = entries.stream().filter(entry -> entry.getId() == null).toList();
+    if (!newEntries.isEmpty()) {
+      jdbcTemplate.batchUpdate(
+          isPostgres(sessionId) ? IMPORT_UPSERT_SQL : INSERT_SQL,
+          newEntries,
+          newEntries.size(),
+          EgkEntryBulkWriter::setRow);
+    }
+    updateStates(entries.stream().filter(entry -> entry.getId() != null).toList());
+  }
+
+  /**
+   * Updates the state of already persisted entries by id with one JDBC batch.
+   *
+   * @param entries entries with id
+   */
+  public void updateStates(final List<EgkEntry> entries) {
+    if (!entries.isEmpty()) {
+      jdbcTemplate.batchUpdate(
+          UPDATE_STATE_SQL,
+          entries,
+          entries.size(),
+          (ps, entry) -> {
+            ps.setShort(1, entry.getState().getCode());
+            ps.setLong(2, entry.getId());
+            ps.setBytes(3, entry.getCvcHash());
+          });
+    }
+  }
+
+  /**
+   * Updates the state of already persisted entries by their hash pair with one JDBC batch, for
+   * entries that were read without id.
+   *
+   * @param entries entries with the hashes of persisted rows
+   */
+  public void updateStatesByPair(final List<EgkEntry> entries) {
+    if (!entries.isEmpty()) {
+      jdbcTemplate.batchUpdate(
+          UPDATE_STATE_BY_PAIR_SQL,
+          entries,
+          entries.size(),
+          (ps, entry) -> {
+            ps.setShort(1, entry.getState().getCode());
+            ps.setBytes(2, entry.getCvcHash());
+            ps.setBytes(3, entry.getAutHash());
+          });
+    }
+  }
+
+  /**
+   * Inserts the entries with one JDBC batch, with the same conflict handling as {@link
+   * de.gematik.refpopp.popp_server.repository.CertHashRepository#upsert}.
+   *
+   * @param entries entries without id
+   */
+  public void upsert(final List<EgkEntry> entries) {
+    if (!entries.isEmpty()) {
+      jdbcTemplate.batchUpdate(UPSERT_SQL, entries, entries.size(), EgkEntryBulkWriter::setRow);
+    }
+  }
+
+  private void insert(final List<EgkEntry> entries, final String sessionId) {
+    final Connection connection = DataSourceUtils.getConnection(dataSource);
+    try {
+      if (connection.isWrapperFor(PGConnection.class)) {
+        copyIn(connection, entries);
+      } else {
+        batchInsert(entries);
+      }
+    } catch (final SQLException | IOException e) {
+      throw new ImportDataException(
+          sessionId, "Bulk insert failed: " + e.getMessage(), "errorCode");
+    } finally {
+      DataSourceUtils.releaseConnection(connection, dataSource);
+    }
+  }
+
+  private void copyIn(final Connection connection, final List<EgkEntry> entries)
+      throws SQLException, IOException {
+    if (partitions <= 0) {
+      copyIn(connection, "egk_entries", entries);
+      return;
+    }
+    for (final var partition : groupByPartition(entries, partitions).entrySet()) {
+      copyIn(
+          connection,
+          EgkEntryPartitions.tableName(partition.getKey(), partitions),
+          partition.getValue());
+    }
+  }
+
+  private void copyIn(final Connection connection, final String table, final List<EgkEntry> entries)
+      throws SQLException, IOException {
+    final int inserted;
+    try (final Statement statement = connection.createStatement()) {
+      // the temporary table lives as long as the pooled connection, rows of a failed batch are
+      // removed before the next one
+      statement.execute(CREATE_COPY_TABLE_SQL);
+      statement.execute(TRUNCATE_COPY_TABLE_SQL);
+      try (final var out =
+          new DataOutputStream(
+              new BufferedOutputStream(
+                  new PGCopyOutputStream(connection.unwrap(PGConnection.class), COPY_SQL),
+                  COPY_BUFFER_SIZE))) {
+        writeCopyData(out, entries);
+      }
+      inserted = statement.executeUpdate(INSERT_COPIED_SQL.formatted(table));
+    }
+    log.debug("| Copied {} new entries into {}, {} written", entries.size(), table, inserted);
+  }
+
+  private boolean isPostgres(final String sessionId) {
+    final Connection connection = DataSourceUtils.getConnection(dataSource);
+    try {
+      return connection.isWrapperFor(PGConnection.class);
+    } catch (final SQLException e) {
+      throw new ImportDataException(
+          sessionId, "Bulk insert failed: " + e.getMessage(), "errorCode");
+    } finally {
+      DataSourceUtils.releaseConnection(connection, dataSource);
+    }
+  }
+
+  /** Groups the entries by partition, in ascending partition order and file order within. */
+  static SortedMap<Integer, List<EgkEntry>> groupByPartition(
+      final List<EgkEntry> entries, final int partitions) {
+    final SortedMap<Integer, List<EgkEntry>> byPartition = new TreeMap<>();
+    for (final var entry : entries) {
+      byPartition
+          .computeIfAbsent(
+              EgkEntryPartitions.partitionOf(entry.getCvcHash(), partitions),
+              partition -> new ArrayList<>())
+          .add(entry);
+    }
+    return byPartition;
+  }
+
+  private void batchInsert(final List<EgkEntry> entries) {
+    jdbcTemplate.batchUpdate(INSERT_SQL, entries, entries.size(), EgkEntryBulkWriter::setRow);
+  }
+
+  private static void setRow(final PreparedStatement ps, final EgkEntry entry) throws SQLException {
+    ps.setBytes(1, entry.getCvcHash());
+    ps.setBytes(2, entry.getAutHash());
+    ps.setShort(3, entry.getState().getCode());
+    ps.setTimestamp(4, Timestamp.valueOf(entry.getNotAfter()));
+  }
+
+  /** Writes the entries in the PostgreSQL binary COPY format including header and trailer. */
+  static void writeCopyData(final DataOutputStream out, final List<EgkEntry> entries)
+      throws IOException {
+    final var copyWriter = new PgBinaryCopyWriter(out);
+    copyWriter.writeHeader();
+    for (final var entry : entries) {
+      copyWriter.startRow(4);
+      copyWriter.writeBytes(entry.getCvcHash());
+      copyWriter.writeBytes(entry.getAutHash());
+      copyWriter.writeShort(entry.getState().getCode());
+      copyWriter.writeTimestamp(entry.getNotAfter());
+    }
+    copyWriter.writeTrailer();
+  }
+}
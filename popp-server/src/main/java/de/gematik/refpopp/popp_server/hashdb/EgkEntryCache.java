@@ -0,0 +1,225 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.refpopp.popp_server.configuration.ReadWriteRoutingDataSource;
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded read-through cache of stored entries keyed by their (cvc hash, aut hash) pair, used on
+ * the handshake path. Only found entries are cached; the least recently used entry is evicted when
+ * the cache is full and entries expire after the configured time to live.
+ *
+ * <p>Every write path that changes the state of an entry must invalidate it. Blocking by a hash
+ * invalidates every cached pair with that cvc or aut hash through an index of the cached pairs by
+ * hash. A lookup that started before an invalidation does not cache its result, so a stale state
+ * read concurrently with a write cannot be cached. Neither are lookups served by a read replica,
+ * which may not have replayed the latest writes yet. Writes of other instances are only picked up
+ * after the time to live.
+ */
+@Component
+@Slf4j
+public class EgkEntryCache {
+
+  private final int maxSize;
+  private final Duration timeToLive;
+  private final Clock clock;
+  private final Map<ByteBuffer, CachedEntry> entries;
+  private final Map<ByteBuffer, Set<ByteBuffer>> keysByCvcHash = new HashMap<>();
+  private final Map<ByteBuffer, Set<ByteBuffer>> keysByAutHash = new HashMap<>();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  @Autowired
+  public EgkEntryCache(
+      @Value("${egk-entry-cache.max-size:100000}") final int maxSize,
+      @Value("${egk-entry-cache.ttl-seconds:60}") final long timeToLiveSeconds) {
+    this(maxSize, Duration.ofSeconds(timeToLiveSeconds), Clock.systemUTC());
+  }
+
+  EgkEntryCache(final int maxSize, final Duration timeToLive, final Clock clock) {
+    this.maxSize = maxSize;
+    this.timeToLive = timeToLive;
+    this.clock = clock;
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, CachedEntry> eldest) {
+            if (size() > EgkEntryCache.this.maxSize) {
+              evictions.increment();
+              unindex(eldest.getKey(), eldest.getValue());
+              return true;
+            }
+            return false;
+          }
+        };
+    log.info("| EgkEntryCache initialized with max size {} and ttl {}", maxSize, timeToLive);
+  }
+
+  public record Stats(long hits, long misses, long evictions, int size) {}
+
+  /**
+   * Returns a copy of the cached entry of the pair or looks it up and caches the result if an entry
+   * is found.
+   */
+  public Optional<EgkEntry> get(
+      final byte[] cvcHash, final byte[] autHash, final Supplier<Optional<EgkEntry>> loader) {
+    if (maxSize <= 0) {
+      return loader.get();
+    }
+    final var key = key(cvcHash, autHash);
+    synchronized (entries) {
+      final var cached = entries.get(key);
+      if (cached != null && cached.expiresAt().isAfter(clock.instant())) {
+        hits.increment();
+        return Optional.of(new EgkEntry(cached.entry()));
+      }
+      if (cached != null) {
+        remove(key);
+        evictions.increment();
+      }
+    }
+    misses.increment();
+    final long invalidationsBefore = invalidations.get();
+    final var loaded = loader.get();
+    if (ReadWriteRoutingDataSource.isReadFromReplica()) {
+      return loaded;
+    }
+    loaded.ifPresent(
+        entry -> {
+          synchronized (entries) {
+            if (invalidations.get() == invalidationsBefore) {
+              final var cachedEntry =
+                  new CachedEntry(
+                      new EgkEntry(entry),
+                      clock.instant().plus(timeToLive),
+                      ByteBuffer.wrap(cvcHash.clone()),
+                      ByteBuffer.wrap(autHash.clone()));
+              unindex(key, entries.put(key, cachedEntry));
+              keysByCvcHash
+                  .computeIfAbsent(cachedEntry.cvcHash(), hash -> new HashSet<>())
+                  .add(key);
+              keysByAutHash
+                  .computeIfAbsent(cachedEntry.autHash(), hash -> new HashSet<>())
+                  .add(key);
+            }
+          }
+        });
+    return loaded;
+  }
+
+  public void invalidate(final byte[] cvcHash, final byte[] autHash) {
+    synchronized (entries) {
+      invalidations.incrementAndGet();
+      remove(key(cvcHash, autHash));
+    }
+  }
+
+  /** Removes every cached pair with the cvc hash or the aut hash, e.g. after blocking by them. */
+  public void invalidateHashes(final byte[] cvcHash, final byte[] autHash) {
+    synchronized (entries) {
+      invalidations.incrementAndGet();
+      final Set<ByteBuffer> keys = new HashSet<>();
+      keys.addAll(keysByCvcHash.getOrDefault(ByteBuffer.wrap(cvcHash), Set.of()));
+      keys.addAll(keysByAutHash.getOrDefault(ByteBuffer.wrap(autHash), Set.of()));
+      keys.forEach(this::remove);
+    }
+  }
+
+  public void invalidateAll(final Collection<EgkEntry> changedEntries) {
+    synchronized (entries) {
+      invalidations.incrementAndGet();
+      for (final var entry : changedEntries) {
+        // entries without hashes cannot have been cached
+        if (entry.getCvcHash() != null && entry.getAutHash() != null) {
+          remove(key(entry.getCvcHash(), entry.getAutHash()));
+        }
+      }
+    }
+  }
+
+  /** Drops all entries, e.g. after set-based updates whose affected pairs are not known. */
+  public void clear() {
+    synchronized (entries) {
+      invalidations.incrementAndGet();
+      entries.clear();
+      keysByCvcHash.clear();
+      keysByAutHash.clear();
+    }
+  }
+
+  public Stats getStats() {
+    synchronized (entries) {
+      return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+    }
+  }
+
+  private void remove(final ByteBuffer key) {
+    unindex(key, entries.remove(key));
+  }
+
+  private void unindex(final ByteBuffer key, final CachedEntry cached) {
+    if (cached == null) {
+      return;
+    }
+    unindex(keysByCvcHash, cached.cvcHash(), key);
+    unindex(keysByAutHash, cached.autHash(), key);
+  }
+
+  private static void unindex(
+      final Map<ByteBuffer, Set<ByteBuffer>> index, final ByteBuffer hash, final ByteBuffer key) {
+    final var keys = index.get(hash);
+    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+      index.remove(hash);
+    }
+  }
+
+  private static ByteBuffer key(final byte[] cvcHash, final byte[] autHash) {
+    return ByteBuffer.allocate(Integer.BYTES + cvcHash.length + autHash.length)
+        .putInt(cvcHash.length)
+        .put(cvcHash)
+        .put(autHash)
+        .flip();
+  }
+
+  private record CachedEntry(
+      EgkEntry entry, Instant expiresAt, ByteBuffer cvcHash, ByteBuffer autHash) {}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+/**
+ * Layout of the range partitioned egk_entries table created by
+ * db/changelog/egk-entries-partitioning.sql. Partition {@code i} holds the entries whose first cvc
+ * hash byte {@code b} satisfies {@code b * partitions / 256 == i}, so the partition of an entry is
+ * known without asking the database.
+ */
+final class EgkEntryPartitions {
+
+  static final int MAX_PARTITIONS = 256;
+
+  private EgkEntryPartitions() {}
+
+  static int partitionOf(final byte[] cvcHash, final int partitions) {
+    return cvcHash.length == 0 ? 0 : (cvcHash[0] & 0xff) * partitions / MAX_PARTITIONS;
+  }
+
+  /** Name of the partition table, zero padded like the names created by the changelog. */
+  static String tableName(final int partition, final int partitions) {
+    final int digits = String.valueOf(partitions - 1).length();
+    return String.format("egk_entries_p%0" + digits + "d", partition);
+  }
+}
@@ -22,87 +22,222 @@ package de.gematik.refpopp.popp_server.hashdb;
 
 import static de.gematik.refpopp.popp_server.model.EgkEntryState.BLOCKED;
 
+import de.gematik.refpopp.popp_server.configuration.ReadWriteRoutingDataSource;
 import de.gematik.refpopp.popp_server.model.CheckResult;
 import de.gematik.refpopp.popp_server.model.EgkEntry;
 import de.gematik.refpopp.popp_server.model.EgkEntryState;
 import de.gematik.refpopp.popp_server.repository.CertHashRepository;
 import de.gematik.refpopp.popp_server.scenario.common.provider.CommunicationMode;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 @Service
 @Slf4j
 public class EgkEntryPersistenceService {
   private final CertHashRepository certHashRepository;
+  private final EgkHashFilter egkHashFilter;
+  private final EgkEntryCache egkEntryCache;
+  private final AdHocWriteBehindQueue adHocWriteBehindQueue;
 
-  public EgkEntryPersistenceService(final CertHashRepository certHashRepository) {
+  public EgkEntryPersistenceService(
+      final CertHashRepository certHashRepository,
+      final EgkHashFilter egkHashFilter,
+      final EgkEntryCache egkEntryCache,
+      final AdHocWriteBehindQueue adHocWriteBehindQueue) {
     this.certHashRepository = certHashRepository;
+    this.egkHashFilter = egkHashFilter;
+    this.egkEntryCache = egkEntryCache;
+    this.adHocWriteBehindQueue = adHocWriteBehindQueue;
   }
 
-  public Optional<EgkEntry> findByCvcAndAutHash(final byte[] cvcHash, final byte[] autHash) {
-    return certHashRepository.findByCvcHashAndAutHash(cvcHash, autHash);
+  /**
+   * Entries stored for a (cvc hash, aut hash) pair.
+   *
+   * @param pairedEntry the entry of the pair itself, if stored
+   * @param cvcEntries the other entries with the cvc hash, empty if the pair is stored
+   * @param autEntries the other entries with the aut hash, empty if the pair is stored
+   * @param fromReplica whether the entries have been read from a read replica
+   */
+  public record HashCandidates(
+      Optional<EgkEntry> pairedEntry,
+      List<EgkEntry> cvcEntries,
+      List<EgkEntry> autEntries,
+      boolean fromReplica) {
+
+    public HashCandidates(
+        final Optional<EgkEntry> pairedEntry,
+        final List<EgkEntry> cvcEntries,
+        final List<EgkEntry> autEntries) {
+      this(pairedEntry, cvcEntries, autEntries, false);
+    }
   }
 
-  public CheckResult process(final EgkTransferEntry egkTransferEntry, final String sessionId) {
+  /**
+   * Looks up the entry of the pair and all entries sharing one of its hashes with a single query.
+   * Found pairs are served from the cache, hashes ruled out by the filter are not queried. Entries
+   * still queued for write-behind are included. The lookups run read-only and may therefore be
+   * served by a read replica, see {@link ReadWriteRoutingDataSource}. Entries read from a replica
+   * are not cached.
+   */
+  @Transactional(readOnly = true)
+  public HashCandidates findCandidates(final byte[] cvcHash, final byte[] autHash) {
+    final var pending = adHocWriteBehindQueue.findPending(cvcHash, autHash);
+    final var pendingPair =
+        pending.stream()
+            .filter(
+                entry ->
+                    Arrays.equals(entry.getCvcHash(), cvcHash)
+                        && Arrays.equals(entry.getAutHash(), autHash))
+            .findFirst();
+    if (pendingPair.isPresent()) {
+      return new HashCandidates(pendingPair, List.of(), List.of());
+    }
+    final boolean cvcMayBeStored = egkHashFilter.mightContainCvcHash(cvcHash);
+    final boolean autMayBeStored = egkHashFilter.mightContainAutHash(autHash);
+    final List<EgkEntry> candidates = new ArrayList<>();
+    final Optional<EgkEntry> pairedEntry;
+    if (cvcMayBeStored && autMayBeStored) {
+      pairedEntry =
+          egkEntryCache.get(
+              cvcHash,
+              autHash,
+              () -> {
+                candidates.addAll(certHashRepository.findByCvcHashOrAutHash(cvcHash, autHash));
+                return candidates.stream()
+                    .filter(
+                        entry ->
+                            Arrays.equals(entry.getCvcHash(), cvcHash)
+                                && Arrays.equals(entry.getAutHash(), autHash))
+                    .findFirst();
+              });
+    } else {
+      if (cvcMayBeStored) {
+        candidates.addAll(certHashRepository.findByCvcHash(cvcHash));
+      } else if (autMayBeStored) {
+        candidates.addAll(certHashRepository.findByAutHash(autHash));
+      }
+      pairedEntry = Optional.empty();
+    }
+    candidates.addAll(pending);
+    final boolean fromReplica = ReadWriteRoutingDataSource.isReadFromReplica();
+    if (pairedEntry.isPresent()) {
+      return new HashCandidates(pairedEntry, List.of(), List.of(), fromReplica);
+    }
+    return toCandidates(cvcHash, autHash, candidates, fromReplica);
+  }
+
+  /**
+   * Decides on a pair without stored entry from the candidates found by {@link #findCandidates}.
+   * Candidates read from a replica are looked up again on the primary before entries are blocked or
+   * stored, so a lagging replica cannot cause a wrong decision.
+   */
+  public CheckResult process(
+      final EgkTransferEntry egkTransferEntry,
+      final HashCandidates candidates,
+      final String sessionId) {
     if (egkTransferEntry.getCommunicationMode() == CommunicationMode.CONTACT) {
-      return processUnpairedContact(egkTransferEntry, sessionId);
+      final var current =
+          candidates.fromReplica()
+              ? findCandidatesOnPrimary(
+                  egkTransferEntry.getCvcHash(), egkTransferEntry.getAutHash())
+              : candidates;
+      if (current.pairedEntry().isPresent()) {
+        log.debug("| {} Entry stored since the lookup on the replica", sessionId);
+        return current.pairedEntry().get().getState() == BLOCKED
+            ? CheckResult.BLOCKED
+            : CheckResult.MATCH;
+      }
+      return processUnpairedContact(egkTransferEntry, current, sessionId);
     }
-    return processUnpairedContactless(egkTransferEntry);
+    return processUnpairedContactless(candidates);
   }
 
-  private void blockEntries(final List<EgkEntry> entries, final String sessionId) {
-    final var blocked =
-        entries.stream()
-            .map(
-                original -> {
-                  final var copy = new EgkEntry(original);
-                  copy.setState(EgkEntryState.BLOCKED);
-                  return copy;
-                })
-            .toList();
-    certHashRepository.saveAll(blocked);
-    log.debug("| {} Updated entries to BLOCKED: {}", sessionId, entries);
+  private HashCandidates findCandidatesOnPrimary(final byte[] cvcHash, final byte[] autHash) {
+    final List<EgkEntry> candidates =
+        new ArrayList<>(certHashRepository.findOnPrimaryByCvcHashOrAutHash(cvcHash, autHash));
+    candidates.addAll(adHocWriteBehindQueue.findPending(cvcHash, autHash));
+    final var pairedEntry =
+        candidates.stream()
+            .filter(
+                entry ->
+                    Arrays.equals(entry.getCvcHash(), cvcHash)
+                        && Arrays.equals(entry.getAutHash(), autHash))
+            .findFirst();
+    if (pairedEntry.isPresent()) {
+      return new HashCandidates(pairedEntry, List.of(), List.of());
+    }
+    return toCandidates(cvcHash, autHash, candidates, false);
+  }
+
+  private static HashCandidates toCandidates(
+      final byte[] cvcHash,
+      final byte[] autHash,
+      final List<EgkEntry> candidates,
+      final boolean fromReplica) {
+    return new HashCandidates(
+        Optional.empty(),
+        candidates.stream().filter(entry -> Arrays.equals(entry.getCvcHash(), cvcHash)).toList(),
+        candidates.stream().filter(entry -> Arrays.equals(entry.getAutHash(), autHash)).toList(),
+        fromReplica);
   }
 
   private CheckResult processUnpairedContact(
-      final EgkTransferEntry egkTransferEntry, final String sessionId) {
+      final EgkTransferEntry egkTransferEntry,
+      final HashCandidates candidates,
+      final String sessionId) {
     log.debug(
         "| sessionId {} Entry does not exist in the database: {}.", sessionId, egkTransferEntry);
-    final var cvcEntries = certHashRepository.findByCvcHash(egkTransferEntry.getCvcHash());
-    final var autEntries = certHashRepository.findByAutHash(egkTransferEntry.getAutHash());
+    final var cvcEntries = candidates.cvcEntries();
+    final var autEntries = candidates.autEntries();
     if (cvcEntries.isEmpty() && autEntries.isEmpty()) {
       saveNewEntry(EgkEntryState.AD_HOC, egkTransferEntry, sessionId);
       return CheckResult.UNKNOWN;
-    } else {
-      if (!cvcEntries.isEmpty()) {
-        blockEntries(cvcEntries, sessionId);
-      }
-      if (!autEntries.isEmpty()) {
-        blockEntries(autEntries, sessionId);
-      }
-      saveNewEntry(BLOCKED, egkTransferEntry, sessionId);
     }
+    blockEntries(egkTransferEntry, sessionId);
+    saveNewEntry(BLOCKED, egkTransferEntry, sessionId);
     return CheckResult.MISMATCH;
   }
 
+  private void blockEntries(final EgkTransferEntry egkTransferEntry, final String sessionId) {
+    // pending AD_HOC entries must be in the table before the update can block them
+    adHocWriteBehindQueue.flush();
+    final int blocked =
+        certHashRepository.blockByCvcHashOrAutHash(
+            egkTransferEntry.getCvcHash(), egkTransferEntry.getAutHash());
+    // includes pairs stored by a concurrent session since the lookup and cached already
+    egkEntryCache.invalidateHashes(egkTransferEntry.getCvcHash(), egkTransferEntry.getAutHash());
+    log.debug("| {} Updated {} entries to BLOCKED", sessionId, blocked);
+  }
+
   private void saveNewEntry(
       final EgkEntryState state, final EgkTransferEntry egkTransferEntry, final String sessionId) {
-    final var newEntry =
+    egkHashFilter.add(egkTransferEntry.getCvcHash(), egkTransferEntry.getAutHash());
+    if (adHocWriteBehindQueue.offer(
         new EgkEntry(
             egkTransferEntry.getCvcHash(),
             egkTransferEntry.getAutHash(),
             state,
-            egkTransferEntry.getNotAfter());
-    certHashRepository.save(newEntry);
-    log.debug("| {} Added new entry to the database: {}", sessionId, newEntry);
+            egkTransferEntry.getNotAfter()))) {
+      log.debug("| {} Queued new entry in state {}: {}", sessionId, state, egkTransferEntry);
+      return;
+    }
+    certHashRepository.upsert(
+        egkTransferEntry.getCvcHash(),
+        egkTransferEntry.getAutHash(),
+        state.getCode(),
+        egkTransferEntry.getNotAfter());
+    egkEntryCache.invalidate(egkTransferEntry.getCvcHash(), egkTransferEntry.getAutHash());
+    log.debug(
+        "| {} Added new entry to the database in state {}: {}", sessionId, state, egkTransferEntry);
   }
 
-  private CheckResult processUnpairedContactless(final EgkTransferEntry egkTransferEntry) {
-    final var cvcEntries = certHashRepository.findByCvcHash(egkTransferEntry.getCvcHash());
-    final var autEntries = certHashRepository.findByAutHash(egkTransferEntry.getAutHash());
-    if (cvcEntries.isEmpty() && autEntries.isEmpty()) {
+  private CheckResult processUnpairedContactless(final HashCandidates candidates) {
+    if (candidates.cvcEntries().isEmpty() && candidates.autEntries().isEmpty()) {
       return CheckResult.UNKNOWN;
     }
     return CheckResult.MISMATCH;
@@ -25,8 +25,16 @@ import static de.gematik.refpopp.popp_server.model.EgkEntryState.BLOCKED;
 import de.gematik.refpopp.popp_server.model.EgkEntry;
 import de.gematik.refpopp.popp_server.model.EgkEntryState;
 import de.gematik.refpopp.popp_server.repository.CertHashRepository;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -34,14 +42,20 @@ import org.springframework.stereotype.Service;
 @Slf4j
 public class EgkEntryProcessor {
   private final CertHashRepository certHashRepository;
+  private final EgkHashFilter egkHashFilter;
 
-  public EgkEntryProcessor(final CertHashRepository certHashRepository) {
+  public EgkEntryProcessor(
+      final CertHashRepository certHashRepository, final EgkHashFilter egkHashFilter) {
     this.certHashRepository = certHashRepository;
+    this.egkHashFilter = egkHashFilter;
   }
 
   public List<EgkEntry> process(final EgkTransferEntry entry, final String sessionId) {
     final var byCvcAndAutHash =
-        certHashRepository.findByCvcHashAndAutHash(entry.getCvcHash(), entry.getAutHash());
+        egkHashFilter.mightContainCvcHash(entry.getCvcHash())
+                && egkHashFilter.mightContainAutHash(entry.getAutHash())
+            ? certHashRepository.findByCvcHashAndAutHash(entry.getCvcHash(), entry.getAutHash())
+            : Optional.<EgkEntry>empty();
 
     if (byCvcAndAutHash.isPresent()) {
       final var matchedEntry = byCvcAndAutHash.get();
@@ -54,6 +68,96 @@ public class EgkEntryProcessor {
     return List.of();
   }
 
+  /**
+   * Processes a chunk of transfer entries with two set-based lookups instead of up to three queries
+   * per entry. The decisions are the same as calling {@link #process} for every entry of the chunk
+   * in order, with the entries created for earlier entries of the chunk already persisted.
+   *
+   * @param chunk the transfer entries to process
+   * @param sessionId the session ID for logging purposes
+   * @return the entries to persist for the whole chunk
+   */
+  public List<EgkEntry> processChunk(final List<EgkTransferEntry> chunk, final String sessionId) {
+    if (chunk.isEmpty()) {
+      return List.of();
+    }
+    final var cvcHashes =
+        chunk.stream()
+            .map(EgkTransferEntry::sharedCvcHash)
+            .filter(egkHashFilter::mightContainCvcHash)
+            .toList();
+    final var autHashes =
+        chunk.stream()
+            .map(EgkTransferEntry::sharedAutHash)
+            .filter(egkHashFilter::mightContainAutHash)
+            .toList();
+    final var byCvcHash =
+        groupByHash(
+            cvcHashes.isEmpty() ? List.of() : certHashRepository.findByCvcHashIn(cvcHashes),
+            EgkEntry::getCvcHash);
+    final var byAutHash =
+        groupByHash(
+            autHashes.isEmpty() ? List.of() : certHashRepository.findByAutHashIn(autHashes),
+            EgkEntry::getAutHash);
+
+    // stored rows blocked earlier in this chunk; the grouped originals keep their loaded state
+    final Set<Long> blockedIds = new HashSet<>();
+    final List<EgkEntry> result = new ArrayList<>();
+    for (final var entry : chunk) {
+      final var cvcHash = ByteBuffer.wrap(entry.sharedCvcHash());
+      final var autHash = entry.sharedAutHash();
+      final var cvcEntries = byCvcHash.getOrDefault(cvcHash, List.<EgkEntry>of());
+      final var autEntries = byAutHash.getOrDefault(ByteBuffer.wrap(autHash), List.<EgkEntry>of());
+      final var pairedEntry =
+          cvcEntries.stream().filter(e -> Arrays.equals(e.getAutHash(), autHash)).findFirst();
+
+      if (pairedEntry.isPresent()) {
+        if (pairedEntry.get().getState() == EgkEntryState.AD_HOC
+            && !blockedIds.contains(pairedEntry.get().getId())) {
+          result.add(toImportEntry(pairedEntry.get()));
+        }
+        continue;
+      }
+      final EgkEntry newEntry;
+      if (cvcEntries.isEmpty() && autEntries.isEmpty()) {
+        newEntry = buildNewEgkEntry(EgkEntryState.IMPORTED, entry);
+      } else {
+        log.debug("| sessionId {} Entry does not exist in the database: {}.", sessionId, entry);
+        result.addAll(blockMatches(cvcEntries, blockedIds));
+        result.addAll(blockMatches(autEntries, blockedIds));
+        newEntry = buildNewEgkEntry(BLOCKED, entry);
+      }
+      result.add(newEntry);
+      // later entries of the same chunk must see this one as if it had been persisted already
+      byCvcHash.computeIfAbsent(cvcHash, k -> new ArrayList<>()).add(newEntry);
+      byAutHash.computeIfAbsent(ByteBuffer.wrap(autHash), k -> new ArrayList<>()).add(newEntry);
+    }
+    return result;
+  }
+
+  private List<EgkEntry> blockMatches(final List<EgkEntry> matches, final Set<Long> blockedIds) {
+    final List<EgkEntry> persisted = new ArrayList<>();
+    for (final var match : matches) {
+      if (match.getId() == null) {
+        // created earlier in the same chunk and not persisted yet
+        match.setState(BLOCKED);
+      } else if (blockedIds.add(match.getId())) {
+        persisted.add(match);
+      }
+    }
+    return toBlockedEntries(persisted);
+  }
+
+  private Map<ByteBuffer, List<EgkEntry>> groupByHash(
+      final List<EgkEntry> entries, final Function<EgkEntry, byte[]> hashExtractor) {
+    final Map<ByteBuffer, List<EgkEntry>> grouped = new HashMap<>();
+    for (final var entry : entries) {
+      final var key = ByteBuffer.wrap(hashExtractor.apply(entry));
+      grouped.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+    }
+    return grouped;
+  }
+
   private EgkEntry toImportEntry(final EgkEntry entry) {
     final var newEgkEntry = new EgkEntry(entry);
     newEgkEntry.setState(EgkEntryState.IMPORTED);
@@ -64,8 +168,14 @@ public class EgkEntryProcessor {
       final EgkTransferEntry egkTransferEntry, final String sessionId) {
     log.debug(
         "| sessionId {} Entry does not exist in the database: {}.", sessionId, egkTransferEntry);
-    final var cvcEntries = certHashRepository.findByCvcHash(egkTransferEntry.getCvcHash());
-    final var autEntries = certHashRepository.findByAutHash(egkTransferEntry.getAutHash());
+    final var cvcEntries =
+        egkHashFilter.mightContainCvcHash(egkTransferEntry.getCvcHash())
+            ? certHashRepository.findByCvcHash(egkTransferEntry.getCvcHash())
+            : List.<EgkEntry>of();
+    final var autEntries =
+        egkHashFilter.mightContainAutHash(egkTransferEntry.getAutHash())
+            ? certHashRepository.findByAutHash(egkTransferEntry.getAutHash())
+            : List.<EgkEntry>of();
     final List<EgkEntry> entries = new ArrayList<>();
     if (cvcEntries.isEmpty() && autEntries.isEmpty()) {
       return List.of(buildNewEgkEntry(EgkEntryState.IMPORTED, egkTransferEntry));
@@ -95,8 +205,8 @@ public class EgkEntryProcessor {
   private EgkEntry buildNewEgkEntry(
       final EgkEntryState state, final EgkTransferEntry egkTransferEntry) {
     return new EgkEntry(
-        egkTransferEntry.getCvcHash(),
-        egkTransferEntry.getAutHash(),
+        egkTransferEntry.sharedCvcHash(),
+        egkTransferEntry.sharedAutHash(),
         state,
         egkTransferEntry.getNotAfter());
   }
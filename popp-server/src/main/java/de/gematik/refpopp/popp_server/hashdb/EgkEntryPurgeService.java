@@ -0,0 +1,215 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.refpopp.popp_server.configuration.ImportWorkload;
+import de.gematik.refpopp.popp_server.model.ImportJobStatus;
+import de.gematik.refpopp.popp_server.model.PurgeReportEntry;
+import de.gematik.refpopp.popp_server.repository.PurgeReportRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+
+/**
+ * Opt-in periodic purge of entries whose certificates expired more than {@code grace-days} ago.
+ * Rows are removed in small batches, paginated by (not_after, id) along the index
+ * idx_egk_entries_not_after, each batch in its own short transaction and followed by a pause, so
+ * the purge never holds many locks or saturates the database while handshakes and imports are
+ * running. The cached lookups of the deleted pairs are invalidated after each batch. Every run is
+ * recorded as {@link PurgeReportEntry} with the purged count.
+ */
+@Service
+@Slf4j
+public class EgkEntryPurgeService {
+
+  static final String SELECT_FIRST_EXPIRED_SQL =
+      "SELECT id, cvc_hash, aut_hash, not_after FROM egk_entries"
+          + " WHERE not_after < ? ORDER BY not_after, id LIMIT ?";
+  static final String SELECT_NEXT_EXPIRED_SQL =
+      "SELECT id, cvc_hash, aut_hash, not_after FROM egk_entries"
+          + " WHERE not_after < ? AND (not_after, id) > (?, ?) ORDER BY not_after, id LIMIT ?";
+  // the cvc hash lets PostgreSQL prune to a single partition
+  static final String DELETE_SQL =
+      "DELETE FROM egk_entries WHERE id = ? AND cvc_hash = ? AND not_after < ?";
+
+  private static final int MAX_STATUS_MESSAGE_LENGTH = 1024;
+  private static final RowMapper<ExpiredEntry> EXPIRED_ENTRY_MAPPER =
+      (rs, rowNum) ->
+          new ExpiredEntry(rs.getLong(1), rs.getBytes(2), rs.getBytes(3), rs.getTimestamp(4));
+
+  private final JdbcTemplate jdbcTemplate;
+  private final PurgeReportRepository purgeReportRepository;
+  private final EgkEntryCache egkEntryCache;
+  private final boolean enabled;
+  private final Duration grace;
+  private final long intervalMinutes;
+  private final int batchSize;
+  private final long batchPauseMillis;
+  private ScheduledExecutorService scheduler;
+
+  public EgkEntryPurgeService(
+      final DataSource dataSource,
+      final PurgeReportRepository purgeReportRepository,
+      final EgkEntryCache egkEntryCache,
+      @Value("${egk-entry-purge.enabled:false}") final boolean enabled,
+      @Value("${egk-entry-purge.grace-days:30}") final long graceDays,
+      @Value("${egk-entry-purge.interval-minutes:60}") final long intervalMinutes,
+      @Value("${egk-entry-purge.batch-size:1000}") final int batchSize,
+      @Value("${egk-entry-purge.batch-pause-millis:100}") final long batchPauseMillis) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.purgeReportRepository = purgeReportRepository;
+    this.egkEntryCache = egkEntryCache;
+    this.enabled = enabled;
+    this.grace = Duration.ofDays(graceDays);
+    this.intervalMinutes = intervalMinutes;
+    this.batchSize = batchSize;
+    this.batchPauseMillis = batchPauseMillis;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "egk-entry-purge");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(
+        () -> ImportWorkload.run(this::purgeQuietly),
+        intervalMinutes,
+        intervalMinutes,
+        TimeUnit.MINUTES);
+    log.info(
+        "| EgkEntryPurgeService started with {} days grace, interval {} min, batch size {}",
+        grace.toDays(),
+        intervalMinutes,
+        batchSize);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Deletes all entries with {@code not_after} before now minus the grace period.
+   *
+   * @return the number of deleted entries
+   */
+  public long purgeExpired() throws InterruptedException {
+    final var report =
+        purgeReportRepository.save(new PurgeReportEntry(LocalDateTime.now().minus(grace)));
+    final var cutoff = Timestamp.valueOf(report.getCutoff());
+    long purged = 0;
+    ExpiredEntry last = null;
+    try {
+      while (true) {
+        final List<ExpiredEntry> batch =
+            last == null
+                ? jdbcTemplate.query(
+                    SELECT_FIRST_EXPIRED_SQL, EXPIRED_ENTRY_MAPPER, cutoff, batchSize)
+                : jdbcTemplate.query(
+                    SELECT_NEXT_EXPIRED_SQL,
+                    EXPIRED_ENTRY_MAPPER,
+                    cutoff,
+                    last.notAfter(),
+                    last.id(),
+                    batchSize);
+        if (batch.isEmpty()) {
+          break;
+        }
+        final int[][] counts =
+            jdbcTemplate.batchUpdate(
+                DELETE_SQL,
+                batch,
+                batch.size(),
+                (ps, entry) -> {
+                  ps.setLong(1, entry.id());
+                  ps.setBytes(2, entry.cvcHash());
+                  ps.setTimestamp(3, cutoff);
+                });
+        for (final int[] chunk : counts) {
+          for (final int count : chunk) {
+            purged += Math.max(count, 0);
+          }
+        }
+        // cached lookups found the deleted rows by their pair or by one of their hashes
+        batch.forEach(entry -> egkEntryCache.invalidateHashes(entry.cvcHash(), entry.autHash()));
+        last = batch.getLast();
+        if (batch.size() < batchSize) {
+          break;
+        }
+        Thread.sleep(batchPauseMillis);
+      }
+    } catch (final RuntimeException | InterruptedException e) {
+      finishReport(report, purged, ImportJobStatus.FAILED, e.getMessage());
+      throw e;
+    }
+    finishReport(report, purged, ImportJobStatus.DONE, null);
+    return purged;
+  }
+
+  private void finishReport(
+      final PurgeReportEntry report,
+      final long purged,
+      final ImportJobStatus status,
+      final String statusMessage) {
+    report.setEndTime(LocalDateTime.now());
+    report.setPurgedCount(purged);
+    report.setStatus(status);
+    report.setStatusMessage(
+        statusMessage != null && statusMessage.length() > MAX_STATUS_MESSAGE_LENGTH
+            ? statusMessage.substring(0, MAX_STATUS_MESSAGE_LENGTH)
+            : statusMessage);
+    purgeReportRepository.save(report);
+  }
+
+  private void purgeQuietly() {
+    try {
+      final long purged = purgeExpired();
+      log.info("| Purged {} expired entries", purged);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (final RuntimeException e) {
+      log.warn("| Purge of expired entries failed: {}", e.getMessage());
+    }
+  }
+
+  private record ExpiredEntry(long id, byte[] cvcHash, byte[] autHash, Timestamp notAfter) {}
+}
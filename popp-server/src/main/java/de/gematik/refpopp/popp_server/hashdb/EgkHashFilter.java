@@ -0,0 +1,158 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bloom filters over the cvc and aut hashes of egk_entries, used to skip database lookups for
+ * hashes that are definitely not stored. The filters are built from a table scan after startup and
+ * answer "maybe" for every hash until the scan has finished. Every write path adds its hashes
+ * before writing them.
+ *
+ * <p>The filter only sees the writes of this instance, so it must stay disabled while several
+ * instances write to the same database.
+ */
+@Component
+@Slf4j
+public class EgkHashFilter {
+
+  static final String SCAN_SQL = "SELECT cvc_hash, aut_hash FROM egk_entries";
+  private static final int SCAN_FETCH_SIZE = 10_000;
+
+  private final DataSource dataSource;
+  private final boolean enabled;
+  private final long expectedEntries;
+  private final HashBloomFilter cvcHashes;
+  private final HashBloomFilter autHashes;
+  private volatile boolean ready;
+
+  public EgkHashFilter(
+      final DataSource dataSource,
+      @Value("${egk-hash-filter.enabled:false}") final boolean enabled,
+      @Value("${egk-hash-filter.expected-entries:10000000}") final long expectedEntries,
+      @Value("${egk-hash-filter.false-positive-rate:0.01}") final double falsePositiveRate) {
+    this.dataSource = dataSource;
+    this.enabled = enabled;
+    this.expectedEntries = expectedEntries;
+    this.cvcHashes = enabled ? HashBloomFilter.create(expectedEntries, falsePositiveRate) : null;
+    this.autHashes = enabled ? HashBloomFilter.create(expectedEntries, falsePositiveRate) : null;
+    if (enabled) {
+      log.info(
+          "| EgkHashFilter initialized for {} entries at false positive rate {}: {} KiB off-heap,"
+              + " {} hash functions",
+          expectedEntries,
+          falsePositiveRate,
+          (cvcHashes.sizeInBytes() + autHashes.sizeInBytes()) / 1024,
+          cvcHashes.hashFunctions());
+    }
+  }
+
+  /**
+   * @return false if no entry with the cvc hash is stored, true if one may be stored
+   */
+  public boolean mightContainCvcHash(final byte[] cvcHash) {
+    return !ready || cvcHashes.mightContain(cvcHash);
+  }
+
+  /**
+   * @return false if no entry with the aut hash is stored, true if one may be stored
+   */
+  public boolean mightContainAutHash(final byte[] autHash) {
+    return !ready || autHashes.mightContain(autHash);
+  }
+
+  /** Records the hashes of an entry that is about to be written. */
+  public void add(final byte[] cvcHash, final byte[] autHash) {
+    if (enabled) {
+      cvcHashes.put(cvcHash);
+      autHashes.put(autHash);
+    }
+  }
+
+  public void addAll(final Collection<EgkEntry> entries) {
+    if (enabled) {
+      entries.forEach(entry -> add(entry.getCvcHash(), entry.getAutHash()));
+    }
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void buildInBackground() {
+    if (enabled) {
+      Thread.ofPlatform().name("egk-hash-filter-build").daemon().start(this::build);
+    }
+  }
+
+  /** Adds the hashes of all stored entries and enables the filter once the scan has finished. */
+  void build() {
+    if (!enabled) {
+      return;
+    }
+    final long start = System.nanoTime();
+    long rows = 0;
+    try (final Connection connection = dataSource.getConnection()) {
+      // PostgreSQL only streams the result with a cursor inside a transaction
+      connection.setAutoCommit(false);
+      try (final PreparedStatement statement = connection.prepareStatement(SCAN_SQL)) {
+        statement.setFetchSize(SCAN_FETCH_SIZE);
+        try (final ResultSet resultSet = statement.executeQuery()) {
+          while (resultSet.next()) {
+            add(resultSet.getBytes(1), resultSet.getBytes(2));
+            rows++;
+          }
+        }
+      } finally {
+        connection.rollback();
+      }
+    } catch (final SQLException e) {
+      log.error("| EgkHashFilter could not be built, all lookups use the database", e);
+      return;
+    }
+    ready = true;
+    log.info(
+        "| EgkHashFilter built from {} entries in {} ms",
+        rows,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    if (rows > expectedEntries) {
+      log.warn(
+          "| EgkHashFilter holds {} entries but is sized for {}, its false positive rate is higher"
+              + " than configured",
+          rows,
+          expectedEntries);
+    }
+  }
+
+  boolean isReady() {
+    return ready;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.file.temp.EgkImportTempFileService;
+import de.gematik.refpopp.popp_server.hashdb.EgkHashImportService.ResumePoint;
+import de.gematik.refpopp.popp_server.model.ImportJobStatus;
+import de.gematik.refpopp.popp_server.model.ImportReportEntry;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+
+@Service
+@Slf4j
+public class EgkHashImportJobService {
+
+  public static final String JOB_EXISTS_ERROR_CODE = "importJobExists";
+  public static final String RESUME_NOT_POSSIBLE_ERROR_CODE = "importResumeNotPossible";
+
+  private final EgkHashImportService egkHashImportService;
+  private final ImportReportProcessor importReportProcessor;
+  private final EgkImportTempFileService egkImportTempFileService;
+  private final ExecutorService importJobExecutor;
+  private final long resumeStaleSeconds;
+
+  public EgkHashImportJobService(
+      final EgkHashImportService egkHashImportService,
+      final ImportReportProcessor importReportProcessor,
+      final EgkImportTempFileService egkImportTempFileService,
+      @Qualifier("importJobExecutor") final ExecutorService importJobExecutor,
+      @Value("${cert-hash-import.resume-stale-seconds:300}") final long resumeStaleSeconds) {
+    this.egkHashImportService = egkHashImportService;
+    this.importReportProcessor = importReportProcessor;
+    this.egkImportTempFileService = egkImportTempFileService;
+    this.importJobExecutor = importJobExecutor;
+    this.resumeStaleSeconds = resumeStaleSeconds;
+  }
+
+  /**
+   * Queues the import of the given file and returns its job id, which is also the session id of the
+   * import report. The job takes ownership of the file and deletes it once it has finished.
+   *
+   * @throws ImportDataException if a report for the session id already exists
+   * @throws RejectedExecutionException if the job queue is full
+   */
+  public String submit(final Path path, final String sessionId) {
+    return submit(path, sessionId, null);
+  }
+
+  /**
+   * Queues the import of the file of a failed import, which imports only the entries after the
+   * checkpoint of the failed import. An import that is still running without progress for longer
+   * than {@code cert-hash-import.resume-stale-seconds}, e.g. because the server was restarted, is
+   * marked failed and resumed as well.
+   *
+   * @param resumeFrom the session id of the import to resume
+   * @throws ImportDataException if the import cannot be resumed or a report for the session id
+   *     already exists
+   * @throws RejectedExecutionException if the job queue is full
+   */
+  public String resume(final Path path, final String resumeFrom, final String sessionId) {
+    final ImportReportEntry resumed =
+        importReportProcessor
+            .findReport(resumeFrom)
+            .orElseThrow(
+                () ->
+                    new ImportDataException(
+                        resumeFrom, "Import to resume not found", RESUME_NOT_POSSIBLE_ERROR_CODE));
+    if (resumed.getFileDigest() == null) {
+      throw new ImportDataException(
+          resumeFrom, "Import has no checkpoint to resume from", RESUME_NOT_POSSIBLE_ERROR_CODE);
+    }
+    final boolean stale = resumed.getStatus() == ImportJobStatus.RUNNING && isStale(resumed);
+    if (resumed.getStatus() != ImportJobStatus.FAILED && !stale) {
+      throw new ImportDataException(
+          resumeFrom, "Only failed imports can be resumed", RESUME_NOT_POSSIBLE_ERROR_CODE);
+    }
+    final var resumePoint =
+        new ResumePoint(resumeFrom, resumed.getFileDigest(), resumed.getCheckpointOrdinal());
+    final String jobId = submit(path, sessionId, resumePoint);
+    if (stale) {
+      importReportProcessor.failReport(resumeFrom, "Import stalled, resumed by " + jobId);
+    }
+    return jobId;
+  }
+
+  private boolean isStale(final ImportReportEntry report) {
+    final LocalDateTime lastSignOfLife =
+        report.getLastProgressUpdate() != null
+            ? report.getLastProgressUpdate()
+            : report.getStartTime();
+    return lastSignOfLife.isBefore(LocalDateTime.now().minusSeconds(resumeStaleSeconds));
+  }
+
+  /**
+   * Queues the import of the signed data read from the stream. The job reads the stream exactly
+   * once and writes nothing to disk, so a failed import has to be sent again. The caller has to
+   * keep the stream open until the returned future has completed.
+   *
+   * @param contentLength the length of the data or a negative value if unknown
+   * @return the job id and a future that completes when the import has finished, or exceptionally
+   *     with the cause of a failed import
+   * @throws ImportDataException if a report for the session id already exists
+   * @throws RejectedExecutionException if the job queue is full
+   */
+  public StreamJob importStream(
+      final InputStream in, final long contentLength, final String sessionId) {
+    final String jobId = queueJob(sessionId);
+    final CompletableFuture<Void> finished = new CompletableFuture<>();
+    execute(jobId, () -> runStreamJob(in, Math.max(0, contentLength), jobId, finished));
+    return new StreamJob(jobId, finished);
+  }
+
+  private String submit(final Path path, final String sessionId, final ResumePoint resumePoint) {
+    final String jobId = queueJob(sessionId);
+    execute(jobId, () -> runJob(path, jobId, resumePoint));
+    return jobId;
+  }
+
+  private void execute(final String jobId, final Runnable job) {
+    try {
+      importJobExecutor.execute(job);
+    } catch (final RejectedExecutionException e) {
+      importReportProcessor.failReport(jobId, "Import job queue is full");
+      throw e;
+    }
+    log.info("Queued import job {}", jobId);
+  }
+
+  private String queueJob(final String sessionId) {
+    final String jobId =
+        sessionId == null || sessionId.isBlank() ? UUID.randomUUID().toString() : sessionId;
+    if (importReportProcessor.reportExists(jobId)) {
+      throw new ImportDataException(jobId, "Import job already exists", JOB_EXISTS_ERROR_CODE);
+    }
+    try {
+      importReportProcessor.queueReport(jobId);
+    } catch (final DataIntegrityViolationException e) {
+      // the unique session id of a report queued concurrently since the check above
+      throw new ImportDataException(jobId, "Import job already exists", JOB_EXISTS_ERROR_CODE);
+    }
+    return jobId;
+  }
+
+  private void runJob(final Path path, final String jobId, final ResumePoint resumePoint) {
+    try {
+      egkHashImportService.importData(path, jobId, resumePoint);
+    } catch (final RuntimeException e) {
+      log.error("Import job {} failed", jobId, e);
+      importReportProcessor.failReport(jobId, e.getMessage());
+    } finally {
+      egkImportTempFileService.deleteFile(path);
+    }
+  }
+
+  private void runStreamJob(
+      final InputStream in,
+      final long contentLength,
+      final String jobId,
+      final CompletableFuture<Void> finished) {
+    try {
+      egkHashImportService.importData(in, contentLength, jobId);
+      finished.complete(null);
+    } catch (final RuntimeException e) {
+      log.error("Import job {} failed", jobId, e);
+      importReportProcessor.failReport(jobId, e.getMessage());
+      finished.completeExceptionally(e);
+    }
+  }
+
+  /** A queued import of a stream, which has to stay open until {@code finished} has completed. */
+  public record StreamJob(String jobId, CompletableFuture<Void> finished) {}
+}
@@ -21,58 +21,147 @@
 package de.gematik.refpopp.popp_server.hashdb;
 
 import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.configuration.ImportWorkload;
 import de.gematik.refpopp.popp_server.model.EgkEntry;
-import de.gematik.refpopp.popp_server.model.EgkEntryState;
 import de.gematik.refpopp.popp_server.model.ImportReportEntry;
-import de.gematik.refpopp.popp_server.repository.CertHashRepository;
+import jakarta.persistence.EntityManager;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @Service
 @Slf4j
 public class EgkHashImportService {
 
-  private static final int NUM_CONSUMER_THREADS = Runtime.getRuntime().availableProcessors();
   private static final int BATCH_SIZE = 500;
+  private static final int LOOKUP_CHUNK_SIZE = 1000;
+  private static final int STAGING_BATCH_SIZE = 10_000;
+  private static final int SHARD_QUEUE_CAPACITY = 2 * LOOKUP_CHUNK_SIZE;
+  private static final long IDLE_FLUSH_MILLIS = 100;
+  private static final String SIGNATURE_INVALID_MESSAGE = "Signature invalid, nothing imported";
+  private static final String CONSUMER_THREAD_PREFIX = "hash-import-consumer-";
 
   private final CmsSignatureVerifier cmsSignatureVerifier;
-  private final CertHashRepository certHashRepository;
   private final EgkTransferEntryParser egkTransferEntryParser;
   private final EgkEntryProcessor egkEntryProcessor;
   private final BatchFlusherFactory batchFlusherFactory;
   private final ImportReportProcessor importReportProcessor;
+  private final CMSSignedDataParserFactory cmsSignedDataParserFactory;
+  private final TransactionTemplate transactionTemplate;
+  private final EntityManager entityManager;
+  private final EgkImportStagingService egkImportStagingService;
+  private final EgkSnapshotImportService egkSnapshotImportService;
+  private final EgkMergeJoinImportService egkMergeJoinImportService;
+  private final EgkHashFilter egkHashFilter;
+  private final EgkEntryCache egkEntryCache;
+  private final ImportThrottleFactory importThrottleFactory;
+  private final ImportMode mode;
+  private final boolean singlePass;
+  private final int numConsumerThreads;
+  private final BiConsumer<List<EgkEntry>, String> writeAction;
+  private final long progressIntervalSeconds;
+  private final int partitions;
 
   public EgkHashImportService(
       final CmsSignatureVerifier cmsSignatureVerifier,
-      final CertHashRepository certHashRepository,
       final EgkTransferEntryParser egkTransferEntryParser,
       final EgkEntryProcessor egkEntryProcessor,
       final BatchFlusherFactory batchFlusherFactory,
-      final ImportReportProcessor importReportProcessor) {
+      final ImportReportProcessor importReportProcessor,
+      final CMSSignedDataParserFactory cmsSignedDataParserFactory,
+      final TransactionTemplate transactionTemplate,
+      final EntityManager entityManager,
+      final EgkEntryBulkWriter egkEntryBulkWriter,
+      final EgkImportStagingService egkImportStagingService,
+      final EgkSnapshotImportService egkSnapshotImportService,
+      final EgkMergeJoinImportService egkMergeJoinImportService,
+      final EgkHashFilter egkHashFilter,
+      final EgkEntryCache egkEntryCache,
+      final ImportThrottleFactory importThrottleFactory,
+      @Value("${cert-hash-import.mode:STREAMING}") final ImportMode mode,
+      @Value("${cert-hash-import.single-pass:false}") final boolean singlePass,
+      @Value("${cert-hash-import.write-mode:JPA}") final ImportWriteMode writeMode,
+      @Value("${cert-hash-import.consumer-threads:0}") final int consumerThreads,
+      @Value("${cert-hash-import.progress-interval-seconds:10}") final long progressIntervalSeconds,
+      @Value("${egk-entries.partitions:0}") final int partitions,
+      @Value("${egk-import-pool.maximum-pool-size:8}") final int importPoolSize) {
     this.cmsSignatureVerifier = cmsSignatureVerifier;
-    this.certHashRepository = certHashRepository;
     this.egkTransferEntryParser = egkTransferEntryParser;
     this.egkEntryProcessor = egkEntryProcessor;
     this.batchFlusherFactory = batchFlusherFactory;
     this.importReportProcessor = importReportProcessor;
+    this.cmsSignedDataParserFactory = cmsSignedDataParserFactory;
+    this.transactionTemplate = transactionTemplate;
+    this.entityManager = entityManager;
+    this.egkImportStagingService = egkImportStagingService;
+    this.egkSnapshotImportService = egkSnapshotImportService;
+    this.egkMergeJoinImportService = egkMergeJoinImportService;
+    if (mode == ImportMode.SNAPSHOT && partitions > 0) {
+      throw new IllegalArgumentException(
+          "Snapshot imports do not support a partitioned egk_entries table");
+    }
+    this.mode = mode;
+    this.singlePass = singlePass;
+    // every consumer holds a connection of the import pool while it writes, the importing thread
+    // needs one more for the report
+    this.numConsumerThreads =
+        Math.max(
+            1,
+            Math.min(
+                consumerThreads > 0 ? consumerThreads : Runtime.getRuntime().availableProcessors(),
+                importPoolSize - 1));
+    this.progressIntervalSeconds = progressIntervalSeconds;
+    this.partitions = partitions;
+    this.egkHashFilter = egkHashFilter;
+    this.egkEntryCache = egkEntryCache;
+    this.importThrottleFactory = importThrottleFactory;
+    // new rows are not saved as entities: an IDENTITY id rules out both insert batching and ON
+    // CONFLICT for pairs a handshake stored in the meantime
+    final BiConsumer<List<EgkEntry>, String> write =
+        writeMode == ImportWriteMode.COPY
+            ? egkEntryBulkWriter::write
+            : egkEntryBulkWriter::writeBatched;
+    this.writeAction =
+        (entries, sessionId) -> {
+          egkHashFilter.addAll(entries);
+          write.accept(entries, sessionId);
+          egkEntryCache.invalidateAll(entries);
+        };
     log.info(
-        "| EgkHashImportService initialized with {} consumer threads and {} batch size",
-        NUM_CONSUMER_THREADS,
-        BATCH_SIZE);
+        "| EgkHashImportService initialized with {} consumer threads, {} batch size and {} lookup"
+            + " chunk size",
+        numConsumerThreads,
+        BATCH_SIZE,
+        LOOKUP_CHUNK_SIZE);
+    log.info("| Import mode: {}, single-pass: {}, write mode: {}", mode, singlePass, writeMode);
     log.info("| ImportReportProcessor initialized");
     log.info("| CmsSignatureVerifier initialized");
-    log.info("| CertHashRepository initialized");
     log.info("| EgkTransferEntryParser initialized");
     log.info("| EgkEntryProcessor initialized");
   }
@@ -98,42 +187,466 @@ public class EgkHashImportService {
    * @param sessionId The session ID for logging purposes.
    */
   public void importData(final Path path, final String sessionId) {
+    importData(path, sessionId, null);
+  }
+
+  /**
+   * Imports the file like {@link #importData(Path, String)}, but if a resume point is given, only
+   * the entries after its checkpoint are imported. The file has to be the file of the resumed
+   * import, and only the streaming import with two passes commits checkpoints and can be resumed.
+   *
+   * @param resumePoint the checkpoint of a failed import of the same file or {@code null}
+   */
+  public void importData(final Path path, final String sessionId, final ResumePoint resumePoint) {
+    ImportWorkload.run(() -> importFile(path, sessionId, resumePoint));
+  }
+
+  private void importFile(final Path path, final String sessionId, final ResumePoint resumePoint) {
+    if (mode != ImportMode.STREAMING || singlePass) {
+      if (resumePoint != null) {
+        throw new ImportDataException(
+            sessionId, "Only streaming imports with two passes can be resumed", "errorCode");
+      }
+      try (final InputStream in = HashFileInput.open(path)) {
+        importData(in, fileSize(path, sessionId), sessionId);
+      } catch (final IOException e) {
+        throw new ImportDataException(
+            sessionId, "Error reading file: " + e.getMessage(), "errorCode");
+      }
+      return;
+    }
+    ImportReportEntry report = importReportProcessor.createReport(sessionId);
+    // the file is read twice: once for the signature check and once for the import
+    final var progress = new ImportProgress(2 * fileSize(path, sessionId));
+    final long resumedOrdinal = resumePoint != null ? resumePoint.ordinal() : 0;
+    final var checkpoint = new ImportCheckpoint(numConsumerThreads, resumedOrdinal);
+    progress.trackCheckpoint(checkpoint);
+    final var throttle = createThrottle(report, numConsumerThreads);
+    final var progressUpdates = startProgressUpdates(report, progress, throttle);
+    try {
+      final var fileDigest = sha256(sessionId);
+      if (verifySignature(path, sessionId, progress, fileDigest)) {
+        startCheckpoints(report, HexFormat.of().formatHex(fileDigest.digest()), resumePoint);
+        final var queue =
+            new ShardedEntryQueue(numConsumerThreads, SHARD_QUEUE_CAPACITY, partitions);
+        final ExecutorService exec =
+            Executors.newFixedThreadPool(
+                numConsumerThreads, ImportWorkload.threadFactory(CONSUMER_THREAD_PREFIX));
+        final var consumers =
+            startConsumers(sessionId, exec, queue, progress, throttle, checkpoint);
+        try {
+          enqueueParsedEntries(path, sessionId, queue, progress, checkpoint, resumedOrdinal);
+        } catch (final InterruptedException e) {
+          log.error("| sessionId {}: Interrupted while processing queue", sessionId, e);
+          Thread.currentThread().interrupt();
+        } catch (final CancellationException e) {
+          log.warn("| sessionId {}: Import aborted by a failed consumer", sessionId);
+        } finally {
+          shutdownAndAwaitTermination(sessionId, queue, exec);
+        }
+        checkConsumers(sessionId, consumers);
+      } else {
+        log.warn("| sessionId {}: Signature invalid", sessionId);
+        importReportProcessor.failReport(report, SIGNATURE_INVALID_MESSAGE);
+        return;
+      }
+    } finally {
+      stopProgressUpdates(progressUpdates, report, progress);
+    }
+
+    importReportProcessor.finalizeReport(
+        report,
+        progress.importedCount().get(),
+        progress.blockedCount().get(),
+        progress.skippedCount().get(),
+        progress.totalProcessedCount().get());
+  }
+
+  /**
+   * Imports signed data that can be read only once, e.g. a request body. The stream is always
+   * imported in a single pass, in staging and snapshot mode through the staging table, in
+   * merge-join mode through sort runs on disk, and is not closed.
+   *
+   * @param in the CMS signed data
+   * @param totalBytes the expected length of the data or 0 if unknown, used for the progress
+   * @param sessionId The session ID for logging purposes.
+   */
+  public void importData(final InputStream in, final long totalBytes, final String sessionId) {
+    ImportWorkload.run(
+        () -> {
+          if (mode == ImportMode.MERGE_JOIN) {
+            importDataMergeJoin(in, totalBytes, sessionId);
+          } else if (mode != ImportMode.STREAMING) {
+            importDataStaged(in, totalBytes, sessionId);
+          } else {
+            importDataSinglePass(in, totalBytes, sessionId);
+          }
+        });
+  }
+
+  /**
+   * Reads the file only once: the CMS digest is computed while the entries are streamed to the
+   * consumer. The consumer keeps its batches in one uncommitted transaction and commits it only if
+   * the signer infos have been verified at the end of the stream. There is a single consumer,
+   * because the uncommitted entries of parallel consumers would not be visible to the lookups of
+   * each other, so entries sharing a hash could not be decided in order.
+   */
+  private void importDataSinglePass(
+      final InputStream in, final long totalBytes, final String sessionId) {
     ImportReportEntry report = importReportProcessor.createReport(sessionId);
-    AtomicLong importedCount = new AtomicLong(0);
-    AtomicLong blockedCount = new AtomicLong(0);
-    AtomicLong skippedCount = new AtomicLong(0);
-    AtomicLong totalProcessedCount = new AtomicLong(0);
-
-    if (verifySignature(path, sessionId)) {
-      final BlockingQueue<Optional<EgkTransferEntry>> queue =
-          new ArrayBlockingQueue<>(NUM_CONSUMER_THREADS * 2);
-      final ExecutorService exec = Executors.newFixedThreadPool(NUM_CONSUMER_THREADS);
+    final var progress = new ImportProgress(totalBytes);
+    final var throttle = createThrottle(report, numConsumerThreads);
+    final var progressUpdates = startProgressUpdates(report, progress, throttle);
+    final AtomicBoolean signatureValid = new AtomicBoolean(false);
+
+    final var queue = new ShardedEntryQueue(1, SHARD_QUEUE_CAPACITY, partitions);
+    final ExecutorService exec =
+        Executors.newSingleThreadExecutor(ImportWorkload.threadFactory(CONSUMER_THREAD_PREFIX));
+    final var consumer =
+        exec.submit(
+            () ->
+                transactionTemplate.executeWithoutResult(
+                    status -> {
+                      // the entries are committed with the transaction, so there is no checkpoint
+                      buildConsumerTask(
+                          sessionId,
+                          queue,
+                          0,
+                          entries -> saveAndDetach(entries, sessionId),
+                          progress,
+                          throttle,
+                          ordinal -> {});
+                      // the end marker is only enqueued after the signature check
+                      if (!signatureValid.get()) {
+                        status.setRollbackOnly();
+                      }
+                    }));
+    try {
+      signatureValid.set(enqueueAndVerify(progress.track(in), sessionId, queue));
+    } catch (final InterruptedException e) {
+      log.error("| sessionId {}: Interrupted while processing queue", sessionId, e);
+      Thread.currentThread().interrupt();
+    } catch (final CancellationException e) {
+      log.warn("| sessionId {}: Import aborted by a failed consumer", sessionId);
+    } finally {
       try {
-        startConsumers(
-            sessionId, exec, queue, importedCount, blockedCount, skippedCount, totalProcessedCount);
-        enqueueParsedEntries(path, sessionId, queue);
-      } catch (final InterruptedException e) {
-        log.error("| sessionId {}: Interrupted while processing queue", sessionId, e);
-        Thread.currentThread().interrupt();
-      } finally {
         shutdownAndAwaitTermination(sessionId, queue, exec);
+      } finally {
+        stopProgressUpdates(progressUpdates, report, progress);
+        // lookups between a flush and the commit may have cached the previous state
+        egkEntryCache.clear();
       }
-    } else {
-      log.warn("| sessionId {}: Signature invalid", sessionId);
     }
+    checkConsumers(sessionId, List.of(consumer));
 
+    if (!signatureValid.get()) {
+      log.warn("| sessionId {}: Signature invalid, staged entries rolled back", sessionId);
+      importReportProcessor.failReport(report, SIGNATURE_INVALID_MESSAGE);
+      return;
+    }
     importReportProcessor.finalizeReport(
         report,
-        importedCount.get(),
-        blockedCount.get(),
-        skippedCount.get(),
-        totalProcessedCount.get());
+        progress.importedCount().get(),
+        progress.blockedCount().get(),
+        progress.skippedCount().get(),
+        progress.totalProcessedCount().get());
+  }
+
+  /**
+   * Fails the import if a consumer failed, after all consumers have terminated. The consumers
+   * aborted by the failed one are only reported if there is no other cause.
+   */
+  private static void checkConsumers(final String sessionId, final List<Future<?>> consumers) {
+    ImportDataException failure = null;
+    for (final var consumer : consumers) {
+      try {
+        consumer.get();
+      } catch (final ExecutionException e) {
+        if (failure == null || !(e.getCause() instanceof CancellationException)) {
+          failure =
+              new ImportDataException(
+                  sessionId, "Import consumer failed: " + e.getCause().getMessage(), "errorCode");
+        }
+        if (!(e.getCause() instanceof CancellationException)) {
+          break;
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ImportDataException(
+            sessionId, "Interrupted while waiting for threads", "errorCode");
+      } catch (final CancellationException e) {
+        if (failure == null) {
+          failure = new ImportDataException(sessionId, "Import consumer cancelled", "errorCode");
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private boolean enqueueAndVerify(
+      final InputStream in, final String sessionId, final ShardedEntryQueue queue)
+      throws InterruptedException {
+    final var cmsParser = cmsSignedDataParserFactory.createParser(in, sessionId);
+    final var parsedCount =
+        egkTransferEntryParser.parseSignedContent(cmsParser, sessionId, queue::put);
+    log.info("| sessionId {}: {} entries parsed and enqueued", sessionId, parsedCount);
+    return cmsSignatureVerifier.verifySigners(cmsParser, sessionId);
+  }
+
+  /**
+   * Loads the whole stream into the staging table while the CMS digest is computed and reconciles
+   * it with set-based statements once the signature is verified, in snapshot mode by swapping in a
+   * new table built from it. The staging import always reads the data only once, because the staged
+   * rows are not visible to the handshake lookups.
+   */
+  private void importDataStaged(
+      final InputStream in, final long totalBytes, final String sessionId) {
+    final ImportReportEntry report = importReportProcessor.createReport(sessionId);
+    final long reportId = report.getId();
+    final var progress = new ImportProgress(totalBytes);
+    final var throttle = createThrottle(report, 1);
+    final var progressUpdates = startProgressUpdates(report, progress, throttle);
+    final List<EgkTransferEntry> batch = new ArrayList<>(STAGING_BATCH_SIZE);
+    try {
+      final var cmsParser = cmsSignedDataParserFactory.createParser(progress.track(in), sessionId);
+      final var parsedCount =
+          egkTransferEntryParser.parseSignedContent(
+              cmsParser,
+              sessionId,
+              entry -> {
+                progress.totalProcessedCount().incrementAndGet();
+                egkHashFilter.add(entry.sharedCvcHash(), entry.sharedAutHash());
+                batch.add(entry);
+                if (batch.size() >= STAGING_BATCH_SIZE) {
+                  throttled(throttle, () -> egkImportStagingService.stage(reportId, batch));
+                  batch.clear();
+                }
+              });
+      throttled(throttle, () -> egkImportStagingService.stage(reportId, batch));
+      log.info("| sessionId {}: {} entries staged", sessionId, parsedCount);
+      stopProgressUpdates(progressUpdates, report, progress);
+
+      if (!cmsSignatureVerifier.verifySigners(cmsParser, sessionId)) {
+        log.warn("| sessionId {}: Signature invalid, staged entries discarded", sessionId);
+        egkImportStagingService.discard(reportId);
+        importReportProcessor.failReport(report, SIGNATURE_INVALID_MESSAGE);
+        return;
+      }
+      final var result =
+          mode == ImportMode.SNAPSHOT
+              ? egkSnapshotImportService.swapIn(reportId, sessionId)
+              : egkImportStagingService.reconcile(reportId, sessionId);
+      // the set-based statements block entries whose pairs are not known here
+      egkEntryCache.clear();
+      importReportProcessor.finalizeReport(
+          report, result.importedCount(), result.blockedCount(), 0, result.totalProcessedCount());
+    } catch (final InterruptedException e) {
+      egkImportStagingService.discard(reportId);
+      log.error("| sessionId {}: Interrupted while staging entries", sessionId, e);
+      Thread.currentThread().interrupt();
+    } catch (final RuntimeException e) {
+      egkImportStagingService.discard(reportId);
+      throw e;
+    } finally {
+      stopProgressUpdates(progressUpdates, report, progress);
+    }
   }
 
-  private boolean verifySignature(final Path path, final String sessionId) {
-    try (final InputStream in = Files.newInputStream(path)) {
+  /**
+   * Sorts the whole stream into runs on disk while the CMS digest is computed and reconciles it in
+   * a merge-join with egk_entries once the signature is verified. Nothing is written before.
+   */
+  private void importDataMergeJoin(
+      final InputStream in, final long totalBytes, final String sessionId) {
+    final ImportReportEntry report = importReportProcessor.createReport(sessionId);
+    final var progress = new ImportProgress(totalBytes);
+    final var throttle = createThrottle(report, 1);
+    final var progressUpdates = startProgressUpdates(report, progress, throttle);
+    try (final var sorter = egkMergeJoinImportService.createSorter()) {
+      final var cmsParser = cmsSignedDataParserFactory.createParser(progress.track(in), sessionId);
+      final var parsedCount =
+          egkTransferEntryParser.parseSignedContent(
+              cmsParser,
+              sessionId,
+              entry -> {
+                progress.totalProcessedCount().incrementAndGet();
+                egkHashFilter.add(entry.sharedCvcHash(), entry.sharedAutHash());
+                sorter.add(entry);
+              });
+      log.info("| sessionId {}: {} entries sorted", sessionId, parsedCount);
+      stopProgressUpdates(progressUpdates, report, progress);
+
+      if (!cmsSignatureVerifier.verifySigners(cmsParser, sessionId)) {
+        log.warn("| sessionId {}: Signature invalid, sorted entries discarded", sessionId);
+        importReportProcessor.failReport(report, SIGNATURE_INVALID_MESSAGE);
+        return;
+      }
+      final var result = egkMergeJoinImportService.reconcile(sorter, throttle, sessionId);
+      // the merge-join blocks entries whose pairs are not known here
+      egkEntryCache.clear();
+      importReportProcessor.finalizeReport(
+          report, result.importedCount(), result.blockedCount(), 0, result.totalProcessedCount());
+    } catch (final InterruptedException e) {
+      log.error("| sessionId {}: Interrupted while reconciling entries", sessionId, e);
+      Thread.currentThread().interrupt();
+    } catch (final UncheckedIOException e) {
+      throw new ImportDataException(
+          sessionId, "Sorting entries failed: " + e.getCause().getMessage(), "errorCode");
+    } finally {
+      stopProgressUpdates(progressUpdates, report, progress);
+    }
+  }
+
+  private void startCheckpoints(
+      final ImportReportEntry report, final String fileDigest, final ResumePoint resumePoint) {
+    if (resumePoint == null) {
+      importReportProcessor.startCheckpoints(report, fileDigest, null, 0);
+      return;
+    }
+    if (!resumePoint.fileDigest().equals(fileDigest)) {
+      throw new ImportDataException(
+          report.getSessionId(),
+          "File differs from the file of import " + resumePoint.sessionId(),
+          "errorCode");
+    }
+    importReportProcessor.startCheckpoints(
+        report, fileDigest, resumePoint.sessionId(), resumePoint.ordinal());
+    log.info(
+        "| sessionId {}: Resuming import {} after entry {}",
+        report.getSessionId(),
+        resumePoint.sessionId(),
+        resumePoint.ordinal());
+  }
+
+  private static MessageDigest sha256(final String sessionId) {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new ImportDataException(sessionId, "SHA-256 algorithm not found", "errorCode");
+    }
+  }
+
+  private long fileSize(final Path path, final String sessionId) {
+    try {
+      return Files.size(path);
+    } catch (final IOException e) {
+      log.debug("| sessionId {}: Could not determine file size: {}", sessionId, e.getMessage());
+      return 0;
+    }
+  }
+
+  private ImportThrottle createThrottle(final ImportReportEntry report, final int concurrency) {
+    return importThrottleFactory.create(
+        concurrency, decision -> importReportProcessor.recordThrottleDecision(report, decision));
+  }
+
+  private static void throttled(final ImportThrottle throttle, final Runnable work)
+      throws InterruptedException {
+    throttle.acquire();
+    try {
+      work.run();
+    } finally {
+      throttle.release();
+    }
+  }
+
+  /** Publishes the progress and, if enabled, adjusts the throttle until the import is stopped. */
+  private ScheduledExecutorService startProgressUpdates(
+      final ImportReportEntry report,
+      final ImportProgress progress,
+      final ImportThrottle throttle) {
+    final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              final Thread thread =
+                  new Thread(runnable, "import-progress-" + report.getSessionId());
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleAtFixedRate(
+        () -> publishProgress(report, progress),
+        progressIntervalSeconds,
+        progressIntervalSeconds,
+        TimeUnit.SECONDS);
+    if (importThrottleFactory.isEnabled()) {
+      scheduler.scheduleWithFixedDelay(
+          () -> adjustThrottle(report, throttle),
+          importThrottleFactory.intervalMillis(),
+          importThrottleFactory.intervalMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+    return scheduler;
+  }
+
+  /**
+   * Stops the periodic updates and waits for a running one, so that no stale update can follow the
+   * final report. Calling it more than once only publishes the latest counters again.
+   */
+  private void stopProgressUpdates(
+      final ScheduledExecutorService scheduler,
+      final ImportReportEntry report,
+      final ImportProgress progress) {
+    scheduler.shutdown();
+    try {
+      if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.warn("| sessionId {}: Progress update did not finish", report.getSessionId());
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    publishProgress(report, progress);
+  }
+
+  private void adjustThrottle(final ImportReportEntry report, final ImportThrottle throttle) {
+    try {
+      throttle.adjust();
+    } catch (final RuntimeException e) {
+      log.warn(
+          "| sessionId {}: Could not adjust import throttle: {}",
+          report.getSessionId(),
+          e.getMessage());
+    }
+  }
+
+  private void publishProgress(final ImportReportEntry report, final ImportProgress progress) {
+    try {
+      importReportProcessor.updateProgress(
+          report,
+          progress.importedCount().get(),
+          progress.blockedCount().get(),
+          progress.skippedCount().get(),
+          progress.totalProcessedCount().get(),
+          progress.bytesProcessed(),
+          progress.totalBytes(),
+          progress.checkpointOrdinal());
+    } catch (final RuntimeException e) {
+      log.warn(
+          "| sessionId {}: Could not update import progress: {}",
+          report.getSessionId(),
+          e.getMessage());
+    }
+  }
+
+  private void saveAndDetach(final List<EgkEntry> entries, final String sessionId) {
+    writeAction.accept(entries, sessionId);
+    entityManager.flush();
+    entityManager.clear();
+  }
+
+  /** Verifies the signature and computes the digest of the whole file in the same pass. */
+  private boolean verifySignature(
+      final Path path,
+      final String sessionId,
+      final ImportProgress progress,
+      final MessageDigest fileDigest) {
+    try (final InputStream in =
+        new DigestInputStream(progress.track(HashFileInput.open(path)), fileDigest)) {
       log.info("Verifying signature for sessionId {}", sessionId);
-      return cmsSignatureVerifier.isSignatureValid(in, sessionId);
+      final boolean valid = cmsSignatureVerifier.isSignatureValid(in, sessionId);
+      in.transferTo(OutputStream.nullOutputStream());
+      return valid;
     } catch (final IOException e) {
       throw new ImportDataException(
           sessionId, "Error reading file: " + e.getMessage(), "errorCode");
@@ -141,16 +654,8 @@ public class EgkHashImportService {
   }
 
   private void shutdownAndAwaitTermination(
-      final String sessionId,
-      final BlockingQueue<Optional<EgkTransferEntry>> queue,
-      final ExecutorService exec) {
-    for (int i = 0; i < NUM_CONSUMER_THREADS; i++) {
-      try {
-        queue.put(Optional.empty());
-      } catch (final InterruptedException ie) {
-        Thread.currentThread().interrupt();
-      }
-    }
+      final String sessionId, final ShardedEntryQueue queue, final ExecutorService exec) {
+    queue.close();
 
     exec.shutdown();
     try {
@@ -168,82 +673,196 @@ public class EgkHashImportService {
   private void enqueueParsedEntries(
       final Path path,
       final String sessionId,
-      final BlockingQueue<Optional<EgkTransferEntry>> queue)
+      final ShardedEntryQueue queue,
+      final ImportProgress progress,
+      final ImportCheckpoint checkpoint,
+      final long resumedOrdinal)
       throws InterruptedException {
-    try (final InputStream in = Files.newInputStream(path)) {
-      final var parsedEntries = egkTransferEntryParser.parseAll(in, sessionId);
-      for (final var entry : parsedEntries) {
-        queue.put(Optional.of(entry));
-      }
+    try (final InputStream in = progress.track(HashFileInput.open(path))) {
+      final var parsedCount =
+          egkTransferEntryParser.parse(
+              in,
+              sessionId,
+              entry -> {
+                if (resumedOrdinal == 0 || entry.getOrdinal() > resumedOrdinal) {
+                  checkpoint.enqueued(queue.put(entry), entry.getOrdinal());
+                }
+              });
+      log.info(
+          "| sessionId {}: {} entries parsed, {} enqueued",
+          sessionId,
+          parsedCount,
+          Math.max(0, parsedCount - resumedOrdinal));
     } catch (final IOException e) {
       throw new ImportDataException(
           sessionId, "Error streaming CMS eContent parse: " + e.getMessage(), "errorCode");
     }
   }
 
-  private void startConsumers(
+  private List<Future<?>> startConsumers(
       final String sessionId,
       final ExecutorService exec,
-      final BlockingQueue<Optional<EgkTransferEntry>> queue,
-      final AtomicLong importedCount,
-      final AtomicLong blockedCount,
-      final AtomicLong skippedCount,
-      final AtomicLong totalProcessedCount) {
-    for (int i = 0; i < NUM_CONSUMER_THREADS; i++) {
-      exec.submit(
-          () ->
-              buildConsumerTask(
-                  sessionId,
-                  queue,
-                  importedCount,
-                  blockedCount,
-                  skippedCount,
-                  totalProcessedCount));
+      final ShardedEntryQueue queue,
+      final ImportProgress progress,
+      final ImportThrottle throttle,
+      final ImportCheckpoint checkpoint) {
+    final List<Future<?>> consumers = new ArrayList<>(queue.shardCount());
+    for (int i = 0; i < queue.shardCount(); i++) {
+      final int index = i;
+      consumers.add(
+          exec.submit(
+              () ->
+                  buildConsumerTask(
+                      sessionId,
+                      queue,
+                      index,
+                      entries -> writeAction.accept(entries, sessionId),
+                      progress,
+                      throttle,
+                      ordinal -> checkpoint.committed(index, ordinal))));
     }
+    return consumers;
   }
 
+  /**
+   * Processes the entries of one shard in chunks. The hashes of the entries are released to the
+   * queue once their decisions have been written, and whenever the shard runs idle the pending
+   * decisions are written, so the producer never waits for entries held back by a consumer. If the
+   * consumer fails, the queue is aborted so the producer and the other consumers stop as well.
+   */
   private void buildConsumerTask(
       final String sessionId,
-      final BlockingQueue<Optional<EgkTransferEntry>> queue,
-      final AtomicLong importedCount,
-      final AtomicLong blockedCount,
-      final AtomicLong skippedCount,
-      final AtomicLong totalProcessedCount) {
+      final ShardedEntryQueue queue,
+      final int shard,
+      final Consumer<List<EgkEntry>> flushAction,
+      final ImportProgress progress,
+      final ImportThrottle throttle,
+      final LongConsumer committed) {
     log.info("| consumer thread started: {}", Thread.currentThread().getName());
+    // entries are counted once they have been written
     final var flusher =
-        batchFlusherFactory.<EgkEntry>create(BATCH_SIZE, certHashRepository::saveAll);
+        batchFlusherFactory.<EgkEntry>create(
+            BATCH_SIZE,
+            entries -> {
+              flushAction.accept(entries);
+              progress.count(entries);
+            });
+    // entries that could not be processed are not written, so the checkpoint has to stay before
+    // the first of them for a resumed import to process them again
+    final var firstFailedOrdinal = new AtomicLong(Long.MAX_VALUE);
+    final LongConsumer checkpoint =
+        ordinal -> committed.accept(Math.min(ordinal, firstFailedOrdinal.get() - 1));
+    final List<EgkTransferEntry> chunk = new ArrayList<>(LOOKUP_CHUNK_SIZE);
+    List<EgkTransferEntry> unflushed = List.of();
+    long processedOrdinal = 0;
     try {
       while (true) {
-        final Optional<EgkTransferEntry> optionalEntry = queue.take();
-        if (optionalEntry.isEmpty()) {
+        final Optional<EgkTransferEntry> optionalEntry = queue.poll(shard, IDLE_FLUSH_MILLIS);
+        if (optionalEntry == null || optionalEntry.isEmpty()) {
+          if (chunk.isEmpty() && unflushed.isEmpty()) {
+            if (optionalEntry == null) {
+              continue;
+            }
+            break;
+          }
+          final long lastOrdinal =
+              chunk.isEmpty() ? processedOrdinal : chunk.getLast().getOrdinal();
+          final var processed = new ArrayList<>(unflushed);
+          processed.addAll(chunk);
+          throttled(
+              throttle,
+              () -> {
+                processChunk(sessionId, chunk, flusher, progress, firstFailedOrdinal);
+                flusher.flushRemaining();
+              });
+          queue.release(processed);
+          unflushed = List.of();
+          processedOrdinal = lastOrdinal;
+          if (lastOrdinal > 0) {
+            checkpoint.accept(lastOrdinal);
+          }
+          if (optionalEntry == null) {
+            continue;
+          }
           break;
         }
 
-        final EgkTransferEntry entry = optionalEntry.get();
-
-        try {
-          var processedEntries = egkEntryProcessor.process(entry, sessionId);
-          totalProcessedCount.addAndGet(processedEntries.size());
-
-          for (EgkEntry processedEntry : processedEntries) {
-            if (processedEntry.getState() == EgkEntryState.IMPORTED) {
-              importedCount.incrementAndGet();
-            } else if (processedEntry.getState() == EgkEntryState.BLOCKED) {
-              blockedCount.incrementAndGet();
-            } else {
-              skippedCount.incrementAndGet();
-            }
+        chunk.add(optionalEntry.get());
+        if (chunk.size() >= LOOKUP_CHUNK_SIZE) {
+          final long chunkOrdinal = chunk.getLast().getOrdinal();
+          final var processed = List.copyOf(chunk);
+          throttled(
+              throttle,
+              () -> processChunk(sessionId, chunk, flusher, progress, firstFailedOrdinal));
+          // processing a chunk flushes the decisions of the previous chunks first
+          queue.release(unflushed);
+          unflushed = processed;
+          if (processedOrdinal > 0) {
+            checkpoint.accept(processedOrdinal);
           }
-
-          flusher.addAll(processedEntries);
-        } catch (Exception e) {
-          blockedCount.incrementAndGet();
-          log.debug("| sessionId {}: Error processing entry: {}", sessionId, e.getMessage());
+          processedOrdinal = chunkOrdinal;
         }
       }
-      flusher.flushRemaining();
     } catch (final InterruptedException ie) {
       Thread.currentThread().interrupt();
+      queue.abort();
+      throw new ImportDataException(sessionId, "Interrupted while importing entries", "errorCode");
+    } catch (final RuntimeException e) {
+      queue.abort();
+      throw e;
+    }
+  }
+
+  private void processChunk(
+      final String sessionId,
+      final List<EgkTransferEntry> chunk,
+      final BatchFlusher<EgkEntry> flusher,
+      final ImportProgress progress,
+      final AtomicLong firstFailedOrdinal) {
+    if (chunk.isEmpty()) {
+      return;
+    }
+    // earlier decisions of this shard must be visible to the lookups of the next chunk
+    flusher.flushRemaining();
+    List<EgkEntry> processedEntries;
+    try {
+      processedEntries = egkEntryProcessor.processChunk(List.copyOf(chunk), sessionId);
+    } catch (Exception e) {
+      log.debug(
+          "| sessionId {}: Error processing chunk, falling back to single entries: {}",
+          sessionId,
+          e.getMessage());
+      processedEntries = new ArrayList<>();
+      for (final var entry : chunk) {
+        processedEntries.addAll(processEntry(sessionId, entry, progress, firstFailedOrdinal));
+      }
     }
+    // only lookups fall back to single entries, a failing write fails the consumer
+    flusher.addAll(processedEntries);
+    chunk.clear();
   }
+
+  private List<EgkEntry> processEntry(
+      final String sessionId,
+      final EgkTransferEntry entry,
+      final ImportProgress progress,
+      final AtomicLong firstFailedOrdinal) {
+    try {
+      return egkEntryProcessor.process(entry, sessionId);
+    } catch (Exception e) {
+      progress.blockedCount().incrementAndGet();
+      firstFailedOrdinal.accumulateAndGet(entry.getOrdinal(), Math::min);
+      log.debug("| sessionId {}: Error processing entry: {}", sessionId, e.getMessage());
+      return List.of();
+    }
+  }
+
+  /**
+   * The checkpoint of a failed import: all entries of its file up to the ordinal are committed.
+   *
+   * @param sessionId the session id of the failed import
+   * @param fileDigest the hex encoded SHA-256 digest of its file
+   * @param ordinal the ordinal of the last committed entry
+   */
+  public record ResumePoint(String sessionId, String fileDigest, long ordinal) {}
 }
@@ -40,12 +40,15 @@ public class EgkHashValidationService {
 
   private final X509CertificateParser x509CertificateParser;
   private final EgkEntryPersistenceService egkEntryPersistenceService;
+  private final ValidationLatencyMonitor validationLatencyMonitor;
 
   public EgkHashValidationService(
       final X509CertificateParser x509CertificateParser,
-      final EgkEntryPersistenceService egkEntryPersistenceService) {
+      final EgkEntryPersistenceService egkEntryPersistenceService,
+      final ValidationLatencyMonitor validationLatencyMonitor) {
     this.x509CertificateParser = x509CertificateParser;
     this.egkEntryPersistenceService = egkEntryPersistenceService;
+    this.validationLatencyMonitor = validationLatencyMonitor;
   }
 
   /**
@@ -63,14 +66,22 @@ public class EgkHashValidationService {
       final byte[] aut,
       final CommunicationMode communicationMode,
       final String sessionId) {
-    final var cvcHash = computeSHA256(cvc, sessionId);
-    final var autHash = computeSHA256(aut, sessionId);
+    final long start = System.nanoTime();
+    try {
+      final var cvcHash = computeSHA256(cvc, sessionId);
+      final var autHash = computeSHA256(aut, sessionId);
 
-    final var matchedEntry = egkEntryPersistenceService.findByCvcAndAutHash(cvcHash, autHash);
+      final var candidates = egkEntryPersistenceService.findCandidates(cvcHash, autHash);
 
-    return matchedEntry
-        .map(entry -> handleExistingEntry(entry, sessionId))
-        .orElseGet(() -> handleNewEntry(aut, cvcHash, autHash, communicationMode, sessionId));
+      return candidates
+          .pairedEntry()
+          .map(entry -> handleExistingEntry(entry, sessionId))
+          .orElseGet(
+              () ->
+                  handleNewEntry(aut, cvcHash, autHash, communicationMode, candidates, sessionId));
+    } finally {
+      validationLatencyMonitor.record(System.nanoTime() - start);
+    }
   }
 
   private CheckResult handleNewEntry(
@@ -78,6 +89,7 @@ public class EgkHashValidationService {
       final byte[] cvcHash,
       final byte[] autHash,
       final CommunicationMode mode,
+      final EgkEntryPersistenceService.HashCandidates candidates,
       final String sessionId) {
 
     final LocalDateTime notAfter = getNotAfterFromX509(aut, sessionId);
@@ -89,7 +101,7 @@ public class EgkHashValidationService {
             .notAfter(notAfter)
             .build();
 
-    return egkEntryPersistenceService.process(transferEntry, sessionId);
+    return egkEntryPersistenceService.process(transferEntry, candidates, sessionId);
   }
 
   private LocalDateTime getNotAfterFromX509(final byte[] aut, final String sessionId) {
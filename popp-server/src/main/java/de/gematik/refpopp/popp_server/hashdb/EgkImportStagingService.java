@@ -0,0 +1,246 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Staging-table import: the transfer entries of a file are loaded into the unlogged table
+ * egk_import_staging and reconciled against egk_entries with a few set-based statements instead of
+ * per-entry lookups. The outcome is the same as with {@link EgkEntryProcessor}:
+ *
+ * <ul>
+ *   <li>known pair in state AD_HOC becomes IMPORTED, any other known pair stays untouched
+ *   <li>unknown pair without cvc or aut match is inserted as IMPORTED
+ *   <li>unknown pair with cvc or aut match blocks the matches and is inserted as BLOCKED
+ *   <li>unknown pairs of the same file sharing a cvc or aut hash are all inserted as BLOCKED
+ * </ul>
+ *
+ * <p>States are written as the codes of {@link EgkEntryState}: 1 IMPORTED, 2 AD_HOC, 3 BLOCKED.
+ */
+@Service
+@Slf4j
+public class EgkImportStagingService {
+
+  static final String COPY_SQL =
+      "COPY egk_import_staging (report_id, cvc_hash, aut_hash, not_after)"
+          + " FROM STDIN (FORMAT binary)";
+  static final String INSERT_SQL =
+      "INSERT INTO egk_import_staging (report_id, cvc_hash, aut_hash, not_after)"
+          + " VALUES (?, ?, ?, ?)";
+
+  private static final String CLASSIFY_UNPAIRED_SQL =
+      """
+      UPDATE egk_import_staging s
+         SET new_state = CASE
+               WHEN EXISTS (SELECT 1 FROM egk_entries e WHERE e.cvc_hash = s.cvc_hash)
+                 OR EXISTS (SELECT 1 FROM egk_entries e WHERE e.aut_hash = s.aut_hash)
+               THEN 3 ELSE 1 END
+       WHERE s.report_id = ?
+         AND NOT EXISTS (SELECT 1 FROM egk_entries e
+                          WHERE e.cvc_hash = s.cvc_hash AND e.aut_hash = s.aut_hash)
+      """;
+  // staged rows of the same file that share one hash but not the other block each other, as the
+  // first of them would be imported and then blocked by the second when processed in order
+  private static final String BLOCK_FILE_CONFLICTS_SQL =
+      """
+      UPDATE egk_import_staging s SET new_state = 3
+       WHERE s.report_id = ? AND s.new_state = 1
+         AND (s.cvc_hash IN (SELECT o.cvc_hash FROM egk_import_staging o
+                              WHERE o.report_id = ?
+                              GROUP BY o.cvc_hash HAVING COUNT(DISTINCT o.aut_hash) > 1)
+           OR s.aut_hash IN (SELECT o.aut_hash FROM egk_import_staging o
+                              WHERE o.report_id = ?
+                              GROUP BY o.aut_hash HAVING COUNT(DISTINCT o.cvc_hash) > 1))
+      """;
+  private static final String IMPORT_AD_HOC_SQL =
+      """
+      UPDATE egk_entries e SET state = 1
+       WHERE e.state = 2
+         AND EXISTS (SELECT 1 FROM egk_import_staging s
+                      WHERE s.report_id = ?
+                        AND s.cvc_hash = e.cvc_hash AND s.aut_hash = e.aut_hash)
+      """;
+  private static final String COUNT_BLOCKED_MATCHES_SQL =
+      """
+      SELECT (SELECT COUNT(*) FROM egk_import_staging s
+                JOIN egk_entries e ON e.cvc_hash = s.cvc_hash
+               WHERE s.report_id = ? AND s.new_state = 3)
+           + (SELECT COUNT(*) FROM egk_import_staging s
+                JOIN egk_entries e ON e.aut_hash = s.aut_hash
+               WHERE s.report_id = ? AND s.new_state = 3)
+      """;
+  private static final String BLOCK_BY_CVC_SQL =
+      """
+      UPDATE egk_entries e SET state = 3
+       WHERE EXISTS (SELECT 1 FROM egk_import_staging s
+                      WHERE s.report_id = ? AND s.new_state = 3
+                        AND s.cvc_hash = e.cvc_hash)
+      """;
+  private static final String BLOCK_BY_AUT_SQL =
+      """
+      UPDATE egk_entries e SET state = 3
+       WHERE EXISTS (SELECT 1 FROM egk_import_staging s
+                      WHERE s.report_id = ? AND s.new_state = 3
+                        AND s.aut_hash = e.aut_hash)
+      """;
+  private static final String INSERT_NEW_SQL =
+      """
+      INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after)
+      SELECT s.cvc_hash, s.aut_hash, s.new_state, s.not_after
+        FROM egk_import_staging s
+       WHERE s.report_id = ? AND s.new_state = ?
+          ON CONFLICT DO NOTHING
+      """;
+  private static final String DISCARD_SQL = "DELETE FROM egk_import_staging WHERE report_id = ?";
+
+  private final DataSource dataSource;
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+
+  public EgkImportStagingService(
+      final DataSource dataSource, final TransactionTemplate transactionTemplate) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = transactionTemplate;
+  }
+
+  /**
+   * Appends the given transfer entries to the staging rows of the import.
+   *
+   * @param reportId the id of the import report the rows belong to
+   * @param entries the parsed transfer entries
+   */
+  public void stage(final long reportId, final List<EgkTransferEntry> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    final Connection connection = DataSourceUtils.getConnection(dataSource);
+    try {
+      if (connection.isWrapperFor(PGConnection.class)) {
+        copyIn(connection.unwrap(PGConnection.class), reportId, entries);
+      } else {
+        batchInsert(reportId, entries);
+      }
+    } catch (final SQLException | IOException e) {
+      throw new ImportDataException(
+          String.valueOf(reportId), "Staging entries failed: " + e.getMessage(), "errorCode");
+    } finally {
+      DataSourceUtils.releaseConnection(connection, dataSource);
+    }
+  }
+
+  /**
+   * Reconciles the staged rows of the import with egk_entries in one transaction and removes them
+   * from the staging table afterwards.
+   *
+   * @param reportId the id of the import report the rows belong to
+   * @param sessionId the session ID for logging purposes
+   * @return the number of imported and blocked entries
+   */
+  public ReconciliationResult reconcile(final long reportId, final String sessionId) {
+    final var result =
+        transactionTemplate.execute(
+            status -> {
+              jdbcTemplate.update(CLASSIFY_UNPAIRED_SQL, reportId);
+              jdbcTemplate.update(BLOCK_FILE_CONFLICTS_SQL, reportId, reportId, reportId);
+              final long importedAdHoc = jdbcTemplate.update(IMPORT_AD_HOC_SQL, reportId);
+              final Long blockedMatches =
+                  jdbcTemplate.queryForObject(
+                      COUNT_BLOCKED_MATCHES_SQL, Long.class, reportId, reportId);
+              jdbcTemplate.update(BLOCK_BY_CVC_SQL, reportId);
+              jdbcTemplate.update(BLOCK_BY_AUT_SQL, reportId);
+              final long insertedImported =
+                  jdbcTemplate.update(INSERT_NEW_SQL, reportId, EgkEntryState.IMPORTED.getCode());
+              final long insertedBlocked =
+                  jdbcTemplate.update(INSERT_NEW_SQL, reportId, EgkEntryState.BLOCKED.getCode());
+              jdbcTemplate.update(DISCARD_SQL, reportId);
+              return new ReconciliationResult(
+                  importedAdHoc + insertedImported,
+                  (blockedMatches == null ? 0 : blockedMatches) + insertedBlocked);
+            });
+    log.info("| sessionId {}: staging reconciliation finished: {}", sessionId, result);
+    return result;
+  }
+
+  /**
+   * Removes the staged rows of an import that is not reconciled, e.g. because of an invalid
+   * signature.
+   *
+   * @param reportId the id of the import report the rows belong to
+   */
+  public void discard(final long reportId) {
+    jdbcTemplate.update(DISCARD_SQL, reportId);
+  }
+
+  private void copyIn(
+      final PGConnection connection, final long reportId, final List<EgkTransferEntry> entries)
+      throws SQLException, IOException {
+    try (final var out = new BufferedOutputStream(new PGCopyOutputStream(connection, COPY_SQL))) {
+      final var copyWriter = new PgBinaryCopyWriter(out);
+      copyWriter.writeHeader();
+      for (final var entry : entries) {
+        copyWriter.startRow(4);
+        copyWriter.writeLong(reportId);
+        copyWriter.writeBytes(entry.sharedCvcHash());
+        copyWriter.writeBytes(entry.sharedAutHash());
+        copyWriter.writeTimestamp(entry.getNotAfter());
+      }
+      copyWriter.writeTrailer();
+    }
+  }
+
+  private void batchInsert(final long reportId, final List<EgkTransferEntry> entries) {
+    jdbcTemplate.batchUpdate(
+        INSERT_SQL,
+        entries,
+        entries.size(),
+        (ps, entry) -> {
+          ps.setLong(1, reportId);
+          ps.setBytes(2, entry.sharedCvcHash());
+          ps.setBytes(3, entry.sharedAutHash());
+          ps.setTimestamp(4, Timestamp.valueOf(entry.getNotAfter()));
+        });
+  }
+
+  /** Outcome of a staging reconciliation in the categories of the import report. */
+  public record ReconciliationResult(long importedCount, long blockedCount) {
+
+    public long totalProcessedCount() {
+      return importedCount + blockedCount;
+    }
+  }
+}
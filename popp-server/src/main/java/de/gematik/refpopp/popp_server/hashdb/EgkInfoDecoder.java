@@ -0,0 +1,346 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Decoder for the eContent of a hash file that reads the egkInfo records straight from a buffer
+ * instead of building ASN.1 objects for them:
+ *
+ * <pre>
+ * eContent ::= SEQUENCE { version INTEGER, egkInfos SEQUENCE OF egkInfo }
+ * egkInfo  ::= SET { notAfter UTCTime, hashCvc OCTET STRING, hashAut BIT STRING }
+ * </pre>
+ *
+ * <p>The decoder is a cursor: {@link #next} moves to the next record and its fields are read with
+ * the accessors until the following call. Only the copies of the hashes are allocated per record;
+ * notAfter is taken from a cache of the recently decoded values, so records with the same notAfter
+ * mostly share one instance. The sequences and sets may have definite or indefinite lengths, the
+ * fields have to be primitive as required by DER. Unknown fields of a record are skipped.
+ *
+ * <p>Two-digit years of UTCTime are read with the fixed pivot of RFC 5280 (50-99 in the 20th
+ * century, 00-49 in the 21st), like {@link org.bouncycastle.asn1.ASN1UTCTime#getAdjustedDate()}.
+ * {@code ASN1UTCTime.getDate()} instead uses a window of 80 years before and 20 after the current
+ * date, which reads 47-49 as 1947-1949 today.
+ */
+final class EgkInfoDecoder {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int TAG_BIT_STRING = 0x03;
+  private static final int TAG_OCTET_STRING = 0x04;
+  private static final int TAG_UTC_TIME = 0x17;
+  private static final int TAG_SEQUENCE = 0x30;
+  private static final int TAG_SET = 0x31;
+  private static final long INDEFINITE = -1;
+  private static final ZoneId NOT_AFTER_ZONE = ZoneId.of("Europe/Berlin");
+  private static final int NOT_AFTER_CACHE_BITS = 12;
+  private static final int NOT_AFTER_CACHE_SIZE = 1 << NOT_AFTER_CACHE_BITS;
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  // absolute stream offset of buffer[0]
+  private long bufferOffset;
+  private int pos;
+  private int limit;
+  // start of the current record; the buffer is never compacted beyond it
+  private int mark;
+  private long infosEnd;
+
+  private int cvcOffset;
+  private int cvcLength;
+  private int autOffset;
+  private int autLength;
+  private int autPadBits;
+  private long notAfterEpochSecond;
+  private boolean hasNotAfter;
+  private boolean hasCvcHash;
+  private boolean hasAutHash;
+  // direct-mapped by epoch second
+  private final long[] cachedEpochSeconds = new long[NOT_AFTER_CACHE_SIZE];
+  private final LocalDateTime[] cachedNotAfters = new LocalDateTime[NOT_AFTER_CACHE_SIZE];
+
+  EgkInfoDecoder(final InputStream in) {
+    this.in = in;
+  }
+
+  /** Reads the eContent up to the first egkInfo record. */
+  void readHeader() throws IOException {
+    mark = pos;
+    expectTag(TAG_SEQUENCE);
+    readLength();
+    // version
+    readTag();
+    final long versionLength = readLength();
+    if (versionLength == INDEFINITE) {
+      throw new IOException("Indefinite length of version");
+    }
+    skip(versionLength);
+    expectTag(TAG_SEQUENCE);
+    final long length = readLength();
+    infosEnd = length == INDEFINITE ? INDEFINITE : position() + length;
+  }
+
+  /**
+   * Moves to the next egkInfo record.
+   *
+   * @return {@code false} at the end of egkInfos
+   */
+  boolean next() throws IOException {
+    mark = pos;
+    if (infosEnd == INDEFINITE ? isEndOfContents() : position() >= infosEnd) {
+      return false;
+    }
+    expectTag(TAG_SET);
+    final long setLength = readLength();
+    final long setEnd = setLength == INDEFINITE ? INDEFINITE : position() + setLength;
+    hasNotAfter = false;
+    hasCvcHash = false;
+    hasAutHash = false;
+    while (setEnd == INDEFINITE ? !isEndOfContents() : position() < setEnd) {
+      final int tag = readTag();
+      final long length = readLength();
+      if (length == INDEFINITE || length > BUFFER_SIZE / 2) {
+        throw new IOException("Unsupported length of egkInfo field with tag " + tag);
+      }
+      final int fieldLength = (int) length;
+      ensure(fieldLength);
+      switch (tag) {
+        case TAG_UTC_TIME -> {
+          notAfterEpochSecond = parseUtcTime(pos, fieldLength);
+          hasNotAfter = true;
+        }
+        case TAG_OCTET_STRING -> {
+          cvcOffset = pos - mark;
+          cvcLength = fieldLength;
+          hasCvcHash = true;
+        }
+        case TAG_BIT_STRING -> {
+          if (fieldLength == 0) {
+            throw new IOException("Empty BIT STRING");
+          }
+          autPadBits = buffer[pos] & 0x07;
+          autOffset = pos + 1 - mark;
+          autLength = fieldLength - 1;
+          hasAutHash = true;
+        }
+        default -> {
+          // fields of later versions of the format
+        }
+      }
+      pos += fieldLength;
+    }
+    return true;
+  }
+
+  /** Whether the current record has notAfter, hashCvc and hashAut. */
+  boolean isComplete() {
+    return hasNotAfter && hasCvcHash && hasAutHash;
+  }
+
+  byte[] copyCvcHash() {
+    return Arrays.copyOfRange(buffer, mark + cvcOffset, mark + cvcOffset + cvcLength);
+  }
+
+  /** Returns the octets of hashAut with the unused bits of the last octet cleared. */
+  byte[] copyAutHash() {
+    final byte[] autHash =
+        Arrays.copyOfRange(buffer, mark + autOffset, mark + autOffset + autLength);
+    if (autLength > 0) {
+      autHash[autLength - 1] &= (byte) (0xFF << autPadBits);
+    }
+    return autHash;
+  }
+
+  /** Returns notAfter as local time in Europe/Berlin. */
+  LocalDateTime notAfter() {
+    // Fibonacci hashing, notAfter values are often whole minutes or days
+    final int slot =
+        (int) (notAfterEpochSecond * 0x9E3779B97F4A7C15L >>> 64 - NOT_AFTER_CACHE_BITS);
+    LocalDateTime notAfter = cachedNotAfters[slot];
+    if (notAfter == null || cachedEpochSeconds[slot] != notAfterEpochSecond) {
+      notAfter =
+          LocalDateTime.ofEpochSecond(
+              notAfterEpochSecond,
+              0,
+              NOT_AFTER_ZONE.getRules().getOffset(Instant.ofEpochSecond(notAfterEpochSecond)));
+      cachedNotAfters[slot] = notAfter;
+      cachedEpochSeconds[slot] = notAfterEpochSecond;
+    }
+    return notAfter;
+  }
+
+  /**
+   * Parses YYMMDDhhmm[ss] followed by Z or an offset, with years from 50 in the 20th century as in
+   * RFC 5280, see the class comment.
+   */
+  private long parseUtcTime(final int offset, final int length) throws IOException {
+    if (length < 11) {
+      throw new IOException("Invalid UTCTime");
+    }
+    final int yy = digits(offset);
+    final int year = yy >= 50 ? 1900 + yy : 2000 + yy;
+    final int month = digits(offset + 2);
+    final int day = digits(offset + 4);
+    final int hour = digits(offset + 6);
+    final int minute = digits(offset + 8);
+    int next = offset + 10;
+    int second = 0;
+    if (length >= 13 && isDigit(buffer[next])) {
+      second = digits(next);
+      next += 2;
+    }
+    final int zoneLength = offset + length - next;
+    int offsetSeconds = 0;
+    if (zoneLength == 5 && (buffer[next] == '+' || buffer[next] == '-')) {
+      offsetSeconds = (digits(next + 1) * 60 + digits(next + 3)) * 60;
+      if (buffer[next] == '+') {
+        offsetSeconds = -offsetSeconds;
+      }
+    } else if (zoneLength != 1 || buffer[next] != 'Z') {
+      throw new IOException("Invalid UTCTime");
+    }
+    if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+      throw new IOException("Invalid UTCTime");
+    }
+    return epochDay(year, month, day) * 86_400
+        + hour * 3_600L
+        + minute * 60L
+        + second
+        + offsetSeconds;
+  }
+
+  private int digits(final int offset) throws IOException {
+    if (!isDigit(buffer[offset]) || !isDigit(buffer[offset + 1])) {
+      throw new IOException("Invalid UTCTime");
+    }
+    return (buffer[offset] - '0') * 10 + buffer[offset + 1] - '0';
+  }
+
+  private static boolean isDigit(final byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  /** Days since 1970-01-01 of a date of the proleptic Gregorian calendar. */
+  static long epochDay(final int year, final int month, final int day) {
+    final int y = month <= 2 ? year - 1 : year;
+    final int era = Math.floorDiv(y, 400);
+    final int yearOfEra = y - era * 400;
+    final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146_097L + dayOfEra - 719_468;
+  }
+
+  private long position() {
+    return bufferOffset + pos;
+  }
+
+  private boolean isEndOfContents() throws IOException {
+    ensure(2);
+    if (buffer[pos] == 0 && buffer[pos + 1] == 0) {
+      pos += 2;
+      return true;
+    }
+    return false;
+  }
+
+  private void expectTag(final int expected) throws IOException {
+    final int tag = readTag();
+    if (tag != expected) {
+      throw new IOException(
+          "Unexpected tag "
+              + Integer.toHexString(tag)
+              + ", expected "
+              + Integer.toHexString(expected));
+    }
+  }
+
+  private int readTag() throws IOException {
+    ensure(1);
+    final int tag = buffer[pos++] & 0xFF;
+    if ((tag & 0x1F) == 0x1F) {
+      throw new IOException("Unsupported high tag number");
+    }
+    return tag;
+  }
+
+  private long readLength() throws IOException {
+    ensure(1);
+    final int first = buffer[pos++] & 0xFF;
+    if (first < 0x80) {
+      return first;
+    }
+    if (first == 0x80) {
+      return INDEFINITE;
+    }
+    final int octets = first & 0x7F;
+    if (octets > 7) {
+      throw new IOException("Unsupported length of " + octets + " octets");
+    }
+    ensure(octets);
+    long length = 0;
+    for (int i = 0; i < octets; i++) {
+      length = length << 8 | buffer[pos++] & 0xFF;
+    }
+    return length;
+  }
+
+  private void skip(final long length) throws IOException {
+    long remaining = length;
+    while (remaining > 0) {
+      mark = pos;
+      ensure(1);
+      final int n = (int) Math.min(remaining, limit - pos);
+      pos += n;
+      remaining -= n;
+    }
+  }
+
+  /** Makes sure that {@code n} bytes from the position are in the buffer. */
+  private void ensure(final int n) throws IOException {
+    if (limit - pos >= n) {
+      return;
+    }
+    if (mark > 0) {
+      System.arraycopy(buffer, mark, buffer, 0, limit - mark);
+      bufferOffset += mark;
+      pos -= mark;
+      limit -= mark;
+      mark = 0;
+    }
+    while (limit - pos < n) {
+      if (limit == buffer.length) {
+        throw new IOException("egkInfo record exceeds " + BUFFER_SIZE + " bytes");
+      }
+      final int read = in.read(buffer, limit, buffer.length - limit);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of eContent");
+      }
+      limit += read;
+    }
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.hashdb.EgkImportStagingService.ReconciliationResult;
+import de.gematik.refpopp.popp_server.hashdb.ExternalPairSorter.Pair;
+import de.gematik.refpopp.popp_server.hashdb.ExternalPairSorter.PeekingIterator;
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Merge-join import: the transfer entries are sorted by cvc and aut hash in runs on disk and
+ * reconciled with egk_entries in two sequential passes instead of per-entry lookups.
+ *
+ * <ol>
+ *   <li>egk_entries is read in the order of its (cvc_hash, aut_hash) index in keyset pages and
+ *       merged with the sorted file. All pairs with the same cvc hash are decided together and
+ *       written, with the decision, to a second sort by aut and cvc hash.
+ *   <li>The second sort is read grouped by aut hash, which completes the decisions. New pairs are
+ *       inserted and state changes are written by hash pair, both in bulk.
+ * </ol>
+ *
+ * <p>The outcome is the same as with {@link EgkEntryProcessor} for the entries in file order: a
+ * known pair in state AD_HOC becomes IMPORTED, an unknown pair is inserted as IMPORTED unless
+ * another pair of egk_entries or of the file has the same cvc or aut hash; in that case all these
+ * pairs are BLOCKED. Only the sorter runs and one group of pairs are held in memory. The temp
+ * directory needs room for the file and egk_entries, about 100 bytes per pair.
+ */
+@Service
+@Slf4j
+public class EgkMergeJoinImportService {
+
+  static final String FIRST_PAGE_SQL =
+      "SELECT cvc_hash, aut_hash, state FROM egk_entries" + " ORDER BY cvc_hash, aut_hash LIMIT ?";
+  static final String NEXT_PAGE_SQL =
+      "SELECT cvc_hash, aut_hash, state FROM egk_entries"
+          + " WHERE (cvc_hash, aut_hash) > (?, ?) ORDER BY cvc_hash, aut_hash LIMIT ?";
+
+  private static final int WRITE_BATCH_SIZE = 5_000;
+  private static final RowMapper<Pair> LIVE_PAIR_MAPPER =
+      (rs, rowNum) ->
+          new Pair(
+              rs.getBytes(1), rs.getBytes(2), null, EgkEntryState.fromCode(rs.getShort(3)), false);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final EgkEntryBulkWriter egkEntryBulkWriter;
+  private final Path tempDirectory;
+  private final int runSize;
+  private final int pageSize;
+
+  public EgkMergeJoinImportService(
+      final DataSource dataSource,
+      final TransactionTemplate transactionTemplate,
+      final EgkEntryBulkWriter egkEntryBulkWriter,
+      @Value("${cert-hash-import.merge-join.temp-directory:}") final String tempDirectory,
+      @Value("${cert-hash-import.merge-join.run-size:1000000}") final int runSize,
+      @Value("${cert-hash-import.merge-join.page-size:10000}") final int pageSize) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = transactionTemplate;
+    this.egkEntryBulkWriter = egkEntryBulkWriter;
+    this.tempDirectory = tempDirectory.isBlank() ? null : Path.of(tempDirectory);
+    this.runSize = runSize;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Creates the sorter the transfer entries of one import are added to before {@link #reconcile}.
+   * It has to be closed by the caller.
+   */
+  ExternalPairSorter createSorter() {
+    return new ExternalPairSorter(tempDirectory, runSize, ExternalPairSorter.BY_CVC_HASH);
+  }
+
+  /**
+   * Reconciles the sorted transfer entries with egk_entries. Reading the pages and writing the
+   * batches waits for the throttle.
+   *
+   * @param entries the sorter with all transfer entries of the import
+   * @param throttle the throttle of the import
+   * @param sessionId the session ID for logging purposes
+   * @return the number of imported and blocked entries
+   */
+  ReconciliationResult reconcile(
+      final ExternalPairSorter entries, final ImportThrottle throttle, final String sessionId)
+      throws InterruptedException {
+    try (final var byAutHash =
+        new ExternalPairSorter(tempDirectory, runSize, ExternalPairSorter.BY_AUT_HASH)) {
+      final long liveCount =
+          mergeByCvcHash(
+              new PeekingIterator(entries.sorted()),
+              new PeekingIterator(new LivePairs(throttle)),
+              byAutHash);
+      log.info(
+          "| sessionId {}: {} entries merged with {} pairs of egk_entries in {} runs",
+          sessionId,
+          entries.size(),
+          liveCount,
+          entries.runCount() + byAutHash.runCount());
+      final var result =
+          applyByAutHash(new PeekingIterator(byAutHash.sorted()), throttle, sessionId);
+      log.info("| sessionId {}: merge-join reconciliation finished: {}", sessionId, result);
+      return result;
+    } catch (final UncheckedIOException e) {
+      throw new ImportDataException(
+          sessionId, "Merge-join import failed: " + e.getCause().getMessage(), "errorCode");
+    }
+  }
+
+  /**
+   * First pass: merges the file with egk_entries by cvc hash and passes every distinct pair of both
+   * to the aut sort, marked as conflicting if its cvc hash is shared with an unknown pair.
+   *
+   * @return the number of pairs read from egk_entries
+   */
+  private static long mergeByCvcHash(
+      final PeekingIterator file, final PeekingIterator live, final ExternalPairSorter byAutHash) {
+    long liveCount = 0;
+    final List<Pair> group = new ArrayList<>();
+    while (file.hasNext() || live.hasNext()) {
+      final byte[] cvcHash = lowest(file, live, Pair::cvcHash);
+      while (hasHash(file, cvcHash, Pair::cvcHash) || hasHash(live, cvcHash, Pair::cvcHash)) {
+        final int cmp =
+            !hasHash(file, cvcHash, Pair::cvcHash)
+                ? 1
+                : !hasHash(live, cvcHash, Pair::cvcHash)
+                    ? -1
+                    : Arrays.compareUnsigned(file.peek().autHash(), live.peek().autHash());
+        if (cmp > 0) {
+          group.add(live.next());
+          liveCount++;
+          continue;
+        }
+        final var fromFile = file.next();
+        // further entries of the same pair in the file are duplicates
+        while (file.hasNext()
+            && ExternalPairSorter.BY_CVC_HASH.compare(file.peek(), fromFile) == 0) {
+          file.next();
+        }
+        if (cmp == 0) {
+          group.add(
+              new Pair(
+                  fromFile.cvcHash(),
+                  fromFile.autHash(),
+                  fromFile.notAfter(),
+                  live.next().liveState(),
+                  false));
+          liveCount++;
+        } else {
+          group.add(fromFile);
+        }
+      }
+      final boolean conflict = isConflict(group);
+      for (final var pair : group) {
+        byAutHash.add(pair.withConflict(conflict));
+      }
+      group.clear();
+    }
+    return liveCount;
+  }
+
+  /** Second pass: completes the decisions by aut hash and writes them in batches. */
+  private ReconciliationResult applyByAutHash(
+      final PeekingIterator pairs, final ImportThrottle throttle, final String sessionId)
+      throws InterruptedException {
+    long importedCount = 0;
+    long blockedCount = 0;
+    final List<EgkEntry> newEntries = new ArrayList<>(WRITE_BATCH_SIZE);
+    final List<EgkEntry> changedEntries = new ArrayList<>(WRITE_BATCH_SIZE);
+    final List<Pair> group = new ArrayList<>();
+    while (pairs.hasNext()) {
+      final byte[] autHash = pairs.peek().autHash();
+      while (hasHash(pairs, autHash, Pair::autHash)) {
+        group.add(pairs.next());
+      }
+      final boolean autConflict = isConflict(group);
+      for (final var pair : group) {
+        final boolean conflict = pair.conflict() || autConflict;
+        final var state = conflict ? EgkEntryState.BLOCKED : EgkEntryState.IMPORTED;
+        if (!pair.known()) {
+          newEntries.add(new EgkEntry(pair.cvcHash(), pair.autHash(), state, pair.notAfter()));
+        } else if (conflict && pair.liveState() != EgkEntryState.BLOCKED
+            || !conflict && pair.inFile() && pair.liveState() == EgkEntryState.AD_HOC) {
+          changedEntries.add(new EgkEntry(pair.cvcHash(), pair.autHash(), state, null));
+        } else {
+          continue;
+        }
+        if (conflict) {
+          blockedCount++;
+        } else {
+          importedCount++;
+        }
+      }
+      group.clear();
+      if (newEntries.size() + changedEntries.size() >= WRITE_BATCH_SIZE) {
+        write(newEntries, changedEntries, throttle, sessionId);
+      }
+    }
+    write(newEntries, changedEntries, throttle, sessionId);
+    return new ReconciliationResult(importedCount, blockedCount);
+  }
+
+  /** A group shares a hash; if one of its pairs is unknown, all of them block each other. */
+  private static boolean isConflict(final List<Pair> group) {
+    return group.size() > 1 && group.stream().anyMatch(pair -> !pair.known());
+  }
+
+  private void write(
+      final List<EgkEntry> newEntries,
+      final List<EgkEntry> changedEntries,
+      final ImportThrottle throttle,
+      final String sessionId)
+      throws InterruptedException {
+    if (newEntries.isEmpty() && changedEntries.isEmpty()) {
+      return;
+    }
+    throttle.acquire();
+    try {
+      transactionTemplate.executeWithoutResult(
+          status -> {
+            egkEntryBulkWriter.write(newEntries, sessionId);
+            egkEntryBulkWriter.updateStatesByPair(changedEntries);
+          });
+    } finally {
+      throttle.release();
+    }
+    newEntries.clear();
+    changedEntries.clear();
+  }
+
+  private static byte[] lowest(
+      final PeekingIterator file, final PeekingIterator live, final Function<Pair, byte[]> hash) {
+    if (!file.hasNext()) {
+      return hash.apply(live.peek());
+    }
+    if (!live.hasNext()) {
+      return hash.apply(file.peek());
+    }
+    final byte[] fileHash = hash.apply(file.peek());
+    final byte[] liveHash = hash.apply(live.peek());
+    return Arrays.compareUnsigned(fileHash, liveHash) <= 0 ? fileHash : liveHash;
+  }
+
+  private static boolean hasHash(
+      final PeekingIterator pairs, final byte[] hash, final Function<Pair, byte[]> extractor) {
+    return pairs.hasNext() && Arrays.equals(extractor.apply(pairs.peek()), hash);
+  }
+
+  /** The pairs of egk_entries in index order, read page by page after the last pair read. */
+  private final class LivePairs implements Iterator<Pair> {
+
+    private final ImportThrottle throttle;
+    private Iterator<Pair> page;
+    private Pair last;
+    private boolean lastPage;
+
+    LivePairs(final ImportThrottle throttle) {
+      this.throttle = throttle;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if ((page == null || !page.hasNext()) && !lastPage) {
+        fetchPage();
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public Pair next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = page.next();
+      return last;
+    }
+
+    private void fetchPage() {
+      final List<Pair> pairs;
+      try {
+        throttle.acquire();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while reading egk_entries", e);
+      }
+      try {
+        pairs =
+            last == null
+                ? jdbcTemplate.query(FIRST_PAGE_SQL, LIVE_PAIR_MAPPER, pageSize)
+                : jdbcTemplate.query(
+                    NEXT_PAGE_SQL, LIVE_PAIR_MAPPER, last.cvcHash(), last.autHash(), pageSize);
+      } finally {
+        throttle.release();
+      }
+      lastPage = pairs.size() < pageSize;
+      page = pairs.iterator();
+    }
+  }
+}
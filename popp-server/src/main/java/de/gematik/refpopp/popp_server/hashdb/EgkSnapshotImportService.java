@@ -0,0 +1,293 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.hashdb.EgkImportStagingService.ReconciliationResult;
+import java.sql.SQLException;
+import java.util.List;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Snapshot import (PostgreSQL only): the staged rows of a file that lists all imported pairs are
+ * turned into the new egk_entries table. The table is built as egk_entries_shadow next to the live
+ * table, so the handshake lookups never see a half-written table and the bulk load takes no locks
+ * on the live table:
+ *
+ * <ol>
+ *   <li>the distinct pairs of the file are inserted as IMPORTED, keeping the id and a BLOCKED state
+ *       of pairs that are already known; pairs sharing a cvc or aut hash are BLOCKED
+ *   <li>the indexes are built and the AD_HOC and BLOCKED rows created online are merged with the
+ *       same rules as {@link EgkImportStagingService}, while a trigger records the pairs changed
+ *       online in the meantime
+ *   <li>in one short transaction the recorded pairs are merged as well and the shadow table
+ *       replaces egk_entries
+ * </ol>
+ *
+ * <p>IMPORTED entries that are missing in the file are not taken over. Only one snapshot import may
+ * run at a time, and egk_entries must not be partitioned.
+ */
+@Service
+@Slf4j
+public class EgkSnapshotImportService {
+
+  static final String SHADOW_TABLE = "egk_entries_shadow";
+  static final String DELTA_TABLE = "egk_entries_snapshot_delta";
+  static final String LOCK_NOT_AVAILABLE_SQL_STATE = "55P03";
+
+  private static final String CREATE_SHADOW_SQL =
+      "CREATE TABLE egk_entries_shadow"
+          + " (LIKE egk_entries INCLUDING DEFAULTS INCLUDING CONSTRAINTS)";
+  private static final String FILL_SHADOW_SQL =
+      """
+      INSERT INTO egk_entries_shadow (id, cvc_hash, aut_hash, state, not_after)
+      SELECT COALESCE(e.id, nextval('egk_entries_id_seq')), s.cvc_hash, s.aut_hash,
+             CASE WHEN e.state = 3 THEN 3 ELSE 1 END, s.not_after
+        FROM (SELECT DISTINCT ON (cvc_hash, aut_hash) cvc_hash, aut_hash, not_after
+                FROM egk_import_staging
+               WHERE report_id = ?
+               ORDER BY cvc_hash, aut_hash, not_after DESC) s
+        LEFT JOIN egk_entries e ON e.cvc_hash = s.cvc_hash AND e.aut_hash = s.aut_hash
+      """;
+  private static final List<String> CREATE_SHADOW_INDEXES_SQL =
+      List.of(
+          "ALTER TABLE egk_entries_shadow ADD CONSTRAINT egk_entries_shadow_pkey PRIMARY KEY (id)",
+          "CREATE UNIQUE INDEX idx_egk_entries_shadow_cvc_aut_hash"
+              + " ON egk_entries_shadow (cvc_hash, aut_hash) INCLUDE (state)",
+          "CREATE INDEX idx_egk_entries_shadow_aut_hash ON egk_entries_shadow (aut_hash)",
+          "CREATE INDEX idx_egk_entries_shadow_not_after"
+              + " ON egk_entries_shadow (not_after, id)");
+  private static final String BLOCK_FILE_CONFLICTS_SQL =
+      """
+      UPDATE egk_entries_shadow s SET state = 3
+       WHERE s.state <> 3
+         AND (EXISTS (SELECT 1 FROM egk_entries_shadow o
+                       WHERE o.cvc_hash = s.cvc_hash AND o.aut_hash <> s.aut_hash)
+           OR EXISTS (SELECT 1 FROM egk_entries_shadow o
+                       WHERE o.aut_hash = s.aut_hash AND o.cvc_hash <> s.cvc_hash))
+      """;
+  private static final String COUNT_SHADOW_SQL =
+      "SELECT COUNT(*) FILTER (WHERE state = 1), COUNT(*) FILTER (WHERE state = 3)"
+          + " FROM egk_entries_shadow";
+
+  private static final List<String> START_CAPTURE_SQL =
+      List.of(
+          "CREATE UNLOGGED TABLE egk_entries_snapshot_delta"
+              + " (cvc_hash BYTEA NOT NULL, aut_hash BYTEA NOT NULL)",
+          """
+          CREATE OR REPLACE FUNCTION egk_entries_capture_snapshot_delta() RETURNS trigger
+          LANGUAGE plpgsql AS $$
+          BEGIN
+            INSERT INTO egk_entries_snapshot_delta (cvc_hash, aut_hash)
+            VALUES (NEW.cvc_hash, NEW.aut_hash);
+            RETURN NULL;
+          END
+          $$
+          """,
+          """
+          CREATE TRIGGER egk_entries_snapshot_delta AFTER INSERT OR UPDATE ON egk_entries
+             FOR EACH ROW WHEN (NEW.state IN (2, 3))
+             EXECUTE FUNCTION egk_entries_capture_snapshot_delta()
+          """);
+  private static final String SELECT_ONLINE_SQL =
+      "CREATE TEMPORARY TABLE egk_snapshot_online ON COMMIT DROP AS"
+          + " SELECT id, cvc_hash, aut_hash, state, not_after FROM egk_entries"
+          + " WHERE state IN (2, 3)";
+  private static final String SELECT_DELTA_SQL =
+      """
+      CREATE TEMPORARY TABLE egk_snapshot_online ON COMMIT DROP AS
+      SELECT DISTINCT e.id, e.cvc_hash, e.aut_hash, e.state, e.not_after
+        FROM egk_entries_snapshot_delta d
+        JOIN egk_entries e ON e.cvc_hash = d.cvc_hash AND e.aut_hash = d.aut_hash
+       WHERE e.state IN (2, 3)
+      """;
+  private static final List<String> MERGE_ONLINE_SQL =
+      List.of(
+          """
+          UPDATE egk_entries_shadow s SET state = 3
+            FROM egk_snapshot_online o
+           WHERE o.state = 3 AND s.state <> 3
+             AND s.cvc_hash = o.cvc_hash AND s.aut_hash = o.aut_hash
+          """,
+          """
+          INSERT INTO egk_entries_shadow (id, cvc_hash, aut_hash, state, not_after)
+          SELECT o.id, o.cvc_hash, o.aut_hash,
+                 CASE WHEN EXISTS (SELECT 1 FROM egk_entries_shadow s WHERE s.cvc_hash = o.cvc_hash)
+                        OR EXISTS (SELECT 1 FROM egk_entries_shadow s WHERE s.aut_hash = o.aut_hash)
+                      THEN 3 ELSE o.state END,
+                 o.not_after
+            FROM egk_snapshot_online o
+           WHERE NOT EXISTS (SELECT 1 FROM egk_entries_shadow s
+                              WHERE s.cvc_hash = o.cvc_hash AND s.aut_hash = o.aut_hash)
+              ON CONFLICT DO NOTHING
+          """,
+          """
+          UPDATE egk_entries_shadow s SET state = 3
+           WHERE s.state <> 3
+             AND EXISTS (SELECT 1 FROM egk_snapshot_online o
+                          WHERE o.cvc_hash = s.cvc_hash AND o.aut_hash <> s.aut_hash)
+          """,
+          """
+          UPDATE egk_entries_shadow s SET state = 3
+           WHERE s.state <> 3
+             AND EXISTS (SELECT 1 FROM egk_snapshot_online o
+                          WHERE o.aut_hash = s.aut_hash AND o.cvc_hash <> s.cvc_hash)
+          """);
+  private static final List<String> SWAP_SQL =
+      List.of(
+          "DROP TRIGGER egk_entries_snapshot_delta ON egk_entries",
+          "DROP FUNCTION egk_entries_capture_snapshot_delta()",
+          "ALTER SEQUENCE egk_entries_id_seq OWNED BY egk_entries_shadow.id",
+          "DROP TABLE egk_entries",
+          "ALTER TABLE egk_entries_shadow RENAME TO egk_entries",
+          "ALTER INDEX egk_entries_shadow_pkey RENAME TO egk_entries_pkey",
+          "ALTER INDEX idx_egk_entries_shadow_cvc_aut_hash RENAME TO idx_egk_entries_cvc_aut_hash",
+          "ALTER INDEX idx_egk_entries_shadow_aut_hash RENAME TO idx_egk_entries_aut_hash",
+          "ALTER INDEX idx_egk_entries_shadow_not_after RENAME TO idx_egk_entries_not_after",
+          "DROP TABLE egk_entries_snapshot_delta");
+  private static final List<String> CLEAN_UP_SQL =
+      List.of(
+          "DROP TRIGGER IF EXISTS egk_entries_snapshot_delta ON egk_entries",
+          "DROP FUNCTION IF EXISTS egk_entries_capture_snapshot_delta()",
+          "DROP TABLE IF EXISTS egk_entries_snapshot_delta",
+          "DROP TABLE IF EXISTS egk_entries_shadow");
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final EgkImportStagingService egkImportStagingService;
+  private final long lockTimeoutMillis;
+  private final int swapAttempts;
+
+  public EgkSnapshotImportService(
+      final DataSource dataSource,
+      final TransactionTemplate transactionTemplate,
+      final EgkImportStagingService egkImportStagingService,
+      @Value("${cert-hash-import.snapshot.lock-timeout-millis:5000}") final long lockTimeoutMillis,
+      @Value("${cert-hash-import.snapshot.swap-attempts:3}") final int swapAttempts) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = transactionTemplate;
+    this.egkImportStagingService = egkImportStagingService;
+    this.lockTimeoutMillis = lockTimeoutMillis;
+    this.swapAttempts = swapAttempts;
+  }
+
+  /**
+   * Builds the new egk_entries table from the staged rows of the import, replaces the live table
+   * with it and removes the staged rows. If the import fails, the live table is left untouched and
+   * the staged rows are left to the caller.
+   *
+   * @param reportId the id of the import report the staged rows belong to
+   * @param sessionId the session ID for logging purposes
+   * @return the number of imported and blocked entries of the file
+   */
+  public ReconciliationResult swapIn(final long reportId, final String sessionId) {
+    try {
+      cleanUp();
+      jdbcTemplate.execute(CREATE_SHADOW_SQL);
+      final long loaded = jdbcTemplate.update(FILL_SHADOW_SQL, reportId);
+      egkImportStagingService.discard(reportId);
+      CREATE_SHADOW_INDEXES_SQL.forEach(jdbcTemplate::execute);
+      jdbcTemplate.update(BLOCK_FILE_CONFLICTS_SQL);
+      final var result =
+          jdbcTemplate.queryForObject(
+              COUNT_SHADOW_SQL,
+              (rs, rowNum) -> new ReconciliationResult(rs.getLong(1), rs.getLong(2)));
+      log.info("| sessionId {}: snapshot of {} entries loaded: {}", sessionId, loaded, result);
+
+      START_CAPTURE_SQL.forEach(jdbcTemplate::execute);
+      mergeOnline(SELECT_ONLINE_SQL);
+      // sets the visibility map for index-only scans and the statistics for the planner
+      jdbcTemplate.execute("VACUUM (ANALYZE) " + SHADOW_TABLE);
+      swap(sessionId);
+      return result;
+    } catch (final RuntimeException e) {
+      cleanUp();
+      throw new ImportDataException(
+          sessionId, "Snapshot import failed: " + e.getMessage(), "errorCode");
+    }
+  }
+
+  private void mergeOnline(final String selectOnlineSql) {
+    transactionTemplate.executeWithoutResult(
+        status -> {
+          jdbcTemplate.execute(selectOnlineSql);
+          MERGE_ONLINE_SQL.forEach(jdbcTemplate::update);
+        });
+  }
+
+  /**
+   * Merges the pairs changed online since the first merge and replaces the live table. Writers are
+   * blocked while the recorded pairs are merged, readers only for the renames. If the lock cannot
+   * be taken within the lock timeout, e.g. behind a long running query, the swap is retried instead
+   * of queueing every lookup behind the waiting lock.
+   */
+  private void swap(final String sessionId) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        transactionTemplate.executeWithoutResult(
+            status -> {
+              jdbcTemplate.execute("SET LOCAL lock_timeout = " + lockTimeoutMillis);
+              jdbcTemplate.execute("LOCK TABLE egk_entries IN EXCLUSIVE MODE");
+              jdbcTemplate.execute(SELECT_DELTA_SQL);
+              MERGE_ONLINE_SQL.forEach(jdbcTemplate::update);
+              SWAP_SQL.forEach(jdbcTemplate::execute);
+            });
+        log.info("| sessionId {}: snapshot swapped in", sessionId);
+        return;
+      } catch (final DataAccessException e) {
+        if (!isLockTimeout(e) || attempt >= swapAttempts) {
+          throw e;
+        }
+        log.warn(
+            "| sessionId {}: egk_entries locked, retrying snapshot swap ({}/{})",
+            sessionId,
+            attempt,
+            swapAttempts);
+      }
+    }
+  }
+
+  /**
+   * The default exception translation of Spring JDBC reports a PostgreSQL lock timeout as
+   * uncategorized, so the SQL state is checked as well.
+   */
+  private static boolean isLockTimeout(final DataAccessException e) {
+    return e instanceof PessimisticLockingFailureException
+        || e.getMostSpecificCause() instanceof final SQLException sqlException
+            && LOCK_NOT_AVAILABLE_SQL_STATE.equals(sqlException.getSQLState());
+  }
+
+  /** Removes the objects of an earlier snapshot import that did not finish. */
+  private void cleanUp() {
+    try {
+      CLEAN_UP_SQL.forEach(jdbcTemplate::execute);
+    } catch (final DataAccessException e) {
+      log.warn("Could not remove snapshot import objects: {}", e.getMessage());
+    }
+  }
+}
@@ -36,6 +36,9 @@ public class EgkTransferEntry {
   CommunicationMode communicationMode;
   LocalDateTime notAfter;
 
+  /** Position of the entry in the import file starting at 1, 0 if it was not read from a file. */
+  long ordinal;
+
   public byte[] getCvcHash() {
     return cvcHash.clone();
   }
@@ -43,4 +46,20 @@ public class EgkTransferEntry {
   public byte[] getAutHash() {
     return autHash.clone();
   }
+
+  /**
+   * Returns the cvc hash without a copy for the import, which reads it several times per entry. The
+   * array must not be modified.
+   */
+  byte[] sharedCvcHash() {
+    return cvcHash;
+  }
+
+  /**
+   * Returns the aut hash without a copy, see {@link #sharedCvcHash()}. The array must not be
+   * modified.
+   */
+  byte[] sharedAutHash() {
+    return autHash;
+  }
 }
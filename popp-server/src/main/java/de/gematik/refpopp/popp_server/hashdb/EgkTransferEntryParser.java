@@ -36,6 +36,8 @@ import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.ASN1SequenceParser;
 import org.bouncycastle.asn1.ASN1SetParser;
 import org.bouncycastle.asn1.ASN1UTCTime;
+import org.bouncycastle.cms.CMSSignedDataParser;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -44,40 +46,126 @@ public class EgkTransferEntryParser {
 
   private final CMSSignedDataParserFactory cmsSignedDataParserFactory;
   private final ASN1StreamParserFactory asn1StreamParserFactory;
+  private final boolean derDecoder;
 
+  /**
+   * @param derDecoder whether the egkInfo records are read with {@link EgkInfoDecoder} instead of
+   *     the ASN.1 stream parser of BouncyCastle
+   */
   public EgkTransferEntryParser(
       final CMSSignedDataParserFactory cmsSignedDataParserFactory,
-      final ASN1StreamParserFactory asn1StreamParserFactory) {
+      final ASN1StreamParserFactory asn1StreamParserFactory,
+      @Value("${cert-hash-import.der-decoder:true}") final boolean derDecoder) {
     this.cmsSignedDataParserFactory = cmsSignedDataParserFactory;
     this.asn1StreamParserFactory = asn1StreamParserFactory;
+    this.derDecoder = derDecoder;
   }
 
   public List<EgkTransferEntry> parseAll(final InputStream rawCmsContent, final String sessionId) {
     final List<EgkTransferEntry> result = new ArrayList<>();
-
     try {
-      final var cmsParser = cmsSignedDataParserFactory.createParser(rawCmsContent, sessionId);
-      final var contentStream = cmsParser.getSignedContent().getContentStream();
-      final var contentParser = asn1StreamParserFactory.create(contentStream);
-      final var seqParser = (ASN1SequenceParser) contentParser.readObject();
-      seqParser.readObject();
-      final var infos = (ASN1SequenceParser) seqParser.readObject();
+      parse(rawCmsContent, sessionId, result::add);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImportDataException(sessionId, "Interrupted while parsing eContent", "errorCode");
+    }
+    return result;
+  }
 
-      ASN1Encodable infoObj;
-      while ((infoObj = infos.readObject()) != null) {
-        final var setParser = (ASN1SetParser) infoObj;
-        final var transferEntry = parseSingleEgkInfo(setParser, sessionId);
-        result.add(transferEntry);
-      }
+  /**
+   * Parses the eContent of the given CMS stream and hands every egkInfo record to the handler as
+   * soon as it has been read, so the heap usage does not depend on the number of entries.
+   *
+   * @param rawCmsContent the CMS signed data
+   * @param sessionId the session ID for error reporting
+   * @param handler receives the parsed entries in file order
+   * @return the number of parsed entries
+   * @throws InterruptedException if the handler was interrupted
+   */
+  public long parse(
+      final InputStream rawCmsContent,
+      final String sessionId,
+      final EgkTransferEntryHandler handler)
+      throws InterruptedException {
+    final var cmsParser = cmsSignedDataParserFactory.createParser(rawCmsContent, sessionId);
+    return parseSignedContent(cmsParser, sessionId, handler);
+  }
+
+  /**
+   * Parses the eContent of an already created CMS parser. The signed content stream is drained
+   * afterwards, so the caller can verify the signer infos of the same parser without reading the
+   * file a second time.
+   *
+   * @param cmsParser the CMS parser positioned before the signed content
+   * @param sessionId the session ID for error reporting
+   * @param handler receives the parsed entries in file order
+   * @return the number of parsed entries
+   * @throws InterruptedException if the handler was interrupted
+   */
+  public long parseSignedContent(
+      final CMSSignedDataParser cmsParser,
+      final String sessionId,
+      final EgkTransferEntryHandler handler)
+      throws InterruptedException {
+    try {
+      final var signedContent = cmsParser.getSignedContent();
+      final long count = parseContent(signedContent.getContentStream(), sessionId, handler);
+      signedContent.drain();
+      return count;
     } catch (final IOException | ParseException e) {
       throw new ImportDataException(
           sessionId, "Error streaming CMS eContent parse: " + e.getMessage(), "errorCode");
     }
-    return result;
+  }
+
+  /** Parses the egkInfo records of the eContent without reading the stream to its end. */
+  long parseContent(
+      final InputStream contentStream,
+      final String sessionId,
+      final EgkTransferEntryHandler handler)
+      throws IOException, ParseException, InterruptedException {
+    if (derDecoder) {
+      return decode(contentStream, sessionId, handler);
+    }
+    final var contentParser = asn1StreamParserFactory.create(contentStream);
+    final var seqParser = (ASN1SequenceParser) contentParser.readObject();
+    seqParser.readObject();
+    final var infos = (ASN1SequenceParser) seqParser.readObject();
+
+    long count = 0;
+    ASN1Encodable infoObj;
+    while ((infoObj = infos.readObject()) != null) {
+      final var setParser = (ASN1SetParser) infoObj;
+      count++;
+      handler.handle(parseSingleEgkInfo(setParser, count, sessionId));
+    }
+    return count;
+  }
+
+  private long decode(
+      final InputStream contentStream,
+      final String sessionId,
+      final EgkTransferEntryHandler handler)
+      throws IOException, InterruptedException {
+    final var decoder = new EgkInfoDecoder(contentStream);
+    decoder.readHeader();
+    long count = 0;
+    while (decoder.next()) {
+      if (!decoder.isComplete()) {
+        throw new ImportDataException(sessionId, "| Missing fields in egkInfo", "errorCode");
+      }
+      count++;
+      // the hashes are copied because the handler keeps the entries beyond the next record, e.g.
+      // in the chunks of the import, while the decoder reuses its buffer
+      handler.handle(
+          new EgkTransferEntry(
+              decoder.copyCvcHash(), decoder.copyAutHash(), null, null, decoder.notAfter(), count));
+    }
+    return count;
   }
 
   private EgkTransferEntry parseSingleEgkInfo(
-      final ASN1SetParser asn1SetParser, final String sessionId)
+      final ASN1SetParser asn1SetParser, final long ordinal, final String sessionId)
       throws IOException, ParseException {
     ASN1UTCTime notAfter = null;
     ASN1OctetString cvcOctets = null;
@@ -95,11 +183,14 @@ public class EgkTransferEntryParser {
     if (notAfter == null || cvcOctets == null || autBits == null) {
       throw new ImportDataException(sessionId, "| Missing fields in egkInfo", "errorCode");
     }
-    final Date notAfterDate = notAfter.getDate();
+    // RFC 5280 pivot as in EgkInfoDecoder; getDate() would move the century of years 47-49 with
+    // the current date
+    final Date notAfterDate = notAfter.getAdjustedDate();
     return EgkTransferEntry.builder()
         .cvcHash(cvcOctets.getOctets())
         .autHash(autBits.getBytes())
         .notAfter(LocalDateTime.ofInstant(notAfterDate.toInstant(), ZoneId.of("Europe/Berlin")))
+        .ordinal(ordinal)
         .build();
   }
 }
@@ -0,0 +1,335 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort for hash pairs. Pairs are collected in memory up to the run size, then sorted
+ * and written to a run file in a temp directory of the sorter. {@link #sorted} merges the runs with
+ * the pairs still in memory, so at most one run and one read buffer per run are held in memory.
+ * Hashes are compared as unsigned bytes like bytea in PostgreSQL. Closing the sorter deletes its
+ * runs and directory.
+ */
+final class ExternalPairSorter implements Closeable {
+
+  static final Comparator<Pair> BY_CVC_HASH =
+      Comparator.comparing(Pair::cvcHash, Arrays::compareUnsigned)
+          .thenComparing(Pair::autHash, Arrays::compareUnsigned);
+  static final Comparator<Pair> BY_AUT_HASH =
+      Comparator.comparing(Pair::autHash, Arrays::compareUnsigned)
+          .thenComparing(Pair::cvcHash, Arrays::compareUnsigned);
+
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+  private static final String DIRECTORY_PREFIX = "egk-pair-sort-";
+  private static final long NO_NOT_AFTER = Long.MIN_VALUE;
+
+  private final Path parentDirectory;
+  private final int runSize;
+  private final Comparator<Pair> order;
+  private final List<Path> runs = new ArrayList<>();
+  private final List<Closeable> readers = new ArrayList<>();
+  private Path directory;
+  private List<Pair> buffer;
+  private long size;
+
+  /**
+   * @param parentDirectory the directory to create the run directory in, {@code null} for the
+   *     default temp directory
+   * @param runSize the number of pairs sorted in memory before they are written to a run
+   * @param order {@link #BY_CVC_HASH} or {@link #BY_AUT_HASH}
+   */
+  ExternalPairSorter(final Path parentDirectory, final int runSize, final Comparator<Pair> order) {
+    this.parentDirectory = parentDirectory;
+    this.runSize = runSize;
+    this.order = order;
+    this.buffer = new ArrayList<>();
+  }
+
+  void add(final EgkTransferEntry entry) {
+    add(new Pair(entry.sharedCvcHash(), entry.sharedAutHash(), entry.getNotAfter(), null, false));
+  }
+
+  void add(final Pair pair) {
+    buffer.add(pair);
+    size++;
+    if (buffer.size() >= runSize) {
+      spill();
+    }
+  }
+
+  long size() {
+    return size;
+  }
+
+  int runCount() {
+    return runs.size();
+  }
+
+  /** Returns all added pairs in order. No pairs can be added afterwards. */
+  Iterator<Pair> sorted() {
+    buffer.sort(order);
+    final var inMemory = buffer;
+    buffer = List.of();
+    if (runs.isEmpty()) {
+      return inMemory.iterator();
+    }
+    final PriorityQueue<PeekingIterator> heads =
+        new PriorityQueue<>(runs.size() + 1, (a, b) -> order.compare(a.peek(), b.peek()));
+    addHead(heads, inMemory.iterator());
+    for (final var run : runs) {
+      final var reader = new RunReader(run);
+      readers.add(reader);
+      addHead(heads, reader);
+    }
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return !heads.isEmpty();
+      }
+
+      @Override
+      public Pair next() {
+        final var head = heads.poll();
+        if (head == null) {
+          throw new NoSuchElementException();
+        }
+        final var pair = head.next();
+        if (head.hasNext()) {
+          heads.add(head);
+        }
+        return pair;
+      }
+    };
+  }
+
+  @Override
+  public void close() {
+    buffer = List.of();
+    for (final var reader : readers) {
+      try {
+        reader.close();
+      } catch (final IOException e) {
+        // the run is deleted below anyway
+      }
+    }
+    for (final var run : runs) {
+      try {
+        Files.deleteIfExists(run);
+      } catch (final IOException e) {
+        run.toFile().deleteOnExit();
+      }
+    }
+    runs.clear();
+    if (directory != null) {
+      try {
+        Files.deleteIfExists(directory);
+      } catch (final IOException e) {
+        directory.toFile().deleteOnExit();
+      }
+    }
+  }
+
+  private static void addHead(final PriorityQueue<PeekingIterator> heads, final Iterator<Pair> it) {
+    final var head = new PeekingIterator(it);
+    if (head.hasNext()) {
+      heads.add(head);
+    }
+  }
+
+  private void spill() {
+    buffer.sort(order);
+    try {
+      if (directory == null) {
+        directory =
+            parentDirectory == null
+                ? Files.createTempDirectory(DIRECTORY_PREFIX)
+                : Files.createTempDirectory(parentDirectory, DIRECTORY_PREFIX);
+      }
+      final Path run = Files.createTempFile(directory, "pairs-", ".run");
+      runs.add(run);
+      try (final var out =
+          new DataOutputStream(
+              new BufferedOutputStream(Files.newOutputStream(run), IO_BUFFER_SIZE))) {
+        for (final var pair : buffer) {
+          write(out, pair);
+        }
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Writing sort run failed", e);
+    }
+    buffer = new ArrayList<>(runSize);
+  }
+
+  private static void write(final DataOutputStream out, final Pair pair) throws IOException {
+    out.writeByte(pair.cvcHash().length);
+    out.write(pair.cvcHash());
+    out.writeByte(pair.autHash().length);
+    out.write(pair.autHash());
+    if (pair.notAfter() == null) {
+      out.writeLong(NO_NOT_AFTER);
+    } else {
+      out.writeLong(pair.notAfter().toEpochSecond(ZoneOffset.UTC));
+      out.writeInt(pair.notAfter().getNano());
+    }
+    out.writeShort(pair.liveState() == null ? 0 : pair.liveState().getCode());
+    out.writeBoolean(pair.conflict());
+  }
+
+  private static Pair read(final DataInputStream in) throws IOException {
+    final var cvcHash = new byte[in.readUnsignedByte()];
+    in.readFully(cvcHash);
+    final var autHash = new byte[in.readUnsignedByte()];
+    in.readFully(autHash);
+    final long epochSecond = in.readLong();
+    final var notAfter =
+        epochSecond == NO_NOT_AFTER
+            ? null
+            : LocalDateTime.ofEpochSecond(epochSecond, in.readInt(), ZoneOffset.UTC);
+    final short state = in.readShort();
+    return new Pair(
+        cvcHash,
+        autHash,
+        notAfter,
+        state == 0 ? null : EgkEntryState.fromCode(state),
+        in.readBoolean());
+  }
+
+  /**
+   * A hash pair of the import file, of egk_entries or of both.
+   *
+   * @param notAfter the expiry given in the file, {@code null} if the pair is not in the file
+   * @param liveState the state in egk_entries, {@code null} if the pair is not in egk_entries
+   * @param conflict whether another pair with the same cvc hash blocks this one
+   */
+  record Pair(
+      byte[] cvcHash,
+      byte[] autHash,
+      LocalDateTime notAfter,
+      EgkEntryState liveState,
+      boolean conflict) {
+
+    boolean inFile() {
+      return notAfter != null;
+    }
+
+    boolean known() {
+      return liveState != null;
+    }
+
+    Pair withConflict(final boolean conflict) {
+      return new Pair(cvcHash, autHash, notAfter, liveState, conflict);
+    }
+  }
+
+  private static final class RunReader implements Iterator<Pair>, Closeable {
+
+    private final DataInputStream in;
+    private Pair next;
+
+    RunReader(final Path run) {
+      try {
+        in =
+            new DataInputStream(new BufferedInputStream(Files.newInputStream(run), IO_BUFFER_SIZE));
+      } catch (final IOException e) {
+        throw new UncheckedIOException("Opening sort run failed", e);
+      }
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Pair next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      final var current = next;
+      advance();
+      return current;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
+    private void advance() {
+      try {
+        next = read(in);
+      } catch (final EOFException e) {
+        next = null;
+      } catch (final IOException e) {
+        throw new UncheckedIOException("Reading sort run failed", e);
+      }
+    }
+  }
+
+  /** Iterator that shows the next pair before it is taken. */
+  static final class PeekingIterator implements Iterator<Pair> {
+
+    private final Iterator<Pair> delegate;
+    private Pair next;
+
+    PeekingIterator(final Iterator<Pair> delegate) {
+      this.delegate = delegate;
+      this.next = delegate.hasNext() ? delegate.next() : null;
+    }
+
+    Pair peek() {
+      return next;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Pair next() {
+      final var current = next;
+      next = delegate.hasNext() ? delegate.next() : null;
+      return current;
+    }
+  }
+}
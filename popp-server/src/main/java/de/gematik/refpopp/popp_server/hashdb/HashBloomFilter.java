@@ -0,0 +1,119 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bloom filter over byte array keys whose bit array lives in a direct buffer outside the Java heap.
+ * Keys can be added concurrently with lookups; a key that has been added is always reported as
+ * possibly contained.
+ */
+final class HashBloomFilter {
+
+  private static final VarHandle WORDS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private static final long SEED_1 = 0x9E3779B97F4A7C15L;
+  private static final long SEED_2 = 0xC2B2AE3D27D4EB4FL;
+
+  private final ByteBuffer words;
+  private final long bitCount;
+  private final int hashFunctions;
+
+  private HashBloomFilter(final long bitCount, final int hashFunctions) {
+    this.words = ByteBuffer.allocateDirect((int) (bitCount / Byte.SIZE));
+    this.bitCount = bitCount;
+    this.hashFunctions = hashFunctions;
+  }
+
+  /**
+   * Creates a filter sized for the expected number of keys and false positive rate.
+   *
+   * @throws IllegalArgumentException if the rate is not between 0 and 1 or the filter would not fit
+   *     into a single direct buffer
+   */
+  static HashBloomFilter create(final long expectedKeys, final double falsePositiveRate) {
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+    }
+    final long keys = Math.max(1, expectedKeys);
+    final double ln2 = Math.log(2);
+    final long optimalBits = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (ln2 * ln2));
+    final long bitCount =
+        Math.max(Long.SIZE, (optimalBits + Long.SIZE - 1) / Long.SIZE * Long.SIZE);
+    if (bitCount / Byte.SIZE > Integer.MAX_VALUE - Long.BYTES) {
+      throw new IllegalArgumentException("Filter of " + bitCount + " bits exceeds 2 GiB");
+    }
+    final int hashFunctions = Math.max(1, (int) Math.round((double) bitCount / keys * ln2));
+    return new HashBloomFilter(bitCount, hashFunctions);
+  }
+
+  void put(final byte[] key) {
+    final long h1 = hash(key, SEED_1);
+    final long h2 = hash(key, SEED_2);
+    for (int i = 0; i < hashFunctions; i++) {
+      final long bit = Math.floorMod(h1 + i * h2, bitCount);
+      final int offset = (int) (bit >>> 6) * Long.BYTES;
+      final long mask = 1L << bit;
+      if (((long) WORDS.getAcquire(words, offset) & mask) == 0) {
+        WORDS.getAndBitwiseOrRelease(words, offset, mask);
+      }
+    }
+  }
+
+  boolean mightContain(final byte[] key) {
+    final long h1 = hash(key, SEED_1);
+    final long h2 = hash(key, SEED_2);
+    for (int i = 0; i < hashFunctions; i++) {
+      final long bit = Math.floorMod(h1 + i * h2, bitCount);
+      final int offset = (int) (bit >>> 6) * Long.BYTES;
+      if (((long) WORDS.getAcquire(words, offset) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  long sizeInBytes() {
+    return bitCount / Byte.SIZE;
+  }
+
+  int hashFunctions() {
+    return hashFunctions;
+  }
+
+  /** FNV-1a over the key, finished with the MurmurHash3 64-bit mix. */
+  private static long hash(final byte[] key, final long seed) {
+    long h = seed ^ (key.length * 0x100000001B3L);
+    for (final byte b : key) {
+      h = (h ^ (b & 0xff)) * 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Input sources for hash files. BouncyCastle reads tags and lengths byte by byte, which costs a
+ * system call per byte on a plain file stream. Files are therefore memory-mapped in windows of
+ * {@value #MAP_WINDOW_SIZE} bytes, so reading is limited by the parser and not by the system calls.
+ * Sources that cannot be mapped, e.g. request bodies, get a large buffer instead.
+ */
+final class HashFileInput {
+
+  static final int BUFFER_SIZE = 1024 * 1024;
+  static final long MAP_WINDOW_SIZE = 1L << 30;
+
+  private HashFileInput() {}
+
+  /**
+   * Opens the file memory-mapped, or buffered if the file system does not support mapping.
+   *
+   * @param path the hash file
+   * @return a stream over the whole file
+   */
+  static InputStream open(final Path path) throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new MappedInputStream(channel, channel.size(), MAP_WINDOW_SIZE);
+    } catch (final IOException | UnsupportedOperationException e) {
+      channel.close();
+      return new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+    }
+  }
+
+  /** Returns the stream itself if it is read from memory already, otherwise a buffered stream. */
+  static InputStream buffered(final InputStream in) {
+    if (in instanceof MappedInputStream
+        || in instanceof BufferedInputStream
+        || in instanceof ByteArrayInputStream) {
+      return in;
+    }
+    return new BufferedInputStream(in, BUFFER_SIZE);
+  }
+
+  /** Reads a file through consecutive mapped windows; closing it closes the channel. */
+  static final class MappedInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private long windowStart;
+    private MappedByteBuffer window;
+
+    MappedInputStream(final FileChannel channel, final long size, final long windowSize)
+        throws IOException {
+      this.channel = channel;
+      this.size = size;
+      this.windowSize = windowSize;
+      this.window = map(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!window.hasRemaining() && !nextWindow()) {
+        return -1;
+      }
+      return window.get() & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!window.hasRemaining() && !nextWindow()) {
+        return -1;
+      }
+      final int n = Math.min(len, window.remaining());
+      window.get(buffer, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      final long skipped = Math.max(0, Math.min(n, size - position()));
+      final long target = position() + skipped;
+      if (target < windowStart + window.limit()) {
+        window.position((int) (target - windowStart));
+      } else {
+        window = map(target);
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, size - position());
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+
+    private long position() {
+      return windowStart + window.position();
+    }
+
+    private boolean nextWindow() throws IOException {
+      final long next = windowStart + window.limit();
+      if (next >= size) {
+        return false;
+      }
+      window = map(next);
+      return true;
+    }
+
+    private MappedByteBuffer map(final long start) throws IOException {
+      windowStart = start;
+      return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+    }
+  }
+}
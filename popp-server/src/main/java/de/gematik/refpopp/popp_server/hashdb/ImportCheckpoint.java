@@ -0,0 +1,75 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks up to which entry of the import file all entries have been committed. Every shard commits
+ * its entries in file order, so every entry up to the last committed ordinal of a shard is
+ * committed, unless the shard has not received it yet. A shard without pending entries does not
+ * limit the checkpoint.
+ */
+final class ImportCheckpoint {
+
+  private final AtomicLongArray lastEnqueued;
+  private final AtomicLongArray lastCommitted;
+  private volatile long enqueued;
+
+  /**
+   * @param shardCount the number of consumers
+   * @param resumedOrdinal the checkpoint of the import that is resumed, 0 for a new import
+   */
+  ImportCheckpoint(final int shardCount, final long resumedOrdinal) {
+    lastEnqueued = new AtomicLongArray(shardCount);
+    lastCommitted = new AtomicLongArray(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      lastEnqueued.set(i, resumedOrdinal);
+      lastCommitted.set(i, resumedOrdinal);
+    }
+    enqueued = resumedOrdinal;
+  }
+
+  /** Called by the single producer after the entry has been put into the shard. */
+  void enqueued(final int shard, final long ordinal) {
+    lastEnqueued.set(shard, ordinal);
+    enqueued = ordinal;
+  }
+
+  void committed(final int shard, final long ordinal) {
+    lastCommitted.set(shard, ordinal);
+  }
+
+  /**
+   * @return the ordinal up to which all entries of the file are committed
+   */
+  long ordinal() {
+    // read before the shards, so every entry up to it has reached its shard
+    long checkpoint = enqueued;
+    for (int i = 0; i < lastCommitted.length(); i++) {
+      final long committed = lastCommitted.get(i);
+      if (lastEnqueued.get(i) > committed) {
+        checkpoint = Math.min(checkpoint, committed);
+      }
+    }
+    return checkpoint;
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+/** Strategy used by {@link EgkHashImportService} to reconcile a hash file with egk_entries. */
+public enum ImportMode {
+  /** Entries are streamed to consumer threads which decide per chunk in Java. */
+  STREAMING,
+  /** Entries are loaded into a staging table and reconciled with set-based SQL. */
+  STAGING,
+  /**
+   * Entries are loaded into a staging table and the file replaces all imported entries: a new table
+   * is built and swapped in, see {@link EgkSnapshotImportService}.
+   */
+  SNAPSHOT,
+  /**
+   * Entries are sorted on disk and reconciled in a merge-join with the index order of egk_entries,
+   * see {@link EgkMergeJoinImportService}.
+   */
+  MERGE_JOIN
+}
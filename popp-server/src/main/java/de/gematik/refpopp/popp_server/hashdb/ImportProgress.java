@@ -0,0 +1,132 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters of a running import. They are written to the import report periodically so that the
+ * progress of a long import can be followed while it runs.
+ */
+final class ImportProgress {
+
+  private final AtomicLong importedCount = new AtomicLong();
+  private final AtomicLong blockedCount = new AtomicLong();
+  private final AtomicLong skippedCount = new AtomicLong();
+  private final AtomicLong totalProcessedCount = new AtomicLong();
+  private final AtomicLong bytesProcessed = new AtomicLong();
+  private final long totalBytes;
+  private volatile ImportCheckpoint checkpoint;
+
+  /**
+   * @param totalBytes the number of bytes the import reads in total, i.e. the file size times the
+   *     number of passes over the file
+   */
+  ImportProgress(final long totalBytes) {
+    this.totalBytes = totalBytes;
+  }
+
+  AtomicLong importedCount() {
+    return importedCount;
+  }
+
+  AtomicLong blockedCount() {
+    return blockedCount;
+  }
+
+  AtomicLong skippedCount() {
+    return skippedCount;
+  }
+
+  AtomicLong totalProcessedCount() {
+    return totalProcessedCount;
+  }
+
+  long bytesProcessed() {
+    return bytesProcessed.get();
+  }
+
+  long totalBytes() {
+    return totalBytes;
+  }
+
+  void trackCheckpoint(final ImportCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * @return the ordinal up to which all entries of the file are committed, 0 without checkpoints
+   */
+  long checkpointOrdinal() {
+    final var current = checkpoint;
+    return current != null ? current.ordinal() : 0;
+  }
+
+  /** Counts the decisions of one processed transfer entry. */
+  void count(final List<EgkEntry> processedEntries) {
+    totalProcessedCount.addAndGet(processedEntries.size());
+    for (EgkEntry processedEntry : processedEntries) {
+      if (processedEntry.getState() == EgkEntryState.IMPORTED) {
+        importedCount.incrementAndGet();
+      } else if (processedEntry.getState() == EgkEntryState.BLOCKED) {
+        blockedCount.incrementAndGet();
+      } else {
+        skippedCount.incrementAndGet();
+      }
+    }
+  }
+
+  /** Wraps the stream so that every byte read from it is added to the processed bytes. */
+  InputStream track(final InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        final int b = super.read();
+        if (b >= 0) {
+          bytesProcessed.incrementAndGet();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] buffer, final int off, final int len) throws IOException {
+        final int n = super.read(buffer, off, len);
+        if (n > 0) {
+          bytesProcessed.addAndGet(n);
+        }
+        return n;
+      }
+
+      @Override
+      public long skip(final long n) throws IOException {
+        final long skipped = super.skip(n);
+        bytesProcessed.addAndGet(skipped);
+        return skipped;
+      }
+    };
+  }
+}
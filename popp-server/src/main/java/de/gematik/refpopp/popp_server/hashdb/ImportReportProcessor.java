@@ -20,9 +20,13 @@
 
 package de.gematik.refpopp.popp_server.hashdb;
 
+import de.gematik.refpopp.popp_server.model.ImportJobStatus;
 import de.gematik.refpopp.popp_server.model.ImportReportEntry;
 import de.gematik.refpopp.popp_server.repository.ImportReportRepository;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -30,18 +34,139 @@ import org.springframework.stereotype.Service;
 @Slf4j
 public class ImportReportProcessor {
 
+  private static final int MAX_STATUS_MESSAGE_LENGTH = 1024;
+  private static final int MAX_THROTTLE_LOG_LINES = 100;
+
   private final ImportReportRepository importReportRepository;
 
   public ImportReportProcessor(final ImportReportRepository importReportRepository) {
     this.importReportRepository = importReportRepository;
   }
 
-  public ImportReportEntry createReport(final String sessionId) {
+  public boolean reportExists(final String sessionId) {
+    return importReportRepository.existsBySessionId(sessionId);
+  }
+
+  public Optional<ImportReportEntry> findReport(final String sessionId) {
+    return importReportRepository.findBySessionId(sessionId);
+  }
+
+  public ImportReportEntry queueReport(final String sessionId) {
     ImportReportEntry report = new ImportReportEntry(sessionId);
+    report.setStatus(ImportJobStatus.QUEUED);
+    return importReportRepository.save(report);
+  }
+
+  public ImportReportEntry createReport(final String sessionId) {
+    ImportReportEntry report =
+        importReportRepository
+            .findBySessionId(sessionId)
+            .filter(queued -> queued.getStatus() == ImportJobStatus.QUEUED)
+            .orElseGet(() -> new ImportReportEntry(sessionId));
     report.setStartTime(LocalDateTime.now());
+    report.setStatus(ImportJobStatus.RUNNING);
     return importReportRepository.save(report);
   }
 
+  public void failReport(final String sessionId, final String reason) {
+    importReportRepository
+        .findBySessionId(sessionId)
+        .ifPresent(report -> failReport(report, reason));
+  }
+
+  /** Marks the report of a running import failed, e.g. because its signature is invalid. */
+  public void failReport(final ImportReportEntry report, final String reason) {
+    synchronized (report) {
+      report.setEndTime(LocalDateTime.now());
+      report.setStatus(ImportJobStatus.FAILED);
+      report.setStatusMessage(
+          reason != null && reason.length() > MAX_STATUS_MESSAGE_LENGTH
+              ? reason.substring(0, MAX_STATUS_MESSAGE_LENGTH)
+              : reason);
+      importReportRepository.save(report);
+    }
+    log.warn("Import {} failed: {}", report.getSessionId(), reason);
+  }
+
+  /**
+   * Writes the live counters of a running import to its report. Updates arriving after the report
+   * has been finalized or failed are ignored, and the checkpoint never moves back.
+   */
+  public void updateProgress(
+      final ImportReportEntry report,
+      final long importedCount,
+      final long blockedCount,
+      final long skippedCount,
+      final long totalProcessedCount,
+      final long bytesProcessed,
+      final long totalBytes,
+      final long checkpointOrdinal) {
+    synchronized (report) {
+      if (report.getStatus() != ImportJobStatus.RUNNING) {
+        return;
+      }
+      report.setImportedCount(importedCount);
+      report.setBlockedCount(blockedCount);
+      report.setSkippedCount(skippedCount);
+      report.setTotalProcessedCount(totalProcessedCount);
+      report.setBytesProcessed(bytesProcessed);
+      report.setTotalBytes(totalBytes);
+      report.setCheckpointOrdinal(Math.max(report.getCheckpointOrdinal(), checkpointOrdinal));
+      report.setLastProgressUpdate(LocalDateTime.now());
+      importReportRepository.save(report);
+    }
+    log.debug(
+        "Import {} progress: {} entries, {}/{} bytes",
+        report.getSessionId(),
+        totalProcessedCount,
+        bytesProcessed,
+        totalBytes);
+  }
+
+  /**
+   * Records the file of a running import, so that it can be resumed from its checkpoint with the
+   * same file if it fails.
+   *
+   * @param resumedFrom the session id of the import that is resumed or {@code null}
+   * @param checkpointOrdinal the checkpoint of the resumed import, 0 for a new import
+   */
+  public void startCheckpoints(
+      final ImportReportEntry report,
+      final String fileDigest,
+      final String resumedFrom,
+      final long checkpointOrdinal) {
+    synchronized (report) {
+      report.setFileDigest(fileDigest);
+      report.setResumedFrom(resumedFrom);
+      report.setCheckpointOrdinal(checkpointOrdinal);
+      importReportRepository.save(report);
+    }
+  }
+
+  /**
+   * Counts a decision of the import throttle and appends it to the throttle log of a running
+   * import, which keeps only the latest decisions.
+   */
+  public void recordThrottleDecision(final ImportReportEntry report, final String decision) {
+    synchronized (report) {
+      if (report.getStatus() != ImportJobStatus.RUNNING) {
+        return;
+      }
+      final var lines = new ArrayList<String>();
+      if (report.getThrottleLog() != null) {
+        lines.addAll(Arrays.asList(report.getThrottleLog().split("\n")));
+      }
+      lines.add(decision);
+      report.setThrottleCount(report.getThrottleCount() + 1);
+      report.setThrottleLog(
+          String.join(
+              "\n",
+              lines.subList(Math.max(0, lines.size() - MAX_THROTTLE_LOG_LINES), lines.size())));
+      importReportRepository.save(report);
+    }
+    log.info("Import {} throttled: {}", report.getSessionId(), decision);
+  }
+
   public void finalizeReport(
       final ImportReportEntry report,
       final long importedCount,
@@ -49,13 +174,16 @@ public class ImportReportProcessor {
       final long skippedCount,
       final long totalProcessedCount) {
 
-    report.setEndTime(LocalDateTime.now());
-    report.setImportedCount(importedCount);
-    report.setBlockedCount(blockedCount);
-    report.setSkippedCount(skippedCount);
-    report.setTotalProcessedCount(totalProcessedCount);
-
-    ImportReportEntry savedReport = importReportRepository.save(report);
+    ImportReportEntry savedReport;
+    synchronized (report) {
+      report.setEndTime(LocalDateTime.now());
+      report.setImportedCount(importedCount);
+      report.setBlockedCount(blockedCount);
+      report.setSkippedCount(skippedCount);
+      report.setTotalProcessedCount(totalProcessedCount);
+      report.setStatus(ImportJobStatus.DONE);
+      savedReport = importReportRepository.save(report);
+    }
     log.info("Import report finalized: {}", savedReport.getFormattedReport());
   }
 }
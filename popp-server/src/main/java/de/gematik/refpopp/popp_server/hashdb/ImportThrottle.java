@@ -0,0 +1,133 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Locale;
+import java.util.OptionalLong;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Limits how many consumers of an import work on the database at the same time and how long they
+ * pause before each chunk. {@link #adjust} steers both by the p99 of the handshake validations:
+ * above the threshold the concurrency is halved, and once a single consumer is left the pause is
+ * doubled instead. Below half the threshold, or without handshakes, the pause is halved first and
+ * then the concurrency grows by one per adjustment. Every change is passed to the decision
+ * listener.
+ */
+final class ImportThrottle {
+
+  static final long MIN_PAUSE_MILLIS = 50;
+
+  private final AdjustableSemaphore permits;
+  private final int maxConcurrency;
+  private final long thresholdNanos;
+  private final long maxPauseMillis;
+  private final Supplier<OptionalLong> p99Nanos;
+  private final Consumer<String> decisionListener;
+  private int concurrency;
+  private volatile long pauseMillis;
+
+  ImportThrottle(
+      final int maxConcurrency,
+      final long thresholdNanos,
+      final long maxPauseMillis,
+      final Supplier<OptionalLong> p99Nanos,
+      final Consumer<String> decisionListener) {
+    this.permits = new AdjustableSemaphore(maxConcurrency);
+    this.maxConcurrency = maxConcurrency;
+    this.concurrency = maxConcurrency;
+    this.thresholdNanos = thresholdNanos;
+    this.maxPauseMillis = maxPauseMillis;
+    this.p99Nanos = p99Nanos;
+    this.decisionListener = decisionListener;
+  }
+
+  /** Waits for the current pause and a free slot; {@link #release} has to follow. */
+  void acquire() throws InterruptedException {
+    final long pause = pauseMillis;
+    if (pause > 0) {
+      Thread.sleep(pause);
+    }
+    permits.acquire();
+  }
+
+  void release() {
+    permits.release();
+  }
+
+  synchronized void adjust() {
+    final var p99 = p99Nanos.get();
+    final int oldConcurrency = concurrency;
+    final long oldPauseMillis = pauseMillis;
+    if (p99.isPresent() && p99.getAsLong() > thresholdNanos) {
+      if (concurrency > 1) {
+        final int reduced = Math.max(1, concurrency / 2);
+        permits.reducePermits(concurrency - reduced);
+        concurrency = reduced;
+      } else {
+        pauseMillis = Math.min(maxPauseMillis, Math.max(MIN_PAUSE_MILLIS, pauseMillis * 2));
+      }
+    } else if (p99.isEmpty() || p99.getAsLong() < thresholdNanos / 2) {
+      if (pauseMillis > 0) {
+        pauseMillis = pauseMillis / 2 < MIN_PAUSE_MILLIS ? 0 : pauseMillis / 2;
+      } else if (concurrency < maxConcurrency) {
+        concurrency++;
+        permits.release();
+      }
+    }
+    if (concurrency != oldConcurrency || pauseMillis != oldPauseMillis) {
+      decisionListener.accept(
+          String.format(
+              Locale.ROOT,
+              "%s p99 %s: consumers %d -> %d, pause %d -> %d ms",
+              LocalTime.now().truncatedTo(ChronoUnit.SECONDS),
+              p99.isPresent() ? p99.getAsLong() / 1_000_000 + " ms" : "n/a",
+              oldConcurrency,
+              concurrency,
+              oldPauseMillis,
+              pauseMillis));
+    }
+  }
+
+  synchronized int concurrency() {
+    return concurrency;
+  }
+
+  long pauseMillis() {
+    return pauseMillis;
+  }
+
+  private static final class AdjustableSemaphore extends Semaphore {
+
+    AdjustableSemaphore(final int permits) {
+      super(permits);
+    }
+
+    @Override
+    protected void reducePermits(final int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Component
+public class ImportThrottleFactory {
+
+  private final ValidationLatencyMonitor validationLatencyMonitor;
+  private final boolean enabled;
+  private final long thresholdNanos;
+  private final long intervalMillis;
+  private final long maxPauseMillis;
+
+  public ImportThrottleFactory(
+      final ValidationLatencyMonitor validationLatencyMonitor,
+      @Value("${cert-hash-import.throttle.enabled:false}") final boolean enabled,
+      @Value("${cert-hash-import.throttle.p99-threshold-millis:200}") final long thresholdMillis,
+      @Value("${cert-hash-import.throttle.interval-millis:2000}") final long intervalMillis,
+      @Value("${cert-hash-import.throttle.max-pause-millis:1000}") final long maxPauseMillis) {
+    this.validationLatencyMonitor = validationLatencyMonitor;
+    this.enabled = enabled;
+    this.thresholdNanos = thresholdMillis * 1_000_000;
+    this.intervalMillis = intervalMillis;
+    this.maxPauseMillis = maxPauseMillis;
+  }
+
+  /**
+   * @param maxConcurrency the number of consumers of the import
+   * @param decisionListener receives a description of every throttle decision
+   */
+  ImportThrottle create(final int maxConcurrency, final Consumer<String> decisionListener) {
+    return new ImportThrottle(
+        maxConcurrency,
+        thresholdNanos,
+        maxPauseMillis,
+        enabled ? validationLatencyMonitor::p99Nanos : OptionalLong::empty,
+        decisionListener);
+  }
+
+  /** Whether imports adjust their throttle, every {@link #intervalMillis()}. */
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  long intervalMillis() {
+    return intervalMillis;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+/** Encodes rows in the PostgreSQL binary COPY format. */
+final class PgBinaryCopyWriter {
+
+  private static final byte[] SIGNATURE = {
+    'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0
+  };
+  private static final LocalDateTime PG_EPOCH = LocalDateTime.of(2000, 1, 1, 0, 0);
+
+  private final DataOutputStream out;
+
+  PgBinaryCopyWriter(final OutputStream out) {
+    this.out = out instanceof DataOutputStream dataOut ? dataOut : new DataOutputStream(out);
+  }
+
+  void writeHeader() throws IOException {
+    out.write(SIGNATURE);
+    out.writeInt(0); // flags
+    out.writeInt(0); // header extension length
+  }
+
+  void startRow(final int fieldCount) throws IOException {
+    out.writeShort(fieldCount);
+  }
+
+  void writeBytes(final byte[] value) throws IOException {
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  void writeShort(final short value) throws IOException {
+    out.writeInt(Short.BYTES);
+    out.writeShort(value);
+  }
+
+  void writeLong(final long value) throws IOException {
+    out.writeInt(Long.BYTES);
+    out.writeLong(value);
+  }
+
+  void writeTimestamp(final LocalDateTime value) throws IOException {
+    writeLong(ChronoUnit.MICROS.between(PG_EPOCH, value));
+  }
+
+  void writeTrailer() throws IOException {
+    out.writeShort(-1);
+    out.flush();
+  }
+}
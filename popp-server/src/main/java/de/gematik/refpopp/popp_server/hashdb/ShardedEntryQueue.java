@@ -0,0 +1,200 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One bounded queue per import consumer. An entry is routed to the shard that owns its cvc hash or
+ * its aut hash, so all entries sharing one of their hashes are handled by the same consumer in file
+ * order and cannot race on the lookup and insert of that hash. A shard owns the hashes of an entry
+ * from its routing until the consumer releases the entry after its decisions have been written.
+ * Entries without owned hash are routed by a prefix of their cvc hash. If the two hashes of an
+ * entry are owned by different shards, routing waits until one of them has released its entries. An
+ * empty {@link Optional} marks the end of a shard.
+ *
+ * <p>If egk_entries is partitioned, whole partitions are assigned to the shards, so each consumer
+ * writes to its own set of partitions unless an entry has to follow an owned hash.
+ *
+ * <p>If a consumer fails, {@link #abort()} stops the producer and the other consumers instead of
+ * letting them wait for it.
+ */
+final class ShardedEntryQueue {
+
+  private static final int PREFIX_BYTES = 4;
+  private static final long WAIT_MILLIS = 100;
+
+  private final List<BlockingQueue<Optional<EgkTransferEntry>>> shards;
+  private final int partitions;
+  private final Map<ByteBuffer, Owner> cvcOwners = new HashMap<>();
+  private final Map<ByteBuffer, Owner> autOwners = new HashMap<>();
+  private volatile boolean aborted;
+
+  ShardedEntryQueue(final int shardCount, final int capacityPerShard, final int partitions) {
+    this.partitions = partitions;
+    shards = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new ArrayBlockingQueue<>(capacityPerShard));
+    }
+  }
+
+  int shardCount() {
+    return shards.size();
+  }
+
+  BlockingQueue<Optional<EgkTransferEntry>> shard(final int index) {
+    return shards.get(index);
+  }
+
+  /**
+   * Routes the entry to its shard, waiting while its hashes are owned by different shards or the
+   * shard is full.
+   *
+   * @return the index of the shard the entry was put into
+   * @throws CancellationException if the queue has been aborted
+   */
+  int put(final EgkTransferEntry entry) throws InterruptedException {
+    final int shard = own(entry);
+    while (!shards.get(shard).offer(Optional.of(entry), WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+      checkNotAborted();
+    }
+    return shard;
+  }
+
+  /**
+   * Takes the next entry of the shard.
+   *
+   * @return the entry, an empty {@link Optional} at the end of the shard or {@code null} if no
+   *     entry arrived within the timeout
+   * @throws CancellationException if the queue has been aborted
+   */
+  Optional<EgkTransferEntry> poll(final int shard, final long timeoutMillis)
+      throws InterruptedException {
+    checkNotAborted();
+    return shards.get(shard).poll(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Gives up the ownership of the hashes of entries whose decisions have been written. */
+  void release(final Collection<EgkTransferEntry> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    synchronized (cvcOwners) {
+      for (final var entry : entries) {
+        release(cvcOwners, entry.sharedCvcHash());
+        release(autOwners, entry.sharedAutHash());
+      }
+      cvcOwners.notifyAll();
+    }
+  }
+
+  /** Puts the end marker into every shard, unless the queue has been aborted. */
+  void close() {
+    for (final var shard : shards) {
+      try {
+        while (!aborted && !shard.offer(Optional.empty(), WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+          // wait for the consumer to make room
+        }
+      } catch (final InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /** Makes the producer and all consumers stop waiting and fail. */
+  void abort() {
+    aborted = true;
+    synchronized (cvcOwners) {
+      cvcOwners.notifyAll();
+    }
+  }
+
+  private int own(final EgkTransferEntry entry) throws InterruptedException {
+    final var cvcHash = ByteBuffer.wrap(entry.sharedCvcHash());
+    final var autHash = ByteBuffer.wrap(entry.sharedAutHash());
+    synchronized (cvcOwners) {
+      while (true) {
+        checkNotAborted();
+        final var cvcOwner = cvcOwners.get(cvcHash);
+        final var autOwner = autOwners.get(autHash);
+        if (cvcOwner == null || autOwner == null || cvcOwner.shard == autOwner.shard) {
+          final int shard =
+              cvcOwner != null
+                  ? cvcOwner.shard
+                  : autOwner != null ? autOwner.shard : defaultShard(entry.sharedCvcHash());
+          cvcOwners.computeIfAbsent(cvcHash, hash -> new Owner(shard)).entries++;
+          autOwners.computeIfAbsent(autHash, hash -> new Owner(shard)).entries++;
+          return shard;
+        }
+        cvcOwners.wait(WAIT_MILLIS);
+      }
+    }
+  }
+
+  private int defaultShard(final byte[] cvcHash) {
+    return partitions > 0
+        ? EgkEntryPartitions.partitionOf(cvcHash, partitions) % shards.size()
+        : shardOf(cvcHash, shards.size());
+  }
+
+  private static void release(final Map<ByteBuffer, Owner> owners, final byte[] hash) {
+    final var key = ByteBuffer.wrap(hash);
+    final var owner = owners.get(key);
+    if (owner != null && --owner.entries == 0) {
+      owners.remove(key);
+    }
+  }
+
+  private void checkNotAborted() {
+    if (aborted) {
+      throw new CancellationException("Import aborted");
+    }
+  }
+
+  static int shardOf(final byte[] hash, final int shardCount) {
+    int prefix = 0;
+    for (int i = 0; i < Math.min(PREFIX_BYTES, hash.length); i++) {
+      prefix = (prefix << 8) | (hash[i] & 0xff);
+    }
+    return Integer.remainderUnsigned(prefix, shardCount);
+  }
+
+  /** The shard owning a hash and the number of its unreleased entries with it. */
+  private static final class Owner {
+    private final int shard;
+    private int entries;
+
+    private Owner(final int shard) {
+      this.shard = shard;
+    }
+  }
+}
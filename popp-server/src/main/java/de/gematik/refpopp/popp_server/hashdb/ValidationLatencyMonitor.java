@@ -0,0 +1,83 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import java.util.Arrays;
+import java.util.OptionalLong;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rolling window of the latencies of {@link EgkHashValidationService#validateAndProcess}, i.e. of
+ * the hash DB work of a handshake. Imports watch its p99 to back off while handshakes slow down,
+ * see {@link ImportThrottle}.
+ */
+@Component
+public class ValidationLatencyMonitor {
+
+  private final long windowNanos;
+  private final int minSamples;
+  private final long[] latencies;
+  private final long[] recordedAt;
+  private int next;
+
+  public ValidationLatencyMonitor(
+      @Value("${validation-latency.window-seconds:30}") final long windowSeconds,
+      @Value("${validation-latency.max-samples:4096}") final int maxSamples,
+      @Value("${validation-latency.min-samples:20}") final int minSamples) {
+    this.windowNanos = windowSeconds * 1_000_000_000L;
+    this.minSamples = minSamples;
+    this.latencies = new long[maxSamples];
+    this.recordedAt = new long[maxSamples];
+    Arrays.fill(recordedAt, Long.MIN_VALUE);
+  }
+
+  public void record(final long latencyNanos) {
+    final long now = System.nanoTime();
+    synchronized (this) {
+      latencies[next] = latencyNanos;
+      recordedAt[next] = now;
+      next = (next + 1) % latencies.length;
+    }
+  }
+
+  /**
+   * @return the 99th percentile of the latencies recorded within the window, empty if there are
+   *     fewer than the minimum number of samples
+   */
+  public OptionalLong p99Nanos() {
+    final long oldest = System.nanoTime() - windowNanos;
+    final long[] samples = new long[latencies.length];
+    int count = 0;
+    synchronized (this) {
+      for (int i = 0; i < latencies.length; i++) {
+        if (recordedAt[i] != Long.MIN_VALUE && recordedAt[i] - oldest >= 0) {
+          samples[count++] = latencies[i];
+        }
+      }
+    }
+    if (count < minSamples || count == 0) {
+      return OptionalLong.empty();
+    }
+    Arrays.sort(samples, 0, count);
+    return OptionalLong.of(samples[(int) Math.ceil(count * 0.99) - 1]);
+  }
+}
@@ -29,6 +29,7 @@ import jakarta.persistence.Id;
 import jakarta.persistence.Table;
 import java.time.LocalDateTime;
 import lombok.Data;
+import org.hibernate.annotations.PartitionKey;
 
 @Data
 @Entity
@@ -39,13 +40,15 @@ public class EgkEntry {
   @GeneratedValue(strategy = GenerationType.IDENTITY)
   private Long id;
 
+  // partition key of the optionally partitioned table, Hibernate adds it to updates and deletes
+  @PartitionKey
   @Column(name = "cvc_hash", columnDefinition = "bytea", nullable = false)
   private byte[] cvcHash;
 
   @Column(name = "aut_hash", columnDefinition = "bytea", nullable = false)
   private byte[] autHash;
 
-  @Column(name = "state", length = 8, nullable = false)
+  @Column(name = "state", columnDefinition = "smallint", nullable = false)
   @Convert(converter = EgkEntryStateConverter.class)
   private EgkEntryState state;
 
@@ -24,13 +24,31 @@ import lombok.Getter;
 
 @Getter
 public enum EgkEntryState {
-  IMPORTED("imported"),
-  AD_HOC("ad hoc"),
-  BLOCKED("blocked");
+  IMPORTED("imported", (short) 1),
+  AD_HOC("ad hoc", (short) 2),
+  BLOCKED("blocked", (short) 3);
+
+  private static final EgkEntryState[] BY_CODE = {null, IMPORTED, AD_HOC, BLOCKED};
 
   private final String value;
 
-  EgkEntryState(final String value) {
+  /** Code stored in the smallint state column of egk_entries. */
+  private final short code;
+
+  EgkEntryState(final String value, final short code) {
     this.value = value;
+    this.code = code;
+  }
+
+  /**
+   * Returns the state stored as the given code.
+   *
+   * @throws IllegalArgumentException if the code is unknown
+   */
+  public static EgkEntryState fromCode(final short code) {
+    if (code <= 0 || code >= BY_CODE.length) {
+      throw new IllegalArgumentException("Unknown state: " + code);
+    }
+    return BY_CODE[code];
   }
 }
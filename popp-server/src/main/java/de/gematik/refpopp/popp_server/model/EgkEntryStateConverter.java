@@ -24,23 +24,15 @@ import jakarta.persistence.AttributeConverter;
 import jakarta.persistence.Converter;
 
 @Converter(autoApply = true)
-public class EgkEntryStateConverter implements AttributeConverter<EgkEntryState, String> {
+public class EgkEntryStateConverter implements AttributeConverter<EgkEntryState, Short> {
 
   @Override
-  public String convertToDatabaseColumn(final EgkEntryState attribute) {
-    return attribute != null ? attribute.getValue() : null;
+  public Short convertToDatabaseColumn(final EgkEntryState attribute) {
+    return attribute != null ? attribute.getCode() : null;
   }
 
   @Override
-  public EgkEntryState convertToEntityAttribute(final String dbData) {
-    if (dbData == null) {
-      return null;
-    }
-    for (final EgkEntryState state : EgkEntryState.values()) {
-      if (state.getValue().equals(dbData)) {
-        return state;
-      }
-    }
-    throw new IllegalArgumentException("Unknown state: " + dbData);
+  public EgkEntryState convertToEntityAttribute(final Short dbData) {
+    return dbData != null ? EgkEntryState.fromCode(dbData) : null;
   }
 }
@@ -22,6 +22,8 @@ package de.gematik.refpopp.popp_server.model;
 
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
@@ -59,6 +61,37 @@ public class ImportReportEntry {
   @Column(name = "total_processed_count", nullable = false)
   private long totalProcessedCount;
 
+  @Enumerated(EnumType.STRING)
+  @Column(name = "status", nullable = false)
+  private ImportJobStatus status;
+
+  @Column(name = "status_message")
+  private String statusMessage;
+
+  @Column(name = "bytes_processed", nullable = false)
+  private long bytesProcessed;
+
+  @Column(name = "total_bytes", nullable = false)
+  private long totalBytes;
+
+  @Column(name = "last_progress_update")
+  private LocalDateTime lastProgressUpdate;
+
+  @Column(name = "file_digest", length = 64)
+  private String fileDigest;
+
+  @Column(name = "checkpoint_ordinal", nullable = false)
+  private long checkpointOrdinal;
+
+  @Column(name = "resumed_from")
+  private String resumedFrom;
+
+  @Column(name = "throttle_count", nullable = false)
+  private long throttleCount;
+
+  @Column(name = "throttle_log", columnDefinition = "text")
+  private String throttleLog;
+
   public ImportReportEntry() {}
 
   public ImportReportEntry(String sessionId) {
@@ -68,6 +101,7 @@ public class ImportReportEntry {
     this.blockedCount = 0;
     this.skippedCount = 0;
     this.totalProcessedCount = 0;
+    this.status = ImportJobStatus.RUNNING;
   }
 
   public long getDurationInSeconds() {
@@ -77,11 +111,45 @@ public class ImportReportEntry {
     return 0;
   }
 
+  public double getEntriesPerSecond() {
+    final long elapsedMillis = getElapsedMillis();
+    return elapsedMillis > 0 ? totalProcessedCount * 1000.0 / elapsedMillis : 0;
+  }
+
+  /**
+   * Estimates the remaining time of a running import from the bytes read so far.
+   *
+   * @return the estimated remaining seconds, 0 once the import has ended or {@code null} while
+   *     there is no progress to extrapolate from
+   */
+  public Long getEstimatedRemainingSeconds() {
+    if (endTime != null) {
+      return 0L;
+    }
+    final long elapsedMillis = getElapsedMillis();
+    if (bytesProcessed <= 0 || totalBytes <= 0 || elapsedMillis <= 0) {
+      return null;
+    }
+    final long remainingBytes = Math.max(0, totalBytes - bytesProcessed);
+    return (long) ((double) remainingBytes * elapsedMillis / bytesProcessed / 1000);
+  }
+
+  private long getElapsedMillis() {
+    final LocalDateTime until = endTime != null ? endTime : lastProgressUpdate;
+    if (startTime == null || until == null) {
+      return 0;
+    }
+    return java.time.Duration.between(startTime, until).toMillis();
+  }
+
   public String getFormattedReport() {
     return "=== HashDB Import Report ===\n"
         + "Session ID: "
         + sessionId
         + "\n"
+        + "Status: "
+        + status
+        + "\n"
         + "Start Time: "
         + startTime
         + "\n"
@@ -103,6 +171,21 @@ public class ImportReportEntry {
         + "\n"
         + "Total Processed: "
         + totalProcessedCount
+        + "\n"
+        + "Entries/s: "
+        + String.format(java.util.Locale.ROOT, "%.1f", getEntriesPerSecond())
+        + "\n"
+        + "Bytes Processed: "
+        + bytesProcessed
+        + " of "
+        + totalBytes
+        + "\n"
+        + "Checkpoint: "
+        + checkpointOrdinal
+        + (resumedFrom != null ? " (resumed from " + resumedFrom + ")" : "")
+        + "\n"
+        + "Throttle Decisions: "
+        + throttleCount
         + "\n";
   }
 }
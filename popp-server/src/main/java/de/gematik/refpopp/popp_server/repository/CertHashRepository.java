@@ -21,9 +21,15 @@
 package de.gematik.refpopp.popp_server.repository;
 
 import de.gematik.refpopp.popp_server.model.EgkEntry;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 public interface CertHashRepository extends CrudRepository<EgkEntry, Long> {
 
@@ -32,4 +38,57 @@ public interface CertHashRepository extends CrudRepository<EgkEntry, Long> {
   List<EgkEntry> findByCvcHash(byte[] cvcHash);
 
   List<EgkEntry> findByAutHash(byte[] autHash);
+
+  List<EgkEntry> findByCvcHashOrAutHash(byte[] cvcHash, byte[] autHash);
+
+  /**
+   * Like {@link #findByCvcHashOrAutHash}, but in a read-write transaction, so the rows are always
+   * read from the primary and never from a lagging read replica.
+   */
+  @Transactional
+  @Query("SELECT e FROM EgkEntry e WHERE e.cvcHash = :cvcHash OR e.autHash = :autHash")
+  List<EgkEntry> findOnPrimaryByCvcHashOrAutHash(
+      @Param("cvcHash") byte[] cvcHash, @Param("autHash") byte[] autHash);
+
+  List<EgkEntry> findByCvcHashIn(Collection<byte[]> cvcHashes);
+
+  List<EgkEntry> findByAutHashIn(Collection<byte[]> autHashes);
+
+  /**
+   * Blocks every entry sharing the cvc hash or the aut hash with one statement. The native queries
+   * use the state codes of {@link de.gematik.refpopp.popp_server.model.EgkEntryState}, 3 is
+   * BLOCKED.
+   *
+   * @return the number of entries blocked
+   */
+  @Transactional
+  @Modifying
+  @Query(
+      value =
+          "UPDATE egk_entries SET state = 3" + " WHERE cvc_hash = :cvcHash OR aut_hash = :autHash",
+      nativeQuery = true)
+  int blockByCvcHashOrAutHash(@Param("cvcHash") byte[] cvcHash, @Param("autHash") byte[] autHash);
+
+  /**
+   * Inserts the pair, or blocks it if it has been stored concurrently and the new state is BLOCKED.
+   * A pair that is already stored is never unblocked or stored twice.
+   *
+   * @param state the code of the state, see {@link
+   *     de.gematik.refpopp.popp_server.model.EgkEntryState#getCode()}
+   * @return the number of rows inserted or updated
+   */
+  @Transactional
+  @Modifying
+  @Query(
+      value =
+          "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after)"
+              + " VALUES (:cvcHash, :autHash, :state, :notAfter)"
+              + " ON CONFLICT (cvc_hash, aut_hash)"
+              + " DO UPDATE SET state = EXCLUDED.state WHERE EXCLUDED.state = 3",
+      nativeQuery = true)
+  int upsert(
+      @Param("cvcHash") byte[] cvcHash,
+      @Param("autHash") byte[] autHash,
+      @Param("state") short state,
+      @Param("notAfter") LocalDateTime notAfter);
 }
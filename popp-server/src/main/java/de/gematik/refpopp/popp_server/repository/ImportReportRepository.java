@@ -30,6 +30,8 @@ import org.springframework.stereotype.Repository;
 public interface ImportReportRepository extends JpaRepository<ImportReportEntry, Long> {
   Optional<ImportReportEntry> findBySessionId(String sessionId);
 
+  boolean existsBySessionId(String sessionId);
+
   List<ImportReportEntry> findAllByOrderByStartTimeDesc();
 
   Optional<ImportReportEntry> findTopByOrderByStartTimeDesc();
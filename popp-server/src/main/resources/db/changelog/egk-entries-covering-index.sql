@@ -0,0 +1,20 @@
+--liquibase formatted sql
+
+-- Index changes on egk_entries, which can hold hundreds of millions of rows. The indexes are built
+-- and dropped CONCURRENTLY, so handshakes and imports keep reading and writing the table meanwhile.
+-- CONCURRENTLY cannot run inside a transaction, so every statement commits on its own. A failed
+-- build leaves an invalid index behind, which is dropped when the changeset runs again.
+
+--changeset poppserver:14 runInTransaction:false
+--comment: Covering index on the pair, replacing the unique constraint of changeset 12 and the cvc_hash index, which is a prefix of it
+DROP INDEX CONCURRENTLY IF EXISTS idx_egk_entries_cvc_aut_hash;
+CREATE UNIQUE INDEX CONCURRENTLY idx_egk_entries_cvc_aut_hash ON egk_entries (cvc_hash, aut_hash) INCLUDE (state);
+ALTER TABLE egk_entries DROP CONSTRAINT IF EXISTS uq_egk_entries_cvc_aut_hash;
+DROP INDEX CONCURRENTLY IF EXISTS idx_egk_entries_cvc_hash;
+
+--changeset poppserver:19 runInTransaction:false
+--comment: Index for the purge of expired entries, which pages through them by (not_after, id); a partitioned table gets it from egk-entries-partitioning.sql
+--preconditions onFail:MARK_RAN
+--precondition-sql-check expectedResult:0 SELECT COUNT(*) FROM pg_partitioned_table WHERE partrelid = 'egk_entries'::regclass
+DROP INDEX CONCURRENTLY IF EXISTS idx_egk_entries_not_after;
+CREATE INDEX CONCURRENTLY idx_egk_entries_not_after ON egk_entries (not_after, id);
@@ -0,0 +1,65 @@
+--liquibase formatted sql
+
+-- Optional changelog for large deployments, applied after db.changelog.yaml when
+-- spring.liquibase.change-log (EGK_ENTRIES_CHANGELOG) points to db.changelog-partitioned.yaml.
+-- The changesets keep their identity when included, so existing databases can switch.
+-- It range partitions egk_entries on the first byte of cvc_hash into ${egkEntriesPartitions}
+-- partitions (egk-entries.partitions). Partition i holds the rows whose first cvc hash byte b satisfies
+-- b * partitions / 256 = i (integer division), see EgkEntryPartitions. As the hashes are SHA-256
+-- digests the partitions are evenly filled, and unlike PARTITION BY HASH the server can compute
+-- the partition of an entry itself and load each partition directly.
+-- The partitions are plain tables and can be vacuumed, analyzed and reindexed one by one, e.g.
+-- VACUUM (ANALYZE) egk_entries_p07 or REINDEX TABLE CONCURRENTLY egk_entries_p07.
+
+--changeset poppserver:partitioning-1 splitStatements:false
+--comment: Range partition egk_entries on the first byte of cvc_hash
+ALTER TABLE egk_entries RENAME TO egk_entries_unpartitioned;
+
+CREATE TABLE egk_entries (
+    id INTEGER NOT NULL DEFAULT nextval('egk_entries_id_seq'),
+    cvc_hash bytea NOT NULL,
+    aut_hash bytea NOT NULL,
+    state SMALLINT NOT NULL,
+    not_after TIMESTAMP NOT NULL,
+    CONSTRAINT egk_entries_state_check CHECK (state IN (1, 2, 3)),
+    CONSTRAINT egk_entries_hash_length_check
+        CHECK (octet_length(cvc_hash) = 32 AND octet_length(aut_hash) = 32)
+) PARTITION BY RANGE (cvc_hash);
+
+DO $$
+DECLARE
+    partitions CONSTANT INTEGER := ${egkEntriesPartitions};
+    lower_bound TEXT;
+    upper_bound TEXT;
+BEGIN
+    IF partitions NOT BETWEEN 2 AND 256 THEN
+        RAISE EXCEPTION 'egk-entries.partitions must be between 2 and 256, was %', partitions;
+    END IF;
+    FOR i IN 0 .. partitions - 1 LOOP
+        -- lowest first byte b with b * partitions / 256 = i
+        lower_bound := CASE WHEN i = 0 THEN 'MINVALUE'
+            ELSE quote_literal('\x' || lpad(to_hex((i * 256 + partitions - 1) / partitions), 2, '0'))
+        END;
+        upper_bound := CASE WHEN i = partitions - 1 THEN 'MAXVALUE'
+            ELSE quote_literal('\x' || lpad(to_hex(((i + 1) * 256 + partitions - 1) / partitions), 2, '0'))
+        END;
+        EXECUTE format('CREATE TABLE egk_entries_p%s PARTITION OF egk_entries FOR VALUES FROM (%s) TO (%s)',
+                       lpad(i::TEXT, length((partitions - 1)::TEXT), '0'), lower_bound, upper_bound);
+    END LOOP;
+END
+$$;
+
+INSERT INTO egk_entries (id, cvc_hash, aut_hash, state, not_after)
+SELECT id, cvc_hash, aut_hash, state, not_after FROM egk_entries_unpartitioned;
+
+ALTER SEQUENCE egk_entries_id_seq OWNED BY egk_entries.id;
+DROP TABLE egk_entries_unpartitioned;
+
+-- a primary key of a partitioned table has to contain the partition key
+ALTER TABLE egk_entries ADD CONSTRAINT egk_entries_pkey PRIMARY KEY (id, cvc_hash);
+CREATE UNIQUE INDEX idx_egk_entries_cvc_aut_hash ON egk_entries (cvc_hash, aut_hash) INCLUDE (state);
+CREATE INDEX idx_egk_entries_aut_hash ON egk_entries (aut_hash);
+
+--changeset poppserver:partitioning-2
+--comment: Index for the purge of expired entries, see changeset 19
+CREATE INDEX IF NOT EXISTS idx_egk_entries_not_after ON egk_entries (not_after, id);
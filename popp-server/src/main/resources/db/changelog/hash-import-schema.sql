@@ -0,0 +1,87 @@
+--liquibase formatted sql
+
+-- Schema changes after db.changelog-master.sql. That file has no formatted sql header, so
+-- Liquibase applies it as one single change whose checksum must not change. New changes go into
+-- this file or further files included by db.changelog.yaml.
+
+--changeset poppserver:8
+--comment: Unlogged staging table used by the staging import mode
+CREATE UNLOGGED TABLE egk_import_staging (
+                                             report_id BIGINT NOT NULL,
+                                             cvc_hash bytea NOT NULL,
+                                             aut_hash bytea NOT NULL,
+                                             not_after TIMESTAMP NOT NULL,
+                                             new_state VARCHAR(8)
+);
+
+--changeset poppserver:9
+--comment: Index for fast lookup on report_id
+CREATE INDEX idx_egk_import_staging_report_id ON egk_import_staging (report_id);
+
+--changeset poppserver:10
+--comment: Track the state of asynchronous import jobs
+ALTER TABLE import_report_entries ADD COLUMN status VARCHAR(16) NOT NULL DEFAULT 'DONE';
+ALTER TABLE import_report_entries ADD COLUMN status_message VARCHAR(1024);
+
+--changeset poppserver:11
+--comment: Live progress of running imports
+ALTER TABLE import_report_entries ADD COLUMN bytes_processed BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE import_report_entries ADD COLUMN total_bytes BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE import_report_entries ADD COLUMN last_progress_update TIMESTAMP;
+
+--changeset poppserver:12
+--comment: Make (cvc_hash, aut_hash) unique so new entries can be upserted atomically
+UPDATE egk_entries a SET state = 'blocked'
+ WHERE EXISTS (SELECT 1 FROM egk_entries b
+                WHERE b.cvc_hash = a.cvc_hash AND b.aut_hash = a.aut_hash
+                  AND b.id <> a.id AND b.state = 'blocked');
+DELETE FROM egk_entries a
+ USING egk_entries b
+ WHERE a.cvc_hash = b.cvc_hash AND a.aut_hash = b.aut_hash AND a.id > b.id;
+ALTER TABLE egk_entries ADD CONSTRAINT uq_egk_entries_cvc_aut_hash UNIQUE (cvc_hash, aut_hash);
+
+--changeset poppserver:13
+--comment: Store the state as smallint code (see EgkEntryState) and check that the hashes are SHA-256 digests
+-- the demo rows of changeset 4 get the digests of their short hashes
+ALTER TABLE egk_entries DROP CONSTRAINT egk_entries_state_check;
+ALTER TABLE egk_entries ALTER COLUMN state TYPE SMALLINT
+    USING CASE state WHEN 'imported' THEN 1 WHEN 'ad hoc' THEN 2 WHEN 'blocked' THEN 3 END;
+ALTER TABLE egk_entries ADD CONSTRAINT egk_entries_state_check CHECK (state IN (1, 2, 3));
+UPDATE egk_entries SET cvc_hash = sha256(cvc_hash), aut_hash = sha256(aut_hash)
+ WHERE octet_length(cvc_hash) <> 32 OR octet_length(aut_hash) <> 32;
+ALTER TABLE egk_entries ADD CONSTRAINT egk_entries_hash_length_check
+    CHECK (octet_length(cvc_hash) = 32 AND octet_length(aut_hash) = 32);
+ALTER TABLE egk_import_staging ALTER COLUMN new_state TYPE SMALLINT
+    USING CASE new_state WHEN 'imported' THEN 1 WHEN 'ad hoc' THEN 2 WHEN 'blocked' THEN 3 END;
+
+--changeset poppserver:15
+--comment: Reports of the purge of expired entries (see EgkEntryPurgeService)
+CREATE TABLE purge_report_entries (
+                                      id SERIAL PRIMARY KEY,
+                                      start_time TIMESTAMP NOT NULL,
+                                      end_time TIMESTAMP,
+                                      cutoff TIMESTAMP NOT NULL,
+                                      purged_count BIGINT NOT NULL DEFAULT 0,
+                                      status VARCHAR(16) NOT NULL,
+                                      status_message VARCHAR(1024)
+);
+CREATE INDEX idx_purge_report_entries_start_time ON purge_report_entries (start_time);
+
+--changeset poppserver:16
+--comment: Decisions of the adaptive import throttle (see ImportThrottle)
+ALTER TABLE import_report_entries ADD COLUMN throttle_count BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE import_report_entries ADD COLUMN throttle_log TEXT;
+
+--changeset poppserver:17
+--comment: Resume failed imports from their last committed entry
+ALTER TABLE import_report_entries ADD COLUMN file_digest VARCHAR(64);
+ALTER TABLE import_report_entries ADD COLUMN checkpoint_ordinal BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE import_report_entries ADD COLUMN resumed_from VARCHAR(255);
+
+--changeset poppserver:18
+--comment: One report per session id, older reports of a reused session id keep their id as suffix; the unique index replaces the session_id index
+UPDATE import_report_entries SET session_id = session_id || '#' || id
+WHERE EXISTS (SELECT 1 FROM import_report_entries newer
+              WHERE newer.session_id = import_report_entries.session_id AND newer.id > import_report_entries.id);
+ALTER TABLE import_report_entries ADD CONSTRAINT uq_import_report_entries_session_id UNIQUE (session_id);
+DROP INDEX idx_import_report_entries_session_id;
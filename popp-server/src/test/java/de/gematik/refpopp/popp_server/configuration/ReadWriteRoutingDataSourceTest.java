@@ -0,0 +1,153 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.configuration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionTemplate;
+
+class ReadWriteRoutingDataSourceTest {
+
+  private JdbcTemplate replica;
+  private ReadWriteRoutingDataSource routingDataSource;
+  private JdbcTemplate jdbcTemplate;
+  private TransactionTemplate readWrite;
+  private TransactionTemplate readOnly;
+
+  @BeforeEach
+  void setUp() {
+    final var primary = h2("routing-primary");
+    new JdbcTemplate(primary).execute("CREATE TABLE node AS SELECT 'primary' AS name");
+    final var importPool = h2("routing-import");
+    new JdbcTemplate(importPool).execute("CREATE TABLE node AS SELECT 'import' AS name");
+    final var replicaDataSource = h2("routing-replica");
+    replica = new JdbcTemplate(replicaDataSource);
+    replica.execute("CREATE TABLE node AS SELECT 'replica' AS name");
+    replica.execute("CREATE TABLE lag AS SELECT CAST(0 AS DOUBLE PRECISION) AS seconds");
+    routingDataSource =
+        new ReadWriteRoutingDataSource(
+            primary,
+            importPool,
+            Map.of("replica", replicaDataSource),
+            5,
+            "SELECT seconds FROM lag");
+    routingDataSource.afterPropertiesSet();
+    routingDataSource.checkReplicas();
+    final var dataSource = new LazyConnectionDataSourceProxy(routingDataSource);
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    readWrite = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    readOnly = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    readOnly.setReadOnly(true);
+  }
+
+  @AfterEach
+  void tearDown() {
+    routingDataSource.close();
+    new JdbcTemplate(h2("routing-primary")).execute("DROP ALL OBJECTS");
+    new JdbcTemplate(h2("routing-import")).execute("DROP ALL OBJECTS");
+    replica.execute("DROP ALL OBJECTS");
+  }
+
+  @Test
+  void readOnlyTransactionsUseReplicaAndOthersUsePrimary() {
+    assertThat(inTransaction(readOnly)).isEqualTo("replica");
+    assertThat(inTransaction(readWrite)).isEqualTo("primary");
+    assertThat(currentNode()).isEqualTo("primary");
+  }
+
+  @Test
+  void transactionsReadingFromReplicaAreMarked() {
+    final Boolean[] marked = new Boolean[3];
+    readOnly.executeWithoutResult(
+        status -> {
+          marked[0] = ReadWriteRoutingDataSource.isReadFromReplica();
+          currentNode();
+          marked[1] = ReadWriteRoutingDataSource.isReadFromReplica();
+        });
+    readWrite.executeWithoutResult(
+        status -> {
+          currentNode();
+          marked[2] = ReadWriteRoutingDataSource.isReadFromReplica();
+        });
+    assertThat(marked).containsExactly(false, true, false);
+    assertThat(ReadWriteRoutingDataSource.isReadFromReplica()).isFalse();
+  }
+
+  @Test
+  void importWorkloadUsesImportPoolForReadsAndWrites() {
+    final String[] nodes = new String[3];
+    ImportWorkload.run(
+        () -> {
+          nodes[0] = inTransaction(readOnly);
+          nodes[1] = inTransaction(readWrite);
+          nodes[2] = currentNode();
+        });
+    assertThat(nodes).containsOnly("import");
+    assertThat(currentNode()).isEqualTo("primary");
+  }
+
+  @Test
+  void readOnlyTransactionsUsePrimaryWhileReplicaLagsBehind() {
+    // given
+    replica.update("UPDATE lag SET seconds = 30");
+
+    // when
+    routingDataSource.checkReplicas();
+
+    // then
+    assertThat(routingDataSource.getFreshReplicas()).isEmpty();
+    assertThat(inTransaction(readOnly)).isEqualTo("primary");
+  }
+
+  @Test
+  void readOnlyTransactionsUsePrimaryWhileReplicaIsUnavailable() {
+    // given
+    replica.execute("DROP TABLE lag");
+
+    // when
+    routingDataSource.checkReplicas();
+
+    // then
+    assertThat(inTransaction(readOnly)).isEqualTo("primary");
+  }
+
+  private String inTransaction(final TransactionTemplate transactionTemplate) {
+    return transactionTemplate.execute(status -> currentNode());
+  }
+
+  private String currentNode() {
+    return jdbcTemplate.queryForObject("SELECT name FROM node", String.class);
+  }
+
+  private static JdbcDataSource h2(final String name) {
+    final var dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    return dataSource;
+  }
+}
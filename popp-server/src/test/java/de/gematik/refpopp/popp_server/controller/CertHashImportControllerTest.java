@@ -21,20 +21,32 @@
 package de.gematik.refpopp.popp_server.controller;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
 import de.gematik.refpopp.popp_server.file.temp.EgkImportTempFileService;
-import de.gematik.refpopp.popp_server.hashdb.EgkHashImportService;
+import de.gematik.refpopp.popp_server.hashdb.EgkHashImportJobService;
+import de.gematik.refpopp.popp_server.hashdb.EgkHashImportJobService.StreamJob;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -48,7 +60,7 @@ import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 class CertHashImportControllerTest {
 
-  @Mock private EgkHashImportService egkHashImportService;
+  @Mock private EgkHashImportJobService egkHashImportJobService;
 
   @Mock private EgkImportTempFileService egkImportTempFileService;
 
@@ -63,7 +75,7 @@ class CertHashImportControllerTest {
     mockitoAnnotations = MockitoAnnotations.openMocks(this);
     final CertHashImportController sut =
         new CertHashImportController(
-            egkHashImportService, egkImportTempFileService, importLocation);
+            egkHashImportJobService, egkImportTempFileService, importLocation, 3600);
     mockMvc = MockMvcBuilders.standaloneSetup(sut).build();
   }
 
@@ -87,7 +99,7 @@ class CertHashImportControllerTest {
   }
 
   @Test
-  void createFileWithValidFileReturnsOkAndInvokesServices(@TempDir final Path tempDir)
+  void createFileWithValidFileReturnsAcceptedAndSubmitsJob(@TempDir final Path tempDir)
       throws Exception {
     // given
     final byte[] content = "dummy content".getBytes();
@@ -97,17 +109,118 @@ class CertHashImportControllerTest {
     final var sessionId = "session-123";
     final var fakeTempFile = Files.createTempFile(tempDir, "egk-", ".dat");
     when(egkImportTempFileService.createFile(importLocation)).thenReturn(fakeTempFile);
+    when(egkHashImportJobService.submit(fakeTempFile, sessionId)).thenReturn(sessionId);
 
     // when
     mockMvc
         .perform(multipart("/cert-hash/import").file(multipartFile).param("sessionId", sessionId))
         // then
-        .andExpect(status().isOk())
-        .andExpect(content().string("Request to import cert hash file was successful"));
+        .andExpect(status().isAccepted())
+        .andExpect(header().string("Location", "/import-reports/" + sessionId))
+        .andExpect(content().string(sessionId));
 
     verify(egkImportTempFileService).createFile(importLocation);
     assertThat(Files.readAllBytes(fakeTempFile)).containsExactly(content);
-    verify(egkHashImportService).importData(fakeTempFile, sessionId);
+    verify(egkHashImportJobService).submit(fakeTempFile, sessionId);
+    verify(egkImportTempFileService, never()).deleteFile(fakeTempFile);
+  }
+
+  @Test
+  void createFileWithExistingSessionIdReturnsConflictAndDeletesFile(@TempDir final Path tempDir)
+      throws Exception {
+    // given
+    final var multipartFile =
+        new MockMultipartFile(
+            "file", "dummy.dat", MediaType.APPLICATION_OCTET_STREAM_VALUE, "x".getBytes());
+    final var sessionId = "session-dup";
+    final var fakeTempFile = Files.createTempFile(tempDir, "egk-", ".dat");
+    when(egkImportTempFileService.createFile(importLocation)).thenReturn(fakeTempFile);
+    when(egkHashImportJobService.submit(fakeTempFile, sessionId))
+        .thenThrow(
+            new ImportDataException(
+                sessionId,
+                "Import job already exists",
+                EgkHashImportJobService.JOB_EXISTS_ERROR_CODE));
+
+    // when
+    mockMvc
+        .perform(multipart("/cert-hash/import").file(multipartFile).param("sessionId", sessionId))
+        // then
+        .andExpect(status().isConflict())
+        .andExpect(content().string("Import job already exists"));
+
+    verify(egkImportTempFileService).deleteFile(fakeTempFile);
+  }
+
+  @Test
+  void createFileWithResumeFromResumesImport(@TempDir final Path tempDir) throws Exception {
+    // given
+    final var multipartFile =
+        new MockMultipartFile(
+            "file", "dummy.dat", MediaType.APPLICATION_OCTET_STREAM_VALUE, "x".getBytes());
+    final var fakeTempFile = Files.createTempFile(tempDir, "egk-", ".dat");
+    when(egkImportTempFileService.createFile(importLocation)).thenReturn(fakeTempFile);
+    when(egkHashImportJobService.resume(fakeTempFile, "failed", "session-2"))
+        .thenReturn("session-2");
+
+    // when
+    mockMvc
+        .perform(
+            multipart("/cert-hash/import")
+                .file(multipartFile)
+                .param("sessionId", "session-2")
+                .param("resumeFrom", "failed"))
+        // then
+        .andExpect(status().isAccepted())
+        .andExpect(content().string("session-2"));
+
+    verify(egkHashImportJobService, never()).submit(any(), anyString());
+  }
+
+  @Test
+  void createFileWhenResumeIsNotPossibleReturnsConflictAndDeletesFile(@TempDir final Path tempDir)
+      throws Exception {
+    // given
+    final var multipartFile =
+        new MockMultipartFile(
+            "file", "dummy.dat", MediaType.APPLICATION_OCTET_STREAM_VALUE, "x".getBytes());
+    final var fakeTempFile = Files.createTempFile(tempDir, "egk-", ".dat");
+    when(egkImportTempFileService.createFile(importLocation)).thenReturn(fakeTempFile);
+    when(egkHashImportJobService.resume(fakeTempFile, "done", null))
+        .thenThrow(
+            new ImportDataException(
+                "done",
+                "Only failed imports can be resumed",
+                EgkHashImportJobService.RESUME_NOT_POSSIBLE_ERROR_CODE));
+
+    // when
+    mockMvc
+        .perform(multipart("/cert-hash/import").file(multipartFile).param("resumeFrom", "done"))
+        // then
+        .andExpect(status().isConflict())
+        .andExpect(content().string("Only failed imports can be resumed"));
+
+    verify(egkImportTempFileService).deleteFile(fakeTempFile);
+  }
+
+  @Test
+  void createFileWhenJobQueueIsFullReturnsServiceUnavailableAndDeletesFile(
+      @TempDir final Path tempDir) throws Exception {
+    // given
+    final var multipartFile =
+        new MockMultipartFile(
+            "file", "dummy.dat", MediaType.APPLICATION_OCTET_STREAM_VALUE, "x".getBytes());
+    final var fakeTempFile = Files.createTempFile(tempDir, "egk-", ".dat");
+    when(egkImportTempFileService.createFile(importLocation)).thenReturn(fakeTempFile);
+    when(egkHashImportJobService.submit(fakeTempFile, null))
+        .thenThrow(new RejectedExecutionException("full"));
+
+    // when
+    mockMvc
+        .perform(multipart("/cert-hash/import").file(multipartFile))
+        // then
+        .andExpect(status().isServiceUnavailable());
+
     verify(egkImportTempFileService).deleteFile(fakeTempFile);
   }
 
@@ -133,7 +246,7 @@ class CertHashImportControllerTest {
                     org.hamcrest.Matchers.containsString(
                         "Could not save uploaded file: cannot create temp file")));
 
-    verify(egkHashImportService, never()).importData(any(), anyString());
+    verify(egkHashImportJobService, never()).submit(any(), anyString());
     verify(egkImportTempFileService).deleteFile(null);
   }
 
@@ -159,7 +272,146 @@ class CertHashImportControllerTest {
         .andExpect(
             content().string(org.hamcrest.Matchers.containsString("Could not save uploaded file")));
 
-    verify(egkHashImportService, never()).importData(any(), anyString());
+    verify(egkHashImportJobService, never()).submit(any(), anyString());
     verify(egkImportTempFileService).deleteFile(fakeTempFile);
   }
+
+  @Test
+  void importStreamHandsRequestBodyToJobWithoutTempFile() throws Exception {
+    // given
+    final byte[] content = "signed data".getBytes();
+    final var sessionId = "session-stream";
+    when(egkHashImportJobService.importStream(any(), eq((long) content.length), eq(sessionId)))
+        .thenAnswer(
+            invocation -> {
+              assertThat(invocation.getArgument(0, InputStream.class).readAllBytes())
+                  .isEqualTo(content);
+              return new StreamJob(sessionId, CompletableFuture.completedFuture(null));
+            });
+
+    // when
+    final var asyncResult =
+        mockMvc
+            .perform(
+                post("/cert-hash/import")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content(content)
+                    .param("sessionId", sessionId))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    mockMvc
+        .perform(asyncDispatch(asyncResult))
+        // then
+        .andExpect(status().isOk())
+        .andExpect(header().string("Location", "/import-reports/" + sessionId))
+        .andExpect(content().string(sessionId));
+
+    verify(egkImportTempFileService, never()).createFile(anyString());
+    verify(egkHashImportJobService, never()).submit(any(), any());
+  }
+
+  @Test
+  void importStreamAnswersWhenImportHasFinished() throws Exception {
+    // given
+    final var finished = new CompletableFuture<Void>();
+    when(egkHashImportJobService.importStream(any(), anyLong(), eq("s")))
+        .thenReturn(new StreamJob("s", finished));
+    final var asyncResult =
+        mockMvc
+            .perform(
+                post("/cert-hash/import")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("x".getBytes())
+                    .param("sessionId", "s"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    assertThatThrownBy(() -> asyncResult.getAsyncResult(0))
+        .isInstanceOf(IllegalStateException.class);
+
+    // when
+    finished.completeExceptionally(new ImportDataException("s", "Signature invalid", "errorCode"));
+
+    // then
+    mockMvc
+        .perform(asyncDispatch(asyncResult))
+        .andExpect(status().isInternalServerError())
+        .andExpect(content().string("Signature invalid"));
+  }
+
+  @Test
+  void importStreamWithResumeFromSpoolsRequestBodyAndResumesJob(@TempDir final Path tempDir)
+      throws Exception {
+    // given
+    final byte[] content = "signed data".getBytes();
+    final Path tempFile = tempDir.resolve("egk-stream.dat");
+    when(egkImportTempFileService.createFile(importLocation)).thenReturn(tempFile);
+    when(egkHashImportJobService.resume(tempFile, "failed", "session-2"))
+        .thenAnswer(
+            invocation -> {
+              assertThat(Files.readAllBytes(tempFile)).isEqualTo(content);
+              return "session-2";
+            });
+
+    // when
+    final var asyncResult =
+        mockMvc
+            .perform(
+                post("/cert-hash/import")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content(content)
+                    .param("sessionId", "session-2")
+                    .param("resumeFrom", "failed"))
+            .andReturn();
+    mockMvc
+        .perform(asyncDispatch(asyncResult))
+        // then
+        .andExpect(status().isAccepted())
+        .andExpect(header().string("Location", "/import-reports/session-2"))
+        .andExpect(content().string("session-2"));
+
+    verify(egkHashImportJobService, never()).importStream(any(), anyLong(), any());
+  }
+
+  @Test
+  void importStreamWithEmptyBodyReturnsBadRequest() throws Exception {
+    // when
+    final var asyncResult =
+        mockMvc
+            .perform(
+                post("/cert-hash/import")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content(new byte[0]))
+            .andReturn();
+    mockMvc
+        .perform(asyncDispatch(asyncResult))
+        // then
+        .andExpect(status().isBadRequest())
+        .andExpect(content().string("No content uploaded"));
+
+    verify(egkHashImportJobService, never()).importStream(any(), anyLong(), any());
+  }
+
+  @Test
+  void importStreamWithExistingSessionIdReturnsConflict() throws Exception {
+    // given
+    when(egkHashImportJobService.importStream(any(), anyLong(), eq("s")))
+        .thenThrow(
+            new ImportDataException(
+                "s", "Import job already exists", EgkHashImportJobService.JOB_EXISTS_ERROR_CODE));
+
+    // when
+    final var asyncResult =
+        mockMvc
+            .perform(
+                post("/cert-hash/import")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("x".getBytes())
+                    .param("sessionId", "s"))
+            .andReturn();
+    mockMvc
+        .perform(asyncDispatch(asyncResult))
+        // then
+        .andExpect(status().isConflict())
+        .andExpect(content().string("Import job already exists"));
+  }
 }
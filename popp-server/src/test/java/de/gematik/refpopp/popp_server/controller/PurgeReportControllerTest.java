@@ -0,0 +1,72 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.controller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import de.gematik.refpopp.popp_server.model.PurgeReportEntry;
+import de.gematik.refpopp.popp_server.repository.PurgeReportRepository;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+@ExtendWith(MockitoExtension.class)
+class PurgeReportControllerTest {
+
+  @Mock private PurgeReportRepository purgeReportRepository;
+
+  @InjectMocks private PurgeReportController purgeReportController;
+
+  @Test
+  void getAllReports_shouldReturnAllReportsOrderedByStartTimeDesc() {
+    // given
+    final var reports = List.of(new PurgeReportEntry(LocalDateTime.now()));
+    when(purgeReportRepository.findAllByOrderByStartTimeDesc()).thenReturn(reports);
+
+    // when
+    ResponseEntity<List<PurgeReportEntry>> response = purgeReportController.getAllReports();
+
+    // then
+    assertEquals(HttpStatus.OK, response.getStatusCode());
+    assertEquals(reports, response.getBody());
+  }
+
+  @Test
+  void getLatestReport_shouldReturnNotFoundWhenNoReports() {
+    // given
+    when(purgeReportRepository.findTopByOrderByStartTimeDesc()).thenReturn(Optional.empty());
+
+    // when
+    ResponseEntity<PurgeReportEntry> response = purgeReportController.getLatestReport();
+
+    // then
+    assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    assertNull(response.getBody());
+  }
+}
@@ -21,6 +21,7 @@
 package de.gematik.refpopp.popp_server.file.temp;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -118,4 +119,10 @@ class EgkImportTempFileServiceTest {
     // then
     assertThat(file).doesNotExist();
   }
+
+  @Test
+  void deleteFileNullPathThrowsNoException() {
+    // when / then
+    assertThatCode(() -> sut.deleteFile(null)).doesNotThrowAnyException();
+  }
 }
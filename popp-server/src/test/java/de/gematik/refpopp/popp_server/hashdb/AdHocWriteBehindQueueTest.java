@@ -0,0 +1,228 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+class AdHocWriteBehindQueueTest {
+
+  private static final LocalDateTime NOT_AFTER = LocalDateTime.of(2030, 1, 2, 3, 4, 5, 600);
+
+  @TempDir private Path journalDir;
+  private EgkEntryBulkWriter bulkWriterMock;
+  private AdHocWriteBehindQueue sut;
+
+  @BeforeEach
+  void setUp() {
+    bulkWriterMock = mock(EgkEntryBulkWriter.class);
+    sut = createQueue();
+    sut.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    sut.stop();
+  }
+
+  private AdHocWriteBehindQueue createQueue() {
+    // long flush and commit intervals, the tests flush and commit explicitly
+    return new AdHocWriteBehindQueue(bulkWriterMock, true, journalDir, 500, 60_000, 60_000, 2);
+  }
+
+  private static EgkEntry adHocEntry(final int cvc, final int aut) {
+    return new EgkEntry(
+        new byte[] {(byte) cvc}, new byte[] {(byte) aut}, EgkEntryState.AD_HOC, NOT_AFTER);
+  }
+
+  @Test
+  void offeredEntriesAreVisibleUntilFlushed() {
+    // given
+    final var entry = adHocEntry(1, 2);
+
+    // when
+    final boolean queued = sut.offer(entry);
+
+    // then
+    assertThat(queued).isTrue();
+    assertThat(sut.findPending(new byte[] {1}, new byte[] {7})).containsExactly(entry);
+    assertThat(sut.findPending(new byte[] {7}, new byte[] {2})).containsExactly(entry);
+    assertThat(sut.findPending(new byte[] {7}, new byte[] {7})).isEmpty();
+    verifyNoInteractions(bulkWriterMock);
+  }
+
+  @Test
+  void flushUpsertsPendingEntriesAndDeletesJournal() throws IOException {
+    // given
+    sut.offer(adHocEntry(1, 2));
+    sut.offer(adHocEntry(3, 4));
+    final ArgumentCaptor<List<EgkEntry>> captor = ArgumentCaptor.forClass(List.class);
+
+    // when
+    final int written = sut.flush();
+
+    // then
+    assertThat(written).isEqualTo(2);
+    verify(bulkWriterMock).upsert(captor.capture());
+    assertThat(captor.getValue()).containsExactly(adHocEntry(1, 2), adHocEntry(3, 4));
+    assertThat(sut.pendingCount()).isZero();
+    assertThat(sut.findPending(new byte[] {1}, new byte[] {2})).isEmpty();
+    try (final var files = Files.list(journalDir)) {
+      assertThat(files).isEmpty();
+    }
+  }
+
+  @Test
+  void offerRejectsEntriesBeyondCapacityAndNonAdHocEntries() {
+    // given
+    sut.offer(adHocEntry(1, 2));
+    sut.offer(adHocEntry(3, 4));
+    final var blocked = new EgkEntry(new byte[] {5}, new byte[] {6}, EgkEntryState.BLOCKED, null);
+
+    // when / then
+    assertThat(sut.offer(adHocEntry(1, 2))).isTrue();
+    assertThat(sut.offer(adHocEntry(5, 6))).isFalse();
+    assertThat(sut.offer(blocked)).isFalse();
+    assertThat(sut.pendingCount()).isEqualTo(2);
+  }
+
+  @Test
+  void failedFlushKeepsEntriesQueued() {
+    // given
+    sut.offer(adHocEntry(1, 2));
+    doThrow(new IllegalStateException("db down")).when(bulkWriterMock).upsert(anyList());
+
+    // when / then
+    assertThatThrownBy(() -> sut.flush()).isInstanceOf(IllegalStateException.class);
+    assertThat(sut.pendingCount()).isEqualTo(1);
+    assertThat(sut.findPending(new byte[] {1}, new byte[] {2})).hasSize(1);
+  }
+
+  @Test
+  void startReplaysJournalOfPreviousRun() throws IOException {
+    // given
+    sut.offer(adHocEntry(1, 2));
+    sut.offer(adHocEntry(3, 4));
+    final var segment = Files.list(journalDir).findFirst().orElseThrow();
+    // a record cut off by a crash
+    Files.write(segment, new byte[] {0, 1, 9}, StandardOpenOption.APPEND);
+    final var restarted = createQueue();
+
+    // when
+    restarted.start();
+
+    // then
+    assertThat(restarted.pendingCount()).isEqualTo(2);
+    assertThat(restarted.findPending(new byte[] {1}, new byte[] {2}))
+        .containsExactly(adHocEntry(1, 2));
+    restarted.flush();
+    verify(bulkWriterMock).upsert(List.of(adHocEntry(1, 2), adHocEntry(3, 4)));
+    restarted.stop();
+  }
+
+  @Test
+  void disabledQueueAcceptsNothing() {
+    // given
+    final var disabled =
+        new AdHocWriteBehindQueue(bulkWriterMock, false, journalDir, 500, 200, 100, 2);
+    disabled.start();
+
+    // when / then
+    assertThat(disabled.offer(adHocEntry(1, 2))).isFalse();
+    assertThat(disabled.findPending(new byte[] {1}, new byte[] {2})).isEmpty();
+    assertThat(disabled.flush()).isZero();
+  }
+
+  @Test
+  void commitForcesAppendsOfCurrentSegment() throws IOException {
+    // given
+    sut.offer(adHocEntry(1, 2));
+    assertThat(sut.isCommitted()).isFalse();
+
+    // when
+    sut.commit();
+
+    // then
+    assertThat(sut.isCommitted()).isTrue();
+    try (final var segments = Files.list(journalDir)) {
+      assertThat(segments.toList())
+          .singleElement()
+          .satisfies(
+              path ->
+                  assertThat(AdHocWriteBehindQueue.readSegment(path))
+                      .containsExactly(adHocEntry(1, 2)));
+    }
+  }
+
+  @Test
+  void startCommitsAppendsInTheBackground() throws InterruptedException {
+    // given
+    final var queue =
+        new AdHocWriteBehindQueue(bulkWriterMock, true, journalDir, 500, 60_000, 10, 2);
+    queue.start();
+
+    // when
+    queue.offer(adHocEntry(1, 2));
+
+    // then
+    final long deadline = System.nanoTime() + 5_000_000_000L;
+    while (!queue.isCommitted() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(queue.isCommitted()).isTrue();
+    queue.stop();
+  }
+
+  @Test
+  void offerForcesEveryAppendWithoutCommitInterval() {
+    // given
+    final var queue =
+        new AdHocWriteBehindQueue(bulkWriterMock, true, journalDir, 500, 60_000, 0, 2);
+    queue.start();
+
+    // when
+    final boolean queued = queue.offer(adHocEntry(1, 2));
+
+    // then
+    assertThat(queued).isTrue();
+    assertThat(queue.isCommitted()).isTrue();
+    queue.stop();
+  }
+}
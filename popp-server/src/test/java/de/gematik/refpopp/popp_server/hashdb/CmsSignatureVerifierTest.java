@@ -26,6 +26,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -156,4 +157,21 @@ class CmsSignatureVerifierTest {
         .isInstanceOf(RuntimeException.class)
         .hasMessageContaining("CMS verification failed: ");
   }
+
+  @Test
+  void verifySignersDoesNotReadSignedContentAgain() throws Exception {
+    final var parserMock = mock(CMSSignedDataParser.class, RETURNS_DEEP_STUBS);
+    final var signerInfoMock = mock(SignerInformation.class);
+
+    when(parserMock.getSignerInfos().getSigners()).thenReturn(Set.of(signerInfoMock));
+    when(signerInfoMock.getSID()).thenReturn(mock(SignerId.class));
+    when(signerInfoMock.verify(any())).thenReturn(true);
+    when(trustedCertificateFinderMock.findTrustedCertificate(any(), any()))
+        .thenReturn(mock(X509Certificate.class));
+
+    final boolean result = sut.verifySigners(parserMock, "testSession");
+
+    assertThat(result).isTrue();
+    verify(parserMock, never()).getSignedContent();
+  }
 }
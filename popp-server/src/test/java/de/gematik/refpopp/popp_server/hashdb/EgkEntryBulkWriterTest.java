@@ -0,0 +1,158 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+class EgkEntryBulkWriterTest {
+
+  private static final LocalDateTime NOT_AFTER = LocalDateTime.of(2030, 1, 1, 12, 0);
+
+  private JdbcTemplate jdbcTemplate;
+  private EgkEntryBulkWriter sut;
+
+  @BeforeEach
+  void setUp() {
+    final var dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:bulk-writer;DB_CLOSE_DELAY=-1");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("DROP TABLE IF EXISTS egk_entries");
+    jdbcTemplate.execute(
+        "CREATE TABLE egk_entries (id SERIAL PRIMARY KEY, cvc_hash BYTEA NOT NULL,"
+            + " aut_hash BYTEA NOT NULL, state SMALLINT NOT NULL, not_after TIMESTAMP NOT NULL)");
+    sut = new EgkEntryBulkWriter(dataSource, 0);
+  }
+
+  @Test
+  void writeInsertsNewEntriesAndUpdatesExistingOnesWithoutPostgres() {
+    // given
+    jdbcTemplate.update(
+        "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)",
+        new byte[] {1},
+        new byte[] {2},
+        EgkEntryState.AD_HOC.getCode(),
+        NOT_AFTER);
+    final Long existingId = jdbcTemplate.queryForObject("SELECT id FROM egk_entries", Long.class);
+    final var changedEntry =
+        new EgkEntry(new byte[] {1}, new byte[] {2}, EgkEntryState.IMPORTED, NOT_AFTER);
+    changedEntry.setId(existingId);
+    final var newEntry =
+        new EgkEntry(new byte[] {3}, new byte[] {4}, EgkEntryState.BLOCKED, NOT_AFTER);
+
+    // when
+    sut.write(List.of(changedEntry, newEntry), "sessionId");
+
+    // then
+    assertThat(jdbcTemplate.queryForList("SELECT state FROM egk_entries ORDER BY id", Short.class))
+        .containsExactly(EgkEntryState.IMPORTED.getCode(), EgkEntryState.BLOCKED.getCode());
+  }
+
+  @Test
+  void writeBatchedInsertsNewEntriesAndUpdatesExistingOnesWithoutPostgres() {
+    // given
+    jdbcTemplate.update(
+        "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)",
+        new byte[] {1},
+        new byte[] {2},
+        EgkEntryState.IMPORTED.getCode(),
+        NOT_AFTER);
+    final Long existingId = jdbcTemplate.queryForObject("SELECT id FROM egk_entries", Long.class);
+    final var changedEntry =
+        new EgkEntry(new byte[] {1}, new byte[] {2}, EgkEntryState.BLOCKED, NOT_AFTER);
+    changedEntry.setId(existingId);
+    final var newEntry =
+        new EgkEntry(new byte[] {3}, new byte[] {4}, EgkEntryState.IMPORTED, NOT_AFTER);
+
+    // when
+    sut.writeBatched(List.of(changedEntry, newEntry), "sessionId");
+
+    // then
+    assertThat(jdbcTemplate.queryForList("SELECT state FROM egk_entries ORDER BY id", Short.class))
+        .containsExactly(EgkEntryState.BLOCKED.getCode(), EgkEntryState.IMPORTED.getCode());
+  }
+
+  @Test
+  void writeCopyDataUsesBinaryCopyFormat() throws Exception {
+    // given
+    final var entry =
+        new EgkEntry(
+            new byte[] {1, 2},
+            new byte[] {3},
+            EgkEntryState.IMPORTED,
+            LocalDateTime.of(2000, 1, 1, 0, 0, 1));
+    final var bytes = new ByteArrayOutputStream();
+
+    // when
+    try (final var out = new DataOutputStream(bytes)) {
+      EgkEntryBulkWriter.writeCopyData(out, List.of(entry));
+    }
+
+    // then
+    final var buffer = ByteBuffer.wrap(bytes.toByteArray());
+    final var signature = new byte[11];
+    buffer.get(signature);
+    assertThat(signature)
+        .isEqualTo(new byte[] {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0});
+    assertThat(buffer.getInt()).isZero();
+    assertThat(buffer.getInt()).isZero();
+    assertThat(buffer.getShort()).isEqualTo((short) 4);
+    assertThat(buffer.getInt()).isEqualTo(2);
+    buffer.position(buffer.position() + 2);
+    assertThat(buffer.getInt()).isEqualTo(1);
+    buffer.position(buffer.position() + 1);
+    assertThat(buffer.getInt()).isEqualTo(Short.BYTES);
+    assertThat(buffer.getShort()).isEqualTo(EgkEntryState.IMPORTED.getCode());
+    assertThat(buffer.getInt()).isEqualTo(Long.BYTES);
+    assertThat(buffer.getLong()).isEqualTo(1_000_000L);
+    assertThat(buffer.getShort()).isEqualTo((short) -1);
+    assertThat(buffer.hasRemaining()).isFalse();
+  }
+
+  @Test
+  void groupByPartitionKeepsFileOrderWithinPartition() {
+    // given
+    final var first =
+        new EgkEntry(new byte[] {0x71}, new byte[] {1}, EgkEntryState.IMPORTED, NOT_AFTER);
+    final var second =
+        new EgkEntry(new byte[] {0x05}, new byte[] {2}, EgkEntryState.IMPORTED, NOT_AFTER);
+    final var third =
+        new EgkEntry(new byte[] {0x7f}, new byte[] {3}, EgkEntryState.IMPORTED, NOT_AFTER);
+
+    // when
+    final var result = EgkEntryBulkWriter.groupByPartition(List.of(first, second, third), 16);
+
+    // then
+    assertThat(result).containsExactly(entry(0, List.of(second)), entry(7, List.of(first, third)));
+  }
+}
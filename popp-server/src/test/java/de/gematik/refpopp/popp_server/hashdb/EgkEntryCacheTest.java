@@ -0,0 +1,247 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.gematik.refpopp.popp_server.configuration.ReadWriteRoutingDataSource;
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionTemplate;
+
+class EgkEntryCacheTest {
+
+  private static final byte[] CVC_HASH = {1, 2};
+  private static final byte[] AUT_HASH = {3, 4};
+
+  private MutableClock clock;
+  private AtomicInteger loads;
+  private EgkEntry stored;
+  private EgkEntryCache sut;
+
+  @BeforeEach
+  void setUp() {
+    clock = new MutableClock();
+    loads = new AtomicInteger();
+    stored = new EgkEntry(CVC_HASH, AUT_HASH, EgkEntryState.IMPORTED, null);
+    sut = new EgkEntryCache(2, Duration.ofSeconds(60), clock);
+  }
+
+  private Optional<EgkEntry> lookup(final byte[] cvcHash, final byte[] autHash) {
+    return sut.get(
+        cvcHash,
+        autHash,
+        () -> {
+          loads.incrementAndGet();
+          return Optional.of(stored);
+        });
+  }
+
+  @Test
+  void getCachesFoundEntries() {
+    // when
+    lookup(CVC_HASH, AUT_HASH);
+    final var result = lookup(CVC_HASH, AUT_HASH);
+
+    // then
+    assertThat(result).get().isNotSameAs(stored).extracting(EgkEntry::getState).isNotNull();
+    assertThat(loads).hasValue(1);
+    assertThat(sut.getStats()).isEqualTo(new EgkEntryCache.Stats(1, 1, 0, 1));
+  }
+
+  @Test
+  void getDoesNotCacheMissingEntries() {
+    // when
+    sut.get(CVC_HASH, AUT_HASH, Optional::empty);
+
+    // then
+    assertThat(sut.getStats().size()).isZero();
+  }
+
+  @Test
+  void entriesExpireAfterTimeToLive() {
+    // given
+    lookup(CVC_HASH, AUT_HASH);
+
+    // when
+    clock.advance(Duration.ofSeconds(61));
+    lookup(CVC_HASH, AUT_HASH);
+
+    // then
+    assertThat(loads).hasValue(2);
+    assertThat(sut.getStats().evictions()).isEqualTo(1);
+  }
+
+  @Test
+  void leastRecentlyUsedEntryIsEvictedWhenFull() {
+    // given
+    lookup(new byte[] {1}, AUT_HASH);
+    lookup(new byte[] {2}, AUT_HASH);
+    lookup(new byte[] {1}, AUT_HASH);
+
+    // when
+    lookup(new byte[] {3}, AUT_HASH);
+    lookup(new byte[] {1}, AUT_HASH);
+    lookup(new byte[] {2}, AUT_HASH);
+
+    // then
+    assertThat(loads).hasValue(4);
+    assertThat(sut.getStats().size()).isEqualTo(2);
+  }
+
+  @Test
+  void invalidateAllRemovesChangedEntries() {
+    // given
+    lookup(CVC_HASH, AUT_HASH);
+
+    // when
+    sut.invalidateAll(List.of(new EgkEntry(CVC_HASH, AUT_HASH, EgkEntryState.BLOCKED, null)));
+    lookup(CVC_HASH, AUT_HASH);
+
+    // then
+    assertThat(loads).hasValue(2);
+  }
+
+  @Test
+  void invalidateHashesRemovesPairsSharingOneOfTheHashes() {
+    // given
+    sut = new EgkEntryCache(10, Duration.ofSeconds(60), clock);
+    lookup(new byte[] {1}, AUT_HASH);
+    lookup(CVC_HASH, new byte[] {5});
+    lookup(new byte[] {2}, new byte[] {6});
+
+    // when
+    sut.invalidateHashes(CVC_HASH, AUT_HASH);
+
+    // then
+    assertThat(sut.getStats().size()).isEqualTo(1);
+    lookup(new byte[] {1}, AUT_HASH);
+    lookup(CVC_HASH, new byte[] {5});
+    lookup(new byte[] {2}, new byte[] {6});
+    assertThat(loads).hasValue(5);
+  }
+
+  @Test
+  void invalidateHashesKeepsIndexInSyncWithEvictions() {
+    // given
+    lookup(new byte[] {1}, AUT_HASH);
+    lookup(new byte[] {2}, AUT_HASH);
+    lookup(new byte[] {3}, AUT_HASH);
+
+    // when
+    sut.invalidateHashes(new byte[] {9}, AUT_HASH);
+
+    // then
+    assertThat(sut.getStats().size()).isZero();
+    assertThat(sut.getStats().evictions()).isEqualTo(1);
+  }
+
+  @Test
+  void lookupServedByReadReplicaIsNotCached() {
+    // given
+    final var primary = h2("cache-primary");
+    final var replica = h2("cache-replica");
+    final var routingDataSource =
+        new ReadWriteRoutingDataSource(primary, primary, Map.of("replica", replica), 5, "SELECT 0");
+    routingDataSource.afterPropertiesSet();
+    routingDataSource.startLagCheck(60_000);
+    final var dataSource = new LazyConnectionDataSourceProxy(routingDataSource);
+    final var jdbcTemplate = new JdbcTemplate(dataSource);
+    final var readOnly = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    readOnly.setReadOnly(true);
+
+    try {
+      // when
+      readOnly.executeWithoutResult(
+          status ->
+              sut.get(
+                  CVC_HASH,
+                  AUT_HASH,
+                  () -> {
+                    jdbcTemplate.queryForObject("SELECT 1", Integer.class);
+                    return Optional.of(stored);
+                  }));
+
+      // then
+      assertThat(sut.getStats().size()).isZero();
+    } finally {
+      routingDataSource.close();
+    }
+  }
+
+  @Test
+  void lookupRacingAnInvalidationIsNotCached() {
+    // when
+    sut.get(
+        CVC_HASH,
+        AUT_HASH,
+        () -> {
+          sut.invalidate(CVC_HASH, AUT_HASH);
+          return Optional.of(stored);
+        });
+
+    // then
+    assertThat(sut.getStats().size()).isZero();
+  }
+
+  private static JdbcDataSource h2(final String name) {
+    final var dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    return dataSource;
+  }
+
+  private static final class MutableClock extends Clock {
+    private Instant now = Instant.parse("2025-01-01T00:00:00Z");
+
+    void advance(final Duration duration) {
+      now = now.plus(duration);
+    }
+
+    @Override
+    public ZoneOffset getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(final java.time.ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class EgkEntryPartitionsTest {
+
+  @Test
+  void partitionOfSplitsFirstHashByteEvenly() {
+    assertThat(EgkEntryPartitions.partitionOf(new byte[] {0x00, 1}, 16)).isZero();
+    assertThat(EgkEntryPartitions.partitionOf(new byte[] {0x0f, 1}, 16)).isZero();
+    assertThat(EgkEntryPartitions.partitionOf(new byte[] {0x10}, 16)).isEqualTo(1);
+    assertThat(EgkEntryPartitions.partitionOf(new byte[] {(byte) 0xff}, 16)).isEqualTo(15);
+    // 24 partitions: partition 1 starts at byte 11 = ceil(256 / 24)
+    assertThat(EgkEntryPartitions.partitionOf(new byte[] {10}, 24)).isZero();
+    assertThat(EgkEntryPartitions.partitionOf(new byte[] {11}, 24)).isEqualTo(1);
+    assertThat(EgkEntryPartitions.partitionOf(new byte[] {(byte) 0xff}, 24)).isEqualTo(23);
+  }
+
+  @Test
+  void tableNameIsZeroPaddedToPartitionCount() {
+    assertThat(EgkEntryPartitions.tableName(7, 16)).isEqualTo("egk_entries_p07");
+    assertThat(EgkEntryPartitions.tableName(3, 10)).isEqualTo("egk_entries_p3");
+    assertThat(EgkEntryPartitions.tableName(42, 256)).isEqualTo("egk_entries_p042");
+  }
+}
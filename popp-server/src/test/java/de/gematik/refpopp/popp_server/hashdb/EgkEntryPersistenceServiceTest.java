@@ -21,10 +21,17 @@
 package de.gematik.refpopp.popp_server.hashdb;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyShort;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
+import de.gematik.refpopp.popp_server.hashdb.EgkEntryPersistenceService.HashCandidates;
 import de.gematik.refpopp.popp_server.model.CheckResult;
 import de.gematik.refpopp.popp_server.model.EgkEntry;
 import de.gematik.refpopp.popp_server.model.EgkEntryState;
@@ -32,50 +39,193 @@ import de.gematik.refpopp.popp_server.repository.CertHashRepository;
 import de.gematik.refpopp.popp_server.scenario.common.provider.CommunicationMode;
 import java.util.List;
 import java.util.Optional;
+import javax.sql.DataSource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.ArgumentCaptor;
 
 class EgkEntryPersistenceServiceTest {
+  private static final byte[] CVC_HASH = {1};
+  private static final byte[] AUT_HASH = {2};
+
   private EgkEntryPersistenceService sut;
   private CertHashRepository certHashRepositoryMock;
+  private AdHocWriteBehindQueue writeBehindQueueMock;
 
   @BeforeEach
   void setUp() {
     certHashRepositoryMock = mock(CertHashRepository.class);
-    sut = new EgkEntryPersistenceService(certHashRepositoryMock);
+    writeBehindQueueMock = mock(AdHocWriteBehindQueue.class);
+    sut =
+        new EgkEntryPersistenceService(
+            certHashRepositoryMock,
+            new EgkHashFilter(mock(DataSource.class), false, 1, 0.01),
+            new EgkEntryCache(100, 60),
+            writeBehindQueueMock);
+  }
+
+  private static EgkTransferEntry transferEntry(final CommunicationMode communicationMode) {
+    return EgkTransferEntry.builder()
+        .cvcHash(CVC_HASH)
+        .autHash(AUT_HASH)
+        .communicationMode(communicationMode)
+        .build();
+  }
+
+  private CheckResult process(final EgkTransferEntry egkTransferEntry) {
+    final var candidates =
+        sut.findCandidates(egkTransferEntry.getCvcHash(), egkTransferEntry.getAutHash());
+    return sut.process(egkTransferEntry, candidates, "sessionId");
+  }
+
+  @Test
+  void findCandidatesSkipsLookupsForHashesRuledOutByFilter() {
+    // given
+    final var filter = mock(EgkHashFilter.class);
+    sut =
+        new EgkEntryPersistenceService(
+            certHashRepositoryMock, filter, new EgkEntryCache(100, 60), writeBehindQueueMock);
+
+    // when
+    final var result = process(transferEntry(CommunicationMode.CONTACTLESS));
+
+    // then
+    assertThat(result).isEqualTo(CheckResult.UNKNOWN);
+    verifyNoInteractions(certHashRepositoryMock);
+  }
+
+  @Test
+  void findCandidatesQueriesOnlyTheHashTheFilterCannotRuleOut() {
+    // given
+    final var filter = mock(EgkHashFilter.class);
+    when(filter.mightContainAutHash(AUT_HASH)).thenReturn(true);
+    sut =
+        new EgkEntryPersistenceService(
+            certHashRepositoryMock, filter, new EgkEntryCache(100, 60), writeBehindQueueMock);
+    final var autEntry = new EgkEntry(new byte[] {9}, AUT_HASH, EgkEntryState.IMPORTED, null);
+    when(certHashRepositoryMock.findByAutHash(AUT_HASH)).thenReturn(List.of(autEntry));
+
+    // when
+    final var result = sut.findCandidates(CVC_HASH, AUT_HASH);
+
+    // then
+    assertThat(result.pairedEntry()).isEmpty();
+    assertThat(result.cvcEntries()).isEmpty();
+    assertThat(result.autEntries()).containsExactly(autEntry);
+    verify(certHashRepositoryMock, never()).findByCvcHashOrAutHash(any(), any());
+  }
+
+  @Test
+  void processUnpairedContactAddsNewEntryToFilter() {
+    // given
+    final var filter = mock(EgkHashFilter.class);
+    sut =
+        new EgkEntryPersistenceService(
+            certHashRepositoryMock, filter, new EgkEntryCache(100, 60), writeBehindQueueMock);
+
+    // when
+    process(transferEntry(CommunicationMode.CONTACT));
+
+    // then
+    verify(filter).add(CVC_HASH, AUT_HASH);
+  }
+
+  @Test
+  void findCandidatesSplitsRowsOfSingleQuery() {
+    // given
+    final var paired = new EgkEntry(CVC_HASH, AUT_HASH, EgkEntryState.IMPORTED, null);
+    final var cvcEntry = new EgkEntry(CVC_HASH, new byte[] {9}, EgkEntryState.IMPORTED, null);
+    final var autEntry = new EgkEntry(new byte[] {9}, AUT_HASH, EgkEntryState.IMPORTED, null);
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(cvcEntry, autEntry))
+        .thenReturn(List.of(cvcEntry, paired, autEntry));
+
+    // when
+    final var unpaired = sut.findCandidates(CVC_HASH, AUT_HASH);
+    final var matched = sut.findCandidates(CVC_HASH, AUT_HASH);
+
+    // then
+    assertThat(unpaired.pairedEntry()).isEmpty();
+    assertThat(unpaired.cvcEntries()).containsExactly(cvcEntry);
+    assertThat(unpaired.autEntries()).containsExactly(autEntry);
+    assertThat(matched.pairedEntry()).get().isEqualTo(paired);
+    verify(certHashRepositoryMock, times(2)).findByCvcHashOrAutHash(CVC_HASH, AUT_HASH);
+    verify(certHashRepositoryMock, never()).findByCvcHashAndAutHash(any(), any());
+  }
+
+  @Test
+  void findCandidatesServesRepeatedLookupsOfStoredPairFromCache() {
+    // given
+    final var entry = new EgkEntry(CVC_HASH, AUT_HASH, EgkEntryState.IMPORTED, null);
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(entry));
+
+    // when
+    final var first = sut.findCandidates(CVC_HASH, AUT_HASH);
+    final var second = sut.findCandidates(CVC_HASH, AUT_HASH);
+
+    // then
+    assertThat(first.pairedEntry()).isPresent();
+    assertThat(second.pairedEntry())
+        .get()
+        .extracting(EgkEntry::getState)
+        .isEqualTo(EgkEntryState.IMPORTED);
+    verify(certHashRepositoryMock, times(1)).findByCvcHashOrAutHash(CVC_HASH, AUT_HASH);
+  }
+
+  @Test
+  void blockingEntriesInvalidatesCachedState() {
+    // given
+    final byte[] otherAutHash = {3};
+    final var entry = new EgkEntry(CVC_HASH, otherAutHash, EgkEntryState.IMPORTED, null);
+    entry.setId(1L);
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(any(), any())).thenReturn(List.of(entry));
+    sut.findCandidates(CVC_HASH, otherAutHash);
+
+    when(certHashRepositoryMock.blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(1);
+
+    // when
+    process(transferEntry(CommunicationMode.CONTACT));
+    sut.findCandidates(CVC_HASH, otherAutHash);
+
+    // then
+    verify(certHashRepositoryMock, times(2)).findByCvcHashOrAutHash(CVC_HASH, otherAutHash);
   }
 
   @Test
-  void findByCvcAndAutHashReturnsEmptyWhenNoEntriesFound() {
+  void blockingBySharedAutHashEvictsOtherCachedPair() {
     // given
-    final byte[] cvcHash = new byte[1];
-    final byte[] autHash = new byte[2];
-    when(certHashRepositoryMock.findByCvcHashAndAutHash(cvcHash, autHash))
-        .thenReturn(Optional.empty());
+    final byte[] otherCvcHash = {9};
+    final var cached = new EgkEntry(otherCvcHash, AUT_HASH, EgkEntryState.IMPORTED, null);
+    final var unrelated =
+        new EgkEntry(new byte[] {7}, new byte[] {7}, EgkEntryState.IMPORTED, null);
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(otherCvcHash, AUT_HASH))
+        .thenReturn(List.of(cached));
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(new byte[] {7}, new byte[] {7}))
+        .thenReturn(List.of(unrelated));
+    sut.findCandidates(otherCvcHash, AUT_HASH);
+    sut.findCandidates(new byte[] {7}, new byte[] {7});
+    // the lookup of the new pair does not find the cached one, e.g. because it was stored since
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(new EgkEntry(CVC_HASH, new byte[] {8}, EgkEntryState.IMPORTED, null)));
+    when(certHashRepositoryMock.blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(1);
 
     // when
-    final var result = sut.findByCvcAndAutHash(cvcHash, autHash);
+    process(transferEntry(CommunicationMode.CONTACT));
+    sut.findCandidates(otherCvcHash, AUT_HASH);
+    sut.findCandidates(new byte[] {7}, new byte[] {7});
 
     // then
-    assertThat(result).isEmpty();
-    verify(certHashRepositoryMock).findByCvcHashAndAutHash(cvcHash, autHash);
+    verify(certHashRepositoryMock, times(2)).findByCvcHashOrAutHash(otherCvcHash, AUT_HASH);
+    verify(certHashRepositoryMock, times(1)).findByCvcHashOrAutHash(new byte[] {7}, new byte[] {7});
   }
 
   @Test
   void processUnpairedContactlessReturnsUnknownWhenNoEntriesFound() {
     // given
-    final var egkTransferEntry =
-        EgkTransferEntry.builder()
-            .cvcHash(new byte[1])
-            .autHash(new byte[2])
-            .communicationMode(CommunicationMode.CONTACTLESS)
-            .build();
-    when(certHashRepositoryMock.findByCvcHash(egkTransferEntry.getCvcHash())).thenReturn(List.of());
-    when(certHashRepositoryMock.findByAutHash(egkTransferEntry.getAutHash())).thenReturn(List.of());
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(List.of());
 
     // when
-    final var result = sut.process(egkTransferEntry, "sessionId");
+    final var result = process(transferEntry(CommunicationMode.CONTACTLESS));
 
     // then
     assertThat(result).isEqualTo(CheckResult.UNKNOWN);
@@ -84,17 +234,11 @@ class EgkEntryPersistenceServiceTest {
   @Test
   void processUnpairedContactlessReturnsMismatchWhenCvcEntriesFound() {
     // given
-    final var egkTransferEntry =
-        EgkTransferEntry.builder()
-            .cvcHash(new byte[1])
-            .autHash(new byte[2])
-            .communicationMode(CommunicationMode.CONTACTLESS)
-            .build();
-    when(certHashRepositoryMock.findByCvcHash(egkTransferEntry.getCvcHash()))
-        .thenReturn(List.of(new EgkEntry()));
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(new EgkEntry(CVC_HASH, new byte[] {9}, EgkEntryState.IMPORTED, null)));
 
     // when
-    final var result = sut.process(egkTransferEntry, "sessionId");
+    final var result = process(transferEntry(CommunicationMode.CONTACTLESS));
 
     // then
     assertThat(result).isEqualTo(CheckResult.MISMATCH);
@@ -103,17 +247,11 @@ class EgkEntryPersistenceServiceTest {
   @Test
   void processUnpairedContactlessReturnsMismatchWhenAutEntriesFound() {
     // given
-    final var egkTransferEntry =
-        EgkTransferEntry.builder()
-            .cvcHash(new byte[1])
-            .autHash(new byte[2])
-            .communicationMode(CommunicationMode.CONTACTLESS)
-            .build();
-    when(certHashRepositoryMock.findByAutHash(egkTransferEntry.getAutHash()))
-        .thenReturn(List.of(new EgkEntry()));
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(new EgkEntry(new byte[] {9}, AUT_HASH, EgkEntryState.IMPORTED, null)));
 
     // when
-    final var result = sut.process(egkTransferEntry, "sessionId");
+    final var result = process(transferEntry(CommunicationMode.CONTACTLESS));
 
     // then
     assertThat(result).isEqualTo(CheckResult.MISMATCH);
@@ -122,82 +260,145 @@ class EgkEntryPersistenceServiceTest {
   @Test
   void processUnpairedContactReturnsUnknownWhenNoEntriesFound() {
     // given
-    final var egkTransferEntry =
-        EgkTransferEntry.builder()
-            .cvcHash(new byte[1])
-            .autHash(new byte[2])
-            .communicationMode(CommunicationMode.CONTACT)
-            .build();
-    when(certHashRepositoryMock.findByCvcHash(egkTransferEntry.getCvcHash())).thenReturn(List.of());
-    when(certHashRepositoryMock.findByAutHash(egkTransferEntry.getAutHash())).thenReturn(List.of());
-    final ArgumentCaptor<EgkEntry> entryCaptor = ArgumentCaptor.forClass(EgkEntry.class);
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(List.of());
 
     // when
-    final var result = sut.process(egkTransferEntry, "sessionId");
+    final var result = process(transferEntry(CommunicationMode.CONTACT));
 
     // then
     assertThat(result).isEqualTo(CheckResult.UNKNOWN);
-    verify(certHashRepositoryMock).save(entryCaptor.capture());
-    final var savedEntry = entryCaptor.getValue();
-    assertThat(savedEntry.getState()).isEqualTo(EgkEntryState.AD_HOC);
+    verify(certHashRepositoryMock).upsert(CVC_HASH, AUT_HASH, EgkEntryState.AD_HOC.getCode(), null);
+    verify(certHashRepositoryMock, never()).blockByCvcHashOrAutHash(any(), any());
   }
 
   @Test
   void processUnpairedContactBlocksEntriesWhenCvcEntriesFound() {
     // given
-    final var egkTransferEntry =
-        EgkTransferEntry.builder()
-            .cvcHash(new byte[1])
-            .autHash(new byte[2])
-            .communicationMode(CommunicationMode.CONTACT)
-            .build();
-    when(certHashRepositoryMock.findByCvcHash(egkTransferEntry.getCvcHash()))
-        .thenReturn(List.of(new EgkEntry()));
-    final ArgumentCaptor<List<EgkEntry>> listCaptor = ArgumentCaptor.forClass(List.class);
-    final ArgumentCaptor<EgkEntry> entryCaptor = ArgumentCaptor.forClass(EgkEntry.class);
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(new EgkEntry(CVC_HASH, new byte[] {9}, EgkEntryState.IMPORTED, null)));
+    when(certHashRepositoryMock.blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(1);
 
     // when
-    final var result = sut.process(egkTransferEntry, "sessionId");
+    final var result = process(transferEntry(CommunicationMode.CONTACT));
 
     // then
     assertThat(result).isEqualTo(CheckResult.MISMATCH);
-    verify(certHashRepositoryMock).saveAll(listCaptor.capture());
-    final var blockedList = listCaptor.getValue();
-    assertThat(blockedList)
-        .hasSize(1)
-        .allSatisfy(e -> assertThat(e.getState()).isEqualTo(EgkEntryState.BLOCKED));
-    verify(certHashRepositoryMock).save(entryCaptor.capture());
-    final var savedEntry = entryCaptor.getValue();
-    assertThat(savedEntry.getState()).isEqualTo(EgkEntryState.BLOCKED);
+    verify(certHashRepositoryMock).blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH);
+    verify(certHashRepositoryMock)
+        .upsert(CVC_HASH, AUT_HASH, EgkEntryState.BLOCKED.getCode(), null);
+    verify(certHashRepositoryMock, never()).saveAll(any());
   }
 
   @Test
   void processUnpairedContactBlocksEntriesWhenAutEntriesFound() {
     // given
-    final var egkTransferEntry =
-        EgkTransferEntry.builder()
-            .cvcHash(new byte[1])
-            .autHash(new byte[2])
-            .communicationMode(CommunicationMode.CONTACT)
-            .build();
-    when(certHashRepositoryMock.findByCvcHash(egkTransferEntry.getCvcHash())).thenReturn(List.of());
-    when(certHashRepositoryMock.findByAutHash(egkTransferEntry.getAutHash()))
-        .thenReturn(List.of(new EgkEntry()));
-    final ArgumentCaptor<List<EgkEntry>> listCaptor = ArgumentCaptor.forClass(List.class);
-    final ArgumentCaptor<EgkEntry> entryCaptor = ArgumentCaptor.forClass(EgkEntry.class);
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(new EgkEntry(new byte[] {9}, AUT_HASH, EgkEntryState.IMPORTED, null)));
+    when(certHashRepositoryMock.blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(1);
+
+    // when
+    final var result = process(transferEntry(CommunicationMode.CONTACT));
+
+    // then
+    assertThat(result).isEqualTo(CheckResult.MISMATCH);
+    verify(certHashRepositoryMock).blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH);
+    verify(certHashRepositoryMock)
+        .upsert(CVC_HASH, AUT_HASH, EgkEntryState.BLOCKED.getCode(), null);
+    verify(certHashRepositoryMock, never()).saveAll(any());
+  }
+
+  @Test
+  void processChecksCandidatesReadFromReplicaOnPrimary() {
+    // given
+    final var replicaCandidates = new HashCandidates(Optional.empty(), List.of(), List.of(), true);
+    when(certHashRepositoryMock.findOnPrimaryByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(new EgkEntry(new byte[] {9}, AUT_HASH, EgkEntryState.IMPORTED, null)));
+    when(certHashRepositoryMock.blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(1);
+
+    // when
+    final var result =
+        sut.process(transferEntry(CommunicationMode.CONTACT), replicaCandidates, "sessionId");
+
+    // then
+    assertThat(result).isEqualTo(CheckResult.MISMATCH);
+    verify(certHashRepositoryMock).blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH);
+    verify(certHashRepositoryMock)
+        .upsert(CVC_HASH, AUT_HASH, EgkEntryState.BLOCKED.getCode(), null);
+  }
+
+  @Test
+  void processDoesNotStorePairFoundOnPrimaryButNotOnReplica() {
+    // given
+    final var replicaCandidates = new HashCandidates(Optional.empty(), List.of(), List.of(), true);
+    when(certHashRepositoryMock.findOnPrimaryByCvcHashOrAutHash(CVC_HASH, AUT_HASH))
+        .thenReturn(List.of(new EgkEntry(CVC_HASH, AUT_HASH, EgkEntryState.BLOCKED, null)));
+
+    // when
+    final var result =
+        sut.process(transferEntry(CommunicationMode.CONTACT), replicaCandidates, "sessionId");
+
+    // then
+    assertThat(result).isEqualTo(CheckResult.BLOCKED);
+    verify(certHashRepositoryMock, never()).blockByCvcHashOrAutHash(any(), any());
+    verify(certHashRepositoryMock, never()).upsert(any(), any(), anyShort(), any());
+  }
+
+  @Test
+  void processUsesCandidatesReadFromPrimaryWithoutCheckingThemAgain() {
+    // given
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(List.of());
+
+    // when
+    process(transferEntry(CommunicationMode.CONTACT));
+
+    // then
+    verify(certHashRepositoryMock, never()).findOnPrimaryByCvcHashOrAutHash(any(), any());
+  }
+
+  @Test
+  void processUnpairedContactQueuesAdHocEntryWhenWriteBehindAcceptsIt() {
+    // given
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(List.of());
+    when(writeBehindQueueMock.offer(any())).thenReturn(true);
+
+    // when
+    final var result = process(transferEntry(CommunicationMode.CONTACT));
+
+    // then
+    assertThat(result).isEqualTo(CheckResult.UNKNOWN);
+    verify(writeBehindQueueMock)
+        .offer(new EgkEntry(CVC_HASH, AUT_HASH, EgkEntryState.AD_HOC, null));
+    verify(certHashRepositoryMock, never()).upsert(any(), any(), anyShort(), any());
+  }
+
+  @Test
+  void findCandidatesReturnsPendingPairWithoutQuery() {
+    // given
+    final var pending = new EgkEntry(CVC_HASH, AUT_HASH, EgkEntryState.AD_HOC, null);
+    when(writeBehindQueueMock.findPending(CVC_HASH, AUT_HASH)).thenReturn(List.of(pending));
+
+    // when
+    final var result = sut.findCandidates(CVC_HASH, AUT_HASH);
+
+    // then
+    assertThat(result.pairedEntry()).contains(pending);
+    verifyNoInteractions(certHashRepositoryMock);
+  }
+
+  @Test
+  void processUnpairedContactFlushesPendingEntriesBeforeBlocking() {
+    // given
+    final var pending = new EgkEntry(CVC_HASH, new byte[] {9}, EgkEntryState.AD_HOC, null);
+    when(writeBehindQueueMock.findPending(CVC_HASH, AUT_HASH)).thenReturn(List.of(pending));
+    when(certHashRepositoryMock.findByCvcHashOrAutHash(CVC_HASH, AUT_HASH)).thenReturn(List.of());
 
     // when
-    final var result = sut.process(egkTransferEntry, "sessionId");
+    final var result = process(transferEntry(CommunicationMode.CONTACT));
 
     // then
     assertThat(result).isEqualTo(CheckResult.MISMATCH);
-    verify(certHashRepositoryMock).saveAll(listCaptor.capture());
-    final var blockedList = listCaptor.getValue();
-    assertThat(blockedList)
-        .hasSize(1)
-        .allSatisfy(e -> assertThat(e.getState()).isEqualTo(EgkEntryState.BLOCKED));
-    verify(certHashRepositoryMock).save(entryCaptor.capture());
-    final var savedEntry = entryCaptor.getValue();
-    assertThat(savedEntry.getState()).isEqualTo(EgkEntryState.BLOCKED);
+    final var inOrder = inOrder(writeBehindQueueMock, certHashRepositoryMock);
+    inOrder.verify(writeBehindQueueMock).flush();
+    inOrder.verify(certHashRepositoryMock).blockByCvcHashOrAutHash(CVC_HASH, AUT_HASH);
   }
 }
@@ -21,15 +21,21 @@
 package de.gematik.refpopp.popp_server.hashdb;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import de.gematik.refpopp.popp_server.model.EgkEntry;
 import de.gematik.refpopp.popp_server.model.EgkEntryState;
 import de.gematik.refpopp.popp_server.repository.CertHashRepository;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
+import javax.sql.DataSource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -41,7 +47,32 @@ class EgkEntryProcessorTest {
   @BeforeEach
   void setUp() {
     mockCertHashRepository = mock(CertHashRepository.class);
-    sut = new EgkEntryProcessor(mockCertHashRepository);
+    sut =
+        new EgkEntryProcessor(
+            mockCertHashRepository, new EgkHashFilter(mock(DataSource.class), false, 1, 0.01));
+  }
+
+  @Test
+  void processChunkSkipsLookupsForHashesRuledOutByFilter() {
+    // given
+    final var filter = mock(EgkHashFilter.class);
+    sut = new EgkEntryProcessor(mockCertHashRepository, filter);
+    final var entry =
+        EgkTransferEntry.builder()
+            .cvcHash(new byte[] {1})
+            .autHash(new byte[] {2})
+            .notAfter(LocalDateTime.now())
+            .build();
+
+    // when
+    final var result = sut.processChunk(List.of(entry), "session");
+
+    // then
+    assertThat(result)
+        .singleElement()
+        .extracting(EgkEntry::getState)
+        .isEqualTo(EgkEntryState.IMPORTED);
+    verifyNoInteractions(mockCertHashRepository);
   }
 
   @Test
@@ -112,4 +143,107 @@ class EgkEntryProcessorTest {
     assertThat(result).hasSize(1);
     assertThat(result.getFirst().getState()).isEqualTo(EgkEntryState.IMPORTED);
   }
+
+  @Test
+  void processChunkResolvesAllEntriesWithTwoQueries() {
+    // given
+    final var adHocEntry =
+        new EgkEntry(new byte[] {1}, new byte[] {2}, EgkEntryState.AD_HOC, LocalDateTime.now());
+    final var importedEntry =
+        new EgkEntry(new byte[] {3}, new byte[] {4}, EgkEntryState.IMPORTED, LocalDateTime.now());
+    final var conflictingEntry =
+        new EgkEntry(new byte[] {5}, new byte[] {9}, EgkEntryState.IMPORTED, LocalDateTime.now());
+    adHocEntry.setId(1L);
+    importedEntry.setId(2L);
+    conflictingEntry.setId(3L);
+    when(mockCertHashRepository.findByCvcHashIn(any()))
+        .thenReturn(List.of(adHocEntry, importedEntry, conflictingEntry));
+    when(mockCertHashRepository.findByAutHashIn(any()))
+        .thenReturn(List.of(adHocEntry, importedEntry));
+    final var chunk =
+        List.of(
+            transferEntry(new byte[] {1}, new byte[] {2}),
+            transferEntry(new byte[] {3}, new byte[] {4}),
+            transferEntry(new byte[] {5}, new byte[] {6}),
+            transferEntry(new byte[] {7}, new byte[] {8}));
+
+    // when
+    final List<EgkEntry> result = sut.processChunk(chunk, "session-id");
+
+    // then
+    assertThat(result)
+        .extracting(EgkEntry::getCvcHash, EgkEntry::getState)
+        .containsExactly(
+            tuple(new byte[] {1}, EgkEntryState.IMPORTED),
+            tuple(new byte[] {5}, EgkEntryState.BLOCKED),
+            tuple(new byte[] {5}, EgkEntryState.BLOCKED),
+            tuple(new byte[] {7}, EgkEntryState.IMPORTED));
+    verify(mockCertHashRepository).findByCvcHashIn(any());
+    verify(mockCertHashRepository).findByAutHashIn(any());
+    verifyNoMoreInteractions(mockCertHashRepository);
+  }
+
+  @Test
+  void processChunkWithEmptyChunkDoesNotQueryRepository() {
+    // when
+    final List<EgkEntry> result = sut.processChunk(List.of(), "session-id");
+
+    // then
+    assertThat(result).isEmpty();
+    verifyNoInteractions(mockCertHashRepository);
+  }
+
+  @Test
+  void processChunkSeesEntriesCreatedEarlierInTheSameChunk() {
+    // given
+    when(mockCertHashRepository.findByCvcHashIn(any())).thenReturn(List.of());
+    when(mockCertHashRepository.findByAutHashIn(any())).thenReturn(List.of());
+    final var chunk =
+        List.of(
+            transferEntry(new byte[] {1}, new byte[] {2}),
+            transferEntry(new byte[] {1}, new byte[] {2}),
+            transferEntry(new byte[] {1}, new byte[] {3}));
+
+    // when
+    final List<EgkEntry> result = sut.processChunk(chunk, "session-id");
+
+    // then
+    assertThat(result)
+        .extracting(EgkEntry::getAutHash, EgkEntry::getState)
+        .containsExactly(
+            tuple(new byte[] {2}, EgkEntryState.BLOCKED),
+            tuple(new byte[] {3}, EgkEntryState.BLOCKED));
+  }
+
+  @Test
+  void processChunkKeepsStoredEntryBlockedEarlierInTheSameChunkBlocked() {
+    // given
+    final var adHocEntry =
+        new EgkEntry(new byte[] {1}, new byte[] {2}, EgkEntryState.AD_HOC, LocalDateTime.now());
+    adHocEntry.setId(1L);
+    when(mockCertHashRepository.findByCvcHashIn(any())).thenReturn(List.of(adHocEntry));
+    when(mockCertHashRepository.findByAutHashIn(any())).thenReturn(List.of(adHocEntry));
+    final var chunk =
+        List.of(
+            transferEntry(new byte[] {1}, new byte[] {3}),
+            transferEntry(new byte[] {1}, new byte[] {2}));
+
+    // when
+    final List<EgkEntry> result = sut.processChunk(chunk, "session-id");
+
+    // then
+    assertThat(result)
+        .extracting(EgkEntry::getId, EgkEntry::getAutHash, EgkEntry::getState)
+        .containsExactly(
+            tuple(1L, new byte[] {2}, EgkEntryState.BLOCKED),
+            tuple(null, new byte[] {3}, EgkEntryState.BLOCKED));
+  }
+
+  private static EgkTransferEntry transferEntry(final byte[] cvcHash, final byte[] autHash) {
+    return EgkTransferEntry.builder()
+        .cvcHash(cvcHash)
+        .autHash(autHash)
+        .notAfter(LocalDateTime.now())
+        .build();
+  }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import de.gematik.refpopp.popp_server.model.ImportJobStatus;
+import de.gematik.refpopp.popp_server.model.PurgeReportEntry;
+import de.gematik.refpopp.popp_server.repository.PurgeReportRepository;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+class EgkEntryPurgeServiceTest {
+
+  private JdbcTemplate jdbcTemplate;
+  private PurgeReportRepository purgeReportRepository;
+  private EgkEntryCache egkEntryCache;
+  private EgkEntryPurgeService sut;
+
+  @BeforeEach
+  void setUp() {
+    final var dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:purge;DB_CLOSE_DELAY=-1");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("DROP TABLE IF EXISTS egk_entries");
+    jdbcTemplate.execute(
+        "CREATE TABLE egk_entries (id SERIAL PRIMARY KEY, cvc_hash BYTEA NOT NULL,"
+            + " aut_hash BYTEA NOT NULL, state SMALLINT NOT NULL, not_after TIMESTAMP NOT NULL)");
+    purgeReportRepository = mock(PurgeReportRepository.class);
+    when(purgeReportRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+    egkEntryCache = new EgkEntryCache(100, 60);
+    sut =
+        new EgkEntryPurgeService(
+            dataSource, purgeReportRepository, egkEntryCache, false, 30, 60, 2, 0);
+  }
+
+  @Test
+  void purgeExpiredDeletesEntriesExpiredBeforeGraceInBatches() throws InterruptedException {
+    // given
+    final var now = LocalDateTime.now();
+    insert(1, now.minusDays(100));
+    insert(2, now.minusDays(10));
+    insert(3, now.minusDays(31));
+    insert(4, now.plusYears(1));
+    insert(5, now.minusDays(40));
+    insert(6, now.minusDays(365));
+
+    // when
+    final long purged = sut.purgeExpired();
+
+    // then
+    assertThat(purged).isEqualTo(4);
+    assertThat(
+            jdbcTemplate.queryForList("SELECT cvc_hash FROM egk_entries ORDER BY id", byte[].class))
+        .containsExactly(new byte[] {2}, new byte[] {4});
+  }
+
+  @Test
+  void purgeExpiredRecordsPurgedCountInReport() throws InterruptedException {
+    // given
+    insert(1, LocalDateTime.now().minusDays(100));
+    final var report = new PurgeReportEntry(LocalDateTime.now());
+    when(purgeReportRepository.save(any())).thenReturn(report);
+
+    // when
+    sut.purgeExpired();
+
+    // then
+    assertThat(report.getPurgedCount()).isEqualTo(1);
+    assertThat(report.getStatus()).isEqualTo(ImportJobStatus.DONE);
+    assertThat(report.getEndTime()).isNotNull();
+  }
+
+  @Test
+  void purgeExpiredDeletesEntriesWithSameNotAfterAcrossBatches() throws InterruptedException {
+    // given
+    final var expired = LocalDateTime.now().minusDays(100).withNano(0);
+    for (int i = 1; i <= 5; i++) {
+      insert(i, expired);
+    }
+
+    // when
+    final long purged = sut.purgeExpired();
+
+    // then
+    assertThat(purged).isEqualTo(5);
+    assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM egk_entries", Long.class))
+        .isZero();
+  }
+
+  @Test
+  void purgeExpiredInvalidatesCachedLookupsOfDeletedEntries() throws InterruptedException {
+    // given
+    insert(1, LocalDateTime.now().minusDays(100));
+    cache(new byte[] {1}, new byte[] {1});
+    cache(new byte[] {2}, new byte[] {2});
+    // found by the shared aut hash of the deleted entry
+    cache(new byte[] {3}, new byte[] {1});
+
+    // when
+    sut.purgeExpired();
+
+    // then
+    assertThat(egkEntryCache.get(new byte[] {1}, new byte[] {1}, Optional::empty)).isEmpty();
+    assertThat(egkEntryCache.get(new byte[] {3}, new byte[] {1}, Optional::empty)).isEmpty();
+    assertThat(egkEntryCache.get(new byte[] {2}, new byte[] {2}, Optional::empty)).isPresent();
+  }
+
+  private void cache(final byte[] cvcHash, final byte[] autHash) {
+    egkEntryCache.get(
+        cvcHash,
+        autHash,
+        () ->
+            Optional.of(
+                new EgkEntry(
+                    cvcHash, autHash, EgkEntryState.IMPORTED, LocalDateTime.now().plusYears(1))));
+  }
+
+  private void insert(final int cvcHash, final LocalDateTime notAfter) {
+    jdbcTemplate.update(
+        "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)",
+        new byte[] {(byte) cvcHash},
+        new byte[] {1},
+        EgkEntryState.IMPORTED.getCode(),
+        notAfter);
+  }
+}
@@ -112,7 +112,7 @@ class EgkHashDbServiceIT extends BaseIntegrationTest {
     certHashRepository.save(
         new EgkEntry(
             cvcHash,
-            "otherOut".getBytes(),
+            md.digest("otherOut".getBytes()),
             EgkEntryState.IMPORTED,
             LocalDateTime.now().plusMinutes(10)));
 
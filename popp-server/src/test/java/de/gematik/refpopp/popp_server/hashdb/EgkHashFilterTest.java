@@ -0,0 +1,99 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.time.LocalDateTime;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+class EgkHashFilterTest {
+
+  private JdbcDataSource dataSource;
+  private EgkHashFilter sut;
+
+  @BeforeEach
+  void setUp() {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:hash-filter;DB_CLOSE_DELAY=-1");
+    final var jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("DROP TABLE IF EXISTS egk_entries");
+    jdbcTemplate.execute(
+        "CREATE TABLE egk_entries (id SERIAL PRIMARY KEY, cvc_hash BYTEA NOT NULL,"
+            + " aut_hash BYTEA NOT NULL, state SMALLINT NOT NULL, not_after TIMESTAMP NOT NULL)");
+    jdbcTemplate.update(
+        "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)",
+        new byte[] {1, 1},
+        new byte[] {2, 2},
+        EgkEntryState.IMPORTED.getCode(),
+        LocalDateTime.now());
+    sut = new EgkHashFilter(dataSource, true, 1_000, 0.001);
+  }
+
+  @Test
+  void answersMaybeUntilBuilt() {
+    assertThat(sut.isReady()).isFalse();
+    assertThat(sut.mightContainCvcHash(new byte[] {9, 9})).isTrue();
+    assertThat(sut.mightContainAutHash(new byte[] {9, 9})).isTrue();
+  }
+
+  @Test
+  void buildAddsStoredHashes() {
+    // when
+    sut.build();
+
+    // then
+    assertThat(sut.isReady()).isTrue();
+    assertThat(sut.mightContainCvcHash(new byte[] {1, 1})).isTrue();
+    assertThat(sut.mightContainAutHash(new byte[] {2, 2})).isTrue();
+    assertThat(sut.mightContainCvcHash(new byte[] {2, 2})).isFalse();
+    assertThat(sut.mightContainAutHash(new byte[] {1, 1})).isFalse();
+  }
+
+  @Test
+  void addedHashesAreVisibleAfterBuild() {
+    // given
+    sut.build();
+
+    // when
+    sut.add(new byte[] {3, 3}, new byte[] {4, 4});
+
+    // then
+    assertThat(sut.mightContainCvcHash(new byte[] {3, 3})).isTrue();
+    assertThat(sut.mightContainAutHash(new byte[] {4, 4})).isTrue();
+  }
+
+  @Test
+  void disabledFilterAnswersMaybe() {
+    // given
+    final var disabled = new EgkHashFilter(dataSource, false, 1_000, 0.001);
+
+    // when
+    disabled.build();
+
+    // then
+    assertThat(disabled.mightContainCvcHash(new byte[] {9, 9})).isTrue();
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.file.temp.EgkImportTempFileService;
+import de.gematik.refpopp.popp_server.hashdb.EgkHashImportService.ResumePoint;
+import de.gematik.refpopp.popp_server.model.ImportJobStatus;
+import de.gematik.refpopp.popp_server.model.ImportReportEntry;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataIntegrityViolationException;
+
+@ExtendWith(MockitoExtension.class)
+class EgkHashImportJobServiceTest {
+
+  private static final String SESSION_ID = "job-123";
+  private static final Path PATH = Path.of("/tmp/egk-import.dat");
+
+  @Mock private EgkHashImportService egkHashImportServiceMock;
+  @Mock private ImportReportProcessor importReportProcessorMock;
+  @Mock private EgkImportTempFileService egkImportTempFileServiceMock;
+  @Mock private ExecutorService importJobExecutorMock;
+
+  private EgkHashImportJobService sut;
+
+  @BeforeEach
+  void setUp() {
+    sut =
+        new EgkHashImportJobService(
+            egkHashImportServiceMock,
+            importReportProcessorMock,
+            egkImportTempFileServiceMock,
+            importJobExecutorMock,
+            300);
+  }
+
+  private void runSubmittedJobsInline() {
+    doAnswer(
+            invocation -> {
+              invocation.getArgument(0, Runnable.class).run();
+              return null;
+            })
+        .when(importJobExecutorMock)
+        .execute(any(Runnable.class));
+  }
+
+  @Test
+  void submitQueuesReportRunsImportAndDeletesFile() {
+    // given
+    runSubmittedJobsInline();
+
+    // when
+    final String jobId = sut.submit(PATH, SESSION_ID);
+
+    // then
+    assertThat(jobId).isEqualTo(SESSION_ID);
+    verify(importReportProcessorMock).queueReport(SESSION_ID);
+    verify(egkHashImportServiceMock).importData(PATH, SESSION_ID, null);
+    verify(egkImportTempFileServiceMock).deleteFile(PATH);
+    verify(importReportProcessorMock, never()).failReport(anyString(), anyString());
+  }
+
+  @Test
+  void resumeRunsImportFromCheckpointOfFailedImport() {
+    // given
+    runSubmittedJobsInline();
+    final var failed = report(ImportJobStatus.FAILED, LocalDateTime.now());
+    when(importReportProcessorMock.findReport("failed")).thenReturn(Optional.of(failed));
+
+    // when
+    sut.resume(PATH, "failed", SESSION_ID);
+
+    // then
+    verify(egkHashImportServiceMock)
+        .importData(PATH, SESSION_ID, new ResumePoint("failed", "digest", 42));
+    verify(importReportProcessorMock, never()).failReport(anyString(), anyString());
+  }
+
+  @Test
+  void resumeMarksStalledImportFailed() {
+    // given
+    final var stalled = report(ImportJobStatus.RUNNING, LocalDateTime.now().minusHours(1));
+    when(importReportProcessorMock.findReport("failed")).thenReturn(Optional.of(stalled));
+
+    // when
+    sut.resume(PATH, "failed", SESSION_ID);
+
+    // then
+    verify(importReportProcessorMock).queueReport(SESSION_ID);
+    verify(importReportProcessorMock)
+        .failReport("failed", "Import stalled, resumed by " + SESSION_ID);
+  }
+
+  @Test
+  void resumeOfRunningImportThrowsImportDataException() {
+    // given
+    final var running = report(ImportJobStatus.RUNNING, LocalDateTime.now());
+    when(importReportProcessorMock.findReport("failed")).thenReturn(Optional.of(running));
+
+    // when / then
+    assertThatThrownBy(() -> sut.resume(PATH, "failed", SESSION_ID))
+        .isInstanceOf(ImportDataException.class)
+        .hasMessage("Only failed imports can be resumed");
+    verify(importReportProcessorMock, never()).queueReport(anyString());
+  }
+
+  @Test
+  void resumeOfUnknownImportThrowsImportDataException() {
+    // when / then
+    assertThatThrownBy(() -> sut.resume(PATH, "failed", SESSION_ID))
+        .isInstanceOf(ImportDataException.class)
+        .hasMessage("Import to resume not found");
+  }
+
+  private static ImportReportEntry report(
+      final ImportJobStatus status, final LocalDateTime lastProgressUpdate) {
+    final var report = new ImportReportEntry("failed");
+    report.setStatus(status);
+    report.setLastProgressUpdate(lastProgressUpdate);
+    report.setFileDigest("digest");
+    report.setCheckpointOrdinal(42);
+    return report;
+  }
+
+  @Test
+  void submitWithoutSessionIdGeneratesJobId() {
+    // when
+    final String jobId = sut.submit(PATH, null);
+
+    // then
+    assertThat(jobId).isNotBlank();
+    verify(importReportProcessorMock).queueReport(jobId);
+  }
+
+  @Test
+  void submitWithExistingReportThrowsImportDataException() {
+    // given
+    when(importReportProcessorMock.reportExists(SESSION_ID)).thenReturn(true);
+
+    // when / then
+    assertThatThrownBy(() -> sut.submit(PATH, SESSION_ID))
+        .isInstanceOf(ImportDataException.class)
+        .hasMessage("Import job already exists");
+    verify(importReportProcessorMock, never()).queueReport(anyString());
+  }
+
+  @Test
+  void submitOfConcurrentlyQueuedReportThrowsImportDataException() {
+    // given
+    when(importReportProcessorMock.queueReport(SESSION_ID))
+        .thenThrow(new DataIntegrityViolationException("uq_import_report_entries_session_id"));
+
+    // when / then
+    assertThatThrownBy(() -> sut.submit(PATH, SESSION_ID))
+        .isInstanceOf(ImportDataException.class)
+        .hasMessage("Import job already exists")
+        .extracting("errorCode")
+        .isEqualTo(EgkHashImportJobService.JOB_EXISTS_ERROR_CODE);
+    verify(importJobExecutorMock, never()).execute(any(Runnable.class));
+  }
+
+  @Test
+  void submitWhenQueueIsFullMarksReportFailed() {
+    // given
+    doThrow(new RejectedExecutionException("full"))
+        .when(importJobExecutorMock)
+        .execute(any(Runnable.class));
+
+    // when / then
+    assertThatThrownBy(() -> sut.submit(PATH, SESSION_ID))
+        .isInstanceOf(RejectedExecutionException.class);
+    verify(importReportProcessorMock).failReport(SESSION_ID, "Import job queue is full");
+  }
+
+  @Test
+  void failingImportMarksReportFailedAndDeletesFile() {
+    // given
+    runSubmittedJobsInline();
+    doThrow(new ImportDataException(SESSION_ID, "Invalid signature", "errorCode"))
+        .when(egkHashImportServiceMock)
+        .importData(PATH, SESSION_ID, null);
+
+    // when
+    sut.submit(PATH, SESSION_ID);
+
+    // then
+    verify(importReportProcessorMock).failReport(SESSION_ID, "Invalid signature");
+    verify(egkImportTempFileServiceMock).deleteFile(PATH);
+  }
+
+  @Test
+  void importStreamRunsImportAsJobAndCompletesWhenFinished() {
+    // given
+    runSubmittedJobsInline();
+    final var in = new ByteArrayInputStream(new byte[] {1, 2, 3});
+
+    // when
+    final var job = sut.importStream(in, -1, SESSION_ID);
+
+    // then
+    assertThat(job.jobId()).isEqualTo(SESSION_ID);
+    assertThat(job.finished()).isCompleted();
+    verify(importReportProcessorMock).queueReport(SESSION_ID);
+    verify(egkHashImportServiceMock).importData(in, 0, SESSION_ID);
+    verifyNoInteractions(egkImportTempFileServiceMock);
+  }
+
+  @Test
+  void importStreamMarksReportFailedAndCompletesExceptionally() {
+    // given
+    runSubmittedJobsInline();
+    final var in = new ByteArrayInputStream(new byte[] {1, 2, 3});
+    final var failure = new ImportDataException(SESSION_ID, "Timeout", "errorCode");
+    doThrow(failure).when(egkHashImportServiceMock).importData(in, 3, SESSION_ID);
+
+    // when
+    final var job = sut.importStream(in, 3, SESSION_ID);
+
+    // then
+    assertThat(job.finished()).isCompletedExceptionally();
+    assertThatThrownBy(() -> job.finished().join()).hasCause(failure);
+    verify(importReportProcessorMock).failReport(SESSION_ID, "Timeout");
+  }
+
+  @Test
+  void importStreamWhenJobQueueIsFullMarksReportFailedAndRethrows() {
+    // given
+    doThrow(new RejectedExecutionException("full"))
+        .when(importJobExecutorMock)
+        .execute(any(Runnable.class));
+
+    // when / then
+    assertThatThrownBy(
+            () -> sut.importStream(new ByteArrayInputStream(new byte[] {1}), 1, SESSION_ID))
+        .isInstanceOf(RejectedExecutionException.class);
+    verify(importReportProcessorMock).failReport(SESSION_ID, "Import job queue is full");
+  }
+}
@@ -24,27 +24,44 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.hashdb.EgkHashImportService.ResumePoint;
 import de.gematik.refpopp.popp_server.model.EgkEntry;
 import de.gematik.refpopp.popp_server.model.EgkEntryState;
 import de.gematik.refpopp.popp_server.model.ImportReportEntry;
-import de.gematik.refpopp.popp_server.repository.CertHashRepository;
 import de.gematik.refpopp.popp_server.scenario.common.provider.CommunicationMode;
+import jakarta.persistence.EntityManager;
+import java.io.ByteArrayInputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.function.Consumer;
+import javax.sql.DataSource;
+import org.bouncycastle.cms.CMSSignedDataParser;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
 
 class EgkHashImportServiceTest {
   private CmsSignatureVerifier cmsSignatureVerifierMock;
@@ -53,6 +70,13 @@ class EgkHashImportServiceTest {
   private BatchFlusherFactory batchFlusherFactoryMock;
 
   private ImportReportProcessor importReportProcessorMock;
+  private CMSSignedDataParserFactory cmsSignedDataParserFactoryMock;
+  private TransactionTemplate transactionTemplateMock;
+  private TransactionStatus transactionStatusMock;
+  private EgkEntryBulkWriter egkEntryBulkWriterMock;
+  private EgkImportStagingService egkImportStagingServiceMock;
+  private EgkSnapshotImportService egkSnapshotImportServiceMock;
+  private EgkMergeJoinImportService egkMergeJoinImportServiceMock;
 
   private static final String SESSION_ID = "sessionId";
   private EgkHashImportService sut;
@@ -60,27 +84,81 @@ class EgkHashImportServiceTest {
   @BeforeEach
   void setUp() {
     cmsSignatureVerifierMock = mock(CmsSignatureVerifier.class);
-    final CertHashRepository certHashRepositoryMock = mock(CertHashRepository.class);
+    egkEntryBulkWriterMock = mock(EgkEntryBulkWriter.class);
     egkTransferEntryParserMock = mock(EgkTransferEntryParser.class);
     egkEntryProcessorMock = mock(EgkEntryProcessor.class);
     batchFlusherFactoryMock = mock(BatchFlusherFactory.class);
     importReportProcessorMock = mock(ImportReportProcessor.class);
+    cmsSignedDataParserFactoryMock = mock(CMSSignedDataParserFactory.class);
+    transactionTemplateMock = mock(TransactionTemplate.class);
+    transactionStatusMock = mock(TransactionStatus.class);
+    egkImportStagingServiceMock = mock(EgkImportStagingService.class);
+    egkSnapshotImportServiceMock = mock(EgkSnapshotImportService.class);
+    egkMergeJoinImportServiceMock = mock(EgkMergeJoinImportService.class);
+    doAnswer(
+            invocation -> {
+              final Consumer<TransactionStatus> action = invocation.getArgument(0);
+              action.accept(transactionStatusMock);
+              return null;
+            })
+        .when(transactionTemplateMock)
+        .executeWithoutResult(any());
+    when(batchFlusherFactoryMock.<EgkEntry>create(anyInt(), any()))
+        .thenAnswer(
+            invocation ->
+                new BatchFlusher<EgkEntry>(invocation.getArgument(0), invocation.getArgument(1)));
 
     ImportReportEntry reportMock = mock(ImportReportEntry.class);
     when(importReportProcessorMock.createReport(anyString())).thenReturn(reportMock);
 
-    sut =
-        new EgkHashImportService(
-            cmsSignatureVerifierMock,
-            certHashRepositoryMock,
-            egkTransferEntryParserMock,
-            egkEntryProcessorMock,
-            batchFlusherFactoryMock,
-            importReportProcessorMock);
+    sut = createSut(false);
+  }
+
+  private EgkHashImportService createSut(final boolean singlePass) {
+    return createSut(ImportMode.STREAMING, singlePass);
+  }
+
+  private EgkHashImportService createSut(final ImportMode mode, final boolean singlePass) {
+    return createSut(mode, singlePass, Runtime.getRuntime().availableProcessors() + 1);
+  }
+
+  private EgkHashImportService createSut(
+      final ImportMode mode, final boolean singlePass, final int importPoolSize) {
+    return createSut(mode, singlePass, importPoolSize, 0);
+  }
+
+  private EgkHashImportService createSut(
+      final ImportMode mode,
+      final boolean singlePass,
+      final int importPoolSize,
+      final int consumerThreads) {
+    return new EgkHashImportService(
+        cmsSignatureVerifierMock,
+        egkTransferEntryParserMock,
+        egkEntryProcessorMock,
+        batchFlusherFactoryMock,
+        importReportProcessorMock,
+        cmsSignedDataParserFactoryMock,
+        transactionTemplateMock,
+        mock(EntityManager.class),
+        egkEntryBulkWriterMock,
+        egkImportStagingServiceMock,
+        egkSnapshotImportServiceMock,
+        egkMergeJoinImportServiceMock,
+        new EgkHashFilter(mock(DataSource.class), false, 1, 0.01),
+        new EgkEntryCache(100, 60),
+        new ImportThrottleFactory(new ValidationLatencyMonitor(30, 16, 1), false, 200, 2000, 1000),
+        mode,
+        singlePass,
+        ImportWriteMode.JPA,
+        consumerThreads,
+        10,
+        0,
+        importPoolSize);
   }
 
   @Test
-  void importDataSuccessfully() throws URISyntaxException {
+  void importDataSuccessfully() throws Exception {
     // given
     final var availableProcessors = Runtime.getRuntime().availableProcessors();
     final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
@@ -93,23 +171,37 @@ class EgkHashImportServiceTest {
             .state(EgkEntryState.IMPORTED)
             .communicationMode(CommunicationMode.CONTACT)
             .build();
-    when(egkTransferEntryParserMock.parseAll(any(), anyString()))
-        .thenReturn(List.of(egkTransferEntry));
+    stubParsedEntries(List.of(egkTransferEntry));
     final var path = Paths.get(resource.toURI());
     when(cmsSignatureVerifierMock.isSignatureValid(any(), anyString())).thenReturn(true);
-    when(batchFlusherFactoryMock.<EgkEntry>create(anyInt(), any()))
-        .thenReturn(mock(BatchFlusher.class));
 
     // when
     sut.importData(path, SESSION_ID);
 
     // then
     verify(cmsSignatureVerifierMock).isSignatureValid(any(), eq(SESSION_ID));
-    verify(egkEntryProcessorMock).process(any(), anyString());
-    verify(egkTransferEntryParserMock).parseAll(any(), anyString());
+    verify(egkEntryProcessorMock).processChunk(eq(List.of(egkTransferEntry)), anyString());
+    verify(egkTransferEntryParserMock).parse(any(), anyString(), any());
     verify(batchFlusherFactoryMock, times(availableProcessors)).create(anyInt(), any());
   }
 
+  @Test
+  void importDataStartsNoMoreConsumersThanImportPoolCanServe() throws Exception {
+    // given
+    sut = createSut(ImportMode.STREAMING, false, 3);
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    stubParsedEntries(List.of());
+    when(cmsSignatureVerifierMock.isSignatureValid(any(), anyString())).thenReturn(true);
+
+    // when
+    sut.importData(Paths.get(resource.toURI()), SESSION_ID);
+
+    // then
+    verify(batchFlusherFactoryMock, times(Math.min(2, Runtime.getRuntime().availableProcessors())))
+        .create(anyInt(), any());
+  }
+
   @Test
   void importDataFailsWhenSignatureNotValid() throws URISyntaxException {
     // given
@@ -123,6 +215,10 @@ class EgkHashImportServiceTest {
 
     // then
     verify(cmsSignatureVerifierMock).isSignatureValid(any(), eq(SESSION_ID));
+    verify(importReportProcessorMock)
+        .failReport(any(ImportReportEntry.class), eq("Signature invalid, nothing imported"));
+    verify(importReportProcessorMock, never())
+        .finalizeReport(any(ImportReportEntry.class), anyLong(), anyLong(), anyLong(), anyLong());
   }
 
   @Test
@@ -171,7 +267,7 @@ class EgkHashImportServiceTest {
   }
 
   @Test
-  void importDataCorrectlyCategorizesDifferentEntryStates() throws URISyntaxException {
+  void importDataCorrectlyCategorizesDifferentEntryStates() throws Exception {
     // given
     final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
     assertNotNull(resource, "Import file not found!");
@@ -193,8 +289,7 @@ class EgkHashImportServiceTest {
             .communicationMode(CommunicationMode.CONTACT)
             .build();
 
-    when(egkTransferEntryParserMock.parseAll(any(), anyString()))
-        .thenReturn(List.of(transferEntry1, transferEntry2));
+    stubParsedEntries(List.of(transferEntry1, transferEntry2));
 
     EgkEntry importedEntry =
         new EgkEntry(
@@ -211,15 +306,10 @@ class EgkHashImportServiceTest {
         new EgkEntry(
             new byte[] {7, 8, 9}, new byte[] {7, 8, 9}, EgkEntryState.AD_HOC, LocalDateTime.now());
 
-    when(egkEntryProcessorMock.process(eq(transferEntry1), anyString()))
-        .thenReturn(List.of(importedEntry, skippedEntry));
-
-    when(egkEntryProcessorMock.process(eq(transferEntry2), anyString()))
-        .thenReturn(List.of(blockedEntry));
+    when(egkEntryProcessorMock.processChunk(anyList(), anyString()))
+        .thenReturn(List.of(importedEntry, skippedEntry, blockedEntry));
 
     when(cmsSignatureVerifierMock.isSignatureValid(any(), anyString())).thenReturn(true);
-    when(batchFlusherFactoryMock.<EgkEntry>create(anyInt(), any()))
-        .thenReturn(mock(BatchFlusher.class));
 
     // when
     sut.importData(path, SESSION_ID);
@@ -234,5 +324,498 @@ class EgkHashImportServiceTest {
             eq(1L), // 1 skipped (AD_HOC) entry
             eq(3L) // 3 total entries
             );
+    // the last progress update carries the final counters and both passes over the file
+    verify(importReportProcessorMock)
+        .updateProgress(
+            any(ImportReportEntry.class),
+            eq(1L),
+            eq(1L),
+            eq(1L),
+            eq(3L),
+            anyLong(),
+            eq(2 * Files.size(path)),
+            anyLong());
+  }
+
+  @Test
+  void importDataResumesAfterCheckpointOfSameFile() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final Path path = Paths.get(resource.toURI());
+    final String fileDigest =
+        HexFormat.of()
+            .formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path)));
+    final var entries =
+        List.of(transferEntry(1, (byte) 1), transferEntry(2, (byte) 2), transferEntry(3, (byte) 3));
+    stubParsedEntries(entries);
+    when(cmsSignatureVerifierMock.isSignatureValid(any(), anyString())).thenReturn(true);
+    when(egkEntryProcessorMock.processChunk(anyList(), anyString())).thenReturn(List.of());
+
+    // when
+    sut.importData(path, SESSION_ID, new ResumePoint("failed", fileDigest, 2));
+
+    // then
+    verify(importReportProcessorMock)
+        .startCheckpoints(any(ImportReportEntry.class), eq(fileDigest), eq("failed"), eq(2L));
+    verify(egkEntryProcessorMock).processChunk(List.of(entries.get(2)), SESSION_ID);
+    // the last progress update carries the checkpoint after the last entry
+    verify(importReportProcessorMock)
+        .updateProgress(
+            any(ImportReportEntry.class),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            eq(3L));
+  }
+
+  @Test
+  void importDataRefusesToResumeWithDifferentFile() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final Path path = Paths.get(resource.toURI());
+    when(cmsSignatureVerifierMock.isSignatureValid(any(), anyString())).thenReturn(true);
+
+    // when / then
+    assertThatThrownBy(() -> sut.importData(path, SESSION_ID, new ResumePoint("failed", "00", 2)))
+        .isInstanceOf(ImportDataException.class)
+        .hasMessageContaining("File differs");
+    verify(egkTransferEntryParserMock, never()).parse(any(), anyString(), any());
+  }
+
+  @Test
+  void importDataKeepsCheckpointBeforeEntryThatCouldNotBeProcessed() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var entries =
+        List.of(transferEntry(1, (byte) 1), transferEntry(2, (byte) 2), transferEntry(3, (byte) 3));
+    stubParsedEntries(entries);
+    when(cmsSignatureVerifierMock.isSignatureValid(any(), anyString())).thenReturn(true);
+    when(egkEntryProcessorMock.processChunk(anyList(), anyString()))
+        .thenThrow(new IllegalStateException("chunk failed"));
+    when(egkEntryProcessorMock.process(any(), anyString())).thenReturn(List.of());
+    when(egkEntryProcessorMock.process(eq(entries.get(1)), anyString()))
+        .thenThrow(new IllegalStateException("entry failed"));
+    sut = createSut(ImportMode.STREAMING, false, 3, 1);
+
+    // when
+    sut.importData(Paths.get(resource.toURI()), SESSION_ID);
+
+    // then
+    verify(importReportProcessorMock)
+        .updateProgress(
+            any(ImportReportEntry.class),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            eq(1L));
+    verify(importReportProcessorMock, never())
+        .updateProgress(
+            any(ImportReportEntry.class),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            anyLong(),
+            eq(3L));
+  }
+
+  @Test
+  void importDataFallsBackToSingleEntriesWhenChunkFails() throws URISyntaxException {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final Path path = Paths.get(resource.toURI());
+    final var transferEntry1 =
+        EgkTransferEntry.builder()
+            .autHash(new byte[] {1, 2, 3})
+            .cvcHash(new byte[] {1, 2, 3})
+            .notAfter(LocalDateTime.now())
+            .build();
+    final var transferEntry2 =
+        EgkTransferEntry.builder()
+            .autHash(new byte[] {4, 5, 6})
+            .cvcHash(new byte[] {4, 5, 6})
+            .notAfter(LocalDateTime.now())
+            .build();
+    stubParsedEntries(List.of(transferEntry1, transferEntry2));
+    when(egkEntryProcessorMock.processChunk(anyList(), anyString()))
+        .thenThrow(new IllegalStateException("chunk failed"));
+    when(egkEntryProcessorMock.process(eq(transferEntry1), anyString()))
+        .thenReturn(
+            List.of(
+                new EgkEntry(
+                    new byte[] {1, 2, 3},
+                    new byte[] {1, 2, 3},
+                    EgkEntryState.IMPORTED,
+                    LocalDateTime.now())));
+    when(egkEntryProcessorMock.process(eq(transferEntry2), anyString()))
+        .thenThrow(new IllegalStateException("entry failed"));
+    when(cmsSignatureVerifierMock.isSignatureValid(any(), anyString())).thenReturn(true);
+
+    // when
+    sut.importData(path, SESSION_ID);
+
+    // then
+    verify(importReportProcessorMock)
+        .finalizeReport(any(ImportReportEntry.class), eq(1L), eq(1L), eq(0L), eq(1L));
+  }
+
+  @Test
+  void importDataDoesNotProcessEntriesAgainWhenWriteFails() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var path = Paths.get(resource.toURI());
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    when(egkTransferEntryParserMock.parseSignedContent(eq(cmsParser), anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              final EgkTransferEntryHandler handler = invocation.getArgument(2);
+              handler.handle(transferEntry(1, (byte) 1));
+              return 1L;
+            });
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(true);
+    when(egkEntryProcessorMock.processChunk(anyList(), anyString()))
+        .thenReturn(
+            List.of(
+                new EgkEntry(
+                    new byte[] {1}, new byte[] {1}, EgkEntryState.IMPORTED, LocalDateTime.now())));
+    doThrow(new IllegalStateException("write failed"))
+        .when(egkEntryBulkWriterMock)
+        .writeBatched(anyList(), anyString());
+    sut = createSut(ImportMode.STREAMING, true, 2, 1);
+
+    // when / then
+    assertThatThrownBy(() -> sut.importData(path, SESSION_ID))
+        .isInstanceOf(ImportDataException.class)
+        .hasMessageContaining("write failed");
+    verify(egkEntryProcessorMock, never()).process(any(), anyString());
+    verify(importReportProcessorMock, never())
+        .finalizeReport(any(ImportReportEntry.class), anyLong(), anyLong(), anyLong(), anyLong());
+  }
+
+  @Test
+  void importDataSinglePassCommitsWhenSignatureValid() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var path = Paths.get(resource.toURI());
+    final var transferEntry =
+        EgkTransferEntry.builder()
+            .autHash(new byte[] {1, 2, 3})
+            .cvcHash(new byte[] {1, 2, 3})
+            .notAfter(LocalDateTime.now())
+            .build();
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    when(egkTransferEntryParserMock.parseSignedContent(eq(cmsParser), anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              final EgkTransferEntryHandler handler = invocation.getArgument(2);
+              handler.handle(transferEntry);
+              return 1L;
+            });
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(true);
+    final var importedEntry =
+        new EgkEntry(
+            new byte[] {1, 2, 3},
+            new byte[] {1, 2, 3},
+            EgkEntryState.IMPORTED,
+            LocalDateTime.now());
+    when(egkEntryProcessorMock.processChunk(anyList(), anyString()))
+        .thenReturn(List.of(importedEntry));
+    sut = createSut(true);
+
+    // when
+    sut.importData(path, SESSION_ID);
+
+    // then
+    verify(cmsSignatureVerifierMock, never()).isSignatureValid(any(), anyString());
+    verify(transactionStatusMock, never()).setRollbackOnly();
+    verify(importReportProcessorMock)
+        .finalizeReport(any(ImportReportEntry.class), eq(1L), eq(0L), eq(0L), eq(1L));
+  }
+
+  @Test
+  void importDataSinglePassWritesAllEntriesInOneTransaction() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var path = Paths.get(resource.toURI());
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    // the cvc hash prefixes would route the entries to different consumers in two-pass mode
+    when(egkTransferEntryParserMock.parseSignedContent(eq(cmsParser), anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              final EgkTransferEntryHandler handler = invocation.getArgument(2);
+              handler.handle(transferEntry(1, (byte) 1));
+              handler.handle(transferEntry(2, (byte) 2));
+              return 2L;
+            });
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(true);
+    when(egkEntryProcessorMock.processChunk(anyList(), anyString()))
+        .thenAnswer(invocation -> importedEntries(invocation.getArgument(0)));
+    sut = createSut(ImportMode.STREAMING, true, 3, 2);
+
+    // when
+    sut.importData(path, SESSION_ID);
+
+    // then
+    verify(transactionTemplateMock).executeWithoutResult(any());
+    verify(batchFlusherFactoryMock).create(anyInt(), any());
+    verify(importReportProcessorMock)
+        .finalizeReport(any(ImportReportEntry.class), eq(2L), eq(0L), eq(0L), eq(2L));
+  }
+
+  @Test
+  @Timeout(30)
+  void importDataFailsInsteadOfBlockingWhenConsumerFails() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    // more entries of one shard than its queue can hold
+    final List<EgkTransferEntry> entries = new ArrayList<>();
+    for (int i = 1; i <= 10_000; i++) {
+      entries.add(transferEntry(i, (byte) 1));
+    }
+    stubParsedEntries(entries);
+    when(cmsSignatureVerifierMock.isSignatureValid(any(), anyString())).thenReturn(true);
+    when(egkEntryProcessorMock.processChunk(anyList(), anyString()))
+        .thenAnswer(invocation -> importedEntries(invocation.getArgument(0)));
+    doThrow(new IllegalStateException("write failed"))
+        .when(egkEntryBulkWriterMock)
+        .writeBatched(anyList(), anyString());
+    sut = createSut(ImportMode.STREAMING, false, 3, 2);
+
+    // when / then
+    assertThatThrownBy(() -> sut.importData(Paths.get(resource.toURI()), SESSION_ID))
+        .isInstanceOf(ImportDataException.class)
+        .hasMessageContaining("write failed");
+    verify(importReportProcessorMock, never())
+        .finalizeReport(any(ImportReportEntry.class), anyLong(), anyLong(), anyLong(), anyLong());
+  }
+
+  @Test
+  void importDataFromStreamReadsItOnceEvenInTwoPassMode() throws Exception {
+    // given
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    when(egkTransferEntryParserMock.parseSignedContent(eq(cmsParser), anyString(), any()))
+        .thenReturn(0L);
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(true);
+    sut = createSut(false);
+
+    // when
+    sut.importData(new ByteArrayInputStream(new byte[] {1, 2, 3}), 3, SESSION_ID);
+
+    // then
+    verify(cmsSignatureVerifierMock, never()).isSignatureValid(any(), anyString());
+    verify(cmsSignatureVerifierMock).verifySigners(cmsParser, SESSION_ID);
+    verify(transactionStatusMock, never()).setRollbackOnly();
+    verify(importReportProcessorMock)
+        .finalizeReport(any(ImportReportEntry.class), eq(0L), eq(0L), eq(0L), eq(0L));
+  }
+
+  @Test
+  void importDataSinglePassRollsBackWhenSignatureInvalid() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var path = Paths.get(resource.toURI());
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(false);
+    sut = createSut(true);
+
+    // when
+    sut.importData(path, SESSION_ID);
+
+    // then
+    verify(transactionStatusMock).setRollbackOnly();
+    verify(importReportProcessorMock)
+        .failReport(any(ImportReportEntry.class), eq("Signature invalid, nothing imported"));
+    verify(importReportProcessorMock, never())
+        .finalizeReport(any(ImportReportEntry.class), anyLong(), anyLong(), anyLong(), anyLong());
+  }
+
+  @Test
+  void importDataStagedReconcilesAfterSignatureVerification() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var path = Paths.get(resource.toURI());
+    final var report = new ImportReportEntry(SESSION_ID);
+    report.setId(7L);
+    when(importReportProcessorMock.createReport(SESSION_ID)).thenReturn(report);
+    final var transferEntry =
+        EgkTransferEntry.builder()
+            .autHash(new byte[] {1, 2, 3})
+            .cvcHash(new byte[] {1, 2, 3})
+            .notAfter(LocalDateTime.now())
+            .build();
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    when(egkTransferEntryParserMock.parseSignedContent(eq(cmsParser), anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              final EgkTransferEntryHandler handler = invocation.getArgument(2);
+              handler.handle(transferEntry);
+              return 1L;
+            });
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(true);
+    when(egkImportStagingServiceMock.reconcile(7L, SESSION_ID))
+        .thenReturn(new EgkImportStagingService.ReconciliationResult(1, 2));
+    sut = createSut(ImportMode.STAGING, false);
+
+    // when
+    sut.importData(path, SESSION_ID);
+
+    // then
+    verify(egkImportStagingServiceMock).stage(eq(7L), anyList());
+    verify(egkImportStagingServiceMock, never()).discard(anyLong());
+    verify(egkEntryProcessorMock, never()).processChunk(anyList(), anyString());
+    verify(importReportProcessorMock).finalizeReport(report, 1L, 2L, 0L, 3L);
+  }
+
+  @Test
+  void importDataSnapshotSwapsInStagedRowsInsteadOfReconciling() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var path = Paths.get(resource.toURI());
+    final var report = new ImportReportEntry(SESSION_ID);
+    report.setId(7L);
+    when(importReportProcessorMock.createReport(SESSION_ID)).thenReturn(report);
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    when(egkTransferEntryParserMock.parseSignedContent(eq(cmsParser), anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              final EgkTransferEntryHandler handler = invocation.getArgument(2);
+              handler.handle(transferEntry(1, (byte) 1));
+              handler.handle(transferEntry(2, (byte) 2));
+              return 2L;
+            });
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(true);
+    when(egkSnapshotImportServiceMock.swapIn(7L, SESSION_ID))
+        .thenReturn(new EgkImportStagingService.ReconciliationResult(2, 0));
+    sut = createSut(ImportMode.SNAPSHOT, false);
+
+    // when
+    sut.importData(path, SESSION_ID);
+
+    // then
+    verify(egkImportStagingServiceMock).stage(eq(7L), anyList());
+    verify(egkImportStagingServiceMock, never()).reconcile(anyLong(), anyString());
+    verify(importReportProcessorMock).finalizeReport(report, 2L, 0L, 0L, 2L);
+  }
+
+  @Test
+  void importDataMergeJoinSortsEntriesAndReconcilesThemAfterSignatureCheck() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var path = Paths.get(resource.toURI());
+    final var report = new ImportReportEntry(SESSION_ID);
+    when(importReportProcessorMock.createReport(SESSION_ID)).thenReturn(report);
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    when(egkTransferEntryParserMock.parseSignedContent(eq(cmsParser), anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              final EgkTransferEntryHandler handler = invocation.getArgument(2);
+              handler.handle(transferEntry(1, (byte) 1));
+              handler.handle(transferEntry(2, (byte) 2));
+              return 2L;
+            });
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(true);
+    final var sorter = mock(ExternalPairSorter.class);
+    when(egkMergeJoinImportServiceMock.createSorter()).thenReturn(sorter);
+    when(egkMergeJoinImportServiceMock.reconcile(eq(sorter), any(), eq(SESSION_ID)))
+        .thenReturn(new EgkImportStagingService.ReconciliationResult(1, 1));
+    sut = createSut(ImportMode.MERGE_JOIN, false);
+
+    // when
+    sut.importData(path, SESSION_ID);
+
+    // then
+    verify(sorter, times(2)).add(any(EgkTransferEntry.class));
+    verify(sorter).close();
+    verify(egkImportStagingServiceMock, never()).stage(anyLong(), anyList());
+    verify(importReportProcessorMock).finalizeReport(report, 1L, 1L, 0L, 2L);
+  }
+
+  @Test
+  void importDataStagedDiscardsStagedRowsWhenSignatureInvalid() throws Exception {
+    // given
+    final URL resource = getClass().getClassLoader().getResource("import/no_1.simulation");
+    assertNotNull(resource, "Import file not found!");
+    final var path = Paths.get(resource.toURI());
+    final var report = new ImportReportEntry(SESSION_ID);
+    report.setId(7L);
+    when(importReportProcessorMock.createReport(SESSION_ID)).thenReturn(report);
+    final var cmsParser = mock(CMSSignedDataParser.class);
+    when(cmsSignedDataParserFactoryMock.createParser(any(), anyString())).thenReturn(cmsParser);
+    when(cmsSignatureVerifierMock.verifySigners(cmsParser, SESSION_ID)).thenReturn(false);
+    sut = createSut(ImportMode.STAGING, false);
+
+    // when
+    sut.importData(path, SESSION_ID);
+
+    // then
+    verify(egkImportStagingServiceMock).discard(7L);
+    verify(egkImportStagingServiceMock, never()).reconcile(anyLong(), anyString());
+    verify(importReportProcessorMock).failReport(report, "Signature invalid, nothing imported");
+    verify(importReportProcessorMock, never())
+        .finalizeReport(any(ImportReportEntry.class), anyLong(), anyLong(), anyLong(), anyLong());
+  }
+
+  private static EgkTransferEntry transferEntry(final long ordinal, final byte hash) {
+    return EgkTransferEntry.builder()
+        .autHash(new byte[] {hash})
+        .cvcHash(new byte[] {hash})
+        .notAfter(LocalDateTime.now())
+        .ordinal(ordinal)
+        .build();
+  }
+
+  private static List<EgkEntry> importedEntries(final List<EgkTransferEntry> entries) {
+    return entries.stream()
+        .map(
+            entry ->
+                new EgkEntry(
+                    entry.getCvcHash(),
+                    entry.getAutHash(),
+                    EgkEntryState.IMPORTED,
+                    entry.getNotAfter()))
+        .toList();
+  }
+
+  private void stubParsedEntries(final List<EgkTransferEntry> entries) {
+    try {
+      when(egkTransferEntryParserMock.parse(any(), anyString(), any()))
+          .thenAnswer(
+              invocation -> {
+                final EgkTransferEntryHandler handler = invocation.getArgument(2);
+                for (final var entry : entries) {
+                  handler.handle(entry);
+                }
+                return (long) entries.size();
+              });
+    } catch (final InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
   }
 }
@@ -23,6 +23,7 @@ package de.gematik.refpopp.popp_server.hashdb;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
@@ -33,6 +34,7 @@ import static org.mockito.Mockito.when;
 
 import de.gematik.poppcommons.api.exceptions.ScenarioException;
 import de.gematik.refpopp.popp_server.certificates.X509CertificateParser;
+import de.gematik.refpopp.popp_server.hashdb.EgkEntryPersistenceService.HashCandidates;
 import de.gematik.refpopp.popp_server.model.CheckResult;
 import de.gematik.refpopp.popp_server.model.EgkEntry;
 import de.gematik.refpopp.popp_server.model.EgkEntryState;
@@ -42,6 +44,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.time.LocalDateTime;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -50,7 +53,10 @@ import org.junit.jupiter.params.ParameterizedTest;
 class EgkHashValidationServiceTest {
   private X509CertificateParser x509CertificateParserMock;
   private EgkEntryPersistenceService egkEntryPersistenceServiceMock;
+  private ValidationLatencyMonitor validationLatencyMonitorMock;
   private static final String SESSION_ID = "sessionId";
+  private static final HashCandidates NO_CANDIDATES =
+      new HashCandidates(Optional.empty(), List.of(), List.of());
 
   private EgkHashValidationService sut;
 
@@ -58,7 +64,27 @@ class EgkHashValidationServiceTest {
   void setUp() {
     x509CertificateParserMock = mock(X509CertificateParser.class);
     egkEntryPersistenceServiceMock = mock(EgkEntryPersistenceService.class);
-    sut = new EgkHashValidationService(x509CertificateParserMock, egkEntryPersistenceServiceMock);
+    validationLatencyMonitorMock = mock(ValidationLatencyMonitor.class);
+    sut =
+        new EgkHashValidationService(
+            x509CertificateParserMock,
+            egkEntryPersistenceServiceMock,
+            validationLatencyMonitorMock);
+  }
+
+  @Test
+  void validateAndProcessRecordsLatencyAlsoWhenLookupFails() {
+    // given
+    when(egkEntryPersistenceServiceMock.findCandidates(any(), any()))
+        .thenThrow(new IllegalStateException("db down"));
+
+    // when / then
+    assertThatThrownBy(
+            () ->
+                sut.validateAndProcess(
+                    "cvc".getBytes(), "aut".getBytes(), CommunicationMode.CONTACT, SESSION_ID))
+        .isInstanceOf(IllegalStateException.class);
+    verify(validationLatencyMonitorMock).record(anyLong());
   }
 
   @Test
@@ -70,9 +96,8 @@ class EgkHashValidationServiceTest {
     when(x509CertificateParserMock.parse(any(), eq("sessionId"))).thenReturn(x509CertificateMock);
     when(x509CertificateMock.getNotAfter())
         .thenReturn(new Date(System.currentTimeMillis() + 1000000L));
-    when(egkEntryPersistenceServiceMock.findByCvcAndAutHash(any(), any()))
-        .thenReturn(Optional.empty());
-    when(egkEntryPersistenceServiceMock.process(any(), eq(SESSION_ID)))
+    when(egkEntryPersistenceServiceMock.findCandidates(any(), any())).thenReturn(NO_CANDIDATES);
+    when(egkEntryPersistenceServiceMock.process(any(), eq(NO_CANDIDATES), eq(SESSION_ID)))
         .thenReturn(CheckResult.UNKNOWN);
 
     // when
@@ -80,8 +105,8 @@ class EgkHashValidationServiceTest {
 
     // then
     assertThat(result).isEqualTo(CheckResult.UNKNOWN);
-    verify(egkEntryPersistenceServiceMock).findByCvcAndAutHash(any(), any());
-    verify(egkEntryPersistenceServiceMock).process(any(), eq(SESSION_ID));
+    verify(egkEntryPersistenceServiceMock).findCandidates(any(), any());
+    verify(egkEntryPersistenceServiceMock).process(any(), eq(NO_CANDIDATES), eq(SESSION_ID));
   }
 
   @ParameterizedTest(name = "{index} => communicationMode={0}")
@@ -98,15 +123,15 @@ class EgkHashValidationServiceTest {
         .thenReturn(new Date(System.currentTimeMillis() + 1000000L));
 
     final var egkEntry = new EgkEntry(cvc, aut, EgkEntryState.IMPORTED, LocalDateTime.now());
-    when(egkEntryPersistenceServiceMock.findByCvcAndAutHash(any(), any()))
-        .thenReturn(Optional.of(egkEntry));
+    when(egkEntryPersistenceServiceMock.findCandidates(any(), any()))
+        .thenReturn(new HashCandidates(Optional.of(egkEntry), List.of(), List.of()));
 
     // when
     final var result = sut.validateAndProcess(cvc, aut, communicationMode, SESSION_ID);
 
     // then
     assertThat(result).isEqualTo(CheckResult.MATCH);
-    verify(egkEntryPersistenceServiceMock).findByCvcAndAutHash(any(), any());
+    verify(egkEntryPersistenceServiceMock).findCandidates(any(), any());
   }
 
   @ParameterizedTest(name = "{index} => communicationMode={0}")
@@ -123,15 +148,15 @@ class EgkHashValidationServiceTest {
         .thenReturn(new Date(System.currentTimeMillis() + 1000000L));
 
     final var blockedEntry = new EgkEntry(cvc, aut, EgkEntryState.BLOCKED, LocalDateTime.now());
-    when(egkEntryPersistenceServiceMock.findByCvcAndAutHash(any(), any()))
-        .thenReturn(Optional.of(blockedEntry));
+    when(egkEntryPersistenceServiceMock.findCandidates(any(), any()))
+        .thenReturn(new HashCandidates(Optional.of(blockedEntry), List.of(), List.of()));
 
     // when
     final var result = sut.validateAndProcess(cvc, aut, CommunicationMode.CONTACT, SESSION_ID);
 
     // then
     assertThat(result).isEqualTo(CheckResult.BLOCKED);
-    verify(egkEntryPersistenceServiceMock).findByCvcAndAutHash(any(), any());
+    verify(egkEntryPersistenceServiceMock).findCandidates(any(), any());
   }
 
   @Test
@@ -143,16 +168,16 @@ class EgkHashValidationServiceTest {
     when(x509CertificateParserMock.parse(any(), anyString())).thenReturn(x509CertificateMock);
     when(x509CertificateMock.getNotAfter())
         .thenReturn(new Date(System.currentTimeMillis() + 1000000L));
-    when(egkEntryPersistenceServiceMock.findByCvcAndAutHash(any(), any()))
-        .thenReturn(Optional.empty());
+    when(egkEntryPersistenceServiceMock.findCandidates(any(), any())).thenReturn(NO_CANDIDATES);
 
     // when
     sut.validateAndProcess(cvc, aut, CommunicationMode.CONTACT, SESSION_ID);
 
     // then
-    verify(egkEntryPersistenceServiceMock).findByCvcAndAutHash(any(), any());
+    verify(egkEntryPersistenceServiceMock).findCandidates(any(), any());
     final var argumentCapture = org.mockito.ArgumentCaptor.forClass(EgkTransferEntry.class);
-    verify(egkEntryPersistenceServiceMock).process(argumentCapture.capture(), eq(SESSION_ID));
+    verify(egkEntryPersistenceServiceMock)
+        .process(argumentCapture.capture(), eq(NO_CANDIDATES), eq(SESSION_ID));
     assertThat(argumentCapture.getValue().getCommunicationMode())
         .isEqualTo(CommunicationMode.CONTACT);
   }
@@ -167,16 +192,16 @@ class EgkHashValidationServiceTest {
     when(x509CertificateParserMock.parse(any(), anyString())).thenReturn(x509CertificateMock);
     when(x509CertificateMock.getNotAfter())
         .thenReturn(new Date(System.currentTimeMillis() + 1000000L));
-    when(egkEntryPersistenceServiceMock.findByCvcAndAutHash(any(), any()))
-        .thenReturn(Optional.empty());
+    when(egkEntryPersistenceServiceMock.findCandidates(any(), any())).thenReturn(NO_CANDIDATES);
 
     // when
     sut.validateAndProcess(cvc, aut, CommunicationMode.CONTACTLESS, SESSION_ID);
 
     // then
-    verify(egkEntryPersistenceServiceMock).findByCvcAndAutHash(any(), any());
+    verify(egkEntryPersistenceServiceMock).findCandidates(any(), any());
     final var argumentCapture = org.mockito.ArgumentCaptor.forClass(EgkTransferEntry.class);
-    verify(egkEntryPersistenceServiceMock).process(argumentCapture.capture(), eq(SESSION_ID));
+    verify(egkEntryPersistenceServiceMock)
+        .process(argumentCapture.capture(), eq(NO_CANDIDATES), eq(SESSION_ID));
     assertThat(argumentCapture.getValue().getCommunicationMode())
         .isEqualTo(CommunicationMode.CONTACTLESS);
   }
@@ -186,8 +211,7 @@ class EgkHashValidationServiceTest {
     // given
     final byte[] cvc = "test-cvc".getBytes();
     final byte[] aut = "test-aut".getBytes();
-    when(egkEntryPersistenceServiceMock.findByCvcAndAutHash(any(), any()))
-        .thenReturn(Optional.empty());
+    when(egkEntryPersistenceServiceMock.findCandidates(any(), any())).thenReturn(NO_CANDIDATES);
     final var x509CertificateMock = mock(X509Certificate.class);
     when(x509CertificateParserMock.parse(aut, "sessionId")).thenReturn(x509CertificateMock);
     when(x509CertificateMock.getNotAfter())
@@ -205,7 +229,7 @@ class EgkHashValidationServiceTest {
           .hasMessageContaining("algorithm not found");
 
       // then
-      verify(egkEntryPersistenceServiceMock, never()).findByCvcAndAutHash(any(), any());
+      verify(egkEntryPersistenceServiceMock, never()).findCandidates(any(), any());
     }
   }
 }
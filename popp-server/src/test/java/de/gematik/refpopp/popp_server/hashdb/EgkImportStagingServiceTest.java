@@ -0,0 +1,140 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+class EgkImportStagingServiceTest {
+
+  private static final long REPORT_ID = 42L;
+  private static final LocalDateTime NOT_AFTER = LocalDateTime.of(2030, 1, 1, 12, 0);
+
+  private JdbcTemplate jdbcTemplate;
+  private EgkImportStagingService sut;
+
+  @BeforeEach
+  void setUp() {
+    final var dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:staging;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("DROP TABLE IF EXISTS egk_entries");
+    jdbcTemplate.execute("DROP TABLE IF EXISTS egk_import_staging");
+    jdbcTemplate.execute(
+        "CREATE TABLE egk_entries (id SERIAL PRIMARY KEY, cvc_hash BYTEA NOT NULL,"
+            + " aut_hash BYTEA NOT NULL, state SMALLINT NOT NULL, not_after TIMESTAMP NOT NULL)");
+    jdbcTemplate.execute(
+        "CREATE TABLE egk_import_staging (report_id BIGINT NOT NULL, cvc_hash BYTEA NOT NULL,"
+            + " aut_hash BYTEA NOT NULL, not_after TIMESTAMP NOT NULL, new_state SMALLINT)");
+    sut =
+        new EgkImportStagingService(
+            dataSource, new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+  }
+
+  @Test
+  void reconcileAppliesSameDecisionsAsEntryProcessor() {
+    // given
+    insertEntry(new byte[] {1}, new byte[] {1}, EgkEntryState.AD_HOC);
+    insertEntry(new byte[] {2}, new byte[] {2}, EgkEntryState.IMPORTED);
+    insertEntry(new byte[] {3}, new byte[] {9}, EgkEntryState.IMPORTED);
+    sut.stage(
+        REPORT_ID,
+        List.of(
+            transferEntry(new byte[] {1}, new byte[] {1}),
+            transferEntry(new byte[] {2}, new byte[] {2}),
+            transferEntry(new byte[] {3}, new byte[] {3}),
+            transferEntry(new byte[] {4}, new byte[] {4})));
+
+    // when
+    final var result = sut.reconcile(REPORT_ID, "session-id");
+
+    // then
+    assertThat(result.importedCount()).isEqualTo(2);
+    assertThat(result.blockedCount()).isEqualTo(2);
+    assertThat(result.totalProcessedCount()).isEqualTo(4);
+    assertThat(jdbcTemplate.queryForList("SELECT state FROM egk_entries ORDER BY id", Short.class))
+        .containsExactly((short) 1, (short) 1, (short) 3, (short) 1, (short) 3);
+    assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM egk_import_staging", Long.class))
+        .isZero();
+  }
+
+  @Test
+  void reconcileBlocksConflictsBetweenEntriesOfTheSameFile() {
+    // given
+    sut.stage(
+        REPORT_ID,
+        List.of(
+            transferEntry(new byte[] {1}, new byte[] {1}),
+            transferEntry(new byte[] {1}, new byte[] {2}),
+            transferEntry(new byte[] {3}, new byte[] {3}),
+            transferEntry(new byte[] {4}, new byte[] {3}),
+            transferEntry(new byte[] {5}, new byte[] {5})));
+
+    // when
+    final var result = sut.reconcile(REPORT_ID, "session-id");
+
+    // then
+    assertThat(result.importedCount()).isEqualTo(1);
+    assertThat(result.blockedCount()).isEqualTo(4);
+    assertThat(
+            jdbcTemplate.queryForList(
+                "SELECT state FROM egk_entries WHERE cvc_hash <> ?", Short.class, new byte[] {5}))
+        .containsOnly((short) 3);
+  }
+
+  @Test
+  void discardRemovesOnlyRowsOfTheImport() {
+    // given
+    sut.stage(REPORT_ID, List.of(transferEntry(new byte[] {1}, new byte[] {1})));
+    sut.stage(REPORT_ID + 1, List.of(transferEntry(new byte[] {2}, new byte[] {2})));
+
+    // when
+    sut.discard(REPORT_ID);
+
+    // then
+    assertThat(jdbcTemplate.queryForList("SELECT report_id FROM egk_import_staging", Long.class))
+        .containsExactly(REPORT_ID + 1);
+    assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM egk_entries", Long.class))
+        .isZero();
+  }
+
+  private void insertEntry(final byte[] cvcHash, final byte[] autHash, final EgkEntryState state) {
+    jdbcTemplate.update(
+        "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)",
+        cvcHash,
+        autHash,
+        state.getCode(),
+        NOT_AFTER);
+  }
+
+  private static EgkTransferEntry transferEntry(final byte[] cvcHash, final byte[] autHash) {
+    return EgkTransferEntry.builder().cvcHash(cvcHash).autHash(autHash).notAfter(NOT_AFTER).build();
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1UTCTime;
+import org.bouncycastle.asn1.BERSequence;
+import org.bouncycastle.asn1.BERSet;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.junit.jupiter.api.Test;
+
+class EgkInfoDecoderTest {
+
+  @Test
+  void nextReadsRecordsWithIndefiniteLengthsAndSkipsUnknownFields() throws Exception {
+    // given
+    final var utcTime = new ASN1UTCTime("300101120000Z");
+    final var content =
+        new BERSequence(
+            new ASN1Encodable[] {
+              new ASN1Integer(1),
+              new BERSequence(
+                  new ASN1Encodable[] {
+                    new BERSet(
+                        new ASN1Encodable[] {
+                          utcTime,
+                          new ASN1Integer(7),
+                          new DEROctetString(new byte[] {1, 2}),
+                          new DERBitString(new byte[] {3, (byte) 0xFF}, 4)
+                        }),
+                    new DERSet(
+                        new ASN1Encodable[] {
+                          new ASN1UTCTime("300101120000Z"),
+                          new DEROctetString(new byte[] {5}),
+                          new DERBitString(new byte[] {6})
+                        })
+                  })
+            });
+    final var sut = decoder(content.getEncoded(ASN1Encoding.BER));
+
+    // when
+    sut.readHeader();
+
+    // then
+    assertThat(sut.next()).isTrue();
+    assertThat(sut.isComplete()).isTrue();
+    assertThat(sut.copyCvcHash()).containsExactly(1, 2);
+    assertThat(sut.copyAutHash()).containsExactly(3, 0xF0);
+    final var notAfter = sut.notAfter();
+    assertThat(notAfter)
+        .isEqualTo(
+            LocalDateTime.ofInstant(utcTime.getDate().toInstant(), ZoneId.of("Europe/Berlin")));
+    assertThat(sut.next()).isTrue();
+    assertThat(sut.copyCvcHash()).containsExactly(5);
+    assertThat(sut.copyAutHash()).containsExactly(6);
+    assertThat(sut.notAfter()).isSameAs(notAfter);
+    assertThat(sut.next()).isFalse();
+  }
+
+  @Test
+  void notAfterAppliesOffsetOfUtcTimeWithoutSeconds() throws Exception {
+    // given
+    final var sut = decoder(encode(new DERSet(new ASN1UTCTime("3007011200+0100"))));
+    sut.readHeader();
+
+    // when
+    sut.next();
+
+    // then
+    assertThat(sut.notAfter()).isEqualTo(LocalDateTime.of(2030, 7, 1, 13, 0));
+    assertThat(sut.isComplete()).isFalse();
+  }
+
+  @Test
+  void notAfterReusesInstanceOfEarlierRecordWithSameNotAfter() throws Exception {
+    // given
+    final var sut =
+        decoder(
+            encode(
+                new DERSet(new ASN1UTCTime("300101120000Z")),
+                new DERSet(new ASN1UTCTime("310101120000Z")),
+                new DERSet(new ASN1UTCTime("300101120000Z"))));
+    sut.readHeader();
+    sut.next();
+    final var first = sut.notAfter();
+    sut.next();
+    final var second = sut.notAfter();
+
+    // when
+    sut.next();
+
+    // then
+    assertThat(second).isEqualTo(LocalDateTime.of(2031, 1, 1, 13, 0));
+    assertThat(sut.notAfter()).isSameAs(first);
+  }
+
+  @Test
+  void nextReadsRecordsBeyondTheBuffer() throws Exception {
+    // given
+    final var records = new ASN1Encodable[5_000];
+    for (int i = 0; i < records.length; i++) {
+      records[i] =
+          new DERSet(
+              new ASN1Encodable[] {
+                new ASN1UTCTime("300101120000Z"),
+                new DEROctetString(filled(32, i)),
+                new DERBitString(filled(32, i + 1))
+              });
+    }
+    final var sut = decoder(encode(records));
+    sut.readHeader();
+
+    // when
+    int count = 0;
+    while (sut.next()) {
+      assertThat(sut.copyCvcHash()).isEqualTo(filled(32, count));
+      assertThat(sut.copyAutHash()).isEqualTo(filled(32, count + 1));
+      count++;
+    }
+
+    // then
+    assertThat(count).isEqualTo(records.length);
+  }
+
+  @Test
+  void nextThrowsOnTruncatedContent() throws Exception {
+    // given
+    final byte[] encoded =
+        encode(
+            new DERSet(
+                new ASN1Encodable[] {
+                  new ASN1UTCTime("300101120000Z"), new DEROctetString(new byte[] {1})
+                }));
+    final var sut = decoder(Arrays.copyOf(encoded, encoded.length - 1));
+    sut.readHeader();
+
+    // when / then
+    assertThatThrownBy(sut::next).isInstanceOf(EOFException.class);
+  }
+
+  @Test
+  void nextThrowsOnInvalidUtcTime() throws Exception {
+    // given
+    final var sut = decoder(encode(new DERSet(new ASN1UTCTime("301301120000Z"))));
+    sut.readHeader();
+
+    // when / then
+    assertThatThrownBy(sut::next).isInstanceOf(IOException.class).hasMessage("Invalid UTCTime");
+  }
+
+  @Test
+  void epochDayMatchesLocalDate() {
+    for (var date = LocalDate.of(1950, 1, 1);
+        date.isBefore(LocalDate.of(2050, 1, 1));
+        date = date.plusDays(13)) {
+      assertThat(
+              EgkInfoDecoder.epochDay(date.getYear(), date.getMonthValue(), date.getDayOfMonth()))
+          .isEqualTo(date.toEpochDay());
+    }
+  }
+
+  private static byte[] encode(final ASN1Encodable... records) throws IOException {
+    return new DERSequence(new ASN1Encodable[] {new ASN1Integer(1), new DERSequence(records)})
+        .getEncoded(ASN1Encoding.DER);
+  }
+
+  private static byte[] filled(final int length, final int value) {
+    final byte[] bytes = new byte[length];
+    Arrays.fill(bytes, (byte) value);
+    return bytes;
+  }
+
+  private static EgkInfoDecoder decoder(final byte[] encoded) {
+    return new EgkInfoDecoder(new ByteArrayInputStream(encoded));
+  }
+}
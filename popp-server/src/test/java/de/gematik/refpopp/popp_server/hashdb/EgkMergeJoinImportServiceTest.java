@@ -0,0 +1,134 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.gematik.refpopp.popp_server.hashdb.EgkImportStagingService.ReconciliationResult;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.time.LocalDateTime;
+import java.util.OptionalLong;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+class EgkMergeJoinImportServiceTest {
+
+  private static final LocalDateTime NOT_AFTER = LocalDateTime.of(2030, 1, 1, 12, 0);
+
+  private JdbcTemplate jdbcTemplate;
+  private EgkMergeJoinImportService sut;
+
+  @BeforeEach
+  void setUp() {
+    final var dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:merge-join;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("DROP TABLE IF EXISTS egk_entries");
+    jdbcTemplate.execute(
+        "CREATE TABLE egk_entries (id SERIAL PRIMARY KEY, cvc_hash BYTEA NOT NULL,"
+            + " aut_hash BYTEA NOT NULL, state SMALLINT NOT NULL, not_after TIMESTAMP NOT NULL,"
+            + " UNIQUE (cvc_hash, aut_hash))");
+    // runs and pages of two pairs make every pass merge runs and read several pages
+    sut =
+        new EgkMergeJoinImportService(
+            dataSource,
+            new TransactionTemplate(new DataSourceTransactionManager(dataSource)),
+            new EgkEntryBulkWriter(dataSource, 0),
+            "",
+            2,
+            2);
+  }
+
+  @Test
+  void reconcileAppliesSameDecisionsAsEntryProcessor() throws InterruptedException {
+    // given
+    insertEntry(1, 1, EgkEntryState.AD_HOC);
+    insertEntry(2, 2, EgkEntryState.IMPORTED);
+    insertEntry(3, 9, EgkEntryState.IMPORTED);
+    insertEntry(5, 5, EgkEntryState.AD_HOC);
+    insertEntry(6, 6, EgkEntryState.IMPORTED);
+
+    // when
+    final ReconciliationResult result;
+    try (final var sorter = sut.createSorter()) {
+      sorter.add(transferEntry(0xF0, 12));
+      sorter.add(transferEntry(8, 11));
+      sorter.add(transferEntry(1, 1));
+      sorter.add(transferEntry(4, 4));
+      sorter.add(transferEntry(2, 2));
+      sorter.add(transferEntry(7, 6));
+      sorter.add(transferEntry(3, 3));
+      sorter.add(transferEntry(4, 4));
+      sorter.add(transferEntry(8, 10));
+      result = sut.reconcile(sorter, unthrottled(), "session-id");
+    }
+
+    // then
+    assertThat(result.importedCount()).isEqualTo(3);
+    assertThat(result.blockedCount()).isEqualTo(6);
+    assertThat(stateOf(1, 1)).isEqualTo(EgkEntryState.IMPORTED.getCode());
+    assertThat(stateOf(2, 2)).isEqualTo(EgkEntryState.IMPORTED.getCode());
+    assertThat(stateOf(3, 9)).isEqualTo(EgkEntryState.BLOCKED.getCode());
+    assertThat(stateOf(3, 3)).isEqualTo(EgkEntryState.BLOCKED.getCode());
+    assertThat(stateOf(4, 4)).isEqualTo(EgkEntryState.IMPORTED.getCode());
+    assertThat(stateOf(5, 5)).isEqualTo(EgkEntryState.AD_HOC.getCode());
+    assertThat(stateOf(6, 6)).isEqualTo(EgkEntryState.BLOCKED.getCode());
+    assertThat(stateOf(7, 6)).isEqualTo(EgkEntryState.BLOCKED.getCode());
+    assertThat(stateOf(8, 10)).isEqualTo(EgkEntryState.BLOCKED.getCode());
+    assertThat(stateOf(8, 11)).isEqualTo(EgkEntryState.BLOCKED.getCode());
+    assertThat(stateOf(0xF0, 12)).isEqualTo(EgkEntryState.IMPORTED.getCode());
+    assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM egk_entries", Long.class))
+        .isEqualTo(11);
+  }
+
+  private static ImportThrottle unthrottled() {
+    return new ImportThrottle(1, Long.MAX_VALUE, 0, OptionalLong::empty, decision -> {});
+  }
+
+  private void insertEntry(final int cvcHash, final int autHash, final EgkEntryState state) {
+    jdbcTemplate.update(
+        "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)",
+        new byte[] {(byte) cvcHash},
+        new byte[] {(byte) autHash},
+        state.getCode(),
+        NOT_AFTER);
+  }
+
+  private Short stateOf(final int cvcHash, final int autHash) {
+    return jdbcTemplate.queryForObject(
+        "SELECT state FROM egk_entries WHERE cvc_hash = ? AND aut_hash = ?",
+        Short.class,
+        new byte[] {(byte) cvcHash},
+        new byte[] {(byte) autHash});
+  }
+
+  private static EgkTransferEntry transferEntry(final int cvcHash, final int autHash) {
+    return EgkTransferEntry.builder()
+        .cvcHash(new byte[] {(byte) cvcHash})
+        .autHash(new byte[] {(byte) autHash})
+        .notAfter(NOT_AFTER)
+        .build();
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import de.gematik.refpopp.popp_server.scenario.BaseIntegrationTest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+class EgkSnapshotImportServiceIT extends BaseIntegrationTest {
+
+  private static final long REPORT_ID = 4711L;
+  private static final LocalDateTime NOT_AFTER = LocalDateTime.of(2030, 1, 1, 12, 0);
+
+  @Autowired private DataSource dataSource;
+  @Autowired private PlatformTransactionManager transactionManager;
+  @Autowired private EgkImportStagingService egkImportStagingService;
+
+  private JdbcTemplate jdbcTemplate;
+  private HookedTransactionTemplate transactionTemplate;
+
+  @BeforeEach
+  void setUp() {
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("TRUNCATE egk_entries, egk_import_staging");
+    transactionTemplate = new HookedTransactionTemplate(transactionManager);
+  }
+
+  @AfterEach
+  void tearDown() {
+    jdbcTemplate.execute("DROP VIEW IF EXISTS egk_entries_view");
+  }
+
+  @Test
+  void swapInMergesAdHocAndBlockedEntriesWrittenDuringTheImport() {
+    // given
+    insertEntry(1, 1, EgkEntryState.AD_HOC);
+    insertEntry(2, 2, EgkEntryState.IMPORTED);
+    insertEntry(3, 3, EgkEntryState.BLOCKED);
+    stage(pair(1, 1), pair(3, 3), pair(4, 4), pair(5, 5), pair(6, 6));
+    // merged with the online rows after the capture trigger has been created
+    transactionTemplate.beforeTransaction(() -> insertEntry(7, 7, EgkEntryState.AD_HOC));
+    // recorded by the capture trigger and merged while the table is locked for the swap
+    transactionTemplate.beforeTransaction(
+        () -> {
+          insertEntry(8, 8, EgkEntryState.AD_HOC);
+          insertEntry(5, 9, EgkEntryState.BLOCKED);
+          jdbcTemplate.update(
+              "UPDATE egk_entries SET state = 3 WHERE cvc_hash = ? AND aut_hash = ?",
+              hash(1),
+              hash(1));
+        });
+
+    // when
+    final var result = createSut(5000, 3).swapIn(REPORT_ID, "session-id");
+
+    // then
+    assertThat(result.importedCount()).isEqualTo(4);
+    assertThat(result.blockedCount()).isEqualTo(1);
+    assertThat(states())
+        .containsExactly("1/1:3", "3/3:3", "4/4:1", "5/5:3", "5/9:3", "6/6:1", "7/7:2", "8/8:2");
+    assertThat(
+            jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM egk_import_staging WHERE report_id = ?",
+                Long.class,
+                REPORT_ID))
+        .isZero();
+    assertThat(
+            jdbcTemplate.queryForList(
+                "SELECT indexname FROM pg_indexes WHERE tablename = 'egk_entries'", String.class))
+        .containsExactlyInAnyOrder(
+            "egk_entries_pkey",
+            "idx_egk_entries_cvc_aut_hash",
+            "idx_egk_entries_aut_hash",
+            "idx_egk_entries_not_after");
+    assertSnapshotObjectsRemoved();
+  }
+
+  @Test
+  void swapInBlocksPairsOfTheFileSharingAHash() {
+    // given
+    stage(pair(1, 1), pair(1, 2), pair(3, 4), pair(5, 4), pair(6, 6));
+
+    // when
+    final var result = createSut(5000, 3).swapIn(REPORT_ID, "session-id");
+
+    // then
+    assertThat(result.importedCount()).isEqualTo(1);
+    assertThat(result.blockedCount()).isEqualTo(4);
+    assertThat(states()).containsExactly("1/1:3", "1/2:3", "3/4:3", "5/4:3", "6/6:1");
+  }
+
+  @Test
+  void swapInRetriesWhileTheTableIsLocked() {
+    // given
+    insertEntry(1, 1, EgkEntryState.IMPORTED);
+    stage(pair(2, 2));
+    final var locked = new CountDownLatch(1);
+    final var released = new AtomicBoolean();
+    transactionTemplate.beforeTransaction(() -> {});
+    transactionTemplate.beforeTransaction(
+        () -> {
+          CompletableFuture.runAsync(() -> holdRowShareLock(locked, released, 500));
+          await(locked);
+        });
+
+    // when
+    final var result = createSut(100, 20).swapIn(REPORT_ID, "session-id");
+
+    // then
+    assertThat(result.importedCount()).isEqualTo(1);
+    assertThat(released).isTrue();
+    assertThat(states()).containsExactly("2/2:1");
+    assertSnapshotObjectsRemoved();
+  }
+
+  @Test
+  void swapInKeepsLiveTableAndRemovesShadowTableAndTriggerWhenSwapFails() {
+    // given
+    insertEntry(1, 1, EgkEntryState.IMPORTED);
+    stage(pair(2, 2));
+    transactionTemplate.beforeTransaction(() -> {});
+    // the view keeps the live table from being dropped
+    transactionTemplate.beforeTransaction(
+        () -> jdbcTemplate.execute("CREATE VIEW egk_entries_view AS SELECT * FROM egk_entries"));
+    final var sut = createSut(5000, 3);
+
+    // when / then
+    assertThatThrownBy(() -> sut.swapIn(REPORT_ID, "session-id"))
+        .isInstanceOf(ImportDataException.class)
+        .hasMessageContaining("Snapshot import failed");
+    assertThat(states()).containsExactly("1/1:1");
+    assertSnapshotObjectsRemoved();
+  }
+
+  private EgkSnapshotImportService createSut(final long lockTimeoutMillis, final int swapAttempts) {
+    return new EgkSnapshotImportService(
+        dataSource, transactionTemplate, egkImportStagingService, lockTimeoutMillis, swapAttempts);
+  }
+
+  private void assertSnapshotObjectsRemoved() {
+    assertThat(
+            jdbcTemplate.queryForObject(
+                "SELECT to_regclass('egk_entries_shadow') IS NULL"
+                    + " AND to_regclass('egk_entries_snapshot_delta') IS NULL",
+                Boolean.class))
+        .isTrue();
+    assertThat(
+            jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM pg_trigger WHERE tgname = 'egk_entries_snapshot_delta'",
+                Long.class))
+        .isZero();
+    assertThat(
+            jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM pg_proc WHERE proname = 'egk_entries_capture_snapshot_delta'",
+                Long.class))
+        .isZero();
+  }
+
+  private void holdRowShareLock(
+      final CountDownLatch locked, final AtomicBoolean released, final long millis) {
+    try (final Connection connection = dataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      try (final var statement = connection.createStatement()) {
+        // does not block the capture trigger, but the exclusive lock of the swap
+        statement.execute("LOCK TABLE egk_entries IN ROW SHARE MODE");
+        locked.countDown();
+        Thread.sleep(millis);
+      }
+      released.set(true);
+      connection.commit();
+    } catch (final SQLException e) {
+      throw new IllegalStateException(e);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(final CountDownLatch latch) {
+    try {
+      assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void insertEntry(final int cvc, final int aut, final EgkEntryState state) {
+    jdbcTemplate.update(
+        "INSERT INTO egk_entries (cvc_hash, aut_hash, state, not_after) VALUES (?, ?, ?, ?)",
+        hash(cvc),
+        hash(aut),
+        state.getCode(),
+        NOT_AFTER);
+  }
+
+  private void stage(final EgkTransferEntry... entries) {
+    egkImportStagingService.stage(REPORT_ID, List.of(entries));
+  }
+
+  /** The entries as "cvc/aut:state", ordered by their hashes. */
+  private List<String> states() {
+    return jdbcTemplate.query(
+        "SELECT cvc_hash, aut_hash, state FROM egk_entries ORDER BY cvc_hash, aut_hash",
+        (rs, rowNum) -> rs.getBytes(1)[0] + "/" + rs.getBytes(2)[0] + ":" + rs.getShort(3));
+  }
+
+  private static EgkTransferEntry pair(final int cvc, final int aut) {
+    return EgkTransferEntry.builder()
+        .cvcHash(hash(cvc))
+        .autHash(hash(aut))
+        .notAfter(NOT_AFTER)
+        .build();
+  }
+
+  private static byte[] hash(final int value) {
+    final byte[] hash = new byte[32];
+    Arrays.fill(hash, (byte) value);
+    return hash;
+  }
+
+  /**
+   * Runs the given actions in order before the transactions of the snapshot import, the first
+   * before the merge of the online rows and the second before the swap.
+   */
+  private static final class HookedTransactionTemplate extends TransactionTemplate {
+
+    private final Queue<Runnable> hooks = new ArrayDeque<>();
+
+    HookedTransactionTemplate(final PlatformTransactionManager transactionManager) {
+      super(transactionManager);
+    }
+
+    void beforeTransaction(final Runnable hook) {
+      hooks.add(hook);
+    }
+
+    @Override
+    public <T> T execute(final TransactionCallback<T> action) throws TransactionException {
+      final Runnable hook = hooks.poll();
+      if (hook != null) {
+        hook.run();
+      }
+      return super.execute(action);
+    }
+  }
+}
@@ -28,25 +28,33 @@ import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import de.gematik.poppcommons.api.exceptions.ImportDataException;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.List;
 import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
 import org.bouncycastle.asn1.ASN1SequenceParser;
 import org.bouncycastle.asn1.ASN1SetParser;
 import org.bouncycastle.asn1.ASN1UTCTime;
 import org.bouncycastle.asn1.DERBitString;
 import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
 import org.bouncycastle.cms.CMSSignedDataParser;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.mockito.Answers;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -60,12 +68,13 @@ class EgkTransferEntryParserTest {
   @Mock(answer = Answers.RETURNS_DEEP_STUBS)
   private CMSSignedDataParser cmsSignedDataParser;
 
-  @InjectMocks private EgkTransferEntryParser sut;
+  private EgkTransferEntryParser sut;
 
   private static final String SESSION_ID = "test-session";
 
   @BeforeEach
   void setUp() {
+    sut = new EgkTransferEntryParser(cmsSignedDataParserFactory, asn1StreamParserFactory, false);
     when(cmsSignedDataParserFactory.createParser(any(InputStream.class), eq(SESSION_ID)))
         .thenReturn(cmsSignedDataParser);
   }
@@ -114,6 +123,7 @@ class EgkTransferEntryParserTest {
                   LocalDateTime.ofInstant(
                       utcTime.getDate().toInstant(), ZoneId.of("Europe/Berlin"));
               assertThat(entry.getNotAfter()).isEqualTo(expectedLocal);
+              assertThat(entry.getOrdinal()).isEqualTo(1);
             });
 
     verify(asn1StreamParserFactory).create(any(InputStream.class));
@@ -147,4 +157,127 @@ class EgkTransferEntryParserTest {
         .isInstanceOf(ImportDataException.class)
         .hasMessageContaining("| Missing fields in egkInfo");
   }
+
+  @Test
+  void parseHandsEntriesToHandlerWhileStreaming() throws Exception {
+    // given
+    final var contentParser = mock(org.bouncycastle.asn1.ASN1StreamParser.class);
+    when(asn1StreamParserFactory.create(any(InputStream.class))).thenReturn(contentParser);
+
+    final var seqParser = mock(ASN1SequenceParser.class);
+    final var infosParser = mock(ASN1SequenceParser.class);
+    when(contentParser.readObject()).thenReturn(seqParser);
+    when(seqParser.readObject()).thenReturn(mock(ASN1Encodable.class)).thenReturn(infosParser);
+
+    final var firstSet = mock(ASN1SetParser.class);
+    final var secondSet = mock(ASN1SetParser.class);
+    when(infosParser.readObject()).thenReturn(firstSet).thenReturn(secondSet).thenReturn(null);
+    when(firstSet.readObject())
+        .thenReturn(new ASN1UTCTime("230101120000Z"))
+        .thenReturn(new DEROctetString(new byte[] {0x01}))
+        .thenReturn(new DERBitString(new byte[] {0x02}))
+        .thenReturn(null);
+    when(secondSet.readObject())
+        .thenReturn(new ASN1UTCTime("230101120000Z"))
+        .thenReturn(new DEROctetString(new byte[] {0x03}))
+        .thenReturn(new DERBitString(new byte[] {0x04}))
+        .thenReturn(null);
+    final List<EgkTransferEntry> handled = new ArrayList<>();
+
+    // when
+    final long count = sut.parse(mock(InputStream.class), SESSION_ID, handled::add);
+
+    // then
+    assertThat(count).isEqualTo(2);
+    assertThat(handled)
+        .extracting(EgkTransferEntry::getCvcHash)
+        .containsExactly(new byte[] {0x01}, new byte[] {0x03});
+  }
+
+  @Test
+  void parseWithDerDecoderReturnsSameEntriesAsAsn1StreamParser() throws Exception {
+    // given
+    final byte[] content =
+        new DERSequence(
+                new ASN1Encodable[] {
+                  new ASN1Integer(1),
+                  new DERSequence(
+                      new ASN1Encodable[] {
+                        new DERSet(
+                            new ASN1Encodable[] {
+                              new ASN1UTCTime("300101120000Z"),
+                              new DEROctetString(new byte[] {0x01, 0x02}),
+                              new DERBitString(new byte[] {0x03, 0x04})
+                            }),
+                        new DERSet(
+                            new ASN1Encodable[] {
+                              new ASN1UTCTime("310630235959Z"),
+                              new DEROctetString(new byte[] {0x05}),
+                              new DERBitString(new byte[] {0x06, (byte) 0xFF}, 3)
+                            })
+                      })
+                })
+            .getEncoded();
+    when(cmsSignedDataParser.getSignedContent().getContentStream())
+        .thenAnswer(invocation -> new ByteArrayInputStream(content));
+    final var asn1Parser =
+        new EgkTransferEntryParser(
+            cmsSignedDataParserFactory, new ASN1StreamParserFactory(), false);
+    sut = new EgkTransferEntryParser(cmsSignedDataParserFactory, asn1StreamParserFactory, true);
+
+    // when
+    final var decoded = sut.parseAll(mock(InputStream.class), SESSION_ID);
+    final var parsed = asn1Parser.parseAll(mock(InputStream.class), SESSION_ID);
+
+    // then
+    assertThat(decoded)
+        .hasSize(2)
+        .usingRecursiveFieldByFieldElementComparator()
+        .containsExactlyElementsOf(parsed);
+    verifyNoInteractions(asn1StreamParserFactory);
+  }
+
+  @ParameterizedTest
+  @CsvSource({"00, 2000", "46, 2046", "47, 2047", "49, 2049", "50, 1950", "99, 1999"})
+  void parseWithDerDecoderReturnsSameNotAfterAsAsn1StreamParserForTwoDigitYears(
+      final String twoDigitYear, final int year) throws Exception {
+    // given
+    final byte[] content =
+        new DERSequence(
+                new ASN1Encodable[] {
+                  new ASN1Integer(1),
+                  new DERSequence(
+                      new DERSet(
+                          new ASN1Encodable[] {
+                            new ASN1UTCTime(twoDigitYear + "0615100000Z"),
+                            new DEROctetString(new byte[] {0x01}),
+                            new DERBitString(new byte[] {0x02})
+                          }))
+                })
+            .getEncoded();
+    when(cmsSignedDataParser.getSignedContent().getContentStream())
+        .thenAnswer(invocation -> new ByteArrayInputStream(content));
+    final var asn1Parser =
+        new EgkTransferEntryParser(
+            cmsSignedDataParserFactory, new ASN1StreamParserFactory(), false);
+    sut = new EgkTransferEntryParser(cmsSignedDataParserFactory, asn1StreamParserFactory, true);
+
+    // when
+    final var decoded = sut.parseAll(mock(InputStream.class), SESSION_ID);
+    final var parsed = asn1Parser.parseAll(mock(InputStream.class), SESSION_ID);
+
+    // then
+    final var notAfter =
+        LocalDateTime.ofInstant(
+            LocalDateTime.of(year, 6, 15, 10, 0).toInstant(ZoneOffset.UTC),
+            ZoneId.of("Europe/Berlin"));
+    assertThat(decoded)
+        .singleElement()
+        .extracting(EgkTransferEntry::getNotAfter)
+        .isEqualTo(notAfter);
+    assertThat(parsed)
+        .singleElement()
+        .extracting(EgkTransferEntry::getNotAfter)
+        .isEqualTo(notAfter);
+  }
 }
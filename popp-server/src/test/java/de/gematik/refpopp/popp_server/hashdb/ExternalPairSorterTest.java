@@ -0,0 +1,100 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import de.gematik.refpopp.popp_server.hashdb.ExternalPairSorter.Pair;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ExternalPairSorterTest {
+
+  private static final LocalDateTime NOT_AFTER = LocalDateTime.of(2030, 1, 1, 12, 0, 0, 5);
+
+  @Test
+  void sortedMergesRunsInUnsignedHashOrder(@TempDir final Path tempDir) {
+    // given
+    final List<Pair> sorted = new ArrayList<>();
+    try (final var sut = new ExternalPairSorter(tempDir, 2, ExternalPairSorter.BY_AUT_HASH)) {
+      sut.add(pair(1, 0xF0, NOT_AFTER, null, false));
+      sut.add(pair(2, 3, null, EgkEntryState.AD_HOC, true));
+      sut.add(pair(3, 0x10, NOT_AFTER, EgkEntryState.BLOCKED, false));
+      sut.add(pair(1, 3, NOT_AFTER, null, false));
+      sut.add(pair(4, 0x7F, null, EgkEntryState.IMPORTED, false));
+
+      // when
+      sut.sorted().forEachRemaining(sorted::add);
+
+      // then
+      assertThat(sut.size()).isEqualTo(5);
+      assertThat(sut.runCount()).isEqualTo(2);
+    }
+    assertThat(sorted)
+        .extracting(
+            pair -> pair.cvcHash()[0] & 0xFF,
+            pair -> pair.autHash()[0] & 0xFF,
+            Pair::notAfter,
+            Pair::liveState,
+            Pair::conflict)
+        .containsExactly(
+            tuple(1, 3, NOT_AFTER, null, false),
+            tuple(2, 3, null, EgkEntryState.AD_HOC, true),
+            tuple(3, 0x10, NOT_AFTER, EgkEntryState.BLOCKED, false),
+            tuple(4, 0x7F, null, EgkEntryState.IMPORTED, false),
+            tuple(1, 0xF0, NOT_AFTER, null, false));
+  }
+
+  @Test
+  void closeDeletesRunsAndTheirDirectory(@TempDir final Path tempDir) throws IOException {
+    // given
+    final var sut = new ExternalPairSorter(tempDir, 1, ExternalPairSorter.BY_CVC_HASH);
+    sut.add(pair(1, 1, NOT_AFTER, null, false));
+    sut.add(pair(2, 2, NOT_AFTER, null, false));
+    sut.sorted().next();
+
+    // when
+    sut.close();
+
+    // then
+    try (final var files = Files.list(tempDir)) {
+      assertThat(files).isEmpty();
+    }
+  }
+
+  private static Pair pair(
+      final int cvcHash,
+      final int autHash,
+      final LocalDateTime notAfter,
+      final EgkEntryState liveState,
+      final boolean conflict) {
+    return new Pair(
+        new byte[] {(byte) cvcHash}, new byte[] {(byte) autHash}, notAfter, liveState, conflict);
+  }
+}
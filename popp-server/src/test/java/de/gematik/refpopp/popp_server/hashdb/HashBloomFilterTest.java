@@ -0,0 +1,78 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class HashBloomFilterTest {
+
+  private static byte[] key(final int i) {
+    return ByteBuffer.allocate(32).putInt(i).putInt(28, ~i).array();
+  }
+
+  @Test
+  void addedKeysAreAlwaysReported() {
+    // given
+    final var sut = HashBloomFilter.create(10_000, 0.01);
+
+    // when
+    for (int i = 0; i < 10_000; i++) {
+      sut.put(key(i));
+    }
+
+    // then
+    for (int i = 0; i < 10_000; i++) {
+      assertThat(sut.mightContain(key(i))).isTrue();
+    }
+  }
+
+  @Test
+  void falsePositiveRateStaysNearConfiguredRate() {
+    // given
+    final var sut = HashBloomFilter.create(10_000, 0.01);
+    for (int i = 0; i < 10_000; i++) {
+      sut.put(key(i));
+    }
+
+    // when
+    int falsePositives = 0;
+    for (int i = 10_000; i < 110_000; i++) {
+      if (sut.mightContain(key(i))) {
+        falsePositives++;
+      }
+    }
+
+    // then
+    assertThat(falsePositives).isLessThan(2_000);
+    assertThat(sut.hashFunctions()).isEqualTo(7);
+    assertThat(sut.sizeInBytes()).isEqualTo(11_984);
+  }
+
+  @Test
+  void createRejectsInvalidFalsePositiveRate() {
+    assertThatThrownBy(() -> HashBloomFilter.create(10, 1.0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
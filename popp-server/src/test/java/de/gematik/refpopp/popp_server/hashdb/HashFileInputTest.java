@@ -0,0 +1,136 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HashFileInputTest {
+
+  @Test
+  void openReadsWholeFileMapped(@TempDir final Path tempDir) throws IOException {
+    // given
+    final var content = randomBytes(10_000);
+    final var file = Files.write(tempDir.resolve("hashes.der"), content);
+
+    // when
+    try (final InputStream in = HashFileInput.open(file)) {
+
+      // then
+      assertThat(in).isInstanceOf(HashFileInput.MappedInputStream.class);
+      assertThat(in.available()).isEqualTo(content.length);
+      assertThat(in.readAllBytes()).isEqualTo(content);
+      assertThat(in.read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  void mappedInputStreamReadsAcrossWindows(@TempDir final Path tempDir) throws IOException {
+    // given
+    final var content = randomBytes(1_000);
+    final var file = Files.write(tempDir.resolve("hashes.der"), content);
+    final var read = new byte[content.length];
+
+    // when
+    try (final var channel = FileChannel.open(file, StandardOpenOption.READ);
+        final var in = new HashFileInput.MappedInputStream(channel, content.length, 64)) {
+      read[0] = (byte) in.read();
+      int pos = 1;
+      int n;
+      while ((n = in.read(read, pos, 100)) > 0) {
+        pos += n;
+      }
+
+      // then
+      assertThat(pos).isEqualTo(content.length);
+      assertThat(read).isEqualTo(content);
+    }
+  }
+
+  @Test
+  void mappedInputStreamSkipsIntoLaterWindows(@TempDir final Path tempDir) throws IOException {
+    // given
+    final var content = randomBytes(1_000);
+    final var file = Files.write(tempDir.resolve("hashes.der"), content);
+
+    // when
+    try (final var channel = FileChannel.open(file, StandardOpenOption.READ);
+        final var in = new HashFileInput.MappedInputStream(channel, content.length, 64)) {
+      final long skippedInWindow = in.skip(10);
+      final long skippedAcrossWindows = in.skip(500);
+      final int next = in.read();
+      final long skippedPastEnd = in.skip(10_000);
+
+      // then
+      assertThat(skippedInWindow).isEqualTo(10);
+      assertThat(skippedAcrossWindows).isEqualTo(500);
+      assertThat(next).isEqualTo(content[510] & 0xFF);
+      assertThat(skippedPastEnd).isEqualTo(content.length - 511);
+      assertThat(in.read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  void openReadsEmptyFile(@TempDir final Path tempDir) throws IOException {
+    // given
+    final var file = Files.createFile(tempDir.resolve("empty.der"));
+
+    // when
+    try (final InputStream in = HashFileInput.open(file)) {
+
+      // then
+      assertThat(in.read()).isEqualTo(-1);
+      assertThat(in.read(new byte[8], 0, 8)).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  void bufferedKeepsInMemoryStreamsAndWrapsOthers() throws IOException {
+    // given
+    final var inMemory = new ByteArrayInputStream(new byte[1]);
+    final var buffered = new BufferedInputStream(inMemory);
+    try (final var piped = new PipedInputStream()) {
+
+      // when / then
+      assertThat(HashFileInput.buffered(inMemory)).isSameAs(inMemory);
+      assertThat(HashFileInput.buffered(buffered)).isSameAs(buffered);
+      assertThat(HashFileInput.buffered(piped)).isInstanceOf(BufferedInputStream.class);
+    }
+  }
+
+  private static byte[] randomBytes(final int length) {
+    final var bytes = new byte[length];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class ImportCheckpointTest {
+
+  @Test
+  void ordinalIsLimitedByShardWithPendingEntries() {
+    // given
+    final var sut = new ImportCheckpoint(2, 0);
+    sut.enqueued(0, 1);
+    sut.enqueued(1, 2);
+    sut.enqueued(0, 3);
+    sut.enqueued(1, 4);
+
+    // when
+    sut.committed(1, 4);
+    sut.committed(0, 1);
+
+    // then
+    assertThat(sut.ordinal()).isEqualTo(1);
+  }
+
+  @Test
+  void ordinalIsLastEnqueuedEntryWhenNothingIsPending() {
+    // given
+    final var sut = new ImportCheckpoint(2, 0);
+    sut.enqueued(0, 1);
+    sut.enqueued(0, 2);
+
+    // when
+    sut.committed(0, 2);
+
+    // then
+    assertThat(sut.ordinal()).isEqualTo(2);
+  }
+
+  @Test
+  void ordinalStartsAtResumedCheckpoint() {
+    // when
+    final var sut = new ImportCheckpoint(3, 42);
+
+    // then
+    assertThat(sut.ordinal()).isEqualTo(42);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.gematik.refpopp.popp_server.model.EgkEntry;
+import de.gematik.refpopp.popp_server.model.EgkEntryState;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ImportProgressTest {
+
+  @Test
+  void trackCountsBytesRead() throws IOException {
+    // given
+    final var sut = new ImportProgress(100);
+
+    // when
+    try (final InputStream in = sut.track(new ByteArrayInputStream(new byte[10]))) {
+      in.read();
+      in.read(new byte[4], 0, 4);
+      in.skip(2);
+      in.readAllBytes();
+    }
+
+    // then
+    assertThat(sut.bytesProcessed()).isEqualTo(10);
+    assertThat(sut.totalBytes()).isEqualTo(100);
+  }
+
+  @Test
+  void countSortsEntriesByState() {
+    // given
+    final var sut = new ImportProgress(0);
+    final var now = LocalDateTime.now();
+
+    // when
+    sut.count(
+        List.of(
+            new EgkEntry(new byte[] {1}, new byte[] {1}, EgkEntryState.IMPORTED, now),
+            new EgkEntry(new byte[] {2}, new byte[] {2}, EgkEntryState.BLOCKED, now),
+            new EgkEntry(new byte[] {3}, new byte[] {3}, EgkEntryState.AD_HOC, now)));
+
+    // then
+    assertThat(sut.importedCount()).hasValue(1);
+    assertThat(sut.blockedCount()).hasValue(1);
+    assertThat(sut.skippedCount()).hasValue(1);
+    assertThat(sut.totalProcessedCount()).hasValue(3);
+  }
+}
@@ -22,12 +22,16 @@ package de.gematik.refpopp.popp_server.hashdb;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import de.gematik.refpopp.popp_server.model.ImportJobStatus;
 import de.gematik.refpopp.popp_server.model.ImportReportEntry;
 import de.gematik.refpopp.popp_server.repository.ImportReportRepository;
 import java.time.LocalDateTime;
+import java.util.Optional;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -65,6 +69,7 @@ class ImportReportProcessorTest {
     assertThat(result.getBlockedCount()).isZero();
     assertThat(result.getSkippedCount()).isZero();
     assertThat(result.getTotalProcessedCount()).isZero();
+    assertThat(result.getStatus()).isEqualTo(ImportJobStatus.RUNNING);
 
     ArgumentCaptor<ImportReportEntry> reportCaptor =
         ArgumentCaptor.forClass(ImportReportEntry.class);
@@ -96,5 +101,150 @@ class ImportReportProcessorTest {
     assertThat(capturedReport.getSkippedCount()).isEqualTo(2L);
     assertThat(capturedReport.getTotalProcessedCount()).isEqualTo(17L);
     assertThat(capturedReport.getDurationInSeconds()).isPositive();
+    assertThat(capturedReport.getStatus()).isEqualTo(ImportJobStatus.DONE);
+  }
+
+  @Test
+  void queueReportShouldSaveQueuedReport() {
+    // given
+    when(importReportRepository.save(any(ImportReportEntry.class)))
+        .thenAnswer(invocation -> invocation.getArgument(0));
+
+    // when
+    ImportReportEntry result = sut.queueReport(SESSION_ID);
+
+    // then
+    assertThat(result.getSessionId()).isEqualTo(SESSION_ID);
+    assertThat(result.getStatus()).isEqualTo(ImportJobStatus.QUEUED);
+  }
+
+  @Test
+  void createReportShouldStartQueuedReport() {
+    // given
+    ImportReportEntry queued = new ImportReportEntry(SESSION_ID);
+    queued.setStatus(ImportJobStatus.QUEUED);
+    when(importReportRepository.findBySessionId(SESSION_ID)).thenReturn(Optional.of(queued));
+    when(importReportRepository.save(any(ImportReportEntry.class)))
+        .thenAnswer(invocation -> invocation.getArgument(0));
+
+    // when
+    ImportReportEntry result = sut.createReport(SESSION_ID);
+
+    // then
+    assertThat(result).isSameAs(queued);
+    assertThat(result.getStatus()).isEqualTo(ImportJobStatus.RUNNING);
+  }
+
+  @Test
+  void failReportShouldMarkReportAsFailed() {
+    // given
+    ImportReportEntry report = new ImportReportEntry(SESSION_ID);
+    when(importReportRepository.findBySessionId(SESSION_ID)).thenReturn(Optional.of(report));
+
+    // when
+    sut.failReport(SESSION_ID, "broken");
+
+    // then
+    verify(importReportRepository).save(report);
+    assertThat(report.getStatus()).isEqualTo(ImportJobStatus.FAILED);
+    assertThat(report.getStatusMessage()).isEqualTo("broken");
+    assertThat(report.getEndTime()).isNotNull();
+  }
+
+  @Test
+  void failReportShouldMarkRunningReportAsFailed() {
+    // given
+    ImportReportEntry report = new ImportReportEntry(SESSION_ID);
+
+    // when
+    sut.failReport(report, "Signature invalid");
+
+    // then
+    verify(importReportRepository).save(report);
+    assertThat(report.getStatus()).isEqualTo(ImportJobStatus.FAILED);
+    assertThat(report.getStatusMessage()).isEqualTo("Signature invalid");
+    assertThat(report.getEndTime()).isNotNull();
+  }
+
+  @Test
+  void updateProgressShouldSaveCountersOfRunningReport() {
+    // given
+    ImportReportEntry report = new ImportReportEntry(SESSION_ID);
+    report.setStartTime(LocalDateTime.now().minusSeconds(10));
+
+    // when
+    sut.updateProgress(report, 6L, 2L, 2L, 10L, 250L, 1000L, 7L);
+
+    // then
+    verify(importReportRepository).save(report);
+    assertThat(report.getTotalProcessedCount()).isEqualTo(10L);
+    assertThat(report.getBytesProcessed()).isEqualTo(250L);
+    assertThat(report.getTotalBytes()).isEqualTo(1000L);
+    assertThat(report.getLastProgressUpdate()).isNotNull();
+    assertThat(report.getEntriesPerSecond()).isPositive();
+    assertThat(report.getEstimatedRemainingSeconds()).isBetween(25L, 35L);
+    assertThat(report.getCheckpointOrdinal()).isEqualTo(7L);
+  }
+
+  @Test
+  void updateProgressShouldNotMoveCheckpointBack() {
+    // given
+    ImportReportEntry report = new ImportReportEntry(SESSION_ID);
+    sut.startCheckpoints(report, "digest", "failed", 5L);
+
+    // when
+    sut.updateProgress(report, 0L, 0L, 0L, 0L, 10L, 1000L, 0L);
+
+    // then
+    assertThat(report.getCheckpointOrdinal()).isEqualTo(5L);
+    assertThat(report.getFileDigest()).isEqualTo("digest");
+    assertThat(report.getResumedFrom()).isEqualTo("failed");
+  }
+
+  @Test
+  void updateProgressShouldIgnoreFinishedReport() {
+    // given
+    ImportReportEntry report = new ImportReportEntry(SESSION_ID);
+    report.setStatus(ImportJobStatus.DONE);
+
+    // when
+    sut.updateProgress(report, 1L, 0L, 0L, 1L, 10L, 10L, 1L);
+
+    // then
+    verify(importReportRepository, never()).save(any(ImportReportEntry.class));
+    assertThat(report.getTotalProcessedCount()).isZero();
+  }
+
+  @Test
+  void recordThrottleDecisionShouldKeepLatestDecisions() {
+    // given
+    ImportReportEntry report = new ImportReportEntry(SESSION_ID);
+
+    // when
+    for (int i = 0; i < 101; i++) {
+      sut.recordThrottleDecision(report, "decision " + i);
+    }
+
+    // then
+    assertThat(report.getThrottleCount()).isEqualTo(101);
+    assertThat(report.getThrottleLog().split("\n"))
+        .hasSize(100)
+        .startsWith("decision 1")
+        .endsWith("decision 100");
+    verify(importReportRepository, times(101)).save(report);
+  }
+
+  @Test
+  void recordThrottleDecisionShouldIgnoreFinishedReport() {
+    // given
+    ImportReportEntry report = new ImportReportEntry(SESSION_ID);
+    report.setStatus(ImportJobStatus.DONE);
+
+    // when
+    sut.recordThrottleDecision(report, "decision");
+
+    // then
+    verify(importReportRepository, never()).save(any(ImportReportEntry.class));
+    assertThat(report.getThrottleCount()).isZero();
   }
 }
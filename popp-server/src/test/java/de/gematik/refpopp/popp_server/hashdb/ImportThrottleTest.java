@@ -0,0 +1,128 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ImportThrottleTest {
+
+  private static final long THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+  private final AtomicReference<OptionalLong> p99 = new AtomicReference<>(OptionalLong.empty());
+  private final List<String> decisions = new ArrayList<>();
+  private ImportThrottle sut;
+
+  @BeforeEach
+  void setUp() {
+    sut = new ImportThrottle(8, THRESHOLD_NANOS, 400, p99::get, decisions::add);
+  }
+
+  @Test
+  void adjustHalvesConcurrencyAndThenRaisesPauseWhileP99IsAboveThreshold() {
+    // given
+    p99.set(OptionalLong.of(TimeUnit.MILLISECONDS.toNanos(300)));
+
+    // when
+    final var concurrencies = new ArrayList<Integer>();
+    for (int i = 0; i < 7; i++) {
+      sut.adjust();
+      concurrencies.add(sut.concurrency());
+    }
+
+    // then
+    assertThat(concurrencies).containsExactly(4, 2, 1, 1, 1, 1, 1);
+    assertThat(sut.pauseMillis()).isEqualTo(400);
+    assertThat(decisions).hasSize(7).allMatch(decision -> decision.contains("p99 300 ms"));
+    assertThat(decisions.get(0)).endsWith("consumers 8 -> 4, pause 0 -> 0 ms");
+  }
+
+  @Test
+  void adjustLowersPauseBeforeRaisingConcurrencyWhenP99Recovers() {
+    // given
+    p99.set(OptionalLong.of(TimeUnit.MILLISECONDS.toNanos(300)));
+    for (int i = 0; i < 4; i++) {
+      sut.adjust();
+    }
+    p99.set(OptionalLong.of(TimeUnit.MILLISECONDS.toNanos(50)));
+
+    // when
+    sut.adjust();
+    final long pauseAfterRecovery = sut.pauseMillis();
+    sut.adjust();
+
+    // then
+    assertThat(pauseAfterRecovery).isZero();
+    assertThat(sut.concurrency()).isEqualTo(2);
+  }
+
+  @Test
+  void adjustKeepsSettingsBetweenHalfAndFullThreshold() {
+    // given
+    p99.set(OptionalLong.of(TimeUnit.MILLISECONDS.toNanos(300)));
+    sut.adjust();
+    p99.set(OptionalLong.of(TimeUnit.MILLISECONDS.toNanos(150)));
+
+    // when
+    sut.adjust();
+
+    // then
+    assertThat(sut.concurrency()).isEqualTo(4);
+    assertThat(decisions).hasSize(1);
+  }
+
+  @Test
+  void acquireBlocksWhenConcurrencyIsExhausted() throws Exception {
+    // given
+    p99.set(OptionalLong.of(TimeUnit.MILLISECONDS.toNanos(300)));
+    for (int i = 0; i < 3; i++) {
+      sut.adjust();
+    }
+    sut.acquire();
+
+    // when
+    final var second = new Thread(this::acquireAndRelease);
+    second.start();
+    second.join(200);
+
+    // then
+    assertThat(second.isAlive()).isTrue();
+    sut.release();
+    second.join(1000);
+    assertThat(second.isAlive()).isFalse();
+  }
+
+  private void acquireAndRelease() {
+    try {
+      sut.acquire();
+      sut.release();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ShardedEntryQueueTest {
+
+  @Test
+  void putRoutesEntriesWithSameCvcHashToSameShard() throws InterruptedException {
+    // given
+    final var sut = new ShardedEntryQueue(4, 10, 0);
+    final var first = transferEntry(new byte[] {0, 0, 0, 5, 1}, new byte[] {1});
+    final var second = transferEntry(new byte[] {0, 0, 0, 5, 1}, new byte[] {2});
+
+    // when
+    sut.put(first);
+    sut.put(second);
+
+    // then
+    final var shard = sut.shard(1);
+    assertThat(shard).containsExactly(Optional.of(first), Optional.of(second));
+  }
+
+  @Test
+  void putRoutesEntryWithOnlySameAutHashToShardOfUnreleasedEntry() throws InterruptedException {
+    // given
+    final var sut = new ShardedEntryQueue(4, 10, 0);
+    final var first = transferEntry(new byte[] {0, 0, 0, 1}, new byte[] {9});
+    final var second = transferEntry(new byte[] {0, 0, 0, 2}, new byte[] {9});
+
+    // when
+    final int firstShard = sut.put(first);
+    final int secondShard = sut.put(second);
+
+    // then
+    assertThat(firstShard).isEqualTo(1);
+    assertThat(secondShard).isEqualTo(1);
+    assertThat(sut.shard(1)).containsExactly(Optional.of(first), Optional.of(second));
+  }
+
+  @Test
+  void putRoutesByCvcHashAgainAfterRelease() throws InterruptedException {
+    // given
+    final var sut = new ShardedEntryQueue(4, 10, 0);
+    final var first = transferEntry(new byte[] {0, 0, 0, 1}, new byte[] {9});
+    final var second = transferEntry(new byte[] {0, 0, 0, 2}, new byte[] {9});
+    sut.put(first);
+
+    // when
+    sut.release(List.of(first));
+    final int secondShard = sut.put(second);
+
+    // then
+    assertThat(secondShard).isEqualTo(2);
+  }
+
+  @Test
+  void putWaitsWhileHashesAreOwnedByDifferentShards() throws Exception {
+    // given
+    final var sut = new ShardedEntryQueue(4, 10, 0);
+    final var first = transferEntry(new byte[] {0, 0, 0, 1}, new byte[] {8});
+    final var second = transferEntry(new byte[] {0, 0, 0, 2}, new byte[] {9});
+    final var crossing = transferEntry(new byte[] {0, 0, 0, 1}, new byte[] {9});
+    sut.put(first);
+    sut.put(second);
+    final var executor = Executors.newSingleThreadExecutor();
+    try {
+      final var put = executor.submit(() -> sut.put(crossing));
+      Thread.sleep(200);
+      assertThat(put).isNotDone();
+
+      // when
+      sut.release(List.of(second));
+
+      // then
+      assertThat(put.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void abortUnblocksPutIntoFullShard() throws Exception {
+    // given
+    final var sut = new ShardedEntryQueue(1, 1, 0);
+    sut.put(transferEntry(new byte[] {1}, new byte[] {1}));
+    final var executor = Executors.newSingleThreadExecutor();
+    try {
+      final var put = executor.submit(() -> sut.put(transferEntry(new byte[] {2}, new byte[] {2})));
+      Thread.sleep(200);
+      assertThat(put).isNotDone();
+
+      // when
+      sut.abort();
+
+      // then
+      assertThatThrownBy(() -> put.get(5, TimeUnit.SECONDS))
+          .hasCauseInstanceOf(CancellationException.class);
+      assertThatThrownBy(() -> sut.poll(0, 0)).isInstanceOf(CancellationException.class);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void closePutsEndMarkerIntoEveryShard() {
+    // given
+    final var sut = new ShardedEntryQueue(3, 10, 0);
+
+    // when
+    sut.close();
+
+    // then
+    for (int i = 0; i < sut.shardCount(); i++) {
+      assertThat(sut.shard(i)).containsExactly(Optional.empty());
+    }
+  }
+
+  @Test
+  void putAssignsWholePartitionsToShardsWhenPartitioned() throws InterruptedException {
+    // given
+    final var sut = new ShardedEntryQueue(3, 10, 16);
+    final var partition4 = transferEntry(new byte[] {0x40, 1}, new byte[] {1});
+    final var partition4Too = transferEntry(new byte[] {0x4f, 2}, new byte[] {2});
+    final var partition5 = transferEntry(new byte[] {0x50, 3}, new byte[] {3});
+
+    // when
+    sut.put(partition4);
+    sut.put(partition4Too);
+    sut.put(partition5);
+
+    // then
+    assertThat(sut.shard(1)).containsExactly(Optional.of(partition4), Optional.of(partition4Too));
+    assertThat(sut.shard(2)).containsExactly(Optional.of(partition5));
+  }
+
+  @Test
+  void shardOfUsesUnsignedHashPrefix() {
+    assertThat(ShardedEntryQueue.shardOf(new byte[] {(byte) 0xff, 0, 0, 0, 7}, 16))
+        .isEqualTo(Integer.remainderUnsigned(0xff000000, 16));
+    assertThat(ShardedEntryQueue.shardOf(new byte[] {3}, 2)).isEqualTo(1);
+    assertThat(ShardedEntryQueue.shardOf(new byte[0], 2)).isZero();
+  }
+
+  private static EgkTransferEntry transferEntry(final byte[] cvcHash, final byte[] autHash) {
+    return EgkTransferEntry.builder()
+        .cvcHash(cvcHash)
+        .autHash(autHash)
+        .notAfter(LocalDateTime.now())
+        .build();
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (Date see Readme), gematik GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * *******
+ *
+ * For additional notes and disclaimer from gematik and in case of changes by gematik find details in the "Readme" file.
+ */
+
+package de.gematik.refpopp.popp_server.hashdb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class ValidationLatencyMonitorTest {
+
+  @Test
+  void p99NanosReturnsEmptyBelowMinimumSamples() {
+    // given
+    final var sut = new ValidationLatencyMonitor(30, 100, 5);
+    for (int i = 0; i < 4; i++) {
+      sut.record(1_000);
+    }
+
+    // when
+    final var p99 = sut.p99Nanos();
+
+    // then
+    assertThat(p99).isEmpty();
+  }
+
+  @Test
+  void p99NanosReturnsNinetyNinthPercentileOfLatestSamples() {
+    // given
+    final var sut = new ValidationLatencyMonitor(30, 100, 1);
+    for (int i = 1; i <= 150; i++) {
+      sut.record(i);
+    }
+
+    // when
+    final var p99 = sut.p99Nanos();
+
+    // then
+    assertThat(p99).hasValue(149);
+  }
+
+  @Test
+  void p99NanosIgnoresSamplesOutsideWindow() throws InterruptedException {
+    // given
+    final var sut = new ValidationLatencyMonitor(0, 100, 1);
+    sut.record(1_000);
+    Thread.sleep(1);
+
+    // when
+    final var p99 = sut.p99Nanos();
+
+    // then
+    assertThat(p99).isEmpty();
+  }
+}
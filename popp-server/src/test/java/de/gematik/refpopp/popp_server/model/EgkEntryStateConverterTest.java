@@ -41,9 +41,9 @@ class EgkEntryStateConverterTest {
 
   @Test
   void convertToDatabaseColumnWithValidData() {
-    assertThat(sut.convertToDatabaseColumn(IMPORTED)).isEqualTo("imported");
-    assertThat(sut.convertToDatabaseColumn(AD_HOC)).isEqualTo("ad hoc");
-    assertThat(sut.convertToDatabaseColumn(BLOCKED)).isEqualTo("blocked");
+    assertThat(sut.convertToDatabaseColumn(IMPORTED)).isEqualTo((short) 1);
+    assertThat(sut.convertToDatabaseColumn(AD_HOC)).isEqualTo((short) 2);
+    assertThat(sut.convertToDatabaseColumn(BLOCKED)).isEqualTo((short) 3);
   }
 
   @Test
@@ -53,9 +53,9 @@ class EgkEntryStateConverterTest {
 
   @Test
   void convertToEntityAttributeWithValidData() {
-    assertThat(sut.convertToEntityAttribute("imported")).isEqualTo(IMPORTED);
-    assertThat(sut.convertToEntityAttribute("ad hoc")).isEqualTo(AD_HOC);
-    assertThat(sut.convertToEntityAttribute("blocked")).isEqualTo(BLOCKED);
+    assertThat(sut.convertToEntityAttribute((short) 1)).isEqualTo(IMPORTED);
+    assertThat(sut.convertToEntityAttribute((short) 2)).isEqualTo(AD_HOC);
+    assertThat(sut.convertToEntityAttribute((short) 3)).isEqualTo(BLOCKED);
   }
 
   @Test
@@ -65,8 +65,8 @@ class EgkEntryStateConverterTest {
 
   @Test
   void convertToEntityAttributeWithInvalidData() {
-    assertThrows(IllegalArgumentException.class, () -> sut.convertToEntityAttribute("invalid"));
-    assertThatThrownBy(() -> sut.convertToEntityAttribute("invalid"))
+    assertThrows(IllegalArgumentException.class, () -> sut.convertToEntityAttribute((short) 0));
+    assertThatThrownBy(() -> sut.convertToEntityAttribute((short) 4))
         .isInstanceOf(IllegalArgumentException.class);
   }
 }
@@ -0,0 +1,138 @@
+-- Compares the egk_entries layout before changeset poppserver:13 (state as varchar, single-column
+-- hash indexes plus the unique pair constraint) with the compact layout (state as smallint code,
+-- unique covering index on the pair, aut hash index only).
+--
+-- Runs in the scratch schema egk_layout_bench, which is dropped and recreated. The number of rows
+-- is taken from the setting egk_bench.rows (default 1000000), e.g.
+--   PGOPTIONS='-c egk_bench.rows=10000000' psql -d egk -f egk_entries_layout.sql
+-- Needs no extension. The statements must run one by one outside of a transaction block because
+-- of VACUUM, as psql -f does.
+
+DROP SCHEMA IF EXISTS egk_layout_bench CASCADE;
+CREATE SCHEMA egk_layout_bench;
+SET search_path = egk_layout_bench;
+
+CREATE TABLE before_layout (
+    id SERIAL PRIMARY KEY,
+    cvc_hash bytea NOT NULL,
+    aut_hash bytea NOT NULL,
+    state VARCHAR(8) NOT NULL CHECK (state IN ('imported', 'ad hoc', 'blocked')),
+    not_after TIMESTAMP NOT NULL
+);
+
+CREATE TABLE after_layout (
+    id SERIAL PRIMARY KEY,
+    cvc_hash bytea NOT NULL CHECK (octet_length(cvc_hash) = 32),
+    aut_hash bytea NOT NULL CHECK (octet_length(aut_hash) = 32),
+    state SMALLINT NOT NULL CHECK (state IN (1, 2, 3)),
+    not_after TIMESTAMP NOT NULL
+);
+
+-- 32 byte pseudo random hashes, every 50th row is blocked and every 20th ad hoc
+INSERT INTO before_layout (cvc_hash, aut_hash, state, not_after)
+SELECT decode(md5('c' || i) || md5('d' || i), 'hex'),
+       decode(md5('a' || i) || md5('b' || i), 'hex'),
+       CASE WHEN i % 50 = 0 THEN 'blocked' WHEN i % 20 = 0 THEN 'ad hoc' ELSE 'imported' END,
+       TIMESTAMP '2030-01-01' + i * INTERVAL '1 second'
+  FROM generate_series(1, COALESCE(current_setting('egk_bench.rows', true), '1000000')::int) i;
+
+INSERT INTO after_layout (cvc_hash, aut_hash, state, not_after)
+SELECT cvc_hash, aut_hash,
+       CASE state WHEN 'imported' THEN 1 WHEN 'ad hoc' THEN 2 ELSE 3 END,
+       not_after
+  FROM before_layout ORDER BY id;
+
+CREATE INDEX before_cvc_hash ON before_layout (cvc_hash);
+CREATE INDEX before_aut_hash ON before_layout (aut_hash);
+ALTER TABLE before_layout ADD CONSTRAINT before_cvc_aut_hash UNIQUE (cvc_hash, aut_hash);
+
+CREATE UNIQUE INDEX after_cvc_aut_hash ON after_layout (cvc_hash, aut_hash) INCLUDE (state);
+CREATE INDEX after_aut_hash ON after_layout (aut_hash);
+
+VACUUM ANALYZE before_layout;
+VACUUM ANALYZE after_layout;
+
+CREATE TABLE results (layout TEXT, metric TEXT, value NUMERIC);
+
+INSERT INTO results
+SELECT 'before', 'table_mb', round(pg_table_size('before_layout') / 1048576.0, 1)
+UNION ALL
+SELECT 'after', 'table_mb', round(pg_table_size('after_layout') / 1048576.0, 1)
+UNION ALL
+SELECT 'before', 'index_mb', round(pg_indexes_size('before_layout') / 1048576.0, 1)
+UNION ALL
+SELECT 'after', 'index_mb', round(pg_indexes_size('after_layout') / 1048576.0, 1);
+
+-- average latency in microseconds of the lookups of the handshake path for random stored pairs;
+-- static statements so that their plans are cached like prepared statements of the application
+CREATE OR REPLACE FUNCTION lookup_latency(after BOOLEAN, lookups INT)
+RETURNS TABLE (metric TEXT, micros NUMERIC)
+LANGUAGE plpgsql AS $$
+DECLARE
+  total INT := (SELECT count(*) FROM before_layout);
+  keys bytea[][];
+  started TIMESTAMPTZ;
+  matches INT;
+  state_text TEXT;
+BEGIN
+  SELECT array_agg(ARRAY[cvc_hash, aut_hash]) INTO keys
+    FROM before_layout
+   WHERE id IN (SELECT 1 + (random() * (total - 1))::int FROM generate_series(1, lookups));
+
+  started := clock_timestamp();
+  FOR i IN 1 .. array_length(keys, 1) LOOP
+    IF after THEN
+      SELECT count(*) INTO matches FROM after_layout
+       WHERE cvc_hash = keys[i][1] AND aut_hash = keys[i][2];
+    ELSE
+      SELECT count(*) INTO matches FROM before_layout
+       WHERE cvc_hash = keys[i][1] AND aut_hash = keys[i][2];
+    END IF;
+  END LOOP;
+  metric := 'pair_lookup_us';
+  micros := round(extract(epoch FROM clock_timestamp() - started) * 1e6 / array_length(keys, 1), 1);
+  RETURN NEXT;
+
+  started := clock_timestamp();
+  FOR i IN 1 .. array_length(keys, 1) LOOP
+    IF after THEN
+      SELECT count(*) INTO matches FROM after_layout
+       WHERE cvc_hash = keys[i][1] OR aut_hash = keys[i][2];
+    ELSE
+      SELECT count(*) INTO matches FROM before_layout
+       WHERE cvc_hash = keys[i][1] OR aut_hash = keys[i][2];
+    END IF;
+  END LOOP;
+  metric := 'candidate_lookup_us';
+  micros := round(extract(epoch FROM clock_timestamp() - started) * 1e6 / array_length(keys, 1), 1);
+  RETURN NEXT;
+
+  started := clock_timestamp();
+  FOR i IN 1 .. array_length(keys, 1) LOOP
+    IF after THEN
+      SELECT state::text INTO state_text FROM after_layout
+       WHERE cvc_hash = keys[i][1] AND aut_hash = keys[i][2];
+    ELSE
+      SELECT state INTO state_text FROM before_layout
+       WHERE cvc_hash = keys[i][1] AND aut_hash = keys[i][2];
+    END IF;
+  END LOOP;
+  metric := 'state_lookup_us';
+  micros := round(extract(epoch FROM clock_timestamp() - started) * 1e6 / array_length(keys, 1), 1);
+  RETURN NEXT;
+END
+$$;
+
+-- warm up both layouts before measuring
+SELECT count(*) FROM lookup_latency(false, 2000);
+SELECT count(*) FROM lookup_latency(true, 2000);
+
+INSERT INTO results SELECT 'before', metric, micros FROM lookup_latency(false, 20000);
+INSERT INTO results SELECT 'after', metric, micros FROM lookup_latency(true, 20000);
+
+SELECT metric,
+       max(value) FILTER (WHERE layout = 'before') AS before,
+       max(value) FILTER (WHERE layout = 'after') AS after
+  FROM results
+ GROUP BY metric
+ ORDER BY metric;